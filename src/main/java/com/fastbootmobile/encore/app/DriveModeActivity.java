@@ -52,6 +52,7 @@ import com.fastbootmobile.encore.providers.IMusicProvider;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
 import com.fastbootmobile.encore.service.BasePlaybackCallback;
 import com.fastbootmobile.encore.service.NavHeadService;
+import com.fastbootmobile.encore.service.PlaybackClock;
 import com.fastbootmobile.encore.service.PlaybackService;
 import com.fastbootmobile.encore.utils.Utils;
 import com.fastbootmobile.encore.voice.VoiceActionHelper;
@@ -368,10 +369,11 @@ public class DriveModeActivity extends AppActivity implements ILocalCallback,
     }
 
     private void updateSeekBar() {
-        int state = PlaybackProxy.getState();
+        final PlaybackClock clock = PlaybackProxy.getPlaybackClock();
+        int state = clock.getState();
 
         if (state == PlaybackService.STATE_PLAYING) {
-            int elapsedMs = PlaybackProxy.getCurrentTrackPosition();
+            int elapsedMs = clock.getPosition();
 
             mSeek.setProgress(elapsedMs);
             mHandler.sendEmptyMessageDelayed(MSG_UPDATE_SEEKBAR, DELAY_SEEKBAR_UPDATE);
@@ -16,10 +16,10 @@
 package com.fastbootmobile.encore.app.adapters;
 
 import android.content.res.Resources;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.SeekBar;
 import android.widget.TextView;
@@ -40,11 +40,17 @@ import com.fastbootmobile.encore.service.PlaybackService;
 import java.util.List;
 
 /**
- * Adapter for playback queue
+ * Adapter for playback queue. The queue is the live list of a
+ * {@link com.fastbootmobile.encore.framework.PlaybackQueueMirror}, whose changes must be notified
+ * to the adapter as soon as they are applied.
  */
-public class PlaybackQueueAdapter extends BaseAdapter {
+public class PlaybackQueueAdapter extends RecyclerView.Adapter<PlaybackQueueAdapter.ViewHolder> {
+    private static final int VIEW_TYPE_REGULAR = 1;
+    private static final int VIEW_TYPE_CURRENT = 2;
+
     private ListenLogger mListenLogger;
     private List<Song> mQueue;
+    private int mCurrentIndex = -1;
     private ViewHolder mCurrentTrackTag;
     private View.OnClickListener mPlayFabClickListener;
     private View.OnClickListener mNextClickListener;
@@ -89,136 +95,169 @@ public class PlaybackQueueAdapter extends BaseAdapter {
     }
 
     public void setPlaybackQueue(List<Song> queue) {
-        synchronized (this) {
-            mQueue = queue;
-            notifyDataSetChanged();
-        }
+        mQueue = queue;
+        notifyDataSetChanged();
     }
 
-    @Override
-    public int getCount() {
-        synchronized (this) {
-            if (mQueue != null) {
-                return mQueue.size();
-            } else {
-                return 0;
+    /**
+     * Sets the index of the track playing, which is shown with the playback controls
+     * @param index The index of the track, or -1 if none
+     */
+    public void setCurrentTrackIndex(int index) {
+        if (index != mCurrentIndex) {
+            final int previous = mCurrentIndex;
+            mCurrentIndex = index;
+
+            if (previous >= 0 && previous < getItemCount()) {
+                notifyItemChanged(previous);
+            }
+            if (index >= 0 && index < getItemCount()) {
+                notifyItemChanged(index);
             }
         }
     }
 
-    @Override
-    public Song getItem(int position) {
-        synchronized (this) {
-            final ProviderAggregator aggregator = ProviderAggregator.getDefault();
-            Song copy = mQueue.get(position);
-
-            if (copy != null) {
-                return aggregator.retrieveSong(copy.getRef(), copy.getProvider());
-            } else {
-                return null;
-            }
+    /**
+     * Notifies songs were inserted in the queue
+     */
+    public void onQueueItemsInserted(int position, int count) {
+        if (mCurrentIndex >= position) {
+            mCurrentIndex += count;
         }
+        notifyItemRangeInserted(position, count);
     }
 
-    @Override
-    public long getItemId(int position) {
-        return position;
+    /**
+     * Notifies songs were removed from the queue
+     */
+    public void onQueueItemsRemoved(int position, int count) {
+        if (mCurrentIndex >= position + count) {
+            mCurrentIndex -= count;
+        } else if (mCurrentIndex >= position) {
+            mCurrentIndex = -1;
+        }
+        notifyItemRangeRemoved(position, count);
     }
 
     @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
-        if (mListenLogger == null) {
-            mListenLogger = new ListenLogger(parent.getContext());
+    public int getItemCount() {
+        if (mQueue != null) {
+            return mQueue.size();
+        } else {
+            return 0;
         }
+    }
 
+    public Song getItem(int position) {
         final ProviderAggregator aggregator = ProviderAggregator.getDefault();
-        final Resources res = parent.getResources();
-        final Song item;
-        synchronized (this) {
-             item = getItem(position);
+        Song copy = mQueue.get(position);
+
+        if (copy != null) {
+            return aggregator.retrieveSong(copy.getRef(), copy.getProvider());
+        } else {
+            return null;
         }
-        final boolean isCurrent = position == PlaybackProxy.getCurrentTrackIndex();
+    }
 
-        ViewHolder tag;
+    @Override
+    public int getItemViewType(int position) {
+        return position == mCurrentIndex ? VIEW_TYPE_CURRENT : VIEW_TYPE_REGULAR;
+    }
 
-        if (convertView == null || ((ViewHolder) convertView.getTag()).isCurrent != isCurrent) {
-            final LayoutInflater inflater = LayoutInflater.from(parent.getContext());
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        final LayoutInflater inflater = LayoutInflater.from(parent.getContext());
+        final Resources res = parent.getResources();
+        final boolean isCurrent = viewType == VIEW_TYPE_CURRENT;
 
-            if (isCurrent) {
-                convertView = inflater.inflate(R.layout.item_playbackqueue_current, parent, false);
-            } else {
-                convertView = inflater.inflate(R.layout.item_playbar, parent, false);
-            }
+        final View view;
+        if (isCurrent) {
+            view = inflater.inflate(R.layout.item_playbackqueue_current, parent, false);
+        } else {
+            view = inflater.inflate(R.layout.item_playbar, parent, false);
+        }
 
-            tag = new ViewHolder();
-            tag.vRoot = (ViewGroup) convertView;
-            tag.tvTitle = (TextView) convertView.findViewById(R.id.tvTitle);
-            tag.tvArtist = (TextView) convertView.findViewById(R.id.tvArtist);
-            tag.ivAlbumArt = (AlbumArtImageView) convertView.findViewById(R.id.ivAlbumArt);
-            tag.ivAlbumArt.setOnClickListener(mAlbumArtCLickListener);
-            tag.ivAlbumArt.setTag(tag);
-
-            tag.vRoot.setClickable(false);
-
-            if (isCurrent) {
-                // Lookup views
-                tag.sbSeek = (SeekBar) convertView.findViewById(R.id.sbSeek);
-                tag.btnNext = (ImageView) convertView.findViewById(R.id.btnForward);
-                tag.btnPrevious = (ImageView) convertView.findViewById(R.id.btnPrevious);
-                tag.btnRepeat = (ImageView) convertView.findViewById(R.id.btnRepeat);
-                tag.btnShuffle = (ImageView) convertView.findViewById(R.id.btnShuffle);
-                tag.btnThumbs = (ImageView) convertView.findViewById(R.id.btnThumbs);
-                tag.btnThumbsDown = (ImageView) convertView.findViewById(R.id.btnThumbsDown);
-                tag.btnOverflow = (ImageView) convertView.findViewById(R.id.btnOverflow);
-                tag.fabPlay = (FloatingActionButton) convertView.findViewById(R.id.fabPlay);
-                tag.tvCurrentTime = (TextView) convertView.findViewById(R.id.tvCurrentTime);
-                tag.tvTotalTime = (TextView) convertView.findViewById(R.id.tvTotalTime);
-
-                // Setup some initial states
-                if (PlaybackProxy.isRepeatMode()) {
-                    tag.btnRepeat.setImageResource(R.drawable.ic_replay);
-                } else {
-                    tag.btnRepeat.setImageResource(R.drawable.ic_replay_gray);
-                }
-                if (PlaybackProxy.isShuffleMode()) {
-                    tag.btnShuffle.setImageResource(R.drawable.ic_shuffle);
-                } else {
-                    tag.btnShuffle.setImageResource(R.drawable.ic_shuffle_gray);
+        final ViewHolder tag = new ViewHolder(view);
+        tag.isCurrent = isCurrent;
+        tag.ivAlbumArt.setOnClickListener(mAlbumArtCLickListener);
+        tag.ivAlbumArt.setTag(tag);
+
+        tag.vRoot.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                final int position = tag.getAdapterPosition();
+                if (position != RecyclerView.NO_POSITION) {
+                    PlaybackProxy.playAtIndex(position);
                 }
-                tag.btnOverflow.setTag(tag);
-                tag.btnThumbs.setTag(tag);
-                tag.btnThumbsDown.setTag(tag);
-
-                // Play FAB drawable
-                tag.fabPlay.setFixupInset(false);
-                tag.fabPlayDrawable = new PlayPauseDrawable(res, 1.2f, 1.1f);
-                tag.fabPlayDrawable.setYOffset(6);
-                tag.fabPlayDrawable.setColor(res.getColor(R.color.white));
-                updatePlaystate(tag.fabPlayDrawable);
-                tag.fabPlay.setImageDrawable(tag.fabPlayDrawable);
-
-                // Click listeners
-                tag.fabPlay.setOnClickListener(mPlayFabClickListener);
-                tag.btnPrevious.setOnClickListener(mPreviousClickListener);
-                tag.btnNext.setOnClickListener(mNextClickListener);
-                tag.sbSeek.setOnSeekBarChangeListener(mSeekListener);
-                tag.btnRepeat.setOnClickListener(mRepeatClickListener);
-                tag.btnThumbs.setOnClickListener(mLikeClickListener);
-                tag.btnThumbsDown.setOnClickListener(mDislikeClickListener);
-                tag.btnOverflow.setOnClickListener(mOverflowClickListener);
-                tag.btnShuffle.setOnClickListener(mShuffleClickListener);
             }
+        });
 
-            convertView.setTag(tag);
-        } else {
-            tag = (ViewHolder) convertView.getTag();
+        if (isCurrent) {
+            // Lookup views
+            tag.sbSeek = (SeekBar) view.findViewById(R.id.sbSeek);
+            tag.btnNext = (ImageView) view.findViewById(R.id.btnForward);
+            tag.btnPrevious = (ImageView) view.findViewById(R.id.btnPrevious);
+            tag.btnRepeat = (ImageView) view.findViewById(R.id.btnRepeat);
+            tag.btnShuffle = (ImageView) view.findViewById(R.id.btnShuffle);
+            tag.btnThumbs = (ImageView) view.findViewById(R.id.btnThumbs);
+            tag.btnThumbsDown = (ImageView) view.findViewById(R.id.btnThumbsDown);
+            tag.btnOverflow = (ImageView) view.findViewById(R.id.btnOverflow);
+            tag.fabPlay = (FloatingActionButton) view.findViewById(R.id.fabPlay);
+            tag.tvCurrentTime = (TextView) view.findViewById(R.id.tvCurrentTime);
+            tag.tvTotalTime = (TextView) view.findViewById(R.id.tvTotalTime);
+
+            tag.btnOverflow.setTag(tag);
+            tag.btnThumbs.setTag(tag);
+            tag.btnThumbsDown.setTag(tag);
+
+            // Play FAB drawable
+            tag.fabPlay.setFixupInset(false);
+            tag.fabPlayDrawable = new PlayPauseDrawable(res, 1.2f, 1.1f);
+            tag.fabPlayDrawable.setYOffset(6);
+            tag.fabPlayDrawable.setColor(res.getColor(R.color.white));
+            tag.fabPlay.setImageDrawable(tag.fabPlayDrawable);
+
+            // Click listeners
+            tag.fabPlay.setOnClickListener(mPlayFabClickListener);
+            tag.btnPrevious.setOnClickListener(mPreviousClickListener);
+            tag.btnNext.setOnClickListener(mNextClickListener);
+            tag.sbSeek.setOnSeekBarChangeListener(mSeekListener);
+            tag.btnRepeat.setOnClickListener(mRepeatClickListener);
+            tag.btnThumbs.setOnClickListener(mLikeClickListener);
+            tag.btnThumbsDown.setOnClickListener(mDislikeClickListener);
+            tag.btnOverflow.setOnClickListener(mOverflowClickListener);
+            tag.btnShuffle.setOnClickListener(mShuffleClickListener);
         }
 
-        tag.isCurrent = isCurrent;
+        return tag;
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder tag, int position) {
+        if (mListenLogger == null) {
+            mListenLogger = new ListenLogger(tag.vRoot.getContext());
+        }
+
+        final ProviderAggregator aggregator = ProviderAggregator.getDefault();
+        final Song item = getItem(position);
+
         tag.song = item;
 
-        if (isCurrent) {
+        if (tag.isCurrent) {
             mCurrentTrackTag = tag;
+
+            // Setup some initial states
+            if (PlaybackProxy.isRepeatMode()) {
+                tag.btnRepeat.setImageResource(R.drawable.ic_replay);
+            } else {
+                tag.btnRepeat.setImageResource(R.drawable.ic_replay_gray);
+            }
+            if (PlaybackProxy.isShuffleMode()) {
+                tag.btnShuffle.setImageResource(R.drawable.ic_shuffle);
+            } else {
+                tag.btnShuffle.setImageResource(R.drawable.ic_shuffle_gray);
+            }
+            updatePlaystate(tag.fabPlayDrawable);
         }
 
         if (tag.btnThumbs != null && mListenLogger.isLiked(item.getRef())) {
@@ -257,8 +296,13 @@ public class PlaybackQueueAdapter extends BaseAdapter {
         } else {
             tag.vRoot.setAlpha(1.0f);
         }
+    }
 
-        return convertView;
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        if (holder == mCurrentTrackTag) {
+            mCurrentTrackTag = null;
+        }
     }
 
     private void updatePlaystate(PlayPauseDrawable drawable) {
@@ -295,7 +339,7 @@ public class PlaybackQueueAdapter extends BaseAdapter {
     }
 
 
-    public static class ViewHolder {
+    public static class ViewHolder extends RecyclerView.ViewHolder {
         public boolean isCurrent;
         public ViewGroup vRoot;
         public TextView tvTitle;
@@ -314,5 +358,13 @@ public class PlaybackQueueAdapter extends BaseAdapter {
         public ImageView btnShuffle;
         public ImageView btnThumbsDown;
         public Song song;
+
+        public ViewHolder(View v) {
+            super(v);
+            vRoot = (ViewGroup) v;
+            tvTitle = (TextView) v.findViewById(R.id.tvTitle);
+            tvArtist = (TextView) v.findViewById(R.id.tvArtist);
+            ivAlbumArt = (AlbumArtImageView) v.findViewById(R.id.ivAlbumArt);
+        }
     }
 }
@@ -27,14 +27,14 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.RemoteException;
 import android.support.v7.graphics.Palette;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.AdapterView;
 import android.widget.FrameLayout;
 import android.widget.ImageView;
-import android.widget.ListView;
 import android.widget.SeekBar;
 import android.widget.Toast;
 
@@ -50,6 +50,7 @@ import com.fastbootmobile.encore.app.ui.MaterialTransitionDrawable;
 import com.fastbootmobile.encore.app.ui.PlayPauseDrawable;
 import com.fastbootmobile.encore.framework.ListenLogger;
 import com.fastbootmobile.encore.framework.PlaybackProxy;
+import com.fastbootmobile.encore.framework.PlaybackQueueMirror;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
 import com.fastbootmobile.encore.model.Playlist;
@@ -59,12 +60,14 @@ import com.fastbootmobile.encore.providers.ILocalCallback;
 import com.fastbootmobile.encore.providers.IMusicProvider;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
 import com.fastbootmobile.encore.service.BasePlaybackCallback;
+import com.fastbootmobile.encore.service.PlaybackClock;
 import com.fastbootmobile.encore.service.PlaybackService;
 import com.fastbootmobile.encore.utils.Utils;
 
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Simple fragment for the activity contents
@@ -130,28 +133,34 @@ public class PlaybackQueueFragment extends Fragment {
             mHandler.obtainMessage(MSG_UPDATE_PLAYSTATE,
                     PLAYSTATE_ARG1_NOT_BUFFERING, PlayPauseDrawable.SHAPE_PAUSE).sendToTarget();
         }
+    };
+
+    private PlaybackQueueMirror mQueueMirror = new PlaybackQueueMirror(new PlaybackQueueMirror.Listener() {
+        @Override
+        public void onQueueItemsInserted(int position, int count) {
+            mAdapter.onQueueItemsInserted(position, count);
+        }
+
+        @Override
+        public void onQueueItemsRemoved(int position, int count) {
+            mAdapter.onQueueItemsRemoved(position, count);
+        }
+
+        @Override
+        public void onQueueMirrorReset() {
+            mAdapter.notifyDataSetChanged();
+        }
 
         @Override
-        public void onPlaybackQueueChanged() throws RemoteException {
+        public void onQueueMirrorChanged() {
             mHandler.sendEmptyMessage(MSG_UPDATE_QUEUE);
         }
-    };
+    });
 
     private ILocalCallback mProviderCallback = new ILocalCallback() {
         @Override
         public void onSongUpdate(List<Song> s) {
-            boolean contains = false;
-            final List<Song> playbackQueue = PlaybackProxy.getCurrentPlaybackQueue();
-            for (Song song : s) {
-                if (playbackQueue.contains(song)) {
-                    contains = true;
-                    break;
-                }
-            }
-
-            if (contains) {
-                mHandler.sendEmptyMessage(MSG_UPDATE_QUEUE);
-            }
+            mHandler.obtainMessage(MSG_UPDATE_SONGS, s).sendToTarget();
         }
 
         @Override
@@ -168,24 +177,7 @@ public class PlaybackQueueFragment extends Fragment {
 
         @Override
         public void onArtistUpdate(List<Artist> a) {
-            boolean contains = false;
-            List<Song> playbackQueue = PlaybackProxy.getCurrentPlaybackQueue();
-            for (Song song : playbackQueue) {
-                for (Artist artist : a) {
-                    if (artist.getRef().equals(song.getArtist())) {
-                        contains = true;
-                        break;
-                    }
-                }
-
-                if (contains) {
-                    break;
-                }
-            }
-
-            if (contains) {
-                mHandler.sendEmptyMessage(MSG_UPDATE_QUEUE);
-            }
+            mHandler.obtainMessage(MSG_UPDATE_ARTISTS, a).sendToTarget();
         }
 
         @Override
@@ -202,6 +194,8 @@ public class PlaybackQueueFragment extends Fragment {
     private static final int MSG_UPDATE_SEEKBAR = 1;
     private static final int MSG_UPDATE_QUEUE = 2;
     private static final int MSG_UPDATE_PLAYSTATE = 3;
+    private static final int MSG_UPDATE_SONGS = 4;
+    private static final int MSG_UPDATE_ARTISTS = 5;
 
     private static final int PLAYSTATE_ARG1_NOT_BUFFERING = 0;
     private static final int PLAYSTATE_ARG1_BUFFERING = 1;
@@ -209,7 +203,7 @@ public class PlaybackQueueFragment extends Fragment {
     private PlaybackQueueHandler mHandler;
     private boolean mLockSeekBarUpdate;
     private FrameLayout mRootView;
-    private ListView mListView;
+    private RecyclerView mRecyclerView;
     private PlaybackQueueAdapter mAdapter;
     private View.OnClickListener mPlayFabClickListener;
     private View.OnClickListener mNextClickListener;
@@ -229,6 +223,7 @@ public class PlaybackQueueFragment extends Fragment {
         }
 
         @Override
+        @SuppressWarnings("unchecked")
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_UPDATE_QUEUE:
@@ -242,6 +237,14 @@ public class PlaybackQueueFragment extends Fragment {
                 case MSG_UPDATE_PLAYSTATE:
                     mParent.get().updatePlaystate(msg.arg1, msg.arg2);
                     break;
+
+                case MSG_UPDATE_SONGS:
+                    mParent.get().onSongsUpdated((List<Song>) msg.obj);
+                    break;
+
+                case MSG_UPDATE_ARTISTS:
+                    mParent.get().onArtistsUpdated((List<Artist>) msg.obj);
+                    break;
             }
         }
     }
@@ -435,16 +438,11 @@ public class PlaybackQueueFragment extends Fragment {
             Bundle savedInstanceState) {
         mRootView = (FrameLayout) inflater.inflate(R.layout.fragment_playback_queue, container,
                 false);
-        mListView = (ListView) mRootView.findViewById(R.id.lvPlaybackQueue);
-        mListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
-            @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                PlaybackProxy.playAtIndex(position);
-            }
-        });
+        mRecyclerView = (RecyclerView) mRootView.findViewById(R.id.rvPlaybackQueue);
+        mRecyclerView.setLayoutManager(new LinearLayoutManager(getActivity()));
 
         if (mAdapter != null) {
-            mListView.setAdapter(mAdapter);
+            mRecyclerView.setAdapter(mAdapter);
         }
 
         updateQueueLayout();
@@ -459,9 +457,10 @@ public class PlaybackQueueFragment extends Fragment {
         mAdapter = new PlaybackQueueAdapter(mPlayFabClickListener, mNextClickListener,
                 mPreviousClickListener, mSeekListener, mRepeatClickListener,
                 mLikeClickListener, mDislikeClickListener, mAlbumArtClickListener, mShuffleClickListener);
+        mAdapter.setPlaybackQueue(mQueueMirror.getSongs());
 
-        if (mListView != null) {
-            mListView.setAdapter(mAdapter);
+        if (mRecyclerView != null) {
+            mRecyclerView.setAdapter(mAdapter);
         }
 
         if (activity instanceof MainActivity) {
@@ -478,6 +477,7 @@ public class PlaybackQueueFragment extends Fragment {
 
         // Attach this fragment as Playback Listener
         PlaybackProxy.addCallback(mPlaybackListener);
+        mQueueMirror.start();
         mHandler.sendEmptyMessageDelayed(MSG_UPDATE_SEEKBAR, 1000);
 
         ProviderAggregator.getDefault().addUpdateCallback(mProviderCallback);
@@ -495,18 +495,20 @@ public class PlaybackQueueFragment extends Fragment {
         // Remove callback on various places
         PlaybackProxy.removeCallback(mPlaybackListener);
         ProviderAggregator.getDefault().removeUpdateCallback(mProviderCallback);
+        mQueueMirror.stop();
 
         // Stop updating the seekbar
         mHandler.removeMessages(MSG_UPDATE_SEEKBAR);
     }
 
     public void updateQueueLayout() {
-        final List<Song> songs = new ArrayList<>(PlaybackProxy.getCurrentPlaybackQueue());
-        mAdapter.setPlaybackQueue(songs);
+        mQueueMirror.ensureSynced();
+        final List<Song> songs = mQueueMirror.getSongs();
 
         final int trackIndex = PlaybackProxy.getCurrentTrackIndex();
-        if (trackIndex >= 0) {
-            mListView.smoothScrollToPosition(trackIndex + 1);
+        mAdapter.setCurrentTrackIndex(trackIndex < songs.size() ? trackIndex : -1);
+        if (trackIndex >= 0 && trackIndex < songs.size()) {
+            mRecyclerView.smoothScrollToPosition(Math.min(trackIndex + 1, songs.size() - 1));
         }
 
         if (songs.size() <= 0) {
@@ -516,17 +518,58 @@ public class PlaybackQueueFragment extends Fragment {
         }
     }
 
+    /**
+     * Shows again the songs of the queue which were updated
+     */
+    public void onSongsUpdated(List<Song> updated) {
+        final Set<String> refs = new HashSet<>();
+        for (Song song : updated) {
+            if (song != null) {
+                refs.add(song.getRef());
+            }
+        }
+
+        final List<Song> songs = mQueueMirror.getSongs();
+        for (int i = 0; i < songs.size(); ++i) {
+            final Song song = songs.get(i);
+            if (song != null && refs.contains(song.getRef())) {
+                mAdapter.notifyItemChanged(i);
+            }
+        }
+    }
+
+    /**
+     * Shows again the songs of the queue whose artist was updated
+     */
+    public void onArtistsUpdated(List<Artist> updated) {
+        final Set<String> refs = new HashSet<>();
+        for (Artist artist : updated) {
+            if (artist != null) {
+                refs.add(artist.getRef());
+            }
+        }
+
+        final List<Song> songs = mQueueMirror.getSongs();
+        for (int i = 0; i < songs.size(); ++i) {
+            final Song song = songs.get(i);
+            if (song != null && refs.contains(song.getArtist())) {
+                mAdapter.notifyItemChanged(i);
+            }
+        }
+    }
+
     public void updateSeekbar() {
         PlaybackQueueAdapter.ViewHolder tag = mAdapter.getCurrentTrackTag();
 
         if (tag != null && tag.sbSeek != null) {
-            int state = PlaybackProxy.getState();
+            final PlaybackClock clock = PlaybackProxy.getPlaybackClock();
+            int state = clock.getState();
             if (state == PlaybackService.STATE_PLAYING
                     || state == PlaybackService.STATE_PAUSING
                     || state == PlaybackService.STATE_PAUSED) {
                 if (!mLockSeekBarUpdate) {
-                    final int length = PlaybackProxy.getCurrentTrackLength();
-                    final int position = PlaybackProxy.getCurrentTrackPosition();
+                    final int length = clock.getDuration();
+                    final int position = clock.getPosition();
 
                     tag.sbSeek.setMax(length);
                     tag.sbSeek.setProgress(position);
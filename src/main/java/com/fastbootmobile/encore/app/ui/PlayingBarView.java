@@ -45,6 +45,7 @@ import com.fastbootmobile.encore.app.AlbumActivity;
 import com.fastbootmobile.encore.app.PlaybackQueueActivity;
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.framework.PlaybackProxy;
+import com.fastbootmobile.encore.framework.PlaybackQueueMirror;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
 import com.fastbootmobile.encore.model.Playlist;
@@ -54,13 +55,15 @@ import com.fastbootmobile.encore.providers.ILocalCallback;
 import com.fastbootmobile.encore.providers.IMusicProvider;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
 import com.fastbootmobile.encore.service.BasePlaybackCallback;
+import com.fastbootmobile.encore.service.PlaybackClock;
 import com.fastbootmobile.encore.service.PlaybackService;
 import com.fastbootmobile.encore.utils.SettingsKeys;
 import com.fastbootmobile.encore.utils.Utils;
 
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import mbanje.kurt.fabbutton.FabButton;
 
@@ -83,6 +86,7 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
         }
 
         @Override
+        @SuppressWarnings("unchecked")
         public void handleMessage(Message msg) {
             PlayingBarView parent = mParent.get();
 
@@ -104,6 +108,18 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
                     case MSG_UPDATE_FAB:
                         parent.updatePlayFab();
                         break;
+
+                    case MSG_UPDATE_SONGS:
+                        if (parent.isAnyQueued((List<Song>) msg.obj)) {
+                            sendEmptyMessage(MSG_UPDATE_QUEUE);
+                        }
+                        break;
+
+                    case MSG_UPDATE_ARTISTS:
+                        if (parent.isAnyArtistQueued((List<Artist>) msg.obj)) {
+                            sendEmptyMessage(MSG_UPDATE_QUEUE);
+                        }
+                        break;
                 }
             }
         }
@@ -112,18 +128,7 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
     private ILocalCallback mProviderCallback = new ILocalCallback() {
         @Override
         public void onSongUpdate(List<Song> s) {
-            boolean contains = false;
-            List<Song> playbackQueue = PlaybackProxy.getCurrentPlaybackQueue();
-            for (Song song : s) {
-                if (playbackQueue.contains(song)) {
-                    contains = true;
-                    break;
-                }
-            }
-
-            if (contains) {
-                mHandler.sendEmptyMessage(MSG_UPDATE_QUEUE);
-            }
+            mHandler.obtainMessage(MSG_UPDATE_SONGS, s).sendToTarget();
         }
 
         @Override
@@ -140,26 +145,7 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
 
         @Override
         public void onArtistUpdate(List<Artist> a) {
-            boolean contains = false;
-            List<Song> playbackQueue = new ArrayList<>(PlaybackProxy.getCurrentPlaybackQueue());
-            for (Song song : playbackQueue) {
-                if (song == null) continue;
-
-                for (Artist artist : a) {
-                    if (artist != null && artist.getRef().equals(song.getArtist())) {
-                        contains = true;
-                        break;
-                    }
-                }
-
-                if (contains) {
-                    break;
-                }
-            }
-
-            if (contains) {
-                mHandler.sendEmptyMessage(MSG_UPDATE_QUEUE);
-            }
+            mHandler.obtainMessage(MSG_UPDATE_ARTISTS, a).sendToTarget();
         }
 
         @Override
@@ -189,12 +175,26 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
             mHandler.sendEmptyMessage(MSG_UPDATE_FAB);
             mHandler.sendEmptyMessageDelayed(MSG_UPDATE_SEEK, SEEK_BAR_UPDATE_DELAY);
         }
+    };
+
+    private PlaybackQueueMirror mQueueMirror = new PlaybackQueueMirror(new PlaybackQueueMirror.Listener() {
+        @Override
+        public void onQueueItemsInserted(int position, int count) {
+        }
 
         @Override
-        public void onPlaybackQueueChanged() throws RemoteException {
+        public void onQueueItemsRemoved(int position, int count) {
+        }
+
+        @Override
+        public void onQueueMirrorReset() {
+        }
+
+        @Override
+        public void onQueueMirrorChanged() {
             mHandler.sendEmptyMessage(MSG_UPDATE_QUEUE);
         }
-    };
+    });
 
     private GestureDetector mGestureDetector;
     private BarGestureListener mGestureListener = new BarGestureListener();
@@ -204,12 +204,14 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
     private static final int MSG_UPDATE_QUEUE = 1;
     private static final int MSG_UPDATE_SEEK = 2;
     private static final int MSG_UPDATE_FAB = 3;
+    private static final int MSG_UPDATE_SONGS = 4;
+    private static final int MSG_UPDATE_ARTISTS = 5;
 
     private boolean mIsPlaying;
     private LinearLayout mTracksLayout;
     private FabButton mPlayFab;
     private PlayPauseDrawable mPlayFabDrawable;
-    private List<Song> mLastQueue;
+    private int mLastPeekCount;
     private PlayingBarHandler mHandler;
     private int mAnimationDuration;
     private boolean mWrapped;
@@ -245,6 +247,7 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
 
         PlaybackProxy.removeCallback(mPlaybackCallback);
         ProviderAggregator.getDefault().removeUpdateCallback(mProviderCallback);
+        mQueueMirror.stop();
         mCallbackRegistered = false;
 
         getContext().getSharedPreferences(SettingsKeys.PREF_SETTINGS, 0)
@@ -269,6 +272,7 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
         if (!mCallbackRegistered) {
             mCallbackRegistered = true;
             PlaybackProxy.addCallback(mPlaybackCallback);
+            mQueueMirror.start();
         }
 
         // We delay check if we have a queue and/or are playing to leave time to the
@@ -381,13 +385,14 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
 
 
     public void updateSeekBar() {
-        int state = PlaybackProxy.getState();
+        final PlaybackClock clock = PlaybackProxy.getPlaybackClock();
+        int state = clock.getState();
         if (state == PlaybackService.STATE_PLAYING
                 || state == PlaybackService.STATE_PAUSING
                 || state == PlaybackService.STATE_PAUSED) {
             if (!mPlayInSeekMode) {
                 mPlayFab.showProgress(true);
-                mPlayFab.setProgress(PlaybackProxy.getCurrentTrackPosition());
+                mPlayFab.setProgress(clock.getPosition());
             }
 
             // Restart ourselves
@@ -401,8 +406,46 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
         }
     }
 
+    /**
+     * @return true if any of the songs is in the mirrored queue
+     */
+    private boolean isAnyQueued(List<Song> songs) {
+        final Set<String> refs = new HashSet<>();
+        for (Song song : songs) {
+            if (song != null) {
+                refs.add(song.getRef());
+            }
+        }
+
+        for (Song song : mQueueMirror.getSongs()) {
+            if (song != null && refs.contains(song.getRef())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if a song of any of the artists is in the mirrored queue
+     */
+    private boolean isAnyArtistQueued(List<Artist> artists) {
+        final Set<String> refs = new HashSet<>();
+        for (Artist artist : artists) {
+            if (artist != null) {
+                refs.add(artist.getRef());
+            }
+        }
+
+        for (Song song : mQueueMirror.getSongs()) {
+            if (song != null && refs.contains(song.getArtist())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public void updatePlayingQueue() {
-        List<Song> queue;
+        final List<Song> queue;
         int currentIndex;
 
         int playbackState = PlaybackProxy.getState();
@@ -411,12 +454,12 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
         boolean hidden = getContext().getSharedPreferences(SettingsKeys.PREF_SETTINGS, 0)
                 .getBoolean(SettingsKeys.KEY_PLAYBAR_HIDDEN, false) && !isPlaying;
 
-        // Do a copy
-        queue = new ArrayList<>(PlaybackProxy.getCurrentPlaybackQueue());
-        currentIndex = PlaybackProxy.getCurrentTrackIndex();
+        mQueueMirror.ensureSynced();
+        queue = mQueueMirror.getSongs();
+        currentIndex = Math.min(Math.max(0, PlaybackProxy.getCurrentTrackIndex()), queue.size());
 
         if (queue.size() > 0 && !hidden) {
-            mLastQueue = new ArrayList<>(queue);
+            mLastPeekCount = queue.size() - currentIndex;
             mTracksLayout.removeAllViews();
             mTracksLayout.setVisibility(View.VISIBLE);
 
@@ -426,17 +469,10 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
                     (LayoutInflater) getContext().getSystemService(Context.LAYOUT_INFLATER_SERVICE);
             final ProviderAggregator aggregator = ProviderAggregator.getDefault();
 
-            for (int i = 0; i < currentIndex; ++i) {
-                if (queue.size() > 0) {
-                    queue.remove(0);
-                }
-                if (mLastQueue.size() > 0) {
-                    mLastQueue.remove(0);
-                }
-            }
+            // Only show the songs from the current one
             final int removedCount = currentIndex;
 
-            for (final Song song : queue) {
+            for (final Song song : queue.subList(currentIndex, queue.size())) {
                 if (shownCount == MAX_PEEK_QUEUE_SIZE) {
                     break;
                 }
@@ -673,9 +709,9 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
             return;
         }
 
-        if (wrapped && mLastQueue != null) {
+        if (wrapped && mLastPeekCount > 0) {
             final int itemHeight = getResources().getDimensionPixelSize(R.dimen.playing_bar_height);
-            final int translationY = itemHeight * Math.min(mLastQueue.size(), MAX_PEEK_QUEUE_SIZE);
+            final int translationY = itemHeight * Math.min(mLastPeekCount, MAX_PEEK_QUEUE_SIZE);
             if (animation) {
                 animate().translationY(translationY)
                         .setDuration(mAnimationDuration)
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the files of a disk cache, in least recently used order and bounded by their total
+ * size. Changes are appended to a journal file, which is replayed to rebuild the index instead of
+ * listing the directory, and compacted once it gets much longer than the index. Thread-safe, and
+ * the lookups and changes wait until the index is loaded.
+ */
+class DiskLruIndex {
+    private static final String TAG = "DiskLruIndex";
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_HEADER = "encore.DiskLruIndex 1";
+    private static final String OP_PUT = "PUT";
+    private static final String OP_READ = "READ";
+    private static final String OP_REMOVE = "DEL";
+
+    /**
+     * Minimum number of redundant journal records before the journal is compacted
+     */
+    private static final int COMPACT_THRESHOLD = 2000;
+
+    private static class Entry {
+        final long size;
+        final long expiry;
+
+        Entry(long size, long expiry) {
+            this.size = size;
+            this.expiry = expiry;
+        }
+    }
+
+    private final File mDirectory;
+    private final File mJournalFile;
+    private final long mMaxSize;
+    // Least recently used first
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(0, 0.75f, true);
+    private long mSize;
+    private int mRedundantOps;
+    private Writer mJournal;
+    private int mEvictionCount;
+    private boolean mLoaded;
+
+    /**
+     * @param directory The directory of the cached files
+     * @param maxSize The maximum total size of the files, in bytes
+     */
+    DiskLruIndex(File directory, long maxSize) {
+        mDirectory = directory;
+        mJournalFile = new File(directory, JOURNAL_FILE);
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Rebuilds the index from the journal
+     *
+     * @return false if there was no usable journal, in which case the directory may contain files
+     *         that aren't indexed
+     */
+    synchronized boolean load() {
+        mEntries.clear();
+        mSize = 0;
+        mRedundantOps = 0;
+
+        boolean valid = false;
+        if (mJournalFile.exists()) {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(mJournalFile), "UTF-8"));
+                if (JOURNAL_HEADER.equals(reader.readLine())) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        replay(line);
+                    }
+                    valid = true;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot read the journal", e);
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException ignore) {
+                    }
+                }
+            }
+        }
+
+        if (!valid) {
+            mEntries.clear();
+            mSize = 0;
+        }
+
+        // Start from a compact journal
+        rewriteJournal();
+
+        mLoaded = true;
+        notifyAll();
+        return valid;
+    }
+
+    /**
+     * Waits for the index to be loaded. Must be called with the index lock held.
+     */
+    private void awaitLoadedLocked() {
+        boolean interrupted = false;
+        while (!mLoaded) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void replay(String line) {
+        final String[] parts = line.split(" ");
+        try {
+            if (OP_PUT.equals(parts[0]) && parts.length == 4) {
+                final Entry entry = new Entry(Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+                putEntry(parts[1], entry);
+            } else if (OP_READ.equals(parts[0]) && parts.length == 2) {
+                mEntries.get(parts[1]);
+                mRedundantOps++;
+            } else if (OP_REMOVE.equals(parts[0]) && parts.length == 2) {
+                removeEntry(parts[1]);
+                mRedundantOps++;
+            }
+        } catch (NumberFormatException e) {
+            // Record partially written when the process died, ignore it
+            Log.w(TAG, "Ignoring corrupted journal record: " + line);
+        }
+    }
+
+    /**
+     * @return true if the file is in the index
+     */
+    synchronized boolean contains(String name) {
+        awaitLoadedLocked();
+        return mEntries.containsKey(name);
+    }
+
+    /**
+     * Marks a file as just used
+     *
+     * @return true if the file is in the index
+     */
+    synchronized boolean touch(String name) {
+        awaitLoadedLocked();
+        if (mEntries.get(name) == null) {
+            return false;
+        }
+        // Reads are only flushed along with the next change, losing a few of them is harmless
+        append(OP_READ + ' ' + name, false);
+        return true;
+    }
+
+    /**
+     * Adds or replaces a file in the index, and evicts the least recently used files if the
+     * cache is now too large
+     *
+     * @param name The name of the file, which must already be written
+     * @param size The size of the file, in bytes
+     * @param expiry The time after which the file should be deleted, or 0 to keep it until evicted
+     */
+    synchronized void put(String name, long size, long expiry) {
+        awaitLoadedLocked();
+        putEntry(name, new Entry(size, expiry));
+        append(OP_PUT + ' ' + name + ' ' + size + ' ' + expiry, true);
+        trimToSize();
+    }
+
+    /**
+     * Removes a file from the index and deletes it
+     */
+    synchronized void remove(String name) {
+        awaitLoadedLocked();
+        if (removeEntry(name)) {
+            deleteFile(name);
+            append(OP_REMOVE + ' ' + name, true);
+        }
+    }
+
+    /**
+     * Deletes the files whose expiry time has passed
+     */
+    synchronized void removeExpired(long now) {
+        awaitLoadedLocked();
+        List<String> expired = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+            if (entry.getValue().expiry != 0 && entry.getValue().expiry < now) {
+                expired.add(entry.getKey());
+            }
+        }
+        for (String name : expired) {
+            remove(name);
+        }
+    }
+
+    /**
+     * Removes all the files from the index and deletes them
+     */
+    synchronized void clear() {
+        awaitLoadedLocked();
+        for (String name : mEntries.keySet()) {
+            deleteFile(name);
+        }
+        mEntries.clear();
+        mSize = 0;
+        rewriteJournal();
+    }
+
+    /**
+     * @return The total size of the files, in bytes
+     */
+    synchronized long getSize() {
+        awaitLoadedLocked();
+        return mSize;
+    }
+
+    /**
+     * @return The number of files evicted to keep the cache within its size
+     */
+    synchronized int getEvictionCount() {
+        awaitLoadedLocked();
+        return mEvictionCount;
+    }
+
+    private void putEntry(String name, Entry entry) {
+        final Entry previous = mEntries.put(name, entry);
+        if (previous != null) {
+            mSize -= previous.size;
+            mRedundantOps++;
+        }
+        mSize += entry.size;
+    }
+
+    private boolean removeEntry(String name) {
+        final Entry previous = mEntries.remove(name);
+        if (previous != null) {
+            mSize -= previous.size;
+            mRedundantOps++;
+            return true;
+        }
+        return false;
+    }
+
+    private void trimToSize() {
+        final Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            final Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            mSize -= eldest.getValue().size;
+            mRedundantOps++;
+            mEvictionCount++;
+            deleteFile(eldest.getKey());
+            append(OP_REMOVE + ' ' + eldest.getKey(), false);
+        }
+        flushJournal();
+    }
+
+    private void deleteFile(String name) {
+        final File file = new File(mDirectory, name);
+        if (!file.delete() && file.exists()) {
+            Log.e(TAG, "Cannot delete " + file.getPath());
+        }
+    }
+
+    private void append(String record, boolean flush) {
+        if (mJournal == null) {
+            return;
+        }
+
+        try {
+            mJournal.write(record);
+            mJournal.write('\n');
+            if (flush) {
+                mJournal.flush();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write to the journal", e);
+        }
+
+        if (mRedundantOps >= COMPACT_THRESHOLD && mRedundantOps >= mEntries.size()) {
+            rewriteJournal();
+        }
+    }
+
+    private void flushJournal() {
+        if (mJournal != null) {
+            try {
+                mJournal.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot write to the journal", e);
+            }
+        }
+    }
+
+    /**
+     * Writes a journal containing only the current entries, in their access order
+     */
+    private void rewriteJournal() {
+        if (mJournal != null) {
+            try {
+                mJournal.close();
+            } catch (IOException ignore) {
+            }
+            mJournal = null;
+        }
+
+        final File tmp = new File(mDirectory, JOURNAL_FILE + ".tmp");
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tmp), "UTF-8"));
+            try {
+                writer.write(JOURNAL_HEADER);
+                writer.write('\n');
+                for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                    writer.write(OP_PUT + ' ' + entry.getKey() + ' ' + entry.getValue().size
+                            + ' ' + entry.getValue().expiry + '\n');
+                }
+            } finally {
+                writer.close();
+            }
+
+            if (!tmp.renameTo(mJournalFile)) {
+                Log.e(TAG, "Cannot replace the journal");
+            }
+            mRedundantOps = 0;
+
+            mJournal = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(mJournalFile, true), "UTF-8"));
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write the journal", e);
+        }
+    }
+}
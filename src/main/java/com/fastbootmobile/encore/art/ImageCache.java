@@ -31,32 +31,51 @@ import com.fastbootmobile.encore.utils.SettingsKeys;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.lang.ref.SoftReference;
-import java.util.ArrayList;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Image cache in the cache directory on internal storage
+ * Two-tier image cache. Decoded images are kept in memory for each requested size, and the
+ * original images are stored in the cache directory on internal storage, in files named after the
+ * hash of their key. The disk tier is bounded by the size of its files and evicts the least
+ * recently used ones. Images are compressed and written to disk on a background thread.
  */
 @SuppressWarnings("SynchronizeOnNonFinalField")
 public class ImageCache {
     private static final String TAG = "ImageCache";
     private static final ImageCache INSTANCE = new ImageCache();
     private static final long EXPIRATION_TIME = TimeUnit.DAYS.toMillis(7);
+    private static final long DISK_CACHE_SIZE = 64L * 1024 * 1024;
 
     private static final boolean USE_MEMORY_CACHE = true;
 
-    private final ArrayList<String> mEntries;
     private File mCacheDir;
+    private DiskLruIndex mDiskIndex;
     private Bitmap mDefaultArt;
 
+    // Images waiting to be written to disk, by file name
+    private final Map<String, Bitmap> mPendingWrites = new HashMap<>();
+    private final ExecutorService mDiskExecutor = Executors.newSingleThreadExecutor();
+
     private final LruCache<String, RecyclingBitmapDrawable> mMemoryCache;
     private Set<SoftReference<Bitmap>> mReusableBitmaps;
 
+    private final AtomicInteger mMemoryHits = new AtomicInteger();
+    private final AtomicInteger mDiskHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+
     /**
      * @return The default instance
      */
@@ -68,8 +87,6 @@ public class ImageCache {
      * Default constructor, creates an LRU cache of the specified size
      */
     public ImageCache() {
-        mEntries = new ArrayList<>();
-
         // A third of the max heap memory, or 39MB, whichever is lowest
         final int memoryCacheSize = Math.min(30000,
                 (int) (Runtime.getRuntime().maxMemory() / 1024 / 3));
@@ -105,8 +122,11 @@ public class ImageCache {
 
                     oldBitmap.setIsCached(false);
 
-                    synchronized (mReusableBitmaps) {
-                        mReusableBitmaps.add(new SoftReference<>(oldBitmap.getBitmap()));
+                    // The bitmap can't be decoded into until it's been written to disk
+                    if (!isPendingWrite(oldBitmap.getBitmap())) {
+                        synchronized (mReusableBitmaps) {
+                            mReusableBitmaps.add(new SoftReference<>(oldBitmap.getBitmap()));
+                        }
                     }
                 }
             };
@@ -116,30 +136,29 @@ public class ImageCache {
     }
 
     /**
-     * Initializes the memory cache. Creates the cache directory and load the existing entries.
+     * Initializes the memory cache. Creates the cache directory and loads the existing entries
+     * on the disk thread, the disk lookups waiting for them to be loaded.
      * @param ctx A valid context
      */
     public void initialize(Context ctx) {
         mCacheDir = new File(ctx.getCacheDir(), "albumart");
-        if (!mCacheDir.exists() && !mCacheDir.mkdir()) {
-            Log.e(TAG, "Cannot mkdir the cache dir " + mCacheDir.getPath());
-        }
+        mDiskIndex = new DiskLruIndex(mCacheDir, DISK_CACHE_SIZE);
 
-        File[] entries = mCacheDir.listFiles();
-        if (entries != null) {
-            for (File entry : entries) {
-                if (System.currentTimeMillis() - entry.lastModified() > EXPIRATION_TIME
-                        && entry.getName().contains("playlist")) {
-                    // Expire playlist art regularly
-                    if (!entry.delete()) {
-                        // Couldn't delete the art... Let's load it anyway then
-                        mEntries.add(entry.getName());
-                    }
-                } else {
-                    mEntries.add(entry.getName());
+        mDiskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mCacheDir.exists() && !mCacheDir.mkdir()) {
+                    Log.e(TAG, "Cannot mkdir the cache dir " + mCacheDir.getPath());
                 }
+
+                final boolean hasJournal = mDiskIndex.load();
+                if (!hasJournal) {
+                    deleteUnindexedFiles();
+                }
+                // Expire playlist art regularly
+                mDiskIndex.removeExpired(System.currentTimeMillis());
             }
-        }
+        });
 
         mDefaultArt = ((BitmapDrawable) ctx.getResources()
                 .getDrawable(R.drawable.album_placeholder)).getBitmap();
@@ -158,14 +177,25 @@ public class ImageCache {
             }
         }
 
-        synchronized (mEntries) {
-            mEntries.clear();
+        synchronized (mPendingWrites) {
+            mPendingWrites.clear();
         }
 
+        mDiskIndex.clear();
+    }
+
+    /**
+     * Deletes the files that aren't in the disk index, such as the ones stored by the previous
+     * versions of the cache, which were named after the key itself
+     */
+    private void deleteUnindexedFiles() {
         File[] cacheFiles = mCacheDir.listFiles();
-        for (File file : cacheFiles) {
-            if (!file.delete()) {
-                Log.e(TAG, "Cannot delete " + file.getPath());
+        if (cacheFiles != null) {
+            for (File file : cacheFiles) {
+                if (!mDiskIndex.contains(file.getName()) && !file.getName().startsWith("journal")
+                        && !file.delete()) {
+                    Log.e(TAG, "Cannot delete " + file.getPath());
+                }
             }
         }
     }
@@ -191,7 +221,7 @@ public class ImageCache {
     public boolean hasInMemory(final String key) {
         if (USE_MEMORY_CACHE) {
             RecyclingBitmapDrawable bmp;
-            bmp = mMemoryCache.get(sanitizeKey(key));
+            bmp = mMemoryCache.get(key);
             return bmp != null;
         } else {
             return false;
@@ -204,9 +234,13 @@ public class ImageCache {
      * @return true if the image is cached on the disk (well, flash storage)
      */
     public boolean hasOnDisk(final String key) {
-        synchronized (mEntries) {
-            return mEntries.contains(sanitizeKey(key));
+        final String fileName = getFileName(key);
+        synchronized (mPendingWrites) {
+            if (mPendingWrites.containsKey(fileName)) {
+                return true;
+            }
         }
+        return mDiskIndex.contains(fileName);
     }
 
     /**
@@ -219,55 +253,64 @@ public class ImageCache {
             return null;
         }
 
-        final String cleanKey = sanitizeKey(key);
+        RecyclingBitmapDrawable item = USE_MEMORY_CACHE ? mMemoryCache.get(key + '_' + reqSz) : null;
+        if (item != null) {
+            mMemoryHits.incrementAndGet();
+            return item;
+        }
 
-        boolean contains;
-        synchronized (mEntries) {
-            contains = mEntries.contains(cleanKey);
+        // Only images stored on disk are returned, the default art put for missing images isn't
+        final String fileName = getFileName(key);
+        Bitmap pending;
+        synchronized (mPendingWrites) {
+            pending = mPendingWrites.get(fileName);
         }
+        final boolean onDisk = pending == null && mDiskIndex.touch(fileName);
 
-        if (contains) {
-            RecyclingBitmapDrawable item;
-            synchronized (mMemoryCache) {
-                // Check if we have it in memory
-                item = USE_MEMORY_CACHE ? mMemoryCache.get(cleanKey + '_' + reqSz) : null;
+        if (pending != null || onDisk) {
+            // Use the full size image if it was put recently
+            item = USE_MEMORY_CACHE ? mMemoryCache.get(key) : null;
+            if (item == null && pending != null) {
+                item = new RecyclingBitmapDrawable(res, pending);
+            }
+            if (item != null) {
+                mMemoryHits.incrementAndGet();
+                return item;
             }
+        } else {
+            mMisses.incrementAndGet();
+            return null;
+        }
 
-            if (item == null) {
-                final String filePath = mCacheDir.getAbsolutePath() + "/" + cleanKey;
+        final String filePath = new File(mCacheDir, fileName).getAbsolutePath();
 
-                BitmapFactory.Options opts = new BitmapFactory.Options();
-                opts.inJustDecodeBounds = true;
-                BitmapFactory.decodeFile(filePath, opts);
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(filePath, opts);
 
-                opts.inJustDecodeBounds = false;
-                ImageUtils.addInBitmapOptions(opts, this, reqSz, opts.outWidth, opts.outHeight);
+        opts.inJustDecodeBounds = false;
+        ImageUtils.addInBitmapOptions(opts, this, reqSz, opts.outWidth, opts.outHeight);
 
-                try {
-                    Bitmap bmp = BitmapFactory.decodeFile(filePath, opts);
-                    if (bmp != null) {
-                        item = new RecyclingBitmapDrawable(res, bmp);
+        try {
+            Bitmap bmp = BitmapFactory.decodeFile(filePath, opts);
+            if (bmp != null) {
+                mDiskHits.incrementAndGet();
+                item = new RecyclingBitmapDrawable(res, bmp);
 
-                        if (USE_MEMORY_CACHE) {
-                            mMemoryCache.put(cleanKey + '_' + reqSz, item);
-                        }
-                    } else {
-                        mEntries.remove(cleanKey);
-                        File f = new File(filePath);
-                        if (!f.delete()) {
-                            Log.e(TAG, "Cannot delete corrupted art at " + filePath);
-                        }
-                    }
-                } catch (OutOfMemoryError e) {
-                    Log.e(TAG, "OutOfMemory when decoding input file", e);
-                    return null;
+                if (USE_MEMORY_CACHE) {
+                    mMemoryCache.put(key + '_' + reqSz, item);
                 }
+            } else {
+                Log.e(TAG, "Removing corrupted art at " + filePath);
+                mMisses.incrementAndGet();
+                mDiskIndex.remove(fileName);
             }
-
-            return item;
-        } else {
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "OutOfMemory when decoding input file", e);
             return null;
         }
+
+        return item;
     }
 
     /**
@@ -346,59 +389,163 @@ public class ImageCache {
     public void put(final Resources res, final String key, RecyclingBitmapDrawable bmp, final boolean asPNG) {
         boolean isDefaultArt = false;
 
-        final String cleanKey = sanitizeKey(key);
-
         if (bmp == null) {
             bmp = new RecyclingBitmapDrawable(res, mDefaultArt.copy(mDefaultArt.getConfig(), false));
             isDefaultArt = true;
         }
 
         if (USE_MEMORY_CACHE) {
-            mMemoryCache.put(cleanKey, bmp);
+            mMemoryCache.put(key, bmp);
         }
 
         if (!isDefaultArt) {
-            try {
-                FileOutputStream out = new FileOutputStream(mCacheDir.getAbsolutePath() + "/" + cleanKey);
-                Bitmap bitmap = bmp.getBitmap();
-
-                boolean shouldRecycle = false;
-                final float maxSize = 800;
+            final String fileName = getFileName(key);
+            final Bitmap bitmap = bmp.getBitmap();
+            // Expire playlist art regularly
+            final long expiry = key.contains("playlist")
+                    ? System.currentTimeMillis() + EXPIRATION_TIME : 0;
+
+            synchronized (mPendingWrites) {
+                mPendingWrites.put(fileName, bitmap);
+            }
 
-                if (bitmap.getWidth() > maxSize && bitmap.getHeight() > maxSize) {
-                    float ratio = (bitmap.getWidth() < bitmap.getHeight()) ?
-                            bitmap.getWidth() / maxSize : bitmap.getHeight() / maxSize;
-                    final int sWidth = (int) (bitmap.getWidth() / ratio);
-                    final int sHeight = (int) (bitmap.getHeight() / ratio);
+            mDiskExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mPendingWrites) {
+                        if (mPendingWrites.get(fileName) != bitmap) {
+                            // Replaced by a newer image, or the cache was cleared
+                            return;
+                        }
+                    }
 
-                    bitmap = Bitmap.createScaledBitmap(bitmap, sWidth, sHeight, true);
-                    shouldRecycle = true;
+                    writeToDisk(fileName, bitmap, asPNG, expiry);
 
-                    Log.d(TAG, "Rescaled to " + sWidth + "x" + sHeight);
+                    synchronized (mPendingWrites) {
+                        if (mPendingWrites.get(fileName) == bitmap) {
+                            mPendingWrites.remove(fileName);
+                        }
+                    }
                 }
+            });
+        }
+    }
+
+    /**
+     * Compresses an image to a file of the disk cache and indexes it. Called on the disk thread.
+     */
+    private void writeToDisk(String fileName, Bitmap bitmap, boolean asPNG, long expiry) {
+        final File file = new File(mCacheDir, fileName);
+        final File tmp = new File(mCacheDir, fileName + ".tmp");
 
-                bitmap.compress(asPNG ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, 90, out);
-                out.close();
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
 
-                if (shouldRecycle) {
-                    // Scaled image will be used on reload
-                    bitmap.recycle();
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "Unable to write the file to cache", e);
+            boolean shouldRecycle = false;
+            final float maxSize = 800;
+
+            if (bitmap.getWidth() > maxSize && bitmap.getHeight() > maxSize) {
+                float ratio = (bitmap.getWidth() < bitmap.getHeight()) ?
+                        bitmap.getWidth() / maxSize : bitmap.getHeight() / maxSize;
+                final int sWidth = (int) (bitmap.getWidth() / ratio);
+                final int sHeight = (int) (bitmap.getHeight() / ratio);
+
+                bitmap = Bitmap.createScaledBitmap(bitmap, sWidth, sHeight, true);
+                shouldRecycle = true;
+
+                Log.d(TAG, "Rescaled to " + sWidth + "x" + sHeight);
             }
 
-            synchronized (mEntries) {
-                mEntries.add(cleanKey);
+            bitmap.compress(asPNG ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, 90, out);
+            out.close();
+
+            if (shouldRecycle) {
+                // Scaled image will be used on reload
+                bitmap.recycle();
+            }
+
+            if (tmp.renameTo(file)) {
+                mDiskIndex.put(fileName, file.length(), expiry);
+            } else {
+                Log.e(TAG, "Cannot rename " + tmp.getPath());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write the file to cache", e);
+            if (!tmp.delete()) {
+                Log.w(TAG, "Cannot delete " + tmp.getPath());
             }
         }
     }
 
     /**
-     * Sanitizes the key to remove out unwanted characters
-     * @return A sanitized copy of the key
+     * @return true if the bitmap is waiting to be written to disk
      */
-    private String sanitizeKey(String key) {
-        return key.replaceAll("\\W", "_");
+    private boolean isPendingWrite(Bitmap bitmap) {
+        synchronized (mPendingWrites) {
+            return mPendingWrites.containsValue(bitmap);
+        }
+    }
+
+    /**
+     * @return The number of images served from memory
+     */
+    public int getMemoryHitCount() {
+        return mMemoryHits.get();
+    }
+
+    /**
+     * @return The number of images decoded from disk
+     */
+    public int getDiskHitCount() {
+        return mDiskHits.get();
+    }
+
+    /**
+     * @return The number of images requested that weren't in the cache
+     */
+    public int getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return The number of images evicted from memory
+     */
+    public int getMemoryEvictionCount() {
+        return USE_MEMORY_CACHE ? mMemoryCache.evictionCount() : 0;
+    }
+
+    /**
+     * @return The number of files evicted from disk
+     */
+    public int getDiskEvictionCount() {
+        return mDiskIndex.getEvictionCount();
+    }
+
+    /**
+     * @return The total size of the files of the disk cache, in bytes
+     */
+    public long getDiskSize() {
+        return mDiskIndex.getSize();
+    }
+
+    /**
+     * Returns the name of the file storing an image, which is the SHA-1 hash of its key so that
+     * distinct keys never map to the same file
+     * @return The file name for the key
+     */
+    private String getFileName(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(key.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // Every Java platform provides them
+            throw new IllegalStateException(e);
+        }
     }
 }
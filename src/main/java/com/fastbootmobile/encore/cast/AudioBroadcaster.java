@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.cast;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Broadcasts the audio mirror to the clients of several {@link WSStreamer}. Each chunk of audio is
+ * framed once into a pooled direct buffer, which is then shared by all the connections, so that
+ * the audio path doesn't allocate per chunk nor per client.
+ * When clients asked for the compressed stream, the audio is also encoded once, and the encoded
+ * frames are shared the same way from the encoder thread.
+ * {@link #write(byte[], int, int, int)} is not thread-safe: it is meant to be called from the audio
+ * thread only.
+ */
+public class AudioBroadcaster implements AudioMirrorEncoder.Listener {
+    private static final String TAG = "AudioBroadcaster";
+
+    private static final int INITIAL_FRAME_SIZE = 16384 + PooledFrame.MAX_HEADER_SIZE;
+    private static final int INITIAL_POOL_SIZE = 8;
+    private static final int ENCODED_FRAME_SIZE = 2048 + PooledFrame.MAX_HEADER_SIZE;
+
+    /**
+     * Frames still in use by slow clients beyond that count make the chunk dropped instead of
+     * growing the pool further
+     */
+    private static final int MAX_POOL_SIZE = 128;
+
+    private final WSStreamer[] mServers;
+    // Used from the audio thread
+    private final FramePool mPool = new FramePool(INITIAL_FRAME_SIZE, INITIAL_POOL_SIZE,
+            MAX_POOL_SIZE);
+    // Used from the encoder thread
+    private final FramePool mEncodedPool = new FramePool(ENCODED_FRAME_SIZE, INITIAL_POOL_SIZE,
+            MAX_POOL_SIZE);
+    private final AudioMirrorEncoder mEncoder = new AudioMirrorEncoder(this);
+
+    public AudioBroadcaster(WSStreamer... servers) {
+        mServers = servers;
+    }
+
+    /**
+     * Sends a chunk of audio to all the streaming clients
+     *
+     * @param data The audio data, as 16-bit PCM
+     * @param len The number of bytes to send
+     * @param sampleRate The sample rate of the audio
+     * @param channels The number of channels of the audio
+     */
+    public void write(byte[] data, int len, int sampleRate, int channels) {
+        boolean hasPcmClients = false;
+        boolean hasEncodedClients = false;
+        for (WSStreamer server : mServers) {
+            if (server != null) {
+                hasPcmClients |= server.hasClients(false);
+                hasEncodedClients |= server.hasClients(true);
+            }
+        }
+
+        if (hasEncodedClients) {
+            mEncoder.write(data, len, sampleRate, channels);
+        } else if (mEncoder.isRunning()) {
+            mEncoder.stop();
+        }
+
+        if (!hasPcmClients) {
+            return;
+        }
+
+        final PooledFrame frame = mPool.acquire();
+        if (frame == null) {
+            Log.w(TAG, "All the frames are in use, dropping audio chunk");
+            dropChunk(false);
+            return;
+        }
+
+        frame.fill(data, len);
+        broadcast(frame, false);
+    }
+
+    /**
+     * Stops the encoder, if it is running
+     */
+    public void release() {
+        mEncoder.stop();
+    }
+
+    @Override
+    public void onEncodedFormat(int sampleRate, int channels, int bitRate) {
+        final ByteBuffer message = ByteBuffer.allocate(WSStreamer.FORMAT_MESSAGE_SIZE);
+        message.put(WSStreamer.MESSAGE_FORMAT);
+        message.put(WSStreamer.CODEC_AAC_ADTS);
+        message.putInt(sampleRate);
+        message.put((byte) channels);
+        message.putInt(bitRate);
+        message.flip();
+
+        for (WSStreamer server : mServers) {
+            if (server != null) {
+                server.setEncodedFormat(message.array());
+            }
+        }
+    }
+
+    @Override
+    public void onEncodedFrame(long timestampUs, byte[] adtsHeader, ByteBuffer data) {
+        final PooledFrame frame = mEncodedPool.acquire();
+        if (frame == null) {
+            Log.w(TAG, "All the encoded frames are in use, dropping encoded frame");
+            dropChunk(true);
+            return;
+        }
+
+        final int len = WSStreamer.AUDIO_HEADER_SIZE + adtsHeader.length + data.remaining();
+        ByteBuffer buffer = frame.start(len);
+        buffer.put(WSStreamer.MESSAGE_AUDIO);
+        buffer.putLong(timestampUs);
+        buffer.put(adtsHeader);
+        buffer.put(data);
+        frame.finish();
+
+        broadcast(frame, true);
+    }
+
+    private void broadcast(PooledFrame frame, boolean encoded) {
+        for (WSStreamer server : mServers) {
+            if (server != null) {
+                server.broadcast(frame, encoded);
+            }
+        }
+    }
+
+    private void dropChunk(boolean encoded) {
+        for (WSStreamer server : mServers) {
+            if (server != null) {
+                server.dropChunk(encoded);
+            }
+        }
+    }
+}
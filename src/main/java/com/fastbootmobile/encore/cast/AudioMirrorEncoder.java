@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.cast;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes the audio mirror to AAC-LC with the platform encoder. The audio thread feeds the encoder
+ * without ever blocking, and a background thread drains it and hands each encoded frame, as an
+ * ADTS frame, to the listener.
+ */
+class AudioMirrorEncoder {
+    private static final String TAG = "AudioMirrorEncoder";
+
+    private static final String MIME_AAC = "audio/mp4a-latm";
+    private static final int BIT_RATE = 128000;
+    private static final int BYTES_PER_SAMPLE = 2;
+    private static final int ADTS_HEADER_SIZE = 7;
+    private static final long DRAIN_TIMEOUT_US = TimeUnit.MILLISECONDS.toMicros(10);
+
+    private static final int[] ADTS_SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    interface Listener {
+        /**
+         * Called on the drain thread when the encoder starts with a new format
+         *
+         * @param sampleRate The sample rate of the stream
+         * @param channels The number of channels of the stream
+         * @param bitRate The target bit rate of the stream
+         */
+        void onEncodedFormat(int sampleRate, int channels, int bitRate);
+
+        /**
+         * Called on the drain thread for each encoded frame
+         *
+         * @param timestampUs The presentation time of the frame, in microseconds from the start of
+         *                    the stream
+         * @param adtsHeader The ADTS header of the frame
+         * @param data The encoded frame, which is only valid during the call
+         */
+        void onEncodedFrame(long timestampUs, byte[] adtsHeader, ByteBuffer data);
+    }
+
+    private final Listener mListener;
+    private final byte[] mAdtsHeader = new byte[ADTS_HEADER_SIZE];
+    private MediaCodec mCodec;
+    private ByteBuffer[] mInputBuffers;
+    private Thread mDrainThread;
+    private volatile boolean mStopping;
+    private int mSampleRate;
+    private int mChannels;
+    private long mFramesQueued;
+    private long mDroppedChunks;
+    // Format the encoder couldn't be started with, so that we don't retry it for every chunk
+    private int mFailedSampleRate;
+    private int mFailedChannels;
+
+    AudioMirrorEncoder(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return true if the encoder is running
+     */
+    synchronized boolean isRunning() {
+        return mCodec != null;
+    }
+
+    /**
+     * Queues PCM data to encode, starting or restarting the encoder if the format changed. Data
+     * that doesn't fit in the free input buffers of the encoder is dropped.
+     *
+     * @param pcm The 16-bit PCM data
+     * @param len The number of bytes to encode
+     * @param sampleRate The sample rate of the data
+     * @param channels The number of channels of the data
+     */
+    synchronized void write(byte[] pcm, int len, int sampleRate, int channels) {
+        if (mCodec == null || sampleRate != mSampleRate || channels != mChannels) {
+            stop();
+            if (sampleRate == mFailedSampleRate && channels == mFailedChannels) {
+                return;
+            }
+            if (!start(sampleRate, channels)) {
+                mFailedSampleRate = sampleRate;
+                mFailedChannels = channels;
+                return;
+            }
+        }
+
+        final int frameSize = channels * BYTES_PER_SAMPLE;
+        int offset = 0;
+        while (offset < len) {
+            final int index;
+            try {
+                index = mCodec.dequeueInputBuffer(0);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Encoder failed, stopping it", e);
+                stop();
+                return;
+            }
+
+            if (index < 0) {
+                // The encoder is behind, drop what's left rather than stalling the audio
+                ++mDroppedChunks;
+                if (mDroppedChunks % 100 == 1) {
+                    Log.w(TAG, "Encoder can't keep up, " + mDroppedChunks + " chunks dropped");
+                }
+                return;
+            }
+
+            ByteBuffer buffer = mInputBuffers[index];
+            buffer.clear();
+            // Only queue whole frames
+            final int count = Math.min(len - offset, buffer.remaining() / frameSize * frameSize);
+            buffer.put(pcm, offset, count);
+
+            final long timestampUs = mFramesQueued * 1000000L / sampleRate;
+            mCodec.queueInputBuffer(index, 0, count, timestampUs, 0);
+            mFramesQueued += count / frameSize;
+            offset += count;
+        }
+    }
+
+    /**
+     * Stops the encoder and its drain thread
+     */
+    synchronized void stop() {
+        if (mCodec == null) {
+            return;
+        }
+
+        mStopping = true;
+        try {
+            mDrainThread.join();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while stopping the drain thread");
+        }
+
+        try {
+            mCodec.stop();
+        } catch (IllegalStateException ignored) {
+        }
+        mCodec.release();
+        mCodec = null;
+        mInputBuffers = null;
+        mDrainThread = null;
+    }
+
+    private boolean start(int sampleRate, int channels) {
+        final int rateIndex = getSampleRateIndex(sampleRate);
+        if (rateIndex < 0) {
+            Log.e(TAG, "Sample rate not supported by AAC: " + sampleRate);
+            return false;
+        }
+
+        MediaFormat format = MediaFormat.createAudioFormat(MIME_AAC, sampleRate, channels);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
+
+        MediaCodec codec = null;
+        try {
+            codec = MediaCodec.createEncoderByType(MIME_AAC);
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            codec.start();
+        } catch (Exception e) {
+            // SDK > 19, an IOException might be thrown
+            Log.e(TAG, "Unable to create AAC encoder", e);
+            if (codec != null) {
+                codec.release();
+            }
+            return false;
+        }
+
+        mCodec = codec;
+        mInputBuffers = codec.getInputBuffers();
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mFramesQueued = 0;
+        mStopping = false;
+
+        mDrainThread = new Thread(new Drainer(codec, sampleRate, rateIndex, channels),
+                "AudioMirrorEncoder");
+        mDrainThread.start();
+        return true;
+    }
+
+    private class Drainer implements Runnable {
+        private final MediaCodec mDrainedCodec;
+        private final int mDrainedSampleRate;
+        private final int mRateIndex;
+        private final int mDrainedChannels;
+
+        Drainer(MediaCodec codec, int sampleRate, int rateIndex, int channels) {
+            mDrainedCodec = codec;
+            mDrainedSampleRate = sampleRate;
+            mRateIndex = rateIndex;
+            mDrainedChannels = channels;
+        }
+
+        @Override
+        public void run() {
+            final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            ByteBuffer[] outputBuffers = mDrainedCodec.getOutputBuffers();
+
+            while (!mStopping) {
+                final int index;
+                try {
+                    index = mDrainedCodec.dequeueOutputBuffer(info, DRAIN_TIMEOUT_US);
+                } catch (IllegalStateException e) {
+                    Log.e(TAG, "Encoder failed", e);
+                    return;
+                }
+
+                if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    outputBuffers = mDrainedCodec.getOutputBuffers();
+                } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    mListener.onEncodedFormat(mDrainedSampleRate, mDrainedChannels, BIT_RATE);
+                } else if (index >= 0) {
+                    // The codec config isn't needed with ADTS framing
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                        ByteBuffer out = outputBuffers[index];
+                        out.position(info.offset);
+                        out.limit(info.offset + info.size);
+
+                        writeAdtsHeader(info.size, mRateIndex, mDrainedChannels);
+                        mListener.onEncodedFrame(info.presentationTimeUs, mAdtsHeader, out);
+                    }
+                    mDrainedCodec.releaseOutputBuffer(index, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills the ADTS header for an AAC-LC frame of the provided size
+     */
+    private void writeAdtsHeader(int payloadSize, int rateIndex, int channels) {
+        final int frameLength = payloadSize + ADTS_HEADER_SIZE;
+        final int profile = MediaCodecInfo.CodecProfileLevel.AACObjectLC - 1;
+
+        mAdtsHeader[0] = (byte) 0xFF;
+        // MPEG-4, layer 0, no CRC
+        mAdtsHeader[1] = (byte) 0xF1;
+        mAdtsHeader[2] = (byte) ((profile << 6) | (rateIndex << 2) | (channels >> 2));
+        mAdtsHeader[3] = (byte) (((channels & 3) << 6) | (frameLength >> 11));
+        mAdtsHeader[4] = (byte) ((frameLength >> 3) & 0xFF);
+        // Buffer fullness 0x7FF (variable bit rate), one raw data block
+        mAdtsHeader[5] = (byte) (((frameLength & 7) << 5) | 0x1F);
+        mAdtsHeader[6] = (byte) 0xFC;
+    }
+
+    private static int getSampleRateIndex(int sampleRate) {
+        for (int i = 0; i < ADTS_SAMPLE_RATES.length; ++i) {
+            if (ADTS_SAMPLE_RATES[i] == sampleRate) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
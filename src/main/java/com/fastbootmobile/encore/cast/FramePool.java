@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.cast;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of {@link PooledFrame}. Not thread-safe: each producing thread uses its own pool.
+ */
+class FramePool {
+    private final int mFrameSize;
+    private final int mMaxSize;
+    private final List<PooledFrame> mPool = new ArrayList<>();
+    private int mNextFrame;
+
+    /**
+     * @param frameSize The initial capacity of the frames
+     * @param initialSize The number of frames to allocate upfront
+     * @param maxSize The number of frames the pool may grow to when frames are still in use by
+     *                slow clients
+     */
+    FramePool(int frameSize, int initialSize, int maxSize) {
+        mFrameSize = frameSize;
+        mMaxSize = maxSize;
+        for (int i = 0; i < initialSize; ++i) {
+            mPool.add(new PooledFrame(frameSize));
+        }
+    }
+
+    /**
+     * Returns a frame no longer used by any connection, looking from the one after the last frame
+     * used, as it is the oldest one.
+     *
+     * @return A frame, or null if all the frames are in use and the pool can't grow further
+     */
+    PooledFrame acquire() {
+        final int size = mPool.size();
+        for (int i = 0; i < size; ++i) {
+            final int index = (mNextFrame + i) % size;
+            final PooledFrame frame = mPool.get(index);
+            if (frame.isReleased()) {
+                mNextFrame = (index + 1) % size;
+                return frame;
+            }
+        }
+
+        if (size < mMaxSize) {
+            PooledFrame frame = new PooledFrame(mFrameSize);
+            mPool.add(frame);
+            mNextFrame = 0;
+            return frame;
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.cast;
+
+import org.java_websocket.WebSocketImpl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A direct buffer holding one binary WebSocket frame (RFC 6455, server side so unmasked), shared
+ * by all the connections it is sent to. Each connection gets a read-only duplicate of the buffer,
+ * and the frame can be reused once every duplicate has been consumed, that is sent or dropped by
+ * the queue policy of its connection, or its connection got closed.
+ */
+class PooledFrame {
+    /**
+     * Largest header of an unmasked frame: opcode byte, length marker and 64-bit length
+     */
+    static final int MAX_HEADER_SIZE = 10;
+
+    private static final byte FIN_BINARY = (byte) 0x82;
+
+    private ByteBuffer mBuffer;
+    private final List<WebSocketImpl> mClients = new ArrayList<>();
+    private final List<ByteBuffer> mDuplicates = new ArrayList<>();
+
+    PooledFrame(int capacity) {
+        mBuffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * @return true if no connection still needs the content of this frame
+     */
+    boolean isReleased() {
+        final int count = mClients.size();
+        for (int i = 0; i < count; ++i) {
+            final WebSocketImpl client = mClients.get(i);
+            // Reading the queue counters first makes the progress of the writing thread on the
+            // duplicate visible to us
+            if (!client.isClosed() && client.getOutQueueBytes() > 0
+                    && mDuplicates.get(i).hasRemaining()) {
+                return false;
+            }
+        }
+
+        mClients.clear();
+        mDuplicates.clear();
+        return true;
+    }
+
+    /**
+     * Frames the provided payload. Must only be called on a released frame.
+     *
+     * @param payload The payload to frame
+     * @param len The number of bytes of the payload
+     */
+    void fill(byte[] payload, int len) {
+        start(len).put(payload, 0, len);
+        finish();
+    }
+
+    /**
+     * Starts framing a payload of the provided length. Must only be called on a released frame.
+     *
+     * @param len The number of bytes of the payload
+     * @return The buffer in which exactly len bytes of payload must be put before calling
+     * {@link #finish()}
+     */
+    ByteBuffer start(int len) {
+        if (mBuffer.capacity() < len + MAX_HEADER_SIZE) {
+            mBuffer = ByteBuffer.allocateDirect(len + MAX_HEADER_SIZE);
+        }
+
+        mBuffer.clear();
+        mBuffer.put(FIN_BINARY);
+        if (len <= 125) {
+            mBuffer.put((byte) len);
+        } else if (len <= 65535) {
+            mBuffer.put((byte) 126);
+            mBuffer.putShort((short) len);
+        } else {
+            mBuffer.put((byte) 127);
+            mBuffer.putLong(len);
+        }
+        return mBuffer;
+    }
+
+    /**
+     * Completes the frame started with {@link #start(int)}
+     */
+    void finish() {
+        mBuffer.flip();
+    }
+
+    /**
+     * Queues the frame on the provided connection
+     *
+     * @param client The connection, which must have completed an RFC 6455 handshake
+     */
+    void sendTo(WebSocketImpl client) {
+        final ByteBuffer duplicate = mBuffer.asReadOnlyBuffer();
+        client.sendPreframed(duplicate);
+        mClients.add(client);
+        mDuplicates.add(duplicate);
+    }
+}
@@ -18,27 +18,77 @@ package com.fastbootmobile.encore.cast;
 import android.util.Log;
 
 import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
 import org.java_websocket.drafts.Draft;
 import org.java_websocket.drafts.Draft_10;
 import org.java_websocket.drafts.Draft_17;
 import org.java_websocket.drafts.Draft_75;
 import org.java_websocket.drafts.Draft_76;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.Framedata;
 import org.java_websocket.handshake.ClientHandshake;
 import org.java_websocket.server.WebSocketServer;
 
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * WebSocket Streaming server class to stream audio to Chromecast and webcast
+ *
+ * By default, clients receive the raw 16-bit PCM audio mirror, one binary message per chunk.
+ * Clients connecting with a "codec" query parameter other than "pcm" in their request URI (for
+ * instance "/?codec=aac") receive a compressed stream instead, made of binary messages starting
+ * with a type byte, all values being big endian:
+ * <ul>
+ *     <li>{@link #MESSAGE_FORMAT}: codec (byte, {@link #CODEC_AAC_ADTS}), sample rate (int),
+ *     channels (byte), bit rate (int). Sent when the client connects, and whenever the format
+ *     changes.</li>
+ *     <li>{@link #MESSAGE_AUDIO}: timestamp in microseconds since the start of the encoded stream
+ *     (long), followed by one ADTS frame.</li>
+ * </ul>
  */
 public class WSStreamer extends WebSocketServer {
     private static final String TAG = "WSStreamer";
 
     private static final List<Draft> sWSSDrafts = new ArrayList<>();
 
+    /**
+     * Number of bytes a client may have waiting to be sent before we start dropping its oldest
+     * audio chunks, which is about 1.5 seconds of 44.1kHz stereo audio. This keeps slow clients
+     * close to real-time, and bounds the memory they hold.
+     */
+    private static final int MAX_CLIENT_BACKLOG = 256 * 1024;
+
+    /**
+     * Maximum number of network I/O threads. The TLS encryption of the stream runs on them, so
+     * spreading it helps when several devices are casting.
+     */
+    private static final int MAX_IO_THREADS = 2;
+
+    public static final byte MESSAGE_FORMAT = 1;
+    public static final byte MESSAGE_AUDIO = 2;
+    public static final byte CODEC_AAC_ADTS = 1;
+    static final int FORMAT_MESSAGE_SIZE = 11;
+    static final int AUDIO_HEADER_SIZE = 9;
+
+    private static final String CODEC_PARAMETER = "codec=";
+    private static final String CODEC_PCM = "pcm";
+
+    private final Map<WebSocket, AtomicLong> mDroppedChunks = new ConcurrentHashMap<>();
+    // Clients of each stream, only added once they are set up to receive it
+    private final Set<WebSocketImpl> mPcmClients =
+            Collections.newSetFromMap(new ConcurrentHashMap<WebSocketImpl, Boolean>());
+    private final Set<WebSocketImpl> mEncodedClients =
+            Collections.newSetFromMap(new ConcurrentHashMap<WebSocketImpl, Boolean>());
+    private volatile byte[] mEncodedFormat;
+
     static {
         sWSSDrafts.add(new Draft_10());
         sWSSDrafts.add(new Draft_17());
@@ -48,21 +98,55 @@ public class WSStreamer extends WebSocketServer {
 
     public WSStreamer(int port) {
         super(new InetSocketAddress(port), sWSSDrafts);
+        setIOThreads(getIOThreadCount());
     }
 
     public WSStreamer(InetSocketAddress addr) {
         super(addr);
+        setIOThreads(getIOThreadCount());
+    }
+
+    private static int getIOThreadCount() {
+        return Math.max(1, Math.min(MAX_IO_THREADS, Runtime.getRuntime().availableProcessors()));
     }
 
     @Override
     public void onOpen(WebSocket conn, ClientHandshake clientHandshake) {
         Log.d(TAG, "Streaming client connected: "
                 + conn.getRemoteSocketAddress().getAddress().getHostAddress());
+        conn.setOutQueuePolicy(WebSocket.OutQueuePolicy.DROP_OLDEST, MAX_CLIENT_BACKLOG, 0);
+        mDroppedChunks.put(conn, new AtomicLong());
+
+        // Only RFC 6455 drafts support binary frames
+        if (!(conn instanceof WebSocketImpl) || !(conn.getDraft() instanceof Draft_10)) {
+            Log.w(TAG, "Streaming client doesn't support binary frames, not streaming to it");
+            return;
+        }
+
+        // The client only becomes visible to the broadcasts once its queue policy is set, and
+        // for the compressed stream once the current format, if any, has been queued
+        final WebSocketImpl client = (WebSocketImpl) conn;
+        if (wantsEncodedStream(conn.getResourceDescriptor())) {
+            synchronized (mEncodedClients) {
+                final byte[] format = mEncodedFormat;
+                if (format != null) {
+                    sendFormat(conn, format);
+                }
+                mEncodedClients.add(client);
+            }
+        } else {
+            mPcmClients.add(client);
+        }
     }
 
     @Override
     public void onClose(WebSocket conn, int code, String s, boolean b) {
-        Log.d(TAG, "Streaming client disconnected: " + s);
+        AtomicLong dropped = mDroppedChunks.remove(conn);
+        mPcmClients.remove(conn);
+        mEncodedClients.remove(conn);
+        Log.d(TAG, "Streaming client disconnected: " + s + " ("
+                + ((dropped != null ? dropped.get() : 0) + conn.getDroppedMessages())
+                + " chunks dropped)");
     }
 
     @Override
@@ -76,18 +160,123 @@ public class WSStreamer extends WebSocketServer {
         Log.e(TAG, "Error occurred on socket", e);
     }
 
-    public void write(byte[] frames, int numframes) {
-        final Collection<WebSocket> clients = connections();
-        if (clients.size() > 0) {
-            byte[] specificFrames = new byte[numframes];
-            System.arraycopy(frames, 0, specificFrames, 0, numframes);
+    /**
+     * @param encoded true to look for clients of the compressed stream, false for clients of the
+     *                PCM stream
+     * @return true if at least one client of that stream is connected
+     */
+    boolean hasClients(boolean encoded) {
+        return !(encoded ? mEncodedClients : mPcmClients).isEmpty();
+    }
 
-            for (WebSocket client : clients) {
-                if (client.isOpen()) {
-                    client.send(specificFrames);
-                }
+    /**
+     * Queues the provided frame on all the clients of the stream able to receive binary frames.
+     * Called from the audio thread for the PCM stream, and from the encoder thread for the
+     * compressed stream.
+     *
+     * @param frame The frame to send
+     * @param encoded true if the frame belongs to the compressed stream
+     */
+    void broadcast(PooledFrame frame, boolean encoded) {
+        for (WebSocketImpl client : encoded ? mEncodedClients : mPcmClients) {
+            if (!client.isOpen()) {
+                continue;
+            }
+
+            try {
+                frame.sendTo(client);
+            } catch (WebsocketNotConnectedException e) {
+                // The client disconnected in the meantime
+            }
+        }
+    }
+
+    /**
+     * Counts a chunk that couldn't be sent to any client of a stream
+     *
+     * @param encoded true if the chunk belongs to the compressed stream
+     */
+    void dropChunk(boolean encoded) {
+        for (WebSocketImpl client : encoded ? mEncodedClients : mPcmClients) {
+            final AtomicLong dropped = mDroppedChunks.get(client);
+            if (dropped != null) {
+                dropped.incrementAndGet();
             }
         }
     }
 
+    /**
+     * Sets the format message of the compressed stream, and sends it to its clients
+     *
+     * @param message The format message
+     */
+    void setEncodedFormat(byte[] message) {
+        // Locked so that a client being added gets either this format or the previous one
+        // followed by this one
+        synchronized (mEncodedClients) {
+            mEncodedFormat = message;
+            for (WebSocket client : mEncodedClients) {
+                sendFormat(client, message);
+            }
+        }
+    }
+
+    /**
+     * Queues a format message on a client. Unlike the audio messages, the format message can't
+     * be dropped by the queue policy, as the client couldn't decode the stream without it.
+     */
+    private static void sendFormat(WebSocket client, byte[] message) {
+        if (!client.isOpen()) {
+            return;
+        }
+
+        try {
+            for (Framedata frame : client.getDraft().createFrames(ByteBuffer.wrap(message),
+                    false)) {
+                client.sendFrame(frame);
+            }
+        } catch (WebsocketNotConnectedException e) {
+            // The client disconnected in the meantime
+        }
+    }
+
+    /**
+     * Returns the number of bytes waiting to be sent to the provided client
+     *
+     * @param conn The client
+     * @return A number of bytes
+     */
+    public long getQueuedBytes(WebSocket conn) {
+        return conn.getOutQueueBytes();
+    }
+
+    /**
+     * Returns the number of audio chunks that were not sent to the provided client because it
+     * couldn't keep up
+     *
+     * @param conn The client
+     * @return A number of chunks
+     */
+    public long getDroppedChunks(WebSocket conn) {
+        AtomicLong dropped = mDroppedChunks.get(conn);
+        return (dropped != null ? dropped.get() : 0) + conn.getDroppedMessages();
+    }
+
+    private static boolean wantsEncodedStream(String resource) {
+        if (resource == null) {
+            return false;
+        }
+
+        final int query = resource.indexOf('?');
+        if (query < 0) {
+            return false;
+        }
+
+        for (String parameter : resource.substring(query + 1).split("&")) {
+            if (parameter.startsWith(CODEC_PARAMETER)) {
+                return !CODEC_PCM.equals(parameter.substring(CODEC_PARAMETER.length()));
+            }
+        }
+        return false;
+    }
 }
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.framework;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Append-only store of the listen history. Each played song is appended as a small binary record
+ * to a file, and the history is kept in memory sorted by time, so that the most recent entries
+ * are read from its end and the expired ones are found by binary search. Expired entries are
+ * dropped from the file in batches, by rewriting it. Not thread-safe.
+ */
+class ListenHistoryLog {
+    private static final String TAG = "ListenHistoryLog";
+
+    private static final int MAGIC = 0x454C4F47; // ELOG
+    private static final int VERSION = 1;
+
+    /**
+     * Number of expired entries above which the file is rewritten without them
+     */
+    private static final int EXPIRE_BATCH = 100;
+
+    private static final Comparator<ListenLogger.LogEntry> sTimeSort =
+            new Comparator<ListenLogger.LogEntry>() {
+                @Override
+                public int compare(ListenLogger.LogEntry lhs, ListenLogger.LogEntry rhs) {
+                    final long l = lhs.getTime();
+                    final long r = rhs.getTime();
+                    return l < r ? -1 : (l == r ? 0 : 1);
+                }
+            };
+
+    private final File mFile;
+    private final long mMaxAge;
+    // Oldest first
+    private final List<ListenLogger.LogEntry> mEntries = new ArrayList<>();
+
+    /**
+     * @param file The file storing the log
+     * @param maxAge The age, in milliseconds, after which entries expire
+     */
+    ListenHistoryLog(File file, long maxAge) {
+        mFile = file;
+        mMaxAge = maxAge;
+    }
+
+    /**
+     * @return true if the log file exists
+     */
+    boolean exists() {
+        return mFile.exists();
+    }
+
+    /**
+     * Loads the log file into memory. A record partially written, for instance because the process
+     * got killed while appending it, is dropped.
+     */
+    void load() {
+        mEntries.clear();
+        if (!mFile.exists()) {
+            return;
+        }
+
+        boolean needsRewrite = false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.e(TAG, "Unknown history log format, starting a new one");
+                needsRewrite = true;
+            } else {
+                while (true) {
+                    final long timestamp;
+                    try {
+                        timestamp = in.readLong();
+                    } catch (EOFException e) {
+                        // Clean end of the log
+                        break;
+                    }
+                    final String ref = in.readUTF();
+                    final String provider = in.readUTF();
+                    mEntries.add(new ListenLogger.LogEntry(ref, provider, timestamp));
+                }
+            }
+        } catch (EOFException e) {
+            Log.w(TAG, "Truncated history log record, dropping it");
+            needsRewrite = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read history log", e);
+        } finally {
+            closeQuietly(in);
+        }
+
+        // Entries are appended in time order, unless the clock went back
+        Collections.sort(mEntries, sTimeSort);
+
+        if (needsRewrite) {
+            rewrite();
+        }
+    }
+
+    /**
+     * Appends entries to the log
+     *
+     * @param entries The entries to add
+     */
+    void append(Collection<ListenLogger.LogEntry> entries) {
+        for (ListenLogger.LogEntry entry : entries) {
+            insertSorted(entry);
+        }
+
+        final boolean isNew = !mFile.exists();
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mFile, true)));
+            if (isNew) {
+                writeHeader(out);
+            }
+            for (ListenLogger.LogEntry entry : entries) {
+                writeEntry(out, entry);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot append to history log", e);
+        } finally {
+            closeQuietly(out);
+        }
+
+        expire(System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the most recent entries that haven't expired
+     *
+     * @param limit The maximum number of entries to return, or 0 to return all of them
+     * @return The entries, the most recent first
+     */
+    List<ListenLogger.LogEntry> getNewest(int limit) {
+        final long cutoff = System.currentTimeMillis() - mMaxAge;
+        final int size = mEntries.size();
+        final int count = limit > 0 ? Math.min(limit, size) : size;
+        final List<ListenLogger.LogEntry> output = new ArrayList<>(count);
+
+        for (int i = size - 1; i >= 0 && output.size() < count; --i) {
+            final ListenLogger.LogEntry entry = mEntries.get(i);
+            if (entry.getTime() < cutoff) {
+                break;
+            }
+            output.add(entry);
+        }
+        return output;
+    }
+
+    /**
+     * Drops the expired entries, if there are enough of them to be worth rewriting the file
+     *
+     * @param now The current time
+     */
+    private void expire(long now) {
+        final int expired = indexOfFirstAfter(now - mMaxAge);
+        if (expired >= EXPIRE_BATCH) {
+            mEntries.subList(0, expired).clear();
+            rewrite();
+        }
+    }
+
+    /**
+     * @return The index of the first entry at or after the provided time
+     */
+    private int indexOfFirstAfter(long time) {
+        int low = 0;
+        int high = mEntries.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mEntries.get(mid).getTime() < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void insertSorted(ListenLogger.LogEntry entry) {
+        final int size = mEntries.size();
+        if (size == 0 || mEntries.get(size - 1).getTime() <= entry.getTime()) {
+            mEntries.add(entry);
+        } else {
+            mEntries.add(indexOfFirstAfter(entry.getTime() + 1), entry);
+        }
+    }
+
+    /**
+     * Writes the entries in memory to a new file, which then replaces the log
+     */
+    private void rewrite() {
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            writeHeader(out);
+            for (ListenLogger.LogEntry entry : mEntries) {
+                writeEntry(out, entry);
+            }
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(mFile)) {
+                Log.e(TAG, "Cannot replace history log");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot rewrite history log", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    private static void writeEntry(DataOutputStream out, ListenLogger.LogEntry entry)
+            throws IOException {
+        out.writeLong(entry.getTime());
+        out.writeUTF(entry.getReference());
+        out.writeUTF(entry.getSerializedIdentifier());
+    }
+
+    private static void closeQuietly(java.io.Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
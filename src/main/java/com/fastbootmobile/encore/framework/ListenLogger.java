@@ -17,6 +17,7 @@ package com.fastbootmobile.encore.framework;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.AsyncTask;
 import android.util.Log;
 
 import com.fastbootmobile.encore.model.Song;
@@ -25,14 +26,21 @@ import com.fastbootmobile.encore.providers.ProviderIdentifier;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
 
 /**
- * Class handling logging of played and liked songs
+ * Class handling logging of played and liked songs. The history is kept in an append-only log
+ * file, and the liked and disliked songs in memory, indexed by song reference. Both are loaded
+ * once per process in the background and shared by all the instances. The changes made while
+ * they load are queued and applied once they are loaded, and the reads wait for them.
  */
 public class ListenLogger {
     private static final String TAG = "ListenLogger";
@@ -43,91 +51,171 @@ public class ListenLogger {
     private static final String PREF_LIKED_ENTRIES = "liked_entries";
     private static final String PREF_DISLIKED_ENTRIES = "disliked_entries";
 
+    private static final String HISTORY_FILE = "listen_history.log";
+    private static final long HISTORY_MAX_AGE = 31L * 24 * 60 * 60 * 1000;
+
     private static final String KEY_TIMESTAMP = "timestamp";
     private static final String KEY_SONG_REF = "song_ref";
     private static final String KEY_PROVIDER = "provider";
 
+    private static final Object sLock = new Object();
+    private static boolean sLoadStarted;
+    private static boolean sLoaded;
+    // Changes made before the load finished, in order
+    private static final List<Runnable> sPendingChanges = new ArrayList<>();
+    private static ListenHistoryLog sHistory;
+    // Song reference to the JSON entry stored in the preferences
+    private static Map<String, String> sLiked;
+    private static Map<String, String> sDisliked;
+
     private SharedPreferences mPrefs;
 
     public ListenLogger(Context ctx) {
         mPrefs = ctx.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+
+        synchronized (sLock) {
+            if (!sLoadStarted) {
+                sLoadStarted = true;
+                final File file = new File(ctx.getFilesDir(), HISTORY_FILE);
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        load(file);
+                    }
+                });
+            }
+        }
     }
 
     /**
-     * Adds an entry to the song history. The time used will be the current time.
-     * @param song The song to add
+     * Loads the history and the likings, then applies the changes made in the meantime
      */
-    public void addEntry(Song song) {
-        SharedPreferences.Editor editor = mPrefs.edit();
-        Set<String> entries = new TreeSet<>(mPrefs.getStringSet(PREF_HISTORY_ENTRIES,
-                new TreeSet<String>()));
+    private void load(File file) {
+        final ListenHistoryLog history = new ListenHistoryLog(file, HISTORY_MAX_AGE);
+        if (history.exists()) {
+            history.load();
+        } else {
+            migrateHistory(history);
+        }
 
-        JSONObject jsonRoot = new JSONObject();
-        try {
-            jsonRoot.put(KEY_TIMESTAMP, new Date().getTime());
-            jsonRoot.put(KEY_SONG_REF, song.getRef());
-            jsonRoot.put(KEY_PROVIDER, song.getProvider().serialize());
-        } catch (JSONException ignore) {}
+        final Map<String, String> liked = loadLikings(PREF_LIKED_ENTRIES);
+        final Map<String, String> disliked = loadLikings(PREF_DISLIKED_ENTRIES);
 
+        synchronized (sLock) {
+            sHistory = history;
+            sLiked = liked;
+            sDisliked = disliked;
+            sLoaded = true;
 
-        entries.add(jsonRoot.toString());
+            for (Runnable change : sPendingChanges) {
+                change.run();
+            }
+            sPendingChanges.clear();
+            sLock.notifyAll();
+        }
+    }
 
-        // Remove old entries
-        final long now = new Date().getTime();
-        final long oneSec = 1000L;
-        final long oneMin = oneSec * 60;
-        final long oneHour = oneMin * 60;
-        final long oneDay = oneHour * 24;
-        final long oneMonth = oneDay * 31;
+    /**
+     * Runs the provided change now if everything is loaded, or once it is. Must be called with
+     * sLock held.
+     */
+    private static void applyChangeLocked(Runnable change) {
+        if (sLoaded) {
+            change.run();
+        } else {
+            sPendingChanges.add(change);
+        }
+    }
 
-        Set<String> removal = new TreeSet<>();
-        for (String entry : entries) {
+    /**
+     * Waits for the history and the likings to be loaded. Must be called with sLock held.
+     */
+    private static void waitForLoadLocked() {
+        boolean interrupted = false;
+        while (!sLoaded) {
             try {
-                JSONObject obj = new JSONObject(entry);
-                long timestamp = obj.getLong(KEY_TIMESTAMP);
-                if (now - timestamp > oneMonth) {
-                    removal.add(entry);
-                }
-            } catch (JSONException e) {
-                Log.w(TAG, "Cannot parse JSON", e);
+                sLock.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
             }
         }
 
-        for (String entry : removal) {
-            entries.remove(entry);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
-
-        editor.putStringSet(PREF_HISTORY_ENTRIES, entries);
-        editor.apply();
     }
 
     /**
-     * Fetches and builds a list of all the history entries
-     * @return A list of entries
+     * Moves the history entries stored as JSON in the preferences by the previous versions to the
+     * history log
      */
-    public List<LogEntry> getEntries(int limit) {
+    private void migrateHistory(ListenHistoryLog history) {
         Set<String> entries = mPrefs.getStringSet(PREF_HISTORY_ENTRIES, null);
-        List<LogEntry> output = new ArrayList<>();
+        if (entries == null) {
+            return;
+        }
+
+        List<LogEntry> migrated = new ArrayList<>(entries.size());
+        for (String entry : entries) {
+            try {
+                JSONObject jsonObj = new JSONObject(entry);
+                migrated.add(new LogEntry(jsonObj.getString(KEY_SONG_REF),
+                        jsonObj.getString(KEY_PROVIDER), jsonObj.getLong(KEY_TIMESTAMP)));
+            } catch (JSONException e) {
+                Log.w(TAG, "Cannot parse JSON", e);
+            }
+        }
+
+        history.append(migrated);
+        mPrefs.edit().remove(PREF_HISTORY_ENTRIES).apply();
+
+        if (DEBUG) Log.d(TAG, "Migrated " + migrated.size() + " history entries");
+    }
+
+    private Map<String, String> loadLikings(String entrySet) {
+        Set<String> entries = mPrefs.getStringSet(entrySet, null);
+        Map<String, String> output = new HashMap<>();
         if (entries != null) {
             for (String entry : entries) {
                 try {
                     JSONObject jsonObj = new JSONObject(entry);
-                    String songRef = jsonObj.getString(KEY_SONG_REF);
-                    String providerSerialized = jsonObj.getString(KEY_PROVIDER);
-                    long timestamp = jsonObj.getLong(KEY_TIMESTAMP);
-
-                    output.add(new LogEntry(songRef, providerSerialized, timestamp));
+                    output.put(jsonObj.getString(KEY_SONG_REF), entry);
                 } catch (JSONException e) {
-                    Log.e(TAG, "JSON Exception while trying to get log entry", e);
+                    Log.e(TAG, "JSON Exception while trying to load liked entries", e);
                 }
+            }
+        }
+        return output;
+    }
 
-                if (limit > 0 && output.size() == limit) {
-                    break;
+    /**
+     * Adds an entry to the song history. The time used will be the current time.
+     * @param song The song to add
+     */
+    public void addEntry(Song song) {
+        final LogEntry entry = new LogEntry(song.getRef(), song.getProvider().serialize(),
+                System.currentTimeMillis());
+
+        synchronized (sLock) {
+            applyChangeLocked(new Runnable() {
+                @Override
+                public void run() {
+                    sHistory.append(Collections.singletonList(entry));
                 }
-            }
+            });
         }
+    }
 
-        return output;
+    /**
+     * Fetches and builds a list of the most recent history entries
+     * @param limit The maximum number of entries to return, or 0 to return all of them
+     * @return A list of entries, the most recent first
+     */
+    public List<LogEntry> getEntries(int limit) {
+        synchronized (sLock) {
+            waitForLoadLocked();
+            return sHistory.getNewest(limit);
+        }
     }
 
     /**
@@ -135,7 +223,7 @@ public class ListenLogger {
      * @param song The song to add
      */
     public void addLike(Song song) {
-        addLikingImpl(song, PREF_LIKED_ENTRIES);
+        addLikingImpl(song, true, PREF_LIKED_ENTRIES);
     }
 
     /**
@@ -143,23 +231,28 @@ public class ListenLogger {
      * @param song The song to add
      */
     public void addDislike(Song song) {
-        addLikingImpl(song, PREF_DISLIKED_ENTRIES);
+        addLikingImpl(song, false, PREF_DISLIKED_ENTRIES);
     }
 
-    private void addLikingImpl(Song song, String entrySet) {
-        SharedPreferences.Editor editor = mPrefs.edit();
-        Set<String> entries = new TreeSet<>(mPrefs.getStringSet(entrySet, new TreeSet<String>()));
-
+    private void addLikingImpl(Song song, final boolean liked, final String entrySet) {
         JSONObject jsonRoot = new JSONObject();
         try {
             jsonRoot.put(KEY_SONG_REF, song.getRef());
             jsonRoot.put(KEY_PROVIDER, song.getProvider().serialize());
         } catch (JSONException ignore) {}
 
-        entries.add(jsonRoot.toString());
-
-        editor.putStringSet(entrySet, entries);
-        editor.apply();
+        final String ref = song.getRef();
+        final String entry = jsonRoot.toString();
+        synchronized (sLock) {
+            applyChangeLocked(new Runnable() {
+                @Override
+                public void run() {
+                    final Map<String, String> entries = liked ? sLiked : sDisliked;
+                    entries.put(ref, entry);
+                    saveLikings(entries, entrySet);
+                }
+            });
+        }
     }
 
     /**
@@ -167,7 +260,7 @@ public class ListenLogger {
      * @param song The song to remove
      */
     public void removeLike(Song song) {
-        removeLikingImpl(song, PREF_LIKED_ENTRIES);
+        removeLikingImpl(song, true, PREF_LIKED_ENTRIES);
     }
 
     /**
@@ -175,52 +268,59 @@ public class ListenLogger {
      * @param song The song to remove
      */
     public void removeDislike(Song song) {
-        removeLikingImpl(song, PREF_DISLIKED_ENTRIES);
+        removeLikingImpl(song, false, PREF_DISLIKED_ENTRIES);
     }
 
-    private void removeLikingImpl(Song song, String entrySet) {
-        SharedPreferences.Editor editor = mPrefs.edit();
-        Set<String> entries = new TreeSet<>(mPrefs.getStringSet(entrySet, new TreeSet<String>()));
-
-        JSONObject jsonRoot = new JSONObject();
-        try {
-            jsonRoot.put(KEY_SONG_REF, song.getRef());
-            jsonRoot.put(KEY_PROVIDER, song.getProvider().serialize());
-        } catch (JSONException ignore) {}
+    private void removeLikingImpl(Song song, final boolean liked, final String entrySet) {
+        final String ref = song.getRef();
+        synchronized (sLock) {
+            applyChangeLocked(new Runnable() {
+                @Override
+                public void run() {
+                    final Map<String, String> entries = liked ? sLiked : sDisliked;
+                    if (entries.remove(ref) != null) {
+                        saveLikings(entries, entrySet);
+                    }
+                }
+            });
+        }
+    }
 
-        entries.remove(jsonRoot.toString());
-        editor.putStringSet(entrySet, entries);
-        editor.apply();
+    private void saveLikings(Map<String, String> entries, String entrySet) {
+        mPrefs.edit().putStringSet(entrySet, new HashSet<>(entries.values())).apply();
     }
 
     /**
      * @return a list of all the liked entries
      */
     public List<LogEntry> getLikedEntries() {
-        return getLikingEntriesImpl(PREF_LIKED_ENTRIES);
+        return getLikingEntriesImpl(true);
     }
     /**
      * @return a list of all the disliked entries
      */
     public List<LogEntry> getDislikedEntries() {
-        return getLikingEntriesImpl(PREF_DISLIKED_ENTRIES);
+        return getLikingEntriesImpl(false);
     }
 
 
-    public List<LogEntry> getLikingEntriesImpl(String entrySet) {
-        Set<String> entries = mPrefs.getStringSet(entrySet, null);
-        List<LogEntry> output = new ArrayList<>();
-        if (entries != null) {
-            for (String entry : entries) {
-                try {
-                    JSONObject jsonObj = new JSONObject(entry);
-                    String songRef = jsonObj.getString(KEY_SONG_REF);
-                    String providerSerialized = jsonObj.getString(KEY_PROVIDER);
+    private List<LogEntry> getLikingEntriesImpl(boolean liked) {
+        List<String> values;
+        synchronized (sLock) {
+            waitForLoadLocked();
+            values = new ArrayList<>((liked ? sLiked : sDisliked).values());
+        }
 
-                    output.add(new LogEntry(songRef, providerSerialized, 0));
-                } catch (JSONException e) {
-                    Log.e(TAG, "JSON Exception while trying to get liked entries", e);
-                }
+        List<LogEntry> output = new ArrayList<>(values.size());
+        for (String entry : values) {
+            try {
+                JSONObject jsonObj = new JSONObject(entry);
+                String songRef = jsonObj.getString(KEY_SONG_REF);
+                String providerSerialized = jsonObj.getString(KEY_PROVIDER);
+
+                output.add(new LogEntry(songRef, providerSerialized, 0));
+            } catch (JSONException e) {
+                Log.e(TAG, "JSON Exception while trying to get liked entries", e);
             }
         }
 
@@ -234,7 +334,10 @@ public class ListenLogger {
      * @return true if the song is liked
      */
     public boolean isLiked(String ref) {
-        return getLikingImpl(ref, PREF_LIKED_ENTRIES);
+        synchronized (sLock) {
+            waitForLoadLocked();
+            return sLiked.containsKey(ref);
+        }
     }
 
     /**
@@ -243,26 +346,9 @@ public class ListenLogger {
      * @return true if the song is disliked
      */
     public boolean isDisliked(String ref) {
-        return getLikingImpl(ref, PREF_DISLIKED_ENTRIES);
-    }
-
-    private boolean getLikingImpl(String ref, String entrySet) {
-        Set<String> entries = mPrefs.getStringSet(entrySet, null);
-        if (entries != null) {
-            for (String entry : entries) {
-                try {
-                    JSONObject jsonObj = new JSONObject(entry);
-                    String songRef = jsonObj.getString(KEY_SONG_REF);
-                    if (songRef.equals(ref)) {
-                        return true;
-                    }
-                } catch (JSONException ignore) {
-                }
-            }
-
-            return false;
-        } else {
-            return false;
+        synchronized (sLock) {
+            waitForLoadLocked();
+            return sDisliked.containsKey(ref);
         }
     }
 
@@ -272,10 +358,12 @@ public class ListenLogger {
     public static class LogEntry {
         private Date mTimestamp;
         private String mSongRef;
+        private String mSerializedIdentifier;
         private ProviderIdentifier mIdentifier;
 
-        private LogEntry(String songRef, String serializedProviderIdentifier, long timestamp) {
+        LogEntry(String songRef, String serializedProviderIdentifier, long timestamp) {
             mSongRef = songRef;
+            mSerializedIdentifier = serializedProviderIdentifier;
             mIdentifier = ProviderIdentifier.fromSerialized(serializedProviderIdentifier);
             mTimestamp = new Date(timestamp);
         }
@@ -300,5 +388,13 @@ public class ListenLogger {
         public Date getTimestamp() {
             return mTimestamp;
         }
+
+        long getTime() {
+            return mTimestamp.getTime();
+        }
+
+        String getSerializedIdentifier() {
+            return mSerializedIdentifier;
+        }
     }
 }
@@ -26,8 +26,10 @@ import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Playlist;
 import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
+import com.fastbootmobile.encore.service.BasePlaybackCallback;
 import com.fastbootmobile.encore.service.IPlaybackCallback;
 import com.fastbootmobile.encore.service.IPlaybackService;
+import com.fastbootmobile.encore.service.PlaybackClock;
 import com.fastbootmobile.encore.service.PlaybackService;
 
 import java.util.ArrayList;
@@ -42,6 +44,15 @@ public class PlaybackProxy {
     private static Handler sHandler;
     private static final List<IPlaybackCallback> sPendingCallbacks = new ArrayList<>();
 
+    // Last clock pushed by the service, or null if the clock callback isn't registered yet
+    private static volatile PlaybackClock sClock;
+    private static final IPlaybackCallback sClockCallback = new BasePlaybackCallback() {
+        @Override
+        public void onPlaybackClockChanged(PlaybackClock clock) {
+            setClock(clock);
+        }
+    };
+
     private static final int MSG_PLAY               = 1;
     private static final int MSG_PAUSE              = 2;
     private static final int MSG_STOP               = 3;
@@ -64,6 +75,7 @@ public class PlaybackProxy {
     private static final int MSG_PLAY_NEXT          = 20;
     private static final int MSG_SLEEP_TIMER        = 21;
     private static final int MSG_SET_PLAYER_MUTED   = 22;
+    private static final int MSG_FETCH_CLOCK        = 24;
 
     private static class PlaybackProxyHandler extends Handler {
         public PlaybackProxyHandler(Looper looper) {
@@ -172,6 +184,10 @@ public class PlaybackProxy {
                     case MSG_SET_PLAYER_MUTED:
                         getPlayback().setPlayerMuted((Boolean) msg.obj);
                         break;
+
+                    case MSG_FETCH_CLOCK:
+                        setClock(getPlayback().getPlaybackClock());
+                        break;
                 }
             } catch (Exception e) {
                 Log.e(TAG, "Cannot run remote method", e);
@@ -205,6 +221,23 @@ public class PlaybackProxy {
             }
             sPendingCallbacks.clear();
         }
+
+        // Keep the playback clock up to date, fetching it once the callback is registered
+        addCallback(sClockCallback);
+        sHandler.sendEmptyMessage(MSG_FETCH_CLOCK);
+    }
+
+    static synchronized void notifyPlaybackDisconnected() {
+        sClock = null;
+    }
+
+    /**
+     * Replaces the cached clock, unless it is more recent than the provided one
+     */
+    private static synchronized void setClock(PlaybackClock clock) {
+        if (clock != null && (sClock == null || clock.getUptime() >= sClock.getUptime())) {
+            sClock = clock;
+        }
     }
 
     public static boolean isServiceConnected() {
@@ -287,7 +320,56 @@ public class PlaybackProxy {
         }
     }
 
+    public static int getQueueVersion() {
+        try {
+            return getPlayback().getQueueVersion();
+        } catch (RemoteException e) {
+            return -1;
+        }
+    }
+
+    public static int getQueueSize() {
+        try {
+            return getPlayback().getQueueSize();
+        } catch (RemoteException e) {
+            return 0;
+        }
+    }
+
+    public static List<Song> getQueueRange(int version, int offset, int count) {
+        try {
+            return getPlayback().getQueueRange(version, offset, count);
+        } catch (RemoteException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the playback clock, from which the current position and state can be read without
+     * calling the service each time. The clock is kept up to date by the service.
+     */
+    public static PlaybackClock getPlaybackClock() {
+        PlaybackClock clock = sClock;
+        if (clock == null) {
+            try {
+                clock = getPlayback().getPlaybackClock();
+            } catch (RemoteException e) {
+                clock = null;
+            }
+
+            if (clock == null) {
+                clock = new PlaybackClock(PlaybackService.STATE_STOPPED, 0, 0, 0, -1);
+            }
+        }
+        return clock;
+    }
+
     public static int getCurrentTrackPosition() {
+        final PlaybackClock clock = sClock;
+        if (clock != null) {
+            return clock.getPosition();
+        }
+
         try {
             return getPlayback().getCurrentTrackPosition();
         } catch (RemoteException e) {
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.framework;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.fastbootmobile.encore.model.Song;
+import com.fastbootmobile.encore.service.BasePlaybackCallback;
+import com.fastbootmobile.encore.service.QueueChange;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Local copy of the playback queue, kept up to date by applying the changes notified by the
+ * playback service instead of fetching the whole queue on each change. The queue is fetched by
+ * windows when the mirror starts, or if it misses changes. The mirror must be used from the main
+ * thread only.
+ */
+public class PlaybackQueueMirror extends BasePlaybackCallback {
+    private static final String TAG = "PlaybackQueueMirror";
+
+    /**
+     * Number of songs fetched at once
+     */
+    private static final int FETCH_WINDOW = 200;
+
+    /**
+     * Number of times the fetch is retried if the queue changes meanwhile
+     */
+    private static final int FETCH_ATTEMPTS = 3;
+
+    public interface Listener {
+        /**
+         * Called on the main thread right after songs were inserted in the mirror
+         * @param position The position of the first song inserted
+         * @param count The number of songs inserted
+         */
+        void onQueueItemsInserted(int position, int count);
+
+        /**
+         * Called on the main thread right after songs were removed from the mirror
+         * @param position The position of the first song removed
+         * @param count The number of songs removed
+         */
+        void onQueueItemsRemoved(int position, int count);
+
+        /**
+         * Called on the main thread right after the whole queue was fetched again
+         */
+        void onQueueMirrorReset();
+
+        /**
+         * Called on the main thread after the mirror changed, once each change was notified
+         */
+        void onQueueMirrorChanged();
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<Song> mSongs = new ArrayList<>();
+    private final List<Song> mSongsView = Collections.unmodifiableList(mSongs);
+    private final Listener mListener;
+    private int mVersion = -1;
+    private boolean mStarted;
+
+    /**
+     * @param listener The listener to notify when the queue changes
+     */
+    public PlaybackQueueMirror(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts mirroring the playback queue, and fetches it
+     */
+    public void start() {
+        if (!mStarted) {
+            mStarted = true;
+            PlaybackProxy.addCallback(this);
+            resync();
+        }
+    }
+
+    /**
+     * Stops mirroring the playback queue
+     */
+    public void stop() {
+        if (mStarted) {
+            mStarted = false;
+            PlaybackProxy.removeCallback(this);
+            mHandler.removeCallbacksAndMessages(null);
+        }
+    }
+
+    /**
+     * Fetches the queue if it couldn't be fetched yet, for instance because the service wasn't
+     * connected when the mirror started
+     */
+    public void ensureSynced() {
+        if (mStarted && mVersion < 0) {
+            resync();
+        }
+    }
+
+    /**
+     * @return A read-only view of the mirrored queue, which changes along with the mirror
+     */
+    public List<Song> getSongs() {
+        return mSongsView;
+    }
+
+    @Override
+    public void onPlaybackQueueDelta(final int fromVersion, final int toVersion,
+                                     final List<QueueChange> changes) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mStarted) {
+                    applyDelta(fromVersion, toVersion, changes);
+                }
+            }
+        });
+    }
+
+    private void applyDelta(int fromVersion, int toVersion, List<QueueChange> changes) {
+        if (mVersion >= 0 && toVersion <= mVersion) {
+            // Already included in the queue we fetched
+            return;
+        }
+
+        if (changes == null || fromVersion != mVersion || !applyChanges(toVersion, changes)) {
+            resync();
+            return;
+        }
+
+        mVersion = toVersion;
+        mListener.onQueueMirrorChanged();
+    }
+
+    /**
+     * @return false if the songs of an insertion couldn't be fetched
+     */
+    private boolean applyChanges(int toVersion, List<QueueChange> changes) {
+        for (QueueChange change : changes) {
+            final int position = change.getPosition();
+            switch (change.getType()) {
+                case QueueChange.TYPE_INSERT:
+                    List<Song> songs = change.getSongs();
+                    if (songs == null) {
+                        // Large insertion, only valid if it's the last change
+                        if (change != changes.get(changes.size() - 1)) {
+                            return false;
+                        }
+                        songs = fetch(toVersion, position, change.getCount());
+                        if (songs == null) {
+                            return false;
+                        }
+                    }
+                    final int insertPosition = Math.min(position, mSongs.size());
+                    mSongs.addAll(insertPosition, songs);
+                    mListener.onQueueItemsInserted(insertPosition, songs.size());
+                    break;
+
+                case QueueChange.TYPE_REMOVE:
+                    final int end = Math.min(position + change.getCount(), mSongs.size());
+                    mSongs.subList(position, end).clear();
+                    mListener.onQueueItemsRemoved(position, end - position);
+                    break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fetches the whole queue
+     */
+    private void resync() {
+        for (int attempt = 0; attempt < FETCH_ATTEMPTS; ++attempt) {
+            final int version = PlaybackProxy.getQueueVersion();
+            if (version < 0) {
+                // Service not connected yet
+                break;
+            }
+
+            final List<Song> songs = fetch(version, 0, PlaybackProxy.getQueueSize());
+            if (songs != null) {
+                mSongs.clear();
+                mSongs.addAll(songs);
+                mVersion = version;
+                mListener.onQueueMirrorReset();
+                mListener.onQueueMirrorChanged();
+                return;
+            }
+        }
+
+        Log.w(TAG, "Cannot fetch the playback queue");
+        mVersion = -1;
+    }
+
+    /**
+     * Fetches a range of the queue by windows
+     * @return The songs, or null if the queue isn't at that version anymore
+     */
+    private List<Song> fetch(int version, int offset, int count) {
+        final List<Song> output = new ArrayList<>(count);
+        while (output.size() < count) {
+            final List<Song> window = PlaybackProxy.getQueueRange(version, offset + output.size(),
+                    Math.min(FETCH_WINDOW, count - output.size()));
+            if (window == null) {
+                return null;
+            } else if (window.isEmpty()) {
+                break;
+            }
+            output.addAll(window);
+        }
+        return output;
+    }
+}
@@ -96,6 +96,7 @@ public class PluginsLookup {
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
             mPlaybackService = null;
+            PlaybackProxy.notifyPlaybackDisconnected();
         }
     };
 
@@ -121,6 +122,7 @@ public class PluginsLookup {
             mContext.stopService(new Intent(mContext, PlaybackService.class));
             mContext.unbindService(mPlaybackConnection);
             mPlaybackService = null;
+            PlaybackProxy.notifyPlaybackDisconnected();
         }
     };
 
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import android.os.DeadObjectException;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.fastbootmobile.encore.framework.PluginsLookup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves references against the cache, then fetches the missing entities from their provider.
+ * Lists of references are fetched in chunks that run concurrently. Fetches are registered while
+ * in flight, keyed by provider and reference, so that concurrent misses on the same entity share
+ * a single provider call (single-flight): callers asking for a reference already being fetched by
+ * someone else wait for that fetch instead of issuing their own.
+ *
+ * @param <T> The type of entity resolved
+ */
+abstract class BatchResolver<T> {
+    private static final String TAG = "BatchResolver";
+
+    /**
+     * Number of references fetched sequentially by a single worker
+     */
+    private static final int CHUNK_SIZE = 25;
+
+    private final ConcurrentHashMap<String, FutureTask<T>> mInFlight = new ConcurrentHashMap<>();
+    private final Executor mExecutor;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mCoalesced = new AtomicLong();
+
+    BatchResolver(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * @return The entity from the cache, or null if it isn't cached
+     */
+    protected abstract T getCached(String ref);
+
+    /**
+     * Fetches the entity from its provider
+     */
+    protected abstract T fetch(IMusicProvider binder, String ref) throws RemoteException;
+
+    /**
+     * Called once an entity has been fetched from its provider, to put it in cache. The reference
+     * is still registered as in flight while this runs, so the entity must be cached before doing
+     * anything that may resolve it again.
+     */
+    protected abstract void onFetched(ProviderIdentifier provider, T item) throws RemoteException;
+
+    /**
+     * @return The number of references found in cache
+     */
+    public long getHits() {
+        return mHits.get();
+    }
+
+    /**
+     * @return The number of references fetched from their provider
+     */
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return The number of references that weren't cached but were already being fetched by
+     * another caller, thus saving a provider call
+     */
+    public long getCoalesced() {
+        return mCoalesced.get();
+    }
+
+    /**
+     * Resolves a single reference. If it isn't cached, it is fetched from the provider on the
+     * calling thread, unless it is already being fetched in which case we wait for that fetch.
+     *
+     * @param ref The reference to resolve
+     * @param provider The provider of the reference (may be null to query cache only)
+     * @return The entity, or null if it couldn't be resolved
+     */
+    public T resolveOne(final String ref, final ProviderIdentifier provider) {
+        T output = getCached(ref);
+        if (output != null) {
+            mHits.incrementAndGet();
+            return output;
+        }
+
+        final IMusicProvider binder = getBinder(provider);
+        if (binder == null) {
+            return null;
+        }
+
+        final String key = getKey(provider, ref);
+        FutureTask<T> task = new FutureTask<>(new FetchCallable(binder, provider, ref, key));
+        FutureTask<T> existing = mInFlight.putIfAbsent(key, task);
+        if (existing == null) {
+            mMisses.incrementAndGet();
+            task.run();
+        } else {
+            mCoalesced.incrementAndGet();
+            task = existing;
+        }
+
+        return getResult(task);
+    }
+
+    /**
+     * Resolves the provided references. Cached entities are returned right away, the other ones
+     * are fetched from the provider. This method blocks until all the fetches are done.
+     *
+     * @param refs The references to resolve
+     * @param provider The provider of these references (may be null to query cache only)
+     * @return A list with the same size as refs, holding the entity of each reference, or null
+     * if it couldn't be resolved
+     */
+    public List<T> resolve(final List<String> refs, final ProviderIdentifier provider) {
+        return resolve(refs, provider, true);
+    }
+
+    /**
+     * Fetches the provided references from the provider even if they are cached, for instance to
+     * refresh entities that were cached before being loaded. This method blocks until all the
+     * fetches are done.
+     *
+     * @param refs The references to fetch
+     * @param provider The provider of these references
+     * @return A list with the same size as refs, holding the entity of each reference, or null
+     * if it couldn't be fetched
+     */
+    public List<T> refetch(final List<String> refs, final ProviderIdentifier provider) {
+        return resolve(refs, provider, false);
+    }
+
+    private List<T> resolve(final List<String> refs, final ProviderIdentifier provider,
+                            final boolean useCache) {
+        final List<T> output = new ArrayList<>(refs.size());
+        final IMusicProvider binder = getBinder(provider);
+        final Map<String, FutureTask<T>> tasks = new HashMap<>();
+        final Map<String, T> cachedItems = new HashMap<>();
+        final List<FutureTask<T>> ownTasks = new ArrayList<>();
+
+        for (String ref : refs) {
+            if (ref == null || tasks.containsKey(ref) || cachedItems.containsKey(ref)) {
+                continue;
+            }
+
+            T cached = useCache ? getCached(ref) : null;
+            if (cached != null) {
+                mHits.incrementAndGet();
+                cachedItems.put(ref, cached);
+                continue;
+            } else if (binder == null) {
+                continue;
+            }
+
+            // Register the fetches of the refs nobody is fetching already
+            final String key = getKey(provider, ref);
+            FutureTask<T> task = new FutureTask<>(new FetchCallable(binder, provider, ref, key));
+            FutureTask<T> existing = mInFlight.putIfAbsent(key, task);
+            if (existing == null) {
+                mMisses.incrementAndGet();
+                ownTasks.add(task);
+                tasks.put(ref, task);
+            } else {
+                mCoalesced.incrementAndGet();
+                tasks.put(ref, existing);
+            }
+        }
+
+        // Dispatch our fetches in chunks to the worker threads
+        for (int i = 0; i < ownTasks.size(); i += CHUNK_SIZE) {
+            final List<FutureTask<T>> chunk =
+                    ownTasks.subList(i, Math.min(i + CHUNK_SIZE, ownTasks.size()));
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (FutureTask<T> task : chunk) {
+                        task.run();
+                    }
+                }
+            });
+        }
+
+        // Help with our own fetches rather than idling, in case the workers are busy (or are
+        // waiting on us). Tasks already run or running are skipped.
+        for (FutureTask<T> task : ownTasks) {
+            task.run();
+        }
+
+        for (String ref : refs) {
+            if (ref == null) {
+                output.add(null);
+                continue;
+            }
+
+            FutureTask<T> task = tasks.get(ref);
+            output.add(task != null ? getResult(task) : cachedItems.get(ref));
+        }
+
+        return output;
+    }
+
+    private T getResult(FutureTask<T> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Unable to retrieve an entity", e.getCause());
+        }
+        return null;
+    }
+
+    private static String getKey(ProviderIdentifier provider, String ref) {
+        return provider.mPackage + "/" + provider.mService + "/" + ref;
+    }
+
+    private static IMusicProvider getBinder(ProviderIdentifier provider) {
+        if (provider == null) {
+            return null;
+        }
+
+        ProviderConnection pc = PluginsLookup.getDefault().getProvider(provider);
+        if (pc == null) {
+            Log.e(TAG, "Unknown provider identifier: " + provider);
+            return null;
+        }
+
+        return pc.getBinder();
+    }
+
+    private class FetchCallable implements Callable<T> {
+        private final IMusicProvider mBinder;
+        private final ProviderIdentifier mProvider;
+        private final String mRef;
+        private final String mKey;
+
+        FetchCallable(IMusicProvider binder, ProviderIdentifier provider, String ref, String key) {
+            mBinder = binder;
+            mProvider = provider;
+            mRef = ref;
+            mKey = key;
+        }
+
+        @Override
+        public T call() throws Exception {
+            try {
+                T item = fetch(mBinder, mRef);
+                if (item != null) {
+                    onFetched(mProvider, item);
+                }
+                return item;
+            } catch (DeadObjectException e) {
+                Log.e(TAG, "Provider died while retrieving " + mRef);
+                return null;
+            } catch (RemoteException e) {
+                Log.e(TAG, "Unable to retrieve " + mRef, e);
+                return null;
+            } finally {
+                mInFlight.remove(mKey);
+            }
+        }
+    }
+}
@@ -18,11 +18,9 @@ package com.fastbootmobile.encore.providers;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.os.DeadObjectException;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.RemoteException;
-import android.os.TransactionTooLargeException;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -30,16 +28,20 @@ import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.framework.PluginsLookup;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.BoundEntity;
 import com.fastbootmobile.encore.model.Genre;
 import com.fastbootmobile.encore.model.Playlist;
 import com.fastbootmobile.encore.model.SearchResult;
 import com.fastbootmobile.encore.model.Song;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 
@@ -49,12 +51,18 @@ import java.util.concurrent.ThreadPoolExecutor;
 public class ProviderAggregator extends IProviderCallback.Stub {
     private static final String TAG = "ProviderAggregator";
     private static final int PROPAGATION_DELAY = 200;
+    private static final int SNAPSHOT_WRITE_DELAY = 5000;
+    private static final String SNAPSHOT_FILE = "provider_cache.bin";
+    // Songs, albums and artists of streaming providers kept in cache, the least recently used
+    // ones being evicted first
+    private static final int MAX_REMOTE_CACHE_ENTRIES = 50000;
     private static final boolean DEBUG = false;
 
     private final Map<String, List<SearchResult>> mCachedSearches;
     private final List<ILocalCallback> mUpdateCallbacks;
     private final List<ProviderConnection> mProviders;
     private ProviderCache mCache;
+    private ProviderSyncEngine mSyncEngine;
     private Handler mMainHandler;
     private HandlerThread mBackHandlerThread;
     private Handler mBackHandler;
@@ -68,6 +76,64 @@ public class ProviderAggregator extends IProviderCallback.Stub {
     private Context mContext;
     private boolean mIsOfflineMode = false;
     private List<OfflineModeListener> mOfflineModeListeners = new ArrayList<>();
+    private ProviderCacheSnapshot mSnapshot;
+    private long mSnapshotVersion = -1;
+
+    // Songs and playlists restored from the snapshot, by provider, until the first full sync of
+    // their provider tells which ones still exist. Guarded by mSnapshotRefs.
+    private final Map<ProviderIdentifier, Set<String>> mSnapshotRefs = new HashMap<>();
+    private final Set<ProviderIdentifier> mSyncedProviders = new HashSet<>();
+
+    private final BatchResolver<Song> mSongResolver = new BatchResolver<Song>(mExecutor) {
+        @Override
+        protected Song getCached(String ref) {
+            return mCache.getSong(ref);
+        }
+
+        @Override
+        protected Song fetch(IMusicProvider binder, String ref) throws RemoteException {
+            return binder.getSong(ref);
+        }
+
+        @Override
+        protected void onFetched(ProviderIdentifier provider, Song item) throws RemoteException {
+            onSongUpdate(provider, item);
+        }
+    };
+
+    private final BatchResolver<Album> mAlbumResolver = new BatchResolver<Album>(mExecutor) {
+        @Override
+        protected Album getCached(String ref) {
+            return mCache.getAlbum(ref);
+        }
+
+        @Override
+        protected Album fetch(IMusicProvider binder, String ref) throws RemoteException {
+            return binder.getAlbum(ref);
+        }
+
+        @Override
+        protected void onFetched(ProviderIdentifier provider, Album item) throws RemoteException {
+            onAlbumUpdate(provider, item);
+        }
+    };
+
+    private final BatchResolver<Artist> mArtistResolver = new BatchResolver<Artist>(mExecutor) {
+        @Override
+        protected Artist getCached(String ref) {
+            return mCache.getArtist(ref);
+        }
+
+        @Override
+        protected Artist fetch(IMusicProvider binder, String ref) throws RemoteException {
+            return binder.getArtist(ref);
+        }
+
+        @Override
+        protected void onFetched(ProviderIdentifier provider, Artist item) throws RemoteException {
+            onArtistUpdate(provider, item);
+        }
+    };
 
     private Runnable mPostSongsRunnable = new Runnable() {
         @Override
@@ -125,6 +191,149 @@ public class ProviderAggregator extends IProviderCallback.Stub {
         }
     };
 
+    private Runnable mLoadSnapshotRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final long startTime = System.currentTimeMillis();
+            ProviderCacheSnapshot.Contents contents = mSnapshot.read();
+            if (contents == null) {
+                return;
+            }
+
+            // Providers may already have fed us fresher data, which we don't want to override
+            List<Song> songs = new ArrayList<>();
+            for (Song song : contents.songs) {
+                if (mCache.getSong(song.getRef()) == null && trackSnapshotRef(song)) {
+                    mCache.putSong(song.getProvider(), song);
+                    songs.add(song);
+                }
+            }
+
+            List<Album> albums = new ArrayList<>();
+            for (Album album : contents.albums) {
+                if (mCache.getAlbum(album.getRef()) == null) {
+                    mCache.putAlbum(album.getProvider(), album);
+                    albums.add(album);
+                }
+            }
+
+            List<Artist> artists = new ArrayList<>();
+            for (Artist artist : contents.artists) {
+                if (mCache.getArtist(artist.getRef()) == null) {
+                    mCache.putArtist(artist.getProvider(), artist);
+                    artists.add(artist);
+                }
+            }
+
+            List<Playlist> playlists = new ArrayList<>();
+            for (Playlist playlist : contents.playlists) {
+                if (mCache.getPlaylist(playlist.getRef()) == null && trackSnapshotRef(playlist)) {
+                    mCache.putPlaylist(playlist.getProvider(), playlist);
+                    playlists.add(playlist);
+                }
+            }
+
+            // What we just loaded is what is on disk already
+            mSnapshotVersion = mCache.getVersion();
+
+            Log.i(TAG, "Loaded cache snapshot (" + songs.size() + " songs, " + albums.size()
+                    + " albums, " + artists.size() + " artists, " + playlists.size()
+                    + " playlists) in " + (System.currentTimeMillis() - startTime) + "ms");
+
+            synchronized (mUpdateCallbacks) {
+                for (ILocalCallback cb : mUpdateCallbacks) {
+                    if (songs.size() > 0) cb.onSongUpdate(songs);
+                    if (albums.size() > 0) cb.onAlbumUpdate(albums);
+                    if (artists.size() > 0) cb.onArtistUpdate(artists);
+                    if (playlists.size() > 0) cb.onPlaylistUpdate(playlists);
+                }
+            }
+        }
+    };
+
+    /**
+     * Remembers that an entity comes from the snapshot, to check it against the first full sync
+     * of its provider
+     *
+     * @return false if that sync is already done, in which case the entity isn't in the provider
+     * anymore and mustn't be restored
+     */
+    private boolean trackSnapshotRef(BoundEntity entity) {
+        final ProviderIdentifier provider = entity.getProvider();
+        synchronized (mSnapshotRefs) {
+            if (mSyncedProviders.contains(provider)) {
+                return false;
+            }
+
+            Set<String> refs = mSnapshotRefs.get(provider);
+            if (refs == null) {
+                refs = new HashSet<>();
+                mSnapshotRefs.put(provider, refs);
+            }
+            refs.add(entity.getRef());
+        }
+        return true;
+    }
+
+    /**
+     * Called by the sync engine once a provider has been fully synced. The songs and playlists
+     * restored from the snapshot that the provider didn't return are evicted, as they have been
+     * removed while the app wasn't running.
+     *
+     * @param provider The provider
+     * @param refs The references of the songs and playlists returned by the provider
+     */
+    void onProviderSynced(ProviderIdentifier provider, Set<String> refs) {
+        final Set<String> restored;
+        synchronized (mSnapshotRefs) {
+            mSyncedProviders.add(provider);
+            restored = mSnapshotRefs.remove(provider);
+        }
+
+        if (restored == null) {
+            return;
+        }
+
+        int evicted = 0;
+        for (String ref : restored) {
+            if (refs.contains(ref)) {
+                continue;
+            }
+
+            final boolean playlist = mCache.getPlaylist(ref) != null;
+            if (mCache.remove(provider, ref)) {
+                evicted++;
+
+                if (playlist) {
+                    synchronized (mUpdateCallbacks) {
+                        for (ILocalCallback cb : mUpdateCallbacks) {
+                            cb.onPlaylistRemoved(ref);
+                        }
+                    }
+                }
+            }
+        }
+
+        if (evicted > 0) {
+            Log.i(TAG, "Evicted " + evicted + " entries of " + provider.mName
+                    + " restored from the snapshot but gone from the provider");
+            scheduleSnapshotWrite();
+        }
+    }
+
+    private Runnable mWriteSnapshotRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final long version = mCache.getVersion();
+            if (mSnapshot == null || version == mSnapshotVersion) {
+                return;
+            }
+
+            if (mSnapshot.write(mCache)) {
+                mSnapshotVersion = version;
+            }
+        }
+    };
 
     private Runnable mUpdatePlaylistsRunnable = new Runnable() {
         @Override
@@ -135,63 +344,9 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                 providers = new ArrayList<>(mProviders);
             }
 
-            // Then we query the providers
+            // Then we sync the providers, in parallel
             for (ProviderConnection conn : providers) {
-                try {
-                    IMusicProvider binder = conn.getBinder();
-                    if (binder != null && binder.isSetup() && binder.isAuthenticated()) {
-                        List<Playlist> playlist = binder.getPlaylists();
-                        ensurePlaylistsSongsCached(conn, playlist);
-
-                        // Cache all songs in batch
-                        int offset = 0;
-                        int limit = 100;
-                        boolean goForIt = true;
-
-                        while (goForIt) {
-                            try {
-                                List<Song> songs = binder.getSongs(offset, limit);
-
-                                if (songs == null || songs.size() == 0) {
-                                    goForIt = false;
-                                } else {
-                                    cacheSongs(conn, songs);
-
-                                    if (songs.size() < limit) {
-                                        goForIt = false;
-                                    }
-
-                                    offset += limit;
-                                }
-                            } catch (TransactionTooLargeException ignore) {
-                                limit -= 10;
-                                Log.w(TAG, "Got transaction size error, reducing limit to " + limit);
-                            }
-                        }
-
-                        try {
-                            cacheAlbums(conn, binder.getAlbums());
-                        } catch (Exception e) {
-                            Log.e(TAG, "Provider " + conn.getProviderName() + " threw an exception in getAlbums", e);
-                        }
-
-                        try {
-                            cacheArtists(conn, binder.getArtists());
-                        } catch (Exception e) {
-                            Log.e(TAG, "Provider " + conn.getProviderName() + " threw an exception in getArtists", e);
-                        }
-                    } else if (conn.getBinder() != null) {
-                        Log.i(TAG, "Skipping a providers because it is not setup or authenticated" +
-                                " ==> binder=" + binder + " ; isSetup=" +
-                                binder.isSetup() + " ; isAuthenticated=" +
-                                binder.isAuthenticated());
-                    } else {
-                        unregisterProvider(conn);
-                    }
-                } catch (RemoteException e) {
-                    Log.e(TAG, "Unable to get data from " + conn.getProviderName(), e);
-                    unregisterProvider(conn);
-                }
+                mSyncEngine.sync(conn);
             }
         }
     };
@@ -210,6 +365,8 @@ public class ProviderAggregator extends IProviderCallback.Stub {
         mUpdateCallbacks = new ArrayList<>();
         mProviders = new ArrayList<>();
         mCache = new ProviderCache();
+        mCache.setMaxRemoteEntries(MAX_REMOTE_CACHE_ENTRIES);
+        mSyncEngine = new ProviderSyncEngine(this);
         mMainHandler = new Handler();
         mCachedSearches = new HashMap<>();
         mBackHandlerThread = new HandlerThread("ProviderAggregator");
@@ -225,6 +382,13 @@ public class ProviderAggregator extends IProviderCallback.Stub {
 
     public void setContext(Context ctx) {
         mContext = ctx;
+
+        if (mSnapshot == null) {
+            // Restore the last known library before anything else hits the providers
+            mSnapshot = new ProviderCacheSnapshot(ctx,
+                    new File(ctx.getCacheDir(), SNAPSHOT_FILE));
+            mBackHandler.postAtFrontOfQueue(mLoadSnapshotRunnable);
+        }
     }
 
     /**
@@ -234,6 +398,33 @@ public class ProviderAggregator extends IProviderCallback.Stub {
         return mCache;
     }
 
+    /**
+     * Registers a listener notified of the progress of the providers library sync
+     *
+     * @param listener The listener to add
+     */
+    public void addSyncListener(ProviderSyncEngine.SyncListener listener) {
+        mSyncEngine.addListener(listener);
+    }
+
+    /**
+     * Unregisters a sync progress listener
+     *
+     * @param listener The listener to remove
+     */
+    public void removeSyncListener(ProviderSyncEngine.SyncListener listener) {
+        mSyncEngine.removeListener(listener);
+    }
+
+    /**
+     * @param provider The identifier of the provider
+     * @return The progress and timing of the last (or current) library sync of this provider, or
+     * null if it has never been synced
+     */
+    public ProviderSyncEngine.SyncProgress getSyncProgress(ProviderIdentifier provider) {
+        return mSyncEngine.getProgress(provider);
+    }
+
     /**
      * Registers a LocalCallback class, which will be called when various events happen from
      * any of the registered providers.
@@ -266,6 +457,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                 for (Song song : songs) {
                     mCache.putSong(provider.getIdentifier(), song);
                 }
+                scheduleSnapshotWrite();
             }
         });
     }
@@ -282,6 +474,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                     }
                     mCache.putAlbum(provider.getIdentifier(), album);
                 }
+                scheduleSnapshotWrite();
             }
         });
     }
@@ -323,35 +516,8 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             return null;
         }
 
-        // Try from cache
-        Song output = mCache.getSong(ref);
-
-        if (output == null && provider != null) {
-            // Get from provider then
-            ProviderConnection pc = PluginsLookup.getDefault().getProvider(provider);
-            if (pc != null) {
-                IMusicProvider binder = pc.getBinder();
-
-                if (binder != null) {
-                    try {
-                        output = binder.getSong(ref);
-                        if (output != null) {
-                            onSongUpdate(provider, output);
-                        }
-                    } catch (DeadObjectException e) {
-                        Log.e(TAG, "Provider died while retrieving song");
-                        return null;
-                    } catch (RemoteException e) {
-                        Log.e(TAG, "Unable to retrieve the song", e);
-                        return null;
-                    }
-                } else {
-                    if (DEBUG) Log.e(TAG, "Binder null: provider not yet connected?");
-                }
-            } else {
-                Log.e(TAG, "Unknown provider identifier: " + provider);
-            }
-        }
+        // Try from cache, or from the provider then
+        Song output = mSongResolver.resolveOne(ref, provider);
 
         if (output == null && provider != null) {
             Log.d(TAG, "Unable to get song " + ref + " from " + provider.mName);
@@ -378,27 +544,8 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             return null;
         }
 
-        // Try from cache
-        Artist output = mCache.getArtist(ref);
-        if (output == null && provider != null) {
-            ProviderConnection pc = PluginsLookup.getDefault().getProvider(provider);
-            if (pc != null) {
-                IMusicProvider binder = pc.getBinder();
-
-                if (binder != null) {
-                    try {
-                        output = binder.getArtist(ref);
-                        onArtistUpdate(provider, output);
-                    } catch (DeadObjectException e) {
-                        Log.e(TAG, "Provider died while retrieving artist");
-                        return null;
-                    } catch (RemoteException e) {
-                        Log.e(TAG, "Unable to retrieve the artist", e);
-                        return null;
-                    }
-                }
-            }
-        }
+        // Try from cache, or from the provider then
+        Artist output = mArtistResolver.resolveOne(ref, provider);
 
         return output;
     }
@@ -421,28 +568,64 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             return null;
         }
 
-        // Try from cache
-        Album output = mCache.getAlbum(ref);
+        // Try from cache, or from the provider then
+        Album output = mAlbumResolver.resolveOne(ref, provider);
 
-        if (output == null && provider != null) {
-            ProviderConnection pc = PluginsLookup.getDefault().getProvider(provider);
-            if (pc != null) {
-                IMusicProvider binder = pc.getBinder();
+        return output;
+    }
 
-                if (binder != null) {
-                    try {
-                        output = binder.getAlbum(ref);
-                        onAlbumUpdate(provider, output);
-                    } catch (DeadObjectException e) {
-                        Log.e(TAG, "Provider died while retrieving album");
-                    } catch (RemoteException e) {
-                        Log.e(TAG, "Unable to retrieve the album", e);
-                    }
-                }
-            }
-        }
+    /**
+     * Returns the statistics of the song, album and artist retrievals: how many were served from
+     * cache, how many needed a provider call, and how many were coalesced with an identical call
+     * already in flight.
+     *
+     * @return The retrieval statistics
+     */
+    public FetchStats getFetchStats() {
+        return new FetchStats(
+                mSongResolver.getHits() + mAlbumResolver.getHits() + mArtistResolver.getHits(),
+                mSongResolver.getMisses() + mAlbumResolver.getMisses()
+                        + mArtistResolver.getMisses(),
+                mSongResolver.getCoalesced() + mAlbumResolver.getCoalesced()
+                        + mArtistResolver.getCoalesced());
+    }
 
-        return output;
+    /**
+     * Retrieves a list of songs, fetching the ones that aren't cached from the provider in
+     * batches. This blocks until all songs are retrieved.
+     *
+     * @param refs     The references to the songs
+     * @param provider The provider from which retrieve the songs (may be null to query cache only)
+     * @return A list with the song of each reference, or null for songs that couldn't be retrieved
+     */
+    public List<Song> retrieveSongs(final List<String> refs, final ProviderIdentifier provider) {
+        return mSongResolver.resolve(refs, provider);
+    }
+
+    /**
+     * Retrieves a list of albums, fetching the ones that aren't cached from the provider in
+     * batches. This blocks until all albums are retrieved.
+     *
+     * @param refs     The references to the albums
+     * @param provider The provider from which retrieve the albums
+     * @return A list with the album of each reference, or null for albums that couldn't be
+     * retrieved
+     */
+    public List<Album> retrieveAlbums(final List<String> refs, final ProviderIdentifier provider) {
+        return mAlbumResolver.resolve(refs, provider);
+    }
+
+    /**
+     * Retrieves a list of artists, fetching the ones that aren't cached from the provider in
+     * batches. This blocks until all artists are retrieved.
+     *
+     * @param refs     The references to the artists
+     * @param provider The provider from which retrieve the artists
+     * @return A list with the artist of each reference, or null for artists that couldn't be
+     * retrieved
+     */
+    public List<Artist> retrieveArtists(final List<String> refs, final ProviderIdentifier provider) {
+        return mArtistResolver.resolve(refs, provider);
     }
 
     /**
@@ -492,7 +675,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
      * @param provider The provider that provided these playlists
      * @param playlist The list of playlists to fetch
      */
-    private void ensurePlaylistsSongsCached(final ProviderConnection provider,
+    void ensurePlaylistsSongsCached(final ProviderConnection provider,
                                             final List<Playlist> playlist) {
         if (provider == null || playlist == null) {
             // playlist may be null if there are no playlists
@@ -519,38 +702,24 @@ public class ProviderAggregator extends IProviderCallback.Stub {
 
                     mCache.putPlaylist(provider.getIdentifier(), p);
 
-                    // Make sure we have references to all the songs in the playlist
-                    Iterator<String> songs = p.songs();
-                    while (songs.hasNext()) {
-                        String songRef = songs.next();
-
-                        // We first check that we don't already have the song in the cache
-                        Song cachedSong = mCache.getSong(songRef);
-
-                        if (cachedSong != null && cachedSong.isLoaded()) {
-                            // We already have that song, continue to the next one
-                            continue;
-                        }
-
-                        // Get the song from the provider
-                        Song song = null;
-                        try {
-                            song = binder.getSong(songRef);
-                        } catch (RemoteException e) {
-                            // ignore, provider likely died, we just skip its song
-                        }
-
-                        if (song != null) {
-                            mCache.putSong(provider.getIdentifier(), song);
-
-                            // We call the songUpdate callback only if the track has been loaded.
-                            // If it's not, we assume that the provider will call songUpdated
-                            // here when it has the data for the track.
-                            if (song.isLoaded()) {
-                                postSongForUpdate(song);
+                    // Make sure we have all the songs in the playlist, fetching again the ones we
+                    // only have unloaded. Songs that the provider doesn't have loaded yet will be
+                    // pushed through songUpdated once it has their data.
+                    List<String> refs = new ArrayList<>();
+                    synchronized (p) {
+                        Iterator<String> songs = p.songs();
+                        while (songs.hasNext()) {
+                            String songRef = songs.next();
+                            Song cachedSong = mCache.getSong(songRef);
+                            if (cachedSong == null || !cachedSong.isLoaded()) {
+                                refs.add(songRef);
                             }
                         }
                     }
+
+                    if (!refs.isEmpty()) {
+                        mSongResolver.refetch(refs, provider.getIdentifier());
+                    }
                 }
             }
         });
@@ -611,6 +780,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
      * @param provider The providers to remove
      */
     public void unregisterProvider(final ProviderConnection provider) {
+        mSyncEngine.cancel(provider.getIdentifier());
         mBackHandler.post(new Runnable() {
             @Override
             public void run() {
@@ -735,6 +905,8 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             mPostedUpdateSongs.add(s);
         }
         mBackHandler.postDelayed(mPostSongsRunnable, PROPAGATION_DELAY);
+
+        scheduleSnapshotWrite();
     }
 
     public void postAlbumForUpdate(Album a) {
@@ -743,6 +915,8 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             mPostedUpdateAlbums.add(a);
         }
         mBackHandler.postDelayed(mPostAlbumsRunnable, PROPAGATION_DELAY);
+
+        scheduleSnapshotWrite();
     }
 
     public void postArtistForUpdate(Artist a) {
@@ -751,6 +925,8 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             mPostedUpdateArtists.add(a);
         }
         mBackHandler.postDelayed(mPostArtistsRunnable, PROPAGATION_DELAY);
+
+        scheduleSnapshotWrite();
     }
 
     public void postPlaylistForUpdate(Playlist p) {
@@ -759,6 +935,20 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             mPostedUpdatePlaylists.add(p);
         }
         mBackHandler.postDelayed(mPostPlaylistsRunnable, PROPAGATION_DELAY);
+
+        scheduleSnapshotWrite();
+    }
+
+    /**
+     * Marks the cache as changed and schedules writing the cache snapshot to disk. Writes are
+     * delayed so that bursts of updates (e.g. while syncing a provider) only write it once.
+     */
+    private void scheduleSnapshotWrite() {
+        mCache.notifyChanged();
+        if (mSnapshot != null) {
+            mBackHandler.removeCallbacks(mWriteSnapshotRunnable);
+            mBackHandler.postDelayed(mWriteSnapshotRunnable, SNAPSHOT_WRITE_DELAY);
+        }
     }
 
     public List<String> getRosettaStonePrefix() {
@@ -853,15 +1043,17 @@ public class ProviderAggregator extends IProviderCallback.Stub {
 
                     cached.setIsLoaded(p.isLoaded());
 
-                    // Empty the playlist
-                    while (cached.getSongsCount() > 0) {
-                        cached.removeSong(0);
-                    }
+                    // Replace the songs. Cached entities are locked while their lists change,
+                    // so that the cache snapshot can copy them consistently.
+                    synchronized (cached) {
+                        while (cached.getSongsCount() > 0) {
+                            cached.removeSong(0);
+                        }
 
-                    // Re-add the songs to it
-                    Iterator<String> songIt = p.songs();
-                    while (songIt.hasNext()) {
-                        cached.addSong(songIt.next());
+                        Iterator<String> songIt = p.songs();
+                        while (songIt.hasNext()) {
+                            cached.addSong(songIt.next());
+                        }
                     }
 
                     // Set offline information
@@ -879,11 +1071,14 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                     public void run() {
                         // First, we try to check if we need information for some of the songs
                         // TODO(xplodwild): Is this really needed in a properly designed provider?
-                        Iterator<String> it = finalCachedPlaylist.songs();
-                        while (it.hasNext()) {
-                            String ref = it.next();
-                            retrieveSong(ref, provider);
+                        List<String> refs = new ArrayList<>();
+                        synchronized (finalCachedPlaylist) {
+                            Iterator<String> it = finalCachedPlaylist.songs();
+                            while (it.hasNext()) {
+                                refs.add(it.next());
+                            }
                         }
+                        retrieveSongs(refs, provider);
 
                         // Then we notify the callbacks
                         postPlaylistForUpdate(finalCachedPlaylist);
@@ -933,9 +1128,14 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                 mCache.putSong(provider, s);
                 changed = true;
                 cached = s;
+            } else if (s.isLoaded() && cached.isAvailable() && !s.isAvailable()) {
+                // Providers notify removed songs as loaded updates with the available flag cleared
+                markSongRemoved(cached);
+                return;
             } else {
                 wasLoaded = cached.isLoaded();
-                if (s.isLoaded() && !cached.isIdentical(s)) {
+                if (s.isLoaded() && (!cached.isIdentical(s)
+                        || cached.isAvailable() != s.isAvailable())) {
                     cached.setAlbum(s.getAlbum());
                     cached.setArtist(s.getArtist());
                     cached.setSourceLogo(s.getLogo());
@@ -963,7 +1163,9 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                     }
 
                     if (album != null) {
-                        artist.addAlbum(album.getRef());
+                        synchronized (artist) {
+                            artist.addAlbum(album.getRef());
+                        }
                     }
                 }
             }
@@ -976,6 +1178,15 @@ public class ProviderAggregator extends IProviderCallback.Stub {
         }
     }
 
+    /**
+     * Marks a cached song as removed by its provider. The rest of the song is usually identical to
+     * what we have in cache, so the regular update path would ignore the change.
+     */
+    private void markSongRemoved(Song cached) {
+        cached.setAvailable(false);
+        postSongForUpdate(cached);
+    }
+
     @Override
     public void onGenreUpdate(ProviderIdentifier provider, final Genre g) throws RemoteException {
 
@@ -1007,10 +1218,12 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             cached.setProvider(a.getProvider());
 
             if (cached.getSongsCount() != a.getSongsCount()) {
-                Iterator<String> songsIt = a.songs();
-                while (songsIt.hasNext()) {
-                    String songRef = songsIt.next();
-                    cached.addSong(songRef);
+                synchronized (cached) {
+                    Iterator<String> songsIt = a.songs();
+                    while (songsIt.hasNext()) {
+                        String songRef = songsIt.next();
+                        cached.addSong(songRef);
+                    }
                 }
             }
 
@@ -1023,28 +1236,34 @@ public class ProviderAggregator extends IProviderCallback.Stub {
 
         if (modified) {
             // Add the album to each artist of the song (once)
+            List<String> songRefs = new ArrayList<>();
             Iterator<String> songs = a.songs();
-
             while (songs.hasNext()) {
-                String songRef = songs.next();
-                Song song = retrieveSong(songRef, a.getProvider());
+                songRefs.add(songs.next());
+            }
 
+            List<String> artistRefs = new ArrayList<>();
+            for (Song song : retrieveSongs(songRefs, a.getProvider())) {
                 if (song != null && song.isLoaded()) {
                     String artistRef = song.getArtist();
-                    if (artistRef != null) {
-                        Artist artist = retrieveArtist(artistRef, song.getProvider());
-
-                        if (artist != null) {
-                            artist.addAlbum(a.getRef());
-                        } else {
-                            if (DEBUG) Log.e(TAG, "Artist is null!");
-                        }
+                    if (artistRef != null && !artistRefs.contains(artistRef)) {
+                        artistRefs.add(artistRef);
                     }
                 } else {
                     if (DEBUG) Log.e(TAG, "Song is null!");
                 }
             }
 
+            for (Artist artist : retrieveArtists(artistRefs, a.getProvider())) {
+                if (artist != null) {
+                    synchronized (artist) {
+                        artist.addAlbum(a.getRef());
+                    }
+                } else {
+                    if (DEBUG) Log.e(TAG, "Artist is null!");
+                }
+            }
+
             postAlbumForUpdate(cached);
         }
     }
@@ -1066,9 +1285,11 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             postArtistForUpdate(a);
         } else if (!cached.isIdentical(a)) {
             cached.setName(a.getName());
-            Iterator<String> it = a.albums();
-            while (it.hasNext()) {
-                cached.addAlbum(it.next());
+            synchronized (cached) {
+                Iterator<String> it = a.albums();
+                while (it.hasNext()) {
+                    cached.addAlbum(it.next());
+                }
             }
             cached.setIsLoaded(a.isLoaded());
             postArtistForUpdate(a);
@@ -1166,6 +1387,27 @@ public class ProviderAggregator extends IProviderCallback.Stub {
 
     }
 
+    /**
+     * Statistics of the entities retrievals
+     */
+    public static class FetchStats {
+        public final long hits;
+        public final long misses;
+        public final long coalesced;
+
+        FetchStats(long hits, long misses, long coalesced) {
+            this.hits = hits;
+            this.misses = misses;
+            this.coalesced = coalesced;
+        }
+
+        @Override
+        public String toString() {
+            return "FetchStats{hits=" + hits + ", misses=" + misses + ", coalesced=" + coalesced
+                    + "}";
+        }
+    }
+
     /**
      * Interface for offline mode changes
      */
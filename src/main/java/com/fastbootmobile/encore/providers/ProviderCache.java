@@ -6,105 +6,147 @@ import com.fastbootmobile.encore.model.Playlist;
 import com.fastbootmobile.encore.model.Song;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Caches information gotten by providers
+ * Caches information gotten by providers. All the maps are concurrent, so reads never block
+ * writers. Each entry is also indexed by the provider that put it, so that purging a provider only
+ * walks through the entries of that provider. Putting an entry and indexing it is atomic with
+ * regard to purges, so that a purge never leaves entries of the purged provider behind.
  */
 public class ProviderCache {
+    private static final String LOCAL_PROVIDER_SERVICE =
+            "com.fastbootmobile.encore.providers.localprovider.PluginService";
+    private static final String MULTI_PROVIDER_SERVICE =
+            "com.fastbootmobile.encore.providers.MultiProviderPlaylistProvider";
+
     private final Map<String, Playlist> mPlaylists;
     private final Map<String, Song> mSongs;
-    private final Map<String, ProviderIdentifier> mRefProvider;
+    private final ConcurrentHashMap<String, ProviderIdentifier> mRefProvider;
     private final Map<String, Album> mAlbums;
     private final Map<String, Artist> mArtists;
+    private final ConcurrentHashMap<ProviderIdentifier, Set<String>> mProviderRefs;
     private final List<Playlist> mMultiProviderPlaylists;
+    private final AtomicLong mVersion;
+    private final Object mIndexLock = new Object();
+
+    private final LinkedHashMap<String, Boolean> mRemoteLru;
+    private volatile int mMaxRemoteEntries;
 
     /**
      * Default constructor
      */
     public ProviderCache() {
-        mPlaylists = new HashMap<>();
-        mSongs = new HashMap<>();
-        mRefProvider = new HashMap<>();
-        mAlbums = new HashMap<>();
-        mArtists = new HashMap<>();
-        mMultiProviderPlaylists = new ArrayList<>();
+        mPlaylists = new ConcurrentHashMap<>();
+        mSongs = new ConcurrentHashMap<>();
+        mRefProvider = new ConcurrentHashMap<>();
+        mAlbums = new ConcurrentHashMap<>();
+        mArtists = new ConcurrentHashMap<>();
+        mProviderRefs = new ConcurrentHashMap<>();
+        mMultiProviderPlaylists = new CopyOnWriteArrayList<>();
+        mVersion = new AtomicLong();
+        mRemoteLru = new LinkedHashMap<>(16, 0.75f, true);
+        mMaxRemoteEntries = 0;
     }
 
     /**
-     * Purges the cache in case the provider may change for the specified provider
+     * Bounds the number of songs, albums and artists kept in cache for non-local providers. Once
+     * the limit is reached, the least recently used entries are evicted. Playlists and entities
+     * from the local and multi-provider playlists providers are never evicted.
+     *
+     * @param maxEntries The maximum number of entries, or 0 to disable the bound
      */
-    public void purgeCacheForProvider(ProviderIdentifier id) {
-        List<String> keysToRemove;
-
-        // Playlists
-        synchronized (mPlaylists) {
-            Set<Map.Entry<String, Playlist>> playlists = mPlaylists.entrySet();
-            keysToRemove = new ArrayList<>();
+    public void setMaxRemoteEntries(int maxEntries) {
+        mMaxRemoteEntries = Math.max(0, maxEntries);
 
-            for (Map.Entry<String, Playlist> item : playlists) {
-                if (item.getValue() == null || item.getValue().getProvider().equals(id)) {
-                    keysToRemove.add(item.getKey());
-                }
-            }
-
-
-            for (String key : keysToRemove) {
-                mPlaylists.remove(key);
+        if (mMaxRemoteEntries == 0) {
+            synchronized (mRemoteLru) {
+                mRemoteLru.clear();
             }
+        } else {
+            trimRemoteEntries();
         }
+    }
 
-        // Songs
-        synchronized (mSongs) {
-            Set<Map.Entry<String, Song>> songs = mSongs.entrySet();
-            keysToRemove.clear();
+    /**
+     * @return The maximum number of non-local entries kept in cache, or 0 if unbounded
+     */
+    public int getMaxRemoteEntries() {
+        return mMaxRemoteEntries;
+    }
 
-            for (Map.Entry<String, Song> item : songs) {
-                if (item.getValue().getProvider() != null
-                        && item.getValue().getProvider().equals(id)) {
-                    keysToRemove.add(item.getKey());
-                }
-            }
+    /**
+     * Returns a counter incremented on every change of the cache contents. Comparing two values
+     * tells whether the cache changed in between (e.g. since the last snapshot was written).
+     *
+     * @return The current version of the cache contents
+     */
+    public long getVersion() {
+        return mVersion.get();
+    }
 
+    /**
+     * Marks the cache contents as changed. Entities are mutable, so callers updating a cached
+     * entity in place should call this so that the change gets persisted.
+     */
+    public void notifyChanged() {
+        mVersion.incrementAndGet();
+    }
 
-            for (String key : keysToRemove) {
-                mSongs.remove(key);
-            }
+    /**
+     * Purges the cache in case the provider may change for the specified provider
+     */
+    public void purgeCacheForProvider(ProviderIdentifier id) {
+        if (id == null) {
+            return;
         }
 
-        // Albums
-        synchronized (mAlbums) {
-            Set<Map.Entry<String, Album>> albums = mAlbums.entrySet();
-            keysToRemove.clear();
+        synchronized (mIndexLock) {
+            Set<String> refs = mProviderRefs.remove(id);
+            if (refs == null) {
+                return;
+            }
 
-            for (Map.Entry<String, Album> item : albums) {
-                if (item.getValue().getProvider().equals(id)) {
-                    keysToRemove.add(item.getKey());
+            for (String ref : refs) {
+                // The ref may have been taken over by another provider since, in which case we
+                // keep it
+                if (mRefProvider.remove(ref, id)) {
+                    removeRef(ref);
                 }
             }
-            for (String key : keysToRemove) {
-                mAlbums.remove(key);
-            }
         }
+        mVersion.incrementAndGet();
+    }
 
-        // Artists
-        synchronized (mArtists) {
-            Set<Map.Entry<String, Artist>> artists = mArtists.entrySet();
-            keysToRemove.clear();
-
-            for (Map.Entry<String, Artist> item : artists) {
-                if (item.getValue().getProvider().equals(id)) {
-                    keysToRemove.add(item.getKey());
-                }
+    /**
+     * Removes an entry from the cache, if it still belongs to the provided provider
+     *
+     * @param provider The provider of the entry
+     * @param ref The reference of the entry
+     * @return true if the entry has been removed
+     */
+    public boolean remove(ProviderIdentifier provider, String ref) {
+        synchronized (mIndexLock) {
+            if (!mRefProvider.remove(ref, provider)) {
+                return false;
             }
 
-            for (String key : keysToRemove) {
-                mArtists.remove(key);
+            Set<String> refs = mProviderRefs.get(provider);
+            if (refs != null) {
+                refs.remove(ref);
             }
+            removeRef(ref);
         }
+        mVersion.incrementAndGet();
+        return true;
     }
 
     public ProviderIdentifier getRefProvider(final String ref) {
@@ -112,10 +154,10 @@ public class ProviderCache {
     }
 
     public void putPlaylist(final ProviderIdentifier provider, final Playlist pl) {
-        synchronized (mPlaylists) {
+        synchronized (mIndexLock) {
             mPlaylists.put(pl.getRef(), pl);
+            indexRef(provider, pl.getRef(), false);
         }
-        mRefProvider.put(pl.getRef(), provider);
     }
 
     public void putAllProviderPlaylist(List<Playlist> playlists) {
@@ -123,21 +165,20 @@ public class ProviderCache {
     }
 
     Playlist getPlaylist(final String ref) {
-        synchronized(mPlaylists) {
-            return mPlaylists.get(ref);
-        }
+        return mPlaylists.get(ref);
     }
 
     public List<Playlist> getAllPlaylists() {
-        synchronized (mPlaylists) {
-            return new ArrayList<>(mPlaylists.values());
-        }
+        return new ArrayList<>(mPlaylists.values());
     }
 
     public void removePlaylist(String ref) {
-        synchronized (mPlaylists) {
-            mPlaylists.remove(ref);
+        synchronized (mIndexLock) {
+            if (mPlaylists.remove(ref) != null) {
+                unindexRef(ref);
+            }
         }
+        mVersion.incrementAndGet();
     }
 
     public List<Playlist> getAllMultiProviderPlaylists() {
@@ -149,54 +190,172 @@ public class ProviderCache {
     }
 
     public List<Artist> getAllArtists() {
-        synchronized (mArtists) {
-            return new ArrayList<>(mArtists.values());
-        }
+        return new ArrayList<>(mArtists.values());
     }
 
     public List<Album> getAllAlbums() {
-        synchronized (mAlbums) {
-            return new ArrayList<>(mAlbums.values());
-        }
+        return new ArrayList<>(mAlbums.values());
     }
 
     public void putSong(final ProviderIdentifier provider, final Song song) {
-        synchronized (mSongs) {
+        synchronized (mIndexLock) {
             mSongs.put(song.getRef(), song);
+            indexRef(provider, song.getRef(), true);
         }
-        mRefProvider.put(song.getRef(), provider);
     }
 
     Song getSong(final String ref) {
-        synchronized (mSongs) {
-            return mSongs.get(ref);
+        Song song = mSongs.get(ref);
+        if (song != null) {
+            touchRef(ref);
         }
+        return song;
     }
 
     public void putAlbum(final ProviderIdentifier provider, final Album album) {
-        synchronized (mAlbums) {
+        synchronized (mIndexLock) {
             mAlbums.put(album.getRef(), album);
-            mRefProvider.put(album.getRef(), provider);
+            indexRef(provider, album.getRef(), true);
         }
     }
 
     Album getAlbum(final String ref) {
-        synchronized (mAlbums) {
-            return mAlbums.get(ref);
+        Album album = mAlbums.get(ref);
+        if (album != null) {
+            touchRef(ref);
         }
+        return album;
     }
 
     public void putArtist(final ProviderIdentifier provider, final Artist artist) {
-        synchronized (mArtists) {
+        synchronized (mIndexLock) {
             mArtists.put(artist.getRef(), artist);
-            mRefProvider.put(artist.getRef(), provider);
+            indexRef(provider, artist.getRef(), true);
         }
     }
 
     Artist getArtist(final String ref) {
-        synchronized (mArtists) {
-            return mArtists.get(ref);
+        Artist artist = mArtists.get(ref);
+        if (artist != null) {
+            touchRef(ref);
+        }
+        return artist;
+    }
+
+    /**
+     * Maps the provided reference to its provider, and adds it to the provider secondary index
+     * and, if applicable, to the LRU list of evictable entries. Must be called with the index lock
+     * held, along with the put of the entry.
+     */
+    private void indexRef(final ProviderIdentifier provider, final String ref, boolean evictable) {
+        if (provider == null || ref == null) {
+            return;
+        }
+
+        ProviderIdentifier previous = mRefProvider.put(ref, provider);
+        if (previous != null && !previous.equals(provider)) {
+            Set<String> previousRefs = mProviderRefs.get(previous);
+            if (previousRefs != null) {
+                previousRefs.remove(ref);
+            }
+        }
+
+        Set<String> refs = mProviderRefs.get(provider);
+        if (refs == null) {
+            refs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            Set<String> existing = mProviderRefs.putIfAbsent(provider, refs);
+            if (existing != null) {
+                refs = existing;
+            }
+        }
+        refs.add(ref);
+        mVersion.incrementAndGet();
+
+        if (evictable && mMaxRemoteEntries > 0 && !isLocalProvider(provider)) {
+            synchronized (mRemoteLru) {
+                mRemoteLru.put(ref, Boolean.TRUE);
+            }
+            trimRemoteEntries();
+        }
+    }
+
+    /**
+     * Marks the provided reference as recently used, if it is tracked in the LRU list
+     */
+    private void touchRef(final String ref) {
+        if (mMaxRemoteEntries > 0) {
+            synchronized (mRemoteLru) {
+                mRemoteLru.get(ref);
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used non-local entries until we are within the bound
+     */
+    private void trimRemoteEntries() {
+        final int max = mMaxRemoteEntries;
+        if (max <= 0) {
+            return;
         }
+
+        // The LRU list and the index are changed under the same lock, so that puts can't
+        // interleave with the eviction
+        synchronized (mIndexLock) {
+            List<String> evicted = null;
+            synchronized (mRemoteLru) {
+                Iterator<String> it = mRemoteLru.keySet().iterator();
+                while (mRemoteLru.size() > max && it.hasNext()) {
+                    if (evicted == null) {
+                        evicted = new ArrayList<>();
+                    }
+                    evicted.add(it.next());
+                    it.remove();
+                }
+            }
+
+            if (evicted != null) {
+                for (String ref : evicted) {
+                    unindexRef(ref);
+                    removeRef(ref);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the provided reference from the provider index. Must be called with the index lock
+     * held.
+     */
+    private void unindexRef(final String ref) {
+        ProviderIdentifier provider = mRefProvider.remove(ref);
+        if (provider != null) {
+            Set<String> refs = mProviderRefs.get(provider);
+            if (refs != null) {
+                refs.remove(ref);
+            }
+        }
+    }
+
+    /**
+     * Removes the provided reference from all the entity maps
+     */
+    private void removeRef(final String ref) {
+        mPlaylists.remove(ref);
+        mSongs.remove(ref);
+        mAlbums.remove(ref);
+        mArtists.remove(ref);
+
+        if (mMaxRemoteEntries > 0) {
+            synchronized (mRemoteLru) {
+                mRemoteLru.remove(ref);
+            }
+        }
+    }
+
+    private static boolean isLocalProvider(final ProviderIdentifier provider) {
+        return LOCAL_PROVIDER_SERVICE.equals(provider.mService)
+                || MULTI_PROVIDER_SERVICE.equals(provider.mService);
     }
 
 }
@@ -0,0 +1,487 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import com.fastbootmobile.encore.model.Album;
+import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.BoundEntity;
+import com.fastbootmobile.encore.model.Playlist;
+import com.fastbootmobile.encore.model.Song;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary snapshot of the {@link ProviderCache} contents, written to disk so that the
+ * library can be displayed right away on a cold start, before providers are even bound.
+ *
+ * The file starts with a header (magic, version), followed by the table of providers referenced
+ * by the entities, then the songs, albums, artists and playlists sections. Each entity refers to
+ * its provider through its index in the providers table. The file is read back through a memory
+ * mapping. Entities of providers that are not installed anymore are neither written nor restored.
+ *
+ * Cached entities are changed in place by the providers callbacks, so their lists of references
+ * are copied with the entity locked before being written.
+ */
+public class ProviderCacheSnapshot {
+    private static final String TAG = "ProviderCacheSnapshot";
+
+    private static final int MAGIC = 0x454e4350; // "ENCP"
+    private static final int VERSION = 1;
+
+    private static final int FLAG_LOADED = 1;
+    private static final int FLAG_AVAILABLE = 1 << 1;
+    private static final int FLAG_OFFLINE_CAPABLE = 1 << 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Maximum length of a string in the snapshot, in bytes. Refs, names and logos are much
+     * shorter, so anything longer means the file is corrupted.
+     */
+    private static final int MAX_STRING_LENGTH = 64 * 1024;
+
+    /**
+     * Holds the entities read from a snapshot file
+     */
+    public static class Contents {
+        public final List<Song> songs = new ArrayList<>();
+        public final List<Album> albums = new ArrayList<>();
+        public final List<Artist> artists = new ArrayList<>();
+        public final List<Playlist> playlists = new ArrayList<>();
+    }
+
+    private final PackageManager mPackageManager;
+    private final File mFile;
+
+    /**
+     * @param context A context, used to check which providers are still installed
+     * @param file The file in which the snapshot is stored
+     */
+    public ProviderCacheSnapshot(Context context, File file) {
+        mPackageManager = context.getPackageManager();
+        mFile = file;
+    }
+
+    /**
+     * Writes the contents of the cache to the snapshot file. The snapshot is first written to a
+     * temporary file which then replaces the previous snapshot, so that a crash while writing
+     * never leaves a truncated snapshot behind.
+     *
+     * @param cache The cache to persist
+     * @return true if the snapshot has been written, false otherwise
+     */
+    public boolean write(ProviderCache cache) {
+        final List<Song> songs = cache.getAllSongs();
+        final List<Album> albums = cache.getAllAlbums();
+        final List<Artist> artists = cache.getAllArtists();
+        final List<Playlist> playlists = cache.getAllPlaylists();
+
+        // Build the providers table
+        final Map<ProviderIdentifier, Integer> providers = new HashMap<>();
+        final List<ProviderIdentifier> providersList = new ArrayList<>();
+        final Map<String, Boolean> installed = new HashMap<>();
+        final int[] songsProviders = indexProviders(cache, songs, providers, providersList,
+                installed);
+        final int[] albumsProviders = indexProviders(cache, albums, providers, providersList,
+                installed);
+        final int[] artistsProviders = indexProviders(cache, artists, providers, providersList,
+                installed);
+        final int[] playlistsProviders = indexProviders(cache, playlists, providers,
+                providersList, installed);
+
+        final File tmpFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile),
+                    64 * 1024));
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            out.writeInt(providersList.size());
+            for (ProviderIdentifier id : providersList) {
+                writeString(out, id.serialize());
+            }
+
+            out.writeInt(songs.size());
+            for (int i = 0; i < songs.size(); ++i) {
+                final Song song = songs.get(i);
+                out.writeInt(songsProviders[i]);
+                writeString(out, song.getRef());
+                writeString(out, song.getTitle());
+                writeString(out, song.getArtist());
+                writeString(out, song.getAlbum());
+                writeString(out, song.getLogo());
+                out.writeInt(song.getDuration());
+                out.writeInt(song.getYear());
+                out.writeInt(song.getOfflineStatus());
+                out.writeByte((song.isLoaded() ? FLAG_LOADED : 0)
+                        | (song.isAvailable() ? FLAG_AVAILABLE : 0));
+            }
+
+            out.writeInt(albums.size());
+            for (int i = 0; i < albums.size(); ++i) {
+                final Album album = albums.get(i);
+                out.writeInt(albumsProviders[i]);
+                writeString(out, album.getRef());
+                writeString(out, album.getName());
+                writeString(out, album.getLogo());
+                out.writeInt(album.getYear());
+                out.writeByte(album.isLoaded() ? FLAG_LOADED : 0);
+
+                final List<String> songRefs;
+                synchronized (album) {
+                    songRefs = copyRefs(album.songs());
+                }
+                writeRefs(out, songRefs);
+            }
+
+            out.writeInt(artists.size());
+            for (int i = 0; i < artists.size(); ++i) {
+                final Artist artist = artists.get(i);
+                out.writeInt(artistsProviders[i]);
+                writeString(out, artist.getRef());
+                writeString(out, artist.getName());
+                writeString(out, artist.getLogo());
+                out.writeByte(artist.isLoaded() ? FLAG_LOADED : 0);
+
+                final List<String> albumRefs;
+                synchronized (artist) {
+                    albumRefs = copyRefs(artist.albums());
+                }
+                writeRefs(out, albumRefs);
+            }
+
+            out.writeInt(playlists.size());
+            for (int i = 0; i < playlists.size(); ++i) {
+                final Playlist playlist = playlists.get(i);
+                out.writeInt(playlistsProviders[i]);
+                writeString(out, playlist.getRef());
+                writeString(out, playlist.getName());
+                writeString(out, playlist.getLogo());
+                out.writeInt(playlist.getOfflineStatus());
+                out.writeByte((playlist.isLoaded() ? FLAG_LOADED : 0)
+                        | (playlist.isOfflineCapable() ? FLAG_OFFLINE_CAPABLE : 0));
+
+                final List<String> songRefs;
+                synchronized (playlist) {
+                    songRefs = copyRefs(playlist.songs());
+                }
+                writeRefs(out, songRefs);
+            }
+
+            out.close();
+            out = null;
+
+            if (!tmpFile.renameTo(mFile)) {
+                Log.e(TAG, "Unable to replace the cache snapshot");
+                return false;
+            }
+
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write the cache snapshot", e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                }
+                //noinspection ResultOfMethodCallIgnored
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Reads the snapshot file
+     *
+     * @return The entities stored in the snapshot, or null if there is no valid snapshot
+     */
+    public Contents read() {
+        if (!mFile.exists()) {
+            return null;
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(mFile, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                Log.w(TAG, "Ignoring cache snapshot with an unknown format");
+                return null;
+            }
+
+            // Providers not installed anymore are left null, and their entities skipped
+            final int providersCount = readCount(buffer);
+            final ProviderIdentifier[] providers = new ProviderIdentifier[providersCount];
+            final Map<String, Boolean> installed = new HashMap<>();
+            for (int i = 0; i < providersCount; ++i) {
+                ProviderIdentifier id = ProviderIdentifier.fromSerialized(readString(buffer));
+                if (id != null && isInstalled(id, installed)) {
+                    providers[i] = id;
+                }
+            }
+
+            final Contents contents = new Contents();
+
+            int count = readCount(buffer);
+            for (int i = 0; i < count; ++i) {
+                ProviderIdentifier id = providers[buffer.getInt()];
+                Song song = new Song(readString(buffer));
+                song.setProvider(id);
+                song.setTitle(readString(buffer));
+                song.setArtist(readString(buffer));
+                song.setAlbum(readString(buffer));
+                song.setSourceLogo(readString(buffer));
+                song.setDuration(buffer.getInt());
+                song.setYear(buffer.getInt());
+                song.setOfflineStatus(buffer.getInt());
+                final int flags = buffer.get();
+                song.setIsLoaded((flags & FLAG_LOADED) != 0);
+                song.setAvailable((flags & FLAG_AVAILABLE) != 0);
+                if (id != null) {
+                    contents.songs.add(song);
+                }
+            }
+
+            count = readCount(buffer);
+            for (int i = 0; i < count; ++i) {
+                ProviderIdentifier id = providers[buffer.getInt()];
+                Album album = new Album(readString(buffer));
+                album.setProvider(id);
+                album.setName(readString(buffer));
+                album.setSourceLogo(readString(buffer));
+                album.setYear(buffer.getInt());
+                album.setIsLoaded((buffer.get() & FLAG_LOADED) != 0);
+                final int songsCount = readCount(buffer);
+                for (int j = 0; j < songsCount; ++j) {
+                    String ref = readString(buffer);
+                    if (ref != null) {
+                        album.addSong(ref);
+                    }
+                }
+                if (id != null) {
+                    contents.albums.add(album);
+                }
+            }
+
+            count = readCount(buffer);
+            for (int i = 0; i < count; ++i) {
+                ProviderIdentifier id = providers[buffer.getInt()];
+                Artist artist = new Artist(readString(buffer));
+                artist.setProvider(id);
+                artist.setName(readString(buffer));
+                artist.setSourceLogo(readString(buffer));
+                artist.setIsLoaded((buffer.get() & FLAG_LOADED) != 0);
+                final int albumsCount = readCount(buffer);
+                for (int j = 0; j < albumsCount; ++j) {
+                    String ref = readString(buffer);
+                    if (ref != null) {
+                        artist.addAlbum(ref);
+                    }
+                }
+                if (id != null) {
+                    contents.artists.add(artist);
+                }
+            }
+
+            count = readCount(buffer);
+            for (int i = 0; i < count; ++i) {
+                ProviderIdentifier id = providers[buffer.getInt()];
+                Playlist playlist = new Playlist(readString(buffer));
+                playlist.setProvider(id);
+                playlist.setName(readString(buffer));
+                playlist.setSourceLogo(readString(buffer));
+                playlist.setOfflineStatus(buffer.getInt());
+                final int flags = buffer.get();
+                playlist.setIsLoaded((flags & FLAG_LOADED) != 0);
+                playlist.setOfflineCapable((flags & FLAG_OFFLINE_CAPABLE) != 0);
+                final int songsCount = readCount(buffer);
+                for (int j = 0; j < songsCount; ++j) {
+                    String ref = readString(buffer);
+                    if (ref != null) {
+                        playlist.addSong(ref);
+                    }
+                }
+                if (id != null) {
+                    contents.playlists.add(playlist);
+                }
+            }
+
+            return contents;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read the cache snapshot", e);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            Log.e(TAG, "Cache snapshot is corrupted, ignoring it", e);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Deletes the snapshot file, if any
+     */
+    public void delete() {
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    /**
+     * Tells whether the package of the provided provider is still installed
+     *
+     * @param installed The packages already checked, to only query the package manager once each
+     */
+    private boolean isInstalled(ProviderIdentifier id, Map<String, Boolean> installed) {
+        Boolean result = installed.get(id.mPackage);
+        if (result == null) {
+            try {
+                mPackageManager.getPackageInfo(id.mPackage, 0);
+                result = true;
+            } catch (PackageManager.NameNotFoundException e) {
+                result = false;
+            }
+            installed.put(id.mPackage, result);
+        }
+        return result;
+    }
+
+    private static ProviderIdentifier providerOf(ProviderCache cache, BoundEntity entity) {
+        ProviderIdentifier id = cache.getRefProvider(entity.getRef());
+        if (id == null) {
+            id = entity.getProvider();
+        }
+        return id;
+    }
+
+    /**
+     * Resolves the provider of each entity and adds it to the providers table. Entities without a
+     * known provider, or whose provider isn't installed anymore, are removed from the list, as
+     * they couldn't be restored anyway.
+     *
+     * @return The index in the providers table of each remaining entity's provider
+     */
+    private int[] indexProviders(ProviderCache cache, List<? extends BoundEntity> entities,
+                                 Map<ProviderIdentifier, Integer> providers,
+                                 List<ProviderIdentifier> providersList,
+                                 Map<String, Boolean> installed) {
+        final int[] indexes = new int[entities.size()];
+        int count = 0;
+
+        Iterator<? extends BoundEntity> it = entities.iterator();
+        while (it.hasNext()) {
+            ProviderIdentifier id = providerOf(cache, it.next());
+            if (id == null || !isInstalled(id, installed)) {
+                it.remove();
+                continue;
+            }
+
+            Integer index = providers.get(id);
+            if (index == null) {
+                index = providersList.size();
+                providers.put(id, index);
+                providersList.add(id);
+            }
+            indexes[count++] = index;
+        }
+
+        return indexes;
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = str.getBytes(UTF8);
+            if (bytes.length > MAX_STRING_LENGTH) {
+                // Would be taken for a corruption when reading the snapshot back
+                out.writeInt(-1);
+                return;
+            }
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static List<String> copyRefs(Iterator<String> refs) {
+        List<String> copy = new ArrayList<>();
+        while (refs.hasNext()) {
+            copy.add(refs.next());
+        }
+        return copy;
+    }
+
+    private static void writeRefs(DataOutputStream out, List<String> refs) throws IOException {
+        out.writeInt(refs.size());
+        for (String ref : refs) {
+            writeString(out, ref);
+        }
+    }
+
+    /**
+     * Reads a number of items. Each item takes at least 4 bytes, so a count that doesn't fit in
+     * the rest of the file means the file is corrupted.
+     */
+    private static int readCount(MappedByteBuffer buffer) {
+        final int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / 4) {
+            throw new IndexOutOfBoundsException("Invalid count " + count);
+        }
+        return count;
+    }
+
+    private static String readString(MappedByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        } else if (length > MAX_STRING_LENGTH || length > buffer.remaining()) {
+            throw new IndexOutOfBoundsException("Invalid string length " + length);
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
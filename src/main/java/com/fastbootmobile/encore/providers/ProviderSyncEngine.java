@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.TransactionTooLargeException;
+import android.util.Log;
+
+import com.fastbootmobile.encore.model.Playlist;
+import com.fastbootmobile.encore.model.Song;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Synchronizes the library of the providers into the aggregator cache. Each provider is synced
+ * on its own thread, so that a slow provider doesn't hold back the others, and each sync can be
+ * cancelled individually. Songs are paged with a page size adapted to the observed size of the
+ * transactions, and each page is cached as soon as it arrives.
+ */
+public class ProviderSyncEngine {
+    private static final String TAG = "ProviderSyncEngine";
+    private static final boolean DEBUG = false;
+
+    private static final int MAX_PARALLEL_SYNCS = 4;
+
+    private static final int INITIAL_PAGE_SIZE = 100;
+    private static final int MIN_PAGE_SIZE = 10;
+    private static final int MAX_PAGE_SIZE = 2000;
+
+    /**
+     * Binder transactions are limited to a 1MB buffer shared by all the transactions in progress
+     * in the process, so we aim well below that.
+     */
+    private static final int TARGET_TRANSACTION_SIZE = 256 * 1024;
+
+    /**
+     * Number of songs of each page marshalled to estimate the size of a song in a transaction
+     */
+    private static final int SIZE_SAMPLE_COUNT = 8;
+
+    /**
+     * Listener notified of the progress of the syncs
+     */
+    public interface SyncListener {
+        /**
+         * Called each time a page of songs has been received from a provider
+         * @param progress The progress of the sync
+         */
+        void onSyncProgress(SyncProgress progress);
+
+        /**
+         * Called once a provider has been fully synced, or its sync has been cancelled
+         * @param progress The final state of the sync
+         */
+        void onSyncFinished(SyncProgress progress);
+    }
+
+    /**
+     * Progress and timing of the sync of one provider
+     */
+    public static class SyncProgress {
+        public final ProviderIdentifier provider;
+        public final long startTime;
+        public volatile int playlistsCount;
+        public volatile int songsCount;
+        public volatile int pageSize;
+        public volatile long playlistsTime;
+        public volatile long songsTime;
+        public volatile long albumsTime;
+        public volatile long artistsTime;
+        public volatile long totalTime;
+        public volatile boolean finished;
+        public volatile boolean cancelled;
+
+        SyncProgress(ProviderIdentifier provider) {
+            this.provider = provider;
+            this.startTime = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public String toString() {
+            return provider.mName + ": " + playlistsCount + " playlists (" + playlistsTime + "ms), "
+                    + songsCount + " songs (" + songsTime + "ms, page size " + pageSize + "), "
+                    + "albums " + albumsTime + "ms, artists " + artistsTime + "ms, total "
+                    + totalTime + "ms" + (cancelled ? " [cancelled]" : "");
+        }
+    }
+
+    private final ProviderAggregator mAggregator;
+    private final ExecutorService mExecutor;
+    private final ConcurrentHashMap<ProviderIdentifier, Future<?>> mSyncs;
+    private final ConcurrentHashMap<ProviderIdentifier, SyncProgress> mProgress;
+    private final ConcurrentHashMap<ProviderIdentifier, Integer> mPageSizes;
+    private final List<SyncListener> mListeners;
+
+    ProviderSyncEngine(ProviderAggregator aggregator) {
+        mAggregator = aggregator;
+        mExecutor = Executors.newFixedThreadPool(MAX_PARALLEL_SYNCS);
+        mSyncs = new ConcurrentHashMap<>();
+        mProgress = new ConcurrentHashMap<>();
+        mPageSizes = new ConcurrentHashMap<>();
+        mListeners = new ArrayList<>();
+    }
+
+    public void addListener(SyncListener listener) {
+        synchronized (mListeners) {
+            mListeners.add(listener);
+        }
+    }
+
+    public void removeListener(SyncListener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    /**
+     * @return The progress of the last (or current) sync of the provided provider, or null if it
+     * has never been synced
+     */
+    public SyncProgress getProgress(ProviderIdentifier provider) {
+        return mProgress.get(provider);
+    }
+
+    /**
+     * Starts syncing the provided provider. If a sync of this provider is already running, this
+     * call does nothing.
+     *
+     * @param conn The provider to sync
+     */
+    public void sync(final ProviderConnection conn) {
+        final ProviderIdentifier id = conn.getIdentifier();
+
+        synchronized (mSyncs) {
+            Future<?> current = mSyncs.get(id);
+            if (current != null && !current.isDone()) {
+                if (DEBUG) Log.d(TAG, "Sync of " + id.mName + " already running");
+                return;
+            }
+
+            mSyncs.put(id, mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    runSync(conn);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Cancels the ongoing sync of the provided provider, if any
+     *
+     * @param id The identifier of the provider
+     */
+    public void cancel(ProviderIdentifier id) {
+        synchronized (mSyncs) {
+            Future<?> current = mSyncs.remove(id);
+            if (current != null) {
+                current.cancel(true);
+            }
+        }
+    }
+
+    private void runSync(final ProviderConnection conn) {
+        final ProviderIdentifier id = conn.getIdentifier();
+        final SyncProgress progress = new SyncProgress(id);
+        mProgress.put(id, progress);
+
+        try {
+            IMusicProvider binder = conn.getBinder();
+            if (binder == null) {
+                mAggregator.unregisterProvider(conn);
+                return;
+            } else if (!binder.isSetup() || !binder.isAuthenticated()) {
+                Log.i(TAG, "Skipping a providers because it is not setup or authenticated" +
+                        " ==> binder=" + binder + " ; isSetup=" +
+                        binder.isSetup() + " ; isAuthenticated=" +
+                        binder.isAuthenticated());
+                return;
+            }
+
+            // References returned by the provider, to tell which of the entries restored from
+            // the cache snapshot are gone
+            final Set<String> syncedRefs = new HashSet<>();
+
+            // Playlists
+            long stepStart = SystemClock.elapsedRealtime();
+            List<Playlist> playlists = binder.getPlaylists();
+            if (playlists != null) {
+                progress.playlistsCount = playlists.size();
+                for (Playlist playlist : playlists) {
+                    if (playlist == null) {
+                        continue;
+                    }
+                    syncedRefs.add(playlist.getRef());
+                    Iterator<String> songs = playlist.songs();
+                    while (songs.hasNext()) {
+                        syncedRefs.add(songs.next());
+                    }
+                }
+            }
+            mAggregator.ensurePlaylistsSongsCached(conn, playlists);
+            progress.playlistsTime = SystemClock.elapsedRealtime() - stepStart;
+
+            if (isCancelled(progress)) {
+                return;
+            }
+
+            // Songs, paged
+            stepStart = SystemClock.elapsedRealtime();
+            final boolean songsComplete = syncSongs(conn, binder, progress, syncedRefs);
+            progress.songsTime = SystemClock.elapsedRealtime() - stepStart;
+
+            if (isCancelled(progress)) {
+                return;
+            } else if (songsComplete) {
+                mAggregator.onProviderSynced(id, syncedRefs);
+            }
+
+            // Albums and artists
+            stepStart = SystemClock.elapsedRealtime();
+            try {
+                mAggregator.cacheAlbums(conn, binder.getAlbums());
+            } catch (Exception e) {
+                Log.e(TAG, "Provider " + conn.getProviderName() + " threw an exception in getAlbums", e);
+            }
+            progress.albumsTime = SystemClock.elapsedRealtime() - stepStart;
+
+            if (isCancelled(progress)) {
+                return;
+            }
+
+            stepStart = SystemClock.elapsedRealtime();
+            try {
+                mAggregator.cacheArtists(conn, binder.getArtists());
+            } catch (Exception e) {
+                Log.e(TAG, "Provider " + conn.getProviderName() + " threw an exception in getArtists", e);
+            }
+            progress.artistsTime = SystemClock.elapsedRealtime() - stepStart;
+        } catch (RemoteException e) {
+            Log.e(TAG, "Unable to get data from " + conn.getProviderName(), e);
+            mAggregator.unregisterProvider(conn);
+        } finally {
+            progress.totalTime = SystemClock.elapsedRealtime() - progress.startTime;
+            progress.finished = true;
+            Log.i(TAG, "Sync done: " + progress);
+
+            synchronized (mListeners) {
+                for (SyncListener listener : mListeners) {
+                    listener.onSyncFinished(progress);
+                }
+            }
+        }
+    }
+
+    /**
+     * Syncs the songs of the provider, page by page
+     *
+     * @param syncedRefs Set to which the references of the songs received are added
+     * @return true if all the songs have been received
+     */
+    private boolean syncSongs(ProviderConnection conn, IMusicProvider binder,
+                              SyncProgress progress, Set<String> syncedRefs)
+            throws RemoteException {
+        final ProviderIdentifier id = conn.getIdentifier();
+        Integer lastPageSize = mPageSizes.get(id);
+        int limit = lastPageSize != null ? lastPageSize : INITIAL_PAGE_SIZE;
+        int maxLimit = MAX_PAGE_SIZE;
+        int fullPageSize = limit;
+        int offset = 0;
+        boolean complete = false;
+        final SongSizeEstimator sizeEstimator = new SongSizeEstimator();
+
+        while (!isCancelled(progress)) {
+            List<Song> songs;
+            try {
+                songs = binder.getSongs(offset, limit);
+            } catch (TransactionTooLargeException e) {
+                if (limit <= MIN_PAGE_SIZE) {
+                    Log.e(TAG, "Provider " + conn.getProviderName() + " songs page too large"
+                            + " even at " + limit + " songs, giving up");
+                    break;
+                }
+                limit = Math.max(MIN_PAGE_SIZE, limit / 2);
+                Log.w(TAG, "Got transaction size error, reducing limit to " + limit);
+                continue;
+            }
+
+            if (songs == null || songs.size() == 0) {
+                complete = true;
+                break;
+            }
+
+            mAggregator.cacheSongs(conn, songs);
+            for (Song song : songs) {
+                if (song != null) {
+                    syncedRefs.add(song.getRef());
+                }
+            }
+            offset += songs.size();
+            progress.songsCount = offset;
+            progress.pageSize = limit;
+
+            synchronized (mListeners) {
+                for (SyncListener listener : mListeners) {
+                    listener.onSyncProgress(progress);
+                }
+            }
+
+            // Providers may cap their pages below what we ask for, so a short page doesn't mean
+            // we're done: only an empty page does. We stop asking for more than the cap though.
+            if (songs.size() < limit) {
+                maxLimit = Math.max(MIN_PAGE_SIZE, songs.size());
+            } else {
+                fullPageSize = limit;
+            }
+
+            // Adapt the page size to the size of the transaction we just got
+            limit = Math.min(maxLimit, sizeEstimator.getNextPageSize(songs, limit));
+        }
+
+        // The last page is usually short, only remember the size of the pages we got in full
+        mPageSizes.put(id, fullPageSize);
+        return complete;
+    }
+
+    /**
+     * Estimates the size of a song in a transaction from the running average of a few songs
+     * sampled from each page, rather than marshalling whole pages a second time
+     */
+    private static class SongSizeEstimator {
+        private long mSampledBytes;
+        private int mSampledSongs;
+
+        /**
+         * Computes the size of the next page of songs so that the transaction size gets close to
+         * {@link #TARGET_TRANSACTION_SIZE}, growing or shrinking by a factor of 2 at most
+         */
+        int getNextPageSize(List<Song> page, int limit) {
+            sample(page);
+            if (mSampledBytes <= 0) {
+                return limit;
+            }
+
+            final int target = (int) ((long) TARGET_TRANSACTION_SIZE * mSampledSongs / mSampledBytes);
+            final int next = Math.max(limit / 2, Math.min(limit * 2, target));
+            return Math.max(MIN_PAGE_SIZE, Math.min(MAX_PAGE_SIZE, next));
+        }
+
+        private void sample(List<Song> page) {
+            final int step = Math.max(1, page.size() / SIZE_SAMPLE_COUNT);
+            Parcel parcel = Parcel.obtain();
+            try {
+                for (int i = 0; i < page.size(); i += step) {
+                    final Song song = page.get(i);
+                    if (song == null) {
+                        continue;
+                    }
+
+                    // Same as an item of writeTypedList(): a non-null marker then the song
+                    final int start = parcel.dataSize();
+                    parcel.writeInt(1);
+                    song.writeToParcel(parcel, 0);
+                    mSampledBytes += parcel.dataSize() - start;
+                    mSampledSongs++;
+                }
+            } finally {
+                parcel.recycle();
+            }
+        }
+    }
+
+    private static boolean isCancelled(SyncProgress progress) {
+        if (Thread.currentThread().isInterrupted()) {
+            progress.cancelled = true;
+        }
+        return progress.cancelled;
+    }
+}
@@ -0,0 +1,270 @@
+package com.fastbootmobile.encore.providers.bassboost;
+
+/**
+ * Cascade of biquad filters (one per band) applied in place to interleaved 16-bit PCM audio.
+ * Coefficients are computed for the sample rate of the stream, and recomputed whenever the format
+ * or a band changes. Audio is processed a block at a time: the block is converted once, then each
+ * band runs over each channel of the whole block with its state kept in locals. Stereo channels
+ * are filtered in the same loop, as each filter alone is bound by the latency of its recursion.
+ */
+public class ParametricEqualizer {
+    public static final int TYPE_PEAKING = 0;
+    public static final int TYPE_LOW_SHELF = 1;
+    public static final int TYPE_HIGH_SHELF = 2;
+    public static final int TYPE_LOW_PASS = 3;
+    public static final int TYPE_HIGH_PASS = 4;
+
+    private static final int COEFFICIENTS_PER_BAND = 5;
+    private static final int STATES_PER_FILTER = 2;
+    private static final double MAX_FREQUENCY_RATIO = 0.45;
+
+    private final int mBandCount;
+    private final int[] mTypes;
+    private final double[] mFrequencies;
+    private final double[] mGains;
+    private final double[] mQualities;
+
+    // b0, b1, b2, a1, a2 of each band, normalized by a0
+    private final double[] mCoefficients;
+    // z1, z2 of each band, for each channel
+    private double[] mStates;
+    private double[] mBlock = new double[16384];
+    private int mSampleRate = 44100;
+    private int mChannels = 2;
+
+    /**
+     * @param bandCount The number of bands of the equalizer, which are all flat initially
+     */
+    public ParametricEqualizer(int bandCount) {
+        mBandCount = bandCount;
+        mTypes = new int[bandCount];
+        mFrequencies = new double[bandCount];
+        mGains = new double[bandCount];
+        mQualities = new double[bandCount];
+        mCoefficients = new double[bandCount * COEFFICIENTS_PER_BAND];
+        mStates = new double[bandCount * mChannels * STATES_PER_FILTER];
+
+        for (int band = 0; band < bandCount; ++band) {
+            setBand(band, TYPE_PEAKING, 1000, 0, 0.707);
+        }
+    }
+
+    /**
+     * Sets the format of the stream, recomputing the coefficients if it changed
+     *
+     * @param sampleRate The sample rate of the stream
+     * @param channels The number of channels of the stream
+     */
+    public synchronized void setFormat(int sampleRate, int channels) {
+        if (sampleRate <= 0 || channels <= 0
+                || (sampleRate == mSampleRate && channels == mChannels)) {
+            return;
+        }
+
+        mSampleRate = sampleRate;
+        if (channels != mChannels) {
+            mChannels = channels;
+            mStates = new double[mBandCount * channels * STATES_PER_FILTER];
+        } else {
+            reset();
+        }
+
+        for (int band = 0; band < mBandCount; ++band) {
+            computeCoefficients(band);
+        }
+    }
+
+    /**
+     * Sets the parameters of a band
+     *
+     * @param band The index of the band
+     * @param type One of the TYPE_ constants
+     * @param frequency The center or cutoff frequency, in Hz
+     * @param gainDb The gain, in dB, for the peaking and shelf types
+     * @param q The quality factor, or the slope for the shelf types
+     */
+    public synchronized void setBand(int band, int type, double frequency, double gainDb,
+                                     double q) {
+        mTypes[band] = type;
+        mFrequencies[band] = frequency;
+        mGains[band] = gainDb;
+        mQualities[band] = q;
+        computeCoefficients(band);
+    }
+
+    /**
+     * Clears the history of the filters, for instance when the stream is interrupted
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < mStates.length; ++i) {
+            mStates[i] = 0;
+        }
+    }
+
+    /**
+     * Equalizes audio in place
+     *
+     * @param pcm The audio, as interleaved 16-bit little endian samples in the current format
+     * @param len The number of bytes of audio
+     */
+    public synchronized void process(byte[] pcm, int len) {
+        final int samples = len / 2;
+        if (mBlock.length < samples) {
+            mBlock = new double[samples];
+        }
+
+        final double[] block = mBlock;
+        for (int i = 0; i < samples; ++i) {
+            block[i] = (short) ((pcm[i * 2] & 0xFF) | (pcm[i * 2 + 1] << 8));
+        }
+
+        final int channels = mChannels;
+        for (int band = 0; band < mBandCount; ++band) {
+            final int c = band * COEFFICIENTS_PER_BAND;
+            final double b0 = mCoefficients[c];
+            final double b1 = mCoefficients[c + 1];
+            final double b2 = mCoefficients[c + 2];
+            final double a1 = mCoefficients[c + 3];
+            final double a2 = mCoefficients[c + 4];
+
+            if (channels == 2) {
+                // Both channels in the same loop, so that their filters run in parallel
+                final int s = band * 2 * STATES_PER_FILTER;
+                double l1 = mStates[s];
+                double l2 = mStates[s + 1];
+                double r1 = mStates[s + STATES_PER_FILTER];
+                double r2 = mStates[s + STATES_PER_FILTER + 1];
+
+                for (int i = 0; i < samples - 1; i += 2) {
+                    final double xl = block[i];
+                    final double xr = block[i + 1];
+                    final double yl = b0 * xl + l1;
+                    final double yr = b0 * xr + r1;
+                    l1 = b1 * xl - a1 * yl + l2;
+                    r1 = b1 * xr - a1 * yr + r2;
+                    l2 = b2 * xl - a2 * yl;
+                    r2 = b2 * xr - a2 * yr;
+                    block[i] = yl;
+                    block[i + 1] = yr;
+                }
+
+                mStates[s] = l1;
+                mStates[s + 1] = l2;
+                mStates[s + STATES_PER_FILTER] = r1;
+                mStates[s + STATES_PER_FILTER + 1] = r2;
+                continue;
+            }
+
+            for (int channel = 0; channel < channels; ++channel) {
+                final int s = (band * channels + channel) * STATES_PER_FILTER;
+                double z1 = mStates[s];
+                double z2 = mStates[s + 1];
+
+                // Transposed direct form II
+                for (int i = channel; i < samples; i += channels) {
+                    final double x = block[i];
+                    final double y = b0 * x + z1;
+                    z1 = b1 * x - a1 * y + z2;
+                    z2 = b2 * x - a2 * y;
+                    block[i] = y;
+                }
+
+                mStates[s] = z1;
+                mStates[s + 1] = z2;
+            }
+        }
+
+        for (int i = 0; i < samples; ++i) {
+            double y = block[i];
+            if (y > Short.MAX_VALUE) {
+                y = Short.MAX_VALUE;
+            } else if (y < Short.MIN_VALUE) {
+                y = Short.MIN_VALUE;
+            }
+            final int sample = (int) y;
+            pcm[i * 2] = (byte) sample;
+            pcm[i * 2 + 1] = (byte) (sample >> 8);
+        }
+    }
+
+    /**
+     * Computes the coefficients of a band for the current sample rate, from the formulas of the
+     * Audio EQ Cookbook by Robert Bristow-Johnson
+     */
+    private void computeCoefficients(int band) {
+        final double frequency = Math.min(mFrequencies[band], mSampleRate * MAX_FREQUENCY_RATIO);
+        final double w0 = 2.0 * Math.PI * frequency / mSampleRate;
+        final double cos = Math.cos(w0);
+        final double sin = Math.sin(w0);
+        final double A = Math.pow(10.0, mGains[band] / 40.0);
+        final double q = mQualities[band];
+
+        final double b0, b1, b2, a0, a1, a2;
+        switch (mTypes[band]) {
+            case TYPE_LOW_SHELF: {
+                final double alpha = sin / 2.0 * Math.sqrt((A + 1.0 / A) * (1.0 / q - 1.0) + 2.0);
+                final double sqrtAlpha = 2.0 * Math.sqrt(A) * alpha;
+                b0 = A * ((A + 1.0) - (A - 1.0) * cos + sqrtAlpha);
+                b1 = 2.0 * A * ((A - 1.0) - (A + 1.0) * cos);
+                b2 = A * ((A + 1.0) - (A - 1.0) * cos - sqrtAlpha);
+                a0 = (A + 1.0) + (A - 1.0) * cos + sqrtAlpha;
+                a1 = -2.0 * ((A - 1.0) + (A + 1.0) * cos);
+                a2 = (A + 1.0) + (A - 1.0) * cos - sqrtAlpha;
+                break;
+            }
+
+            case TYPE_HIGH_SHELF: {
+                final double alpha = sin / 2.0 * Math.sqrt((A + 1.0 / A) * (1.0 / q - 1.0) + 2.0);
+                final double sqrtAlpha = 2.0 * Math.sqrt(A) * alpha;
+                b0 = A * ((A + 1.0) + (A - 1.0) * cos + sqrtAlpha);
+                b1 = -2.0 * A * ((A - 1.0) + (A + 1.0) * cos);
+                b2 = A * ((A + 1.0) + (A - 1.0) * cos - sqrtAlpha);
+                a0 = (A + 1.0) - (A - 1.0) * cos + sqrtAlpha;
+                a1 = 2.0 * ((A - 1.0) - (A + 1.0) * cos);
+                a2 = (A + 1.0) - (A - 1.0) * cos - sqrtAlpha;
+                break;
+            }
+
+            case TYPE_LOW_PASS: {
+                final double alpha = sin / (2.0 * q);
+                b0 = (1.0 - cos) / 2.0;
+                b1 = 1.0 - cos;
+                b2 = (1.0 - cos) / 2.0;
+                a0 = 1.0 + alpha;
+                a1 = -2.0 * cos;
+                a2 = 1.0 - alpha;
+                break;
+            }
+
+            case TYPE_HIGH_PASS: {
+                final double alpha = sin / (2.0 * q);
+                b0 = (1.0 + cos) / 2.0;
+                b1 = -(1.0 + cos);
+                b2 = (1.0 + cos) / 2.0;
+                a0 = 1.0 + alpha;
+                a1 = -2.0 * cos;
+                a2 = 1.0 - alpha;
+                break;
+            }
+
+            case TYPE_PEAKING:
+            default: {
+                final double alpha = sin / (2.0 * q);
+                b0 = 1.0 + alpha * A;
+                b1 = -2.0 * cos;
+                b2 = 1.0 - alpha * A;
+                a0 = 1.0 + alpha / A;
+                a1 = -2.0 * cos;
+                a2 = 1.0 - alpha / A;
+                break;
+            }
+        }
+
+        final int c = band * COEFFICIENTS_PER_BAND;
+        mCoefficients[c] = b0 / a0;
+        mCoefficients[c + 1] = b1 / a0;
+        mCoefficients[c + 2] = b2 / a0;
+        mCoefficients[c + 3] = a1 / a0;
+        mCoefficients[c + 4] = a2 / a0;
+    }
+}
@@ -14,9 +14,6 @@ import com.fastbootmobile.encore.providers.IDSPProvider;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.ShortBuffer;
 
 import omnimusic.Plugin;
 
@@ -24,49 +21,41 @@ public class PluginService extends Service implements SharedPreferences.OnShared
 
     private static final String TAG = "PluginService";
 
+    // Removes the subsonic content the boost would otherwise amplify
+    private static final int BAND_SUBSONIC = 0;
+    private static final int BAND_BOOST = 1;
+    private static final int BAND_COUNT = 2;
+    private static final double SUBSONIC_FREQUENCY = 20.0;
+    private static final double BUTTERWORTH_Q = 0.707;
+    // Steepest shelf without overshoot
+    private static final double SHELF_SLOPE = 1.0;
+
+    /**
+     * Boost applied by the strongest setting, close to the low frequency gain of the former
+     * low-pass mix
+     */
+    private static final double MAX_BOOST_DB = 9.0;
+    private static final double MAX_GAIN_SETTING = 1000.0;
+
     private ProviderIdentifier mIdentifier;
     private AudioSocket mSocket;
-    private static BiQuadFilter mFilterL = new BiQuadFilter();
+    private final ParametricEqualizer mEqualizer = new ParametricEqualizer(BAND_COUNT);
 
-    short[] mSamplesBuffer = new short[16384];
     byte[] mBytesBuffer = new byte[32768];
 
     AudioClientSocket.ISocketCallback mSocketCallback = new AudioSocket.ISocketCallback() {
         @Override
         public void onAudioData(AudioSocket socket, Plugin.AudioData.Builder message) {
-            ByteBuffer inputBytes = message.getSamples().asReadOnlyByteBuffer();
-            ShortBuffer shortBuf = inputBytes.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
-
-            final int numShorts = shortBuf.limit();
-
-            if (mSamplesBuffer.length < numShorts) {
-                mSamplesBuffer = new short[numShorts];
+            final int numBytes = message.getSamples().size();
+            if (mBytesBuffer.length < numBytes) {
+                mBytesBuffer = new byte[numBytes];
             }
+            message.getSamples().copyTo(mBytesBuffer, 0);
 
-            shortBuf.get(mSamplesBuffer, 0, numShorts);
-
-
-            for (int i = 0; i < numShorts; i += 2) {
-                int inL = mSamplesBuffer[i];
-                int inR = mSamplesBuffer[i + 1];
-
-                int boost = mFilterL.process(inL + inR);
-
-                mSamplesBuffer[i] = BiQuadFilter.clamp16(inL + boost);
-                mSamplesBuffer[i + 1] = BiQuadFilter.clamp16(inR + boost);
-            }
+            mEqualizer.process(mBytesBuffer, numBytes);
 
             // push it back
             try {
-                final int numBytes = numShorts * 2;
-                if (mBytesBuffer.length < numBytes) {
-                    mBytesBuffer = new byte[numBytes];
-                }
-
-                ByteBuffer.wrap(mBytesBuffer)
-                        .order(ByteOrder.LITTLE_ENDIAN)
-                        .asShortBuffer()
-                        .put(mSamplesBuffer, 0, numShorts);
                 mSocket.writeAudioData(mBytesBuffer, 0, numBytes);
             } catch (IOException e) {
                 Log.e(TAG, "Cannot write audio data", e);
@@ -85,7 +74,7 @@ public class PluginService extends Service implements SharedPreferences.OnShared
 
         @Override
         public void onFormatInfo(AudioSocket socket, Plugin.FormatInfo.Builder message) {
-
+            mEqualizer.setFormat(message.getSamplingRate(), message.getChannels());
         }
 
         @Override
@@ -112,7 +101,10 @@ public class PluginService extends Service implements SharedPreferences.OnShared
         double dfrequency = Double.parseDouble(frequency);
         double dgain = Double.parseDouble(gain);
 
-        mFilterL.setLowPass(10, dfrequency, 44100.0, dgain / 666.0);
+        mEqualizer.setBand(BAND_SUBSONIC, ParametricEqualizer.TYPE_HIGH_PASS,
+                SUBSONIC_FREQUENCY, 0, BUTTERWORTH_Q);
+        mEqualizer.setBand(BAND_BOOST, ParametricEqualizer.TYPE_LOW_SHELF,
+                dfrequency, MAX_BOOST_DB * dgain / MAX_GAIN_SETTING, SHELF_SLOPE);
     }
 
     @Override
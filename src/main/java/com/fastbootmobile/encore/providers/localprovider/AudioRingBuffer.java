@@ -0,0 +1,156 @@
+package com.fastbootmobile.encore.providers.localprovider;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer/single-consumer ring buffer of audio bytes. The decoder thread is
+ * the producer, the audio socket writer thread is the consumer. Positions are absolute byte
+ * counts, so they never wrap and the buffer is empty when they are equal.
+ * The backing store is a plain array so that the consumer can hand readable regions to the audio
+ * socket in place, without copying them out first. Sent data is only freed once the app
+ * acknowledged it, so what the app refused can be sent again.
+ */
+class AudioRingBuffer {
+    private final byte[] mBuffer;
+    private final int mMask;
+
+    // Written by the producer only
+    private final AtomicLong mHead = new AtomicLong();
+    // Written by the consumer only: data before the tail is acknowledged, data between the tail
+    // and the send position is sent and waiting to be acknowledged
+    private final AtomicLong mTail = new AtomicLong();
+    private long mSend;
+    // Position up to which the consumer must drop data, set by the producer
+    private volatile long mDiscardPosition;
+
+    /**
+     * @param capacity The capacity of the buffer in bytes, must be a power of two
+     */
+    AudioRingBuffer(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+
+        mBuffer = new byte[capacity];
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Producer side: copies as many bytes as possible from the provided buffer, advancing its
+     * position accordingly.
+     *
+     * @param src The buffer to read from
+     * @return The number of bytes written, which is 0 if the ring buffer is full
+     */
+    int write(ByteBuffer src) {
+        final long head = mHead.get();
+        final int free = mBuffer.length - (int) (head - mTail.get());
+        final int count = Math.min(free, src.remaining());
+        if (count <= 0) {
+            return 0;
+        }
+
+        final int offset = (int) (head & mMask);
+        final int first = Math.min(count, mBuffer.length - offset);
+        src.get(mBuffer, offset, first);
+        if (count > first) {
+            src.get(mBuffer, 0, count - first);
+        }
+
+        // Publish the data to the consumer
+        mHead.lazySet(head + count);
+        return count;
+    }
+
+    /**
+     * Producer side: drops everything written so far that the consumer hasn't read yet
+     */
+    void discard() {
+        mDiscardPosition = mHead.get();
+    }
+
+    /**
+     * @return true if all the data written has been consumed or discarded
+     */
+    boolean isEmpty() {
+        return mHead.get() == Math.max(mTail.get(), mDiscardPosition);
+    }
+
+    /**
+     * Consumer side: returns the number of bytes that can be sent in one go from
+     * {@link #getSendOffset()}, which is less than the total unsent bytes when they wrap around
+     * the end of the buffer.
+     */
+    int getContiguousSendable() {
+        final long tail = applyDiscard(mTail.get());
+        if (mSend < tail) {
+            mSend = tail;
+        }
+        final int sendable = (int) (mHead.get() - mSend);
+        return Math.min(sendable, mBuffer.length - (int) (mSend & mMask));
+    }
+
+    /**
+     * Consumer side: returns the offset of the first unsent byte in {@link #array()}
+     */
+    int getSendOffset() {
+        return (int) (mSend & mMask);
+    }
+
+    /**
+     * Consumer side: returns the absolute position of the first unsent byte
+     */
+    long getSendPosition() {
+        return mSend;
+    }
+
+    /**
+     * Consumer side: returns the number of bytes sent but not acknowledged yet
+     */
+    int getUnacknowledged() {
+        return (int) Math.max(0, mSend - mTail.get());
+    }
+
+    /**
+     * Consumer side: the backing array of the buffer
+     */
+    byte[] array() {
+        return mBuffer;
+    }
+
+    /**
+     * Consumer side: marks the provided number of bytes as sent. They stay in the buffer until
+     * they are acknowledged.
+     */
+    void markSent(int count) {
+        mSend += count;
+    }
+
+    /**
+     * Consumer side: sends again everything that was sent but not acknowledged
+     */
+    void rewindSend() {
+        mSend = mTail.get();
+    }
+
+    /**
+     * Consumer side: marks everything before the provided absolute position as acknowledged,
+     * freeing it for the producer. Positions that were already acknowledged or discarded are
+     * ignored.
+     */
+    void commitReadTo(long position) {
+        if (position > mTail.get()) {
+            applyDiscard(position);
+        }
+    }
+
+    private long applyDiscard(long tail) {
+        final long discard = mDiscardPosition;
+        if (discard > tail) {
+            tail = discard;
+        }
+        mTail.lazySet(tail);
+        return tail;
+    }
+}
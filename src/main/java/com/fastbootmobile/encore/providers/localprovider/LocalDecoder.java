@@ -0,0 +1,389 @@
+package com.fastbootmobile.encore.providers.localprovider;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding session of a local song: the extractor and decoder of the song, and the decoded
+ * buffers waiting to be delivered. A session can be created and primed ahead of time, so that
+ * playback can move on to the next song without waiting for its decoder to be set up.
+ * Sessions are not thread-safe, LocalProvider only uses them while holding its lock.
+ */
+class LocalDecoder {
+    private static final String TAG = "LocalDecoder";
+
+    /**
+     * Number of priming frames the encoder inserted at the beginning of the stream. Exposed by the
+     * MP3 and AAC extractors, as a plain key on older platforms.
+     */
+    private static final String KEY_ENCODER_DELAY = "encoder-delay";
+
+    /**
+     * Number of padding frames the encoder appended at the end of the stream
+     */
+    private static final String KEY_ENCODER_PADDING = "encoder-padding";
+
+    private static final long DEQUEUE_TIMEOUT_US = TimeUnit.MILLISECONDS.toMicros(30);
+
+    /**
+     * Bytes per sample of the decoded PCM data
+     */
+    private static final int BYTES_PER_SAMPLE = 2;
+
+    /**
+     * Result of {@link #step(LocalProvider.LocalCallback)}: some data was processed
+     */
+    static final int STEP_PROGRESS = 0;
+
+    /**
+     * Result of {@link #step(LocalProvider.LocalCallback)}: the data couldn't be delivered, the
+     * caller should back off a bit
+     */
+    static final int STEP_BLOCKED = 1;
+
+    /**
+     * Result of {@link #step(LocalProvider.LocalCallback)}: the whole song has been delivered
+     */
+    static final int STEP_END = 2;
+
+    private final LocalProvider.LocalSong mSong;
+    private final MediaExtractor mExtractor;
+    private final MediaCodec mDecoder;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private final ArrayDeque<OutputBuffer> mOutputQueue = new ArrayDeque<>();
+    private MediaFormat mFormat;
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    private boolean mInputEOS;
+    private boolean mOutputEOS;
+    private int mDelayFrames;
+    private final int mPaddingFrames;
+
+    /**
+     * A decoded buffer waiting to be delivered. The buffer is kept along with its index, as the
+     * decoder may replace its output buffers array while buffers are still queued.
+     */
+    private static final class OutputBuffer {
+        final int index;
+        final ByteBuffer buffer;
+
+        OutputBuffer(int index, ByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+    }
+
+    private LocalDecoder(LocalProvider.LocalSong song, MediaExtractor extractor,
+                         MediaCodec decoder, MediaFormat format) {
+        mSong = song;
+        mExtractor = extractor;
+        mDecoder = decoder;
+        mFormat = format;
+        mDelayFrames = getInteger(format, KEY_ENCODER_DELAY);
+        mPaddingFrames = getInteger(format, KEY_ENCODER_PADDING);
+        mInputBuffers = decoder.getInputBuffers();
+        mOutputBuffers = decoder.getOutputBuffers();
+    }
+
+    /**
+     * Creates and starts a decoding session for the provided song
+     *
+     * @param context A context
+     * @param song The song to decode
+     * @return The session, or null if the song can't be decoded
+     */
+    static LocalDecoder create(Context context, LocalProvider.LocalSong song) {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(context, song.getURI(), null);
+        } catch (Exception e) {
+            Log.d(TAG, "Data source error", e);
+            extractor.release();
+            return null;
+        }
+
+        // if there is a track to play, use it as format info
+        if (extractor.getTrackCount() <= 0) {
+            Log.e(TAG, "No track in the source file");
+            extractor.release();
+            return null;
+        }
+        final MediaFormat format = extractor.getTrackFormat(0);
+
+        // we setup the codec with the type we got
+        MediaCodec decoder;
+        try {
+            decoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            decoder.configure(format, null, null, 0);
+        } catch (Exception e) {
+            // SDK > 19, an IOException might be thrown
+            Log.e(TAG, "Unable to create decoder", e);
+            extractor.release();
+            return null;
+        }
+
+        Log.d(TAG, "Sample rate: " + format.getInteger(MediaFormat.KEY_SAMPLE_RATE));
+        extractor.selectTrack(0);
+
+        // we start decoding
+        decoder.start();
+        return new LocalDecoder(song, extractor, decoder, format);
+    }
+
+    /**
+     * @return The song decoded by this session
+     */
+    LocalProvider.LocalSong getSong() {
+        return mSong;
+    }
+
+    /**
+     * @return true if this session decodes the song with the provided reference
+     */
+    boolean isDecoding(String ref) {
+        return mSong.getSong() != null && mSong.getSong().getRef().equals(ref);
+    }
+
+    /**
+     * Fills all the input buffers available, so that the first decoded buffers are ready as soon
+     * as the session is used
+     */
+    void preroll() {
+        while (!mInputEOS && queueInput(0)) {
+            // Keep filling
+        }
+    }
+
+    /**
+     * Runs a decoding step: feeds the decoder, drains it, and delivers the decoded data.
+     *
+     * @param callback The callback to deliver the data to
+     * @return One of the STEP_ constants
+     */
+    int step(LocalProvider.LocalCallback callback) {
+        if (!mInputEOS) {
+            queueInput(DEQUEUE_TIMEOUT_US);
+        }
+
+        if (!deliverOutput(callback)) {
+            return STEP_BLOCKED;
+        }
+
+        // Everything queued has been delivered, except the buffer held back for padding trimming
+        if (!mOutputEOS && mOutputQueue.size() < (mPaddingFrames > 0 ? 2 : 1)) {
+            dequeueOutput();
+            if (!deliverOutput(callback)) {
+                return STEP_BLOCKED;
+            }
+        }
+
+        return mOutputEOS && mOutputQueue.isEmpty() ? STEP_END : STEP_PROGRESS;
+    }
+
+    /**
+     * Seeks to the provided position, dropping everything decoded so far
+     *
+     * @param timeMs The position in milliseconds
+     */
+    void seekTo(long timeMs) {
+        mExtractor.seekTo(timeMs * 1000, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        try {
+            mDecoder.flush();
+        } catch (IllegalStateException ignored) {
+        }
+        mOutputQueue.clear();
+        mInputEOS = false;
+        mOutputEOS = false;
+
+        // The priming frames are only at the beginning of the stream
+        if (timeMs > 0) {
+            mDelayFrames = 0;
+        }
+    }
+
+    /**
+     * Releases the extractor and the decoder
+     */
+    void release() {
+        mOutputQueue.clear();
+        try {
+            mDecoder.stop();
+        } catch (IllegalStateException ignored) {
+        }
+        mDecoder.release();
+        mExtractor.release();
+    }
+
+    /**
+     * Queues one encoded sample in the decoder, if an input buffer is available
+     *
+     * @return true if an input buffer was available
+     */
+    private boolean queueInput(long timeoutUs) {
+        int inIndex;
+        try {
+            inIndex = mDecoder.dequeueInputBuffer(timeoutUs);
+        } catch (IllegalStateException e) {
+            return false;
+        }
+
+        if (inIndex < 0) {
+            return false;
+        }
+
+        ByteBuffer buffer = mInputBuffers[inIndex];
+
+        // we retrieve the current encoded sample size
+        int sampleSize;
+        try {
+            sampleSize = mExtractor.readSampleData(buffer, 0);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Got illegal argument while reading sample data from buffer", e);
+            sampleSize = 0;
+        }
+
+        if (sampleSize < 0) {
+            // we are at the end of the file: flag it so that the decoder drains its output
+            mDecoder.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            mInputEOS = true;
+            return true;
+        }
+
+        final long sampleTime = mExtractor.getSampleTime();
+        boolean advanced;
+        try {
+            advanced = mExtractor.advance();
+        } catch (Exception e) {
+            // If we can't advance, assume song is EOS
+            advanced = false;
+        }
+
+        if (advanced) {
+            mDecoder.queueInputBuffer(inIndex, 0, sampleSize, sampleTime, 0);
+        } else {
+            mDecoder.queueInputBuffer(inIndex, 0, sampleSize, sampleTime,
+                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            mInputEOS = true;
+        }
+        return true;
+    }
+
+    /**
+     * Dequeues one decoded buffer, if any, trimming the encoder delay and padding from it
+     */
+    private void dequeueOutput() {
+        int outIndex;
+        try {
+            outIndex = mDecoder.dequeueOutputBuffer(mInfo, DEQUEUE_TIMEOUT_US);
+        } catch (IllegalStateException e) {
+            return;
+        }
+
+        if (outIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+            // Only affects the buffers dequeued from now on, the queued ones keep their buffer
+            mOutputBuffers = mDecoder.getOutputBuffers();
+        } else if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            mFormat = mDecoder.getOutputFormat();
+        } else if (outIndex >= 0) {
+            ByteBuffer out = mOutputBuffers[outIndex];
+            out.position(mInfo.offset);
+            out.limit(mInfo.offset + mInfo.size);
+
+            // Drop the priming frames
+            if (mDelayFrames > 0 && out.hasRemaining()) {
+                final int frameSize = getFrameSize();
+                final int skip = Math.min(out.remaining() / frameSize, mDelayFrames);
+                out.position(out.position() + skip * frameSize);
+                mDelayFrames -= skip;
+            }
+
+            if (out.hasRemaining()) {
+                mOutputQueue.add(new OutputBuffer(outIndex, out));
+            } else {
+                releaseOutputBuffer(outIndex);
+            }
+
+            if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mOutputEOS = true;
+                trimPadding();
+            }
+        }
+    }
+
+    /**
+     * Drops the padding frames from the last decoded buffer. Padding longer than that buffer is
+     * only partially trimmed.
+     */
+    private void trimPadding() {
+        if (mPaddingFrames <= 0 || mOutputQueue.isEmpty()) {
+            return;
+        }
+
+        final OutputBuffer last = mOutputQueue.peekLast();
+        ByteBuffer out = last.buffer;
+        final int trim = Math.min(out.remaining(), mPaddingFrames * getFrameSize());
+        out.limit(out.limit() - trim);
+
+        if (!out.hasRemaining()) {
+            mOutputQueue.pollLast();
+            releaseOutputBuffer(last.index);
+        }
+    }
+
+    /**
+     * Delivers the queued buffers. Until the end of the stream is reached, the last buffer is held
+     * back when there are padding frames to trim, as we only know which buffer is the last one
+     * once the decoder flags the end of the stream.
+     *
+     * @return false if the callback didn't take all the data it was given
+     */
+    private boolean deliverOutput(LocalProvider.LocalCallback callback) {
+        while (!mOutputQueue.isEmpty()) {
+            if (mPaddingFrames > 0 && !mOutputEOS && mOutputQueue.size() == 1) {
+                // Wait for the next buffer, or the end of the stream
+                return true;
+            }
+
+            final OutputBuffer first = mOutputQueue.peekFirst();
+            ByteBuffer out = first.buffer;
+            callback.musicDelivery(out, mFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                    mFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE));
+
+            if (out.hasRemaining()) {
+                return false;
+            }
+
+            mOutputQueue.pollFirst();
+            releaseOutputBuffer(first.index);
+        }
+
+        return true;
+    }
+
+    private void releaseOutputBuffer(int index) {
+        try {
+            // We don't need this buffer anymore
+            mDecoder.releaseOutputBuffer(index, false);
+        } catch (IllegalStateException ignored) {
+        }
+    }
+
+    private int getFrameSize() {
+        return mFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT) * BYTES_PER_SAMPLE;
+    }
+
+    private static int getInteger(MediaFormat format, String key) {
+        try {
+            return format.containsKey(key) ? format.getInteger(key) : 0;
+        } catch (ClassCastException e) {
+            return 0;
+        }
+    }
+}
@@ -8,11 +8,9 @@ import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.media.MediaCodec;
-import android.media.MediaExtractor;
-import android.media.MediaFormat;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.RemoteException;
 import android.provider.MediaStore;
 import android.util.Log;
@@ -31,11 +29,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class LocalProvider {
@@ -46,42 +50,115 @@ public class LocalProvider {
     private static final String PREFIX_ARTIST = "local:artist:";
     private static final String PREFIX_PLAYLIST = "local:playlist:";
 
+    /**
+     * Delay during which change notifications are coalesced before syncing
+     */
+    private static final long SYNC_DELAY = 500;
+
+    /**
+     * Maximum number of entities per delta callback
+     */
+    private static final int DELTA_BATCH_SIZE = 200;
+
+    /**
+     * Dirty id meaning that all the rows are dirty
+     */
+    private static final long ID_ALL = -1;
+
+    /**
+     * Time to wait when the decoded audio couldn't be delivered because the upstream buffers are
+     * full
+     */
+    private static final long BLOCKED_DELAY_MS = 5;
+
+    private static final String[] SONG_PROJECTION = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.DATE_MODIFIED,
+            MediaStore.Audio.Media.ARTIST_KEY,
+            MediaStore.Audio.Media.ALBUM_KEY,
+            MediaStore.Audio.Media.TITLE_KEY,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.ALBUM_ID,
+            MediaStore.Audio.Media.DURATION,
+            MediaStore.Audio.Media.YEAR
+    };
+
+    private static final String[] ALBUM_PROJECTION = {
+            MediaStore.Audio.Albums._ID,
+            MediaStore.Audio.AlbumColumns.ALBUM,
+            MediaStore.Audio.AlbumColumns.ARTIST,
+            MediaStore.Audio.AlbumColumns.ALBUM_KEY,
+            MediaStore.Audio.AlbumColumns.LAST_YEAR
+    };
+
+    private static final String[] ARTIST_PROJECTION = {
+            MediaStore.Audio.Artists._ID,
+            MediaStore.Audio.ArtistColumns.ARTIST,
+            MediaStore.Audio.ArtistColumns.ARTIST_KEY,
+            MediaStore.Audio.ArtistColumns.NUMBER_OF_ALBUMS,
+            MediaStore.Audio.ArtistColumns.NUMBER_OF_TRACKS
+    };
+
+    private static final String[] PLAYLIST_PROJECTION = {
+            MediaStore.Audio.Playlists._ID,
+            MediaStore.Audio.Playlists.NAME,
+            MediaStore.Audio.Playlists.DATE_MODIFIED
+    };
+
+    private static final String[] GENRE_PROJECTION = {
+            MediaStore.Audio.Genres._ID,
+            MediaStore.Audio.Genres.NAME
+    };
+
     private Uri mUri;
-    private HashMap<String, LocalSong> mSongs;
+    private Map<String, LocalSong> mSongs;
     private ContentResolver mContentResolver;
-    private HashMap<String, Playlist> mPlaylists;
+    private Map<String, Playlist> mPlaylists;
     private LocalSong mCurrentSong;
-    private MediaCodec mDecoder;
-    private MediaExtractor mExtractor;
-    private boolean mChangeMusic;
-    private MediaCodec.BufferInfo mInfo;
-    private ByteBuffer[] mOutputBuffers;
-    private ByteBuffer[] mInputBuffers;
+    private LocalDecoder mDecoder;
+    private LocalDecoder mNextDecoder;
+    private boolean mAwaitingNext;
     private Context mContext;
-    private MediaFormat mFormat;
     private LocalCallback mCallback;
 
-    private HashMap<String, Artist> mArtists;
-    private HashMap<String, Album> mAlbums;
-    private HashMap<String, Genre> mGenres;
-    private HashMap<String, Long> mAlbumsId;
+    private Map<String, Artist> mArtists;
+    private Map<String, Album> mAlbums;
+    private Map<String, Genre> mGenres;
+    private Map<String, Long> mAlbumsId;
     private Handler mHandler = new Handler();
+    private Handler mSyncHandler;
+
+    // Immutable snapshots of the songs ordered by id, for paging
+    private final Object mSongTableLock = new Object();
+    private Song[] mSongTable = new Song[0];
+    private Song[] mPagingSongTable;
+
+    // State of the MediaStore rows we know of, keyed by row id. Only touched while holding
+    // mSyncLock.
+    private final Object mSyncLock = new Object();
+    private final Map<Long, RowState> mSongRows;
+    private final Map<Long, RowState> mAlbumRows;
+    private final Map<Long, RowState> mArtistRows;
+    private final Map<Long, RowState> mPlaylistRows;
+    private final Map<Long, RowState> mGenreRows;
+    private final Set<Long> mDirtyPlaylists;
+    private final Set<Long> mDirtyGenres;
+    private long mSongsMaxModified;
+    private long mSongsMaxId;
+    private boolean mArtistsStale;
     private boolean mSetup;
     private boolean mPaused;
-    private SearchResult mSearchResult;
+    private final LocalSearchIndex mSearchIndex = new LocalSearchIndex();
+    private Handler mSearchHandler;
+    private final AtomicInteger mSearchGeneration = new AtomicInteger();
     private boolean mIsEOS;
-    private int mPendingOutIndex = -1;
-    private int mPendingSize;
 
 
     private final ContentObserver mAlbumContentObserver = new ContentObserver(mHandler) {
         @Override
         public void onChange(boolean self) {
-            try {
-                fetchAlbums();
-            } catch (SecurityException e) {
-                Log.e(TAG, "Cannot read albums because of a security exception", e);
-            }
+            scheduleSync(mSyncAlbumsRunnable);
         }
 
         @Override
@@ -93,32 +170,105 @@ public class LocalProvider {
     private final ContentObserver mArtistContentObserver = new ContentObserver(mHandler) {
         @Override
         public void onChange(boolean self) {
+            scheduleSync(mSyncArtistsRunnable);
+        }
+
+        @Override
+        public void onChange(boolean self, Uri uri) {
+            onChange(self);
+        }
+    };
+
+    private final ContentObserver mGenreContentObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean self) {
+            onChange(self, null);
+        }
+
+        @Override
+        public void onChange(boolean self, Uri uri) {
+            markDirty(mDirtyGenres, uri, "genres");
+            scheduleSync(mSyncGenresRunnable);
+        }
+    };
+
+    private final ContentObserver mSongContentObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean self) {
+            scheduleSync(mSyncSongsRunnable);
+        }
+
+        @Override
+        public void onChange(boolean self, Uri uri) {
+            onChange(self);
+        }
+    };
+
+    private final ContentObserver mPlaylistContentObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean self) {
+            onChange(self, null);
+        }
+
+        @Override
+        public void onChange(boolean self, Uri uri) {
+            markDirty(mDirtyPlaylists, uri, "playlists");
+            scheduleSync(mSyncPlaylistsRunnable);
+        }
+    };
+
+    private final Runnable mSyncAlbumsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                fetchAlbums();
+            } catch (SecurityException e) {
+                Log.e(TAG, "Cannot read albums because of a security exception", e);
+            }
+        }
+    };
+
+    private final Runnable mSyncArtistsRunnable = new Runnable() {
+        @Override
+        public void run() {
             try {
                 fetchArtists();
             } catch (SecurityException e) {
                 Log.e(TAG, "Cannot read artists because of a security exception", e);
             }
         }
+    };
 
+    private final Runnable mSyncSongsRunnable = new Runnable() {
         @Override
-        public void onChange(boolean self, Uri uri) {
-            onChange(self);
+        public void run() {
+            try {
+                fetchSongs();
+            } catch (SecurityException e) {
+                Log.e(TAG, "Cannot read songs because of a security exception", e);
+            }
         }
     };
 
-    private final ContentObserver mGenreContentObserver = new ContentObserver(mHandler) {
+    private final Runnable mSyncPlaylistsRunnable = new Runnable() {
         @Override
-        public void onChange(boolean self) {
+        public void run() {
             try {
-                fetchGenres(null);
+                fetchPlaylists(null);
             } catch (SecurityException e) {
-                Log.e(TAG, "Cannot read genres because of a security exception", e);
+                Log.e(TAG, "Cannot read playlists because of a security exception", e);
             }
         }
+    };
 
+    private final Runnable mSyncGenresRunnable = new Runnable() {
         @Override
-        public void onChange(boolean self, Uri uri) {
-            onChange(self);
+        public void run() {
+            try {
+                fetchGenres(null);
+            } catch (SecurityException e) {
+                Log.e(TAG, "Cannot read genres because of a security exception", e);
+            }
         }
     };
 
@@ -126,16 +276,31 @@ public class LocalProvider {
         mCallback = cb;
         mContentResolver = cr;
         mUri = uri;
-        mSongs = new HashMap<>();
-        mAlbums = new HashMap<>();
-        mArtists = new HashMap<>();
-        mPlaylists = new HashMap<>();
-        mGenres = new HashMap<>();
-        mAlbumsId = new HashMap<>();
-        mChangeMusic = true;
+        mSongs = new ConcurrentHashMap<>();
+        mAlbums = new ConcurrentHashMap<>();
+        mArtists = new ConcurrentHashMap<>();
+        mPlaylists = new ConcurrentHashMap<>();
+        mGenres = new ConcurrentHashMap<>();
+        mAlbumsId = new ConcurrentHashMap<>();
+        mSongRows = new HashMap<>();
+        mAlbumRows = new HashMap<>();
+        mArtistRows = new HashMap<>();
+        mPlaylistRows = new HashMap<>();
+        mGenreRows = new HashMap<>();
+        mDirtyPlaylists = new HashSet<>();
+        mDirtyGenres = new HashSet<>();
         mContext = context;
         mAudioPushRunnable.start();
         mSetup = false;
+
+        HandlerThread syncThread = new HandlerThread("LocalProviderSync",
+                android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        syncThread.start();
+        mSyncHandler = new Handler(syncThread.getLooper());
+
+        HandlerThread searchThread = new HandlerThread("LocalProviderSearch");
+        searchThread.start();
+        mSearchHandler = new Handler(searchThread.getLooper());
     }
 
     public void notifyIdentifier(final ProviderIdentifier id) {
@@ -169,7 +334,9 @@ public class LocalProvider {
     }
 
     /**
-     * The main function to use for polling all the local content, use it in a thread so it doesn't slow down the whole application
+     * The main function to use for polling all the local content, use it in a thread so it doesn't slow down the whole application.
+     * The first poll imports the whole library, then the content observers only sync the rows
+     * that changed since.
      */
     public void poll() {
         mSetup = false;
@@ -192,113 +359,319 @@ public class LocalProvider {
         }
     }
 
-    private void fetchAlbums() {
-        final String[] proj = {"*"};
-        final Cursor cur = mContentResolver.query(MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI, proj, null, null, null);
-        if (cur != null) {
-            if (cur.moveToFirst()) {
+    /**
+     * Schedules a sync on the sync thread. The media scanner notifies the observers many times
+     * in a row while scanning, so pending syncs are pushed back until the notifications settle.
+     */
+    private void scheduleSync(Runnable sync) {
+        mSyncHandler.removeCallbacks(sync);
+        mSyncHandler.postDelayed(sync, SYNC_DELAY);
+    }
+
+    /**
+     * Marks the playlist or genre targeted by a change notification as dirty, so that its members
+     * are read again on the next sync. Notifications that don't target a specific row (or no
+     * row at all) mark all of them as dirty.
+     *
+     * @param dirty The set of dirty ids to update
+     * @param uri The URI of the change, if any
+     * @param table The name of the table segment of the URI ("playlists" or "genres")
+     */
+    private void markDirty(Set<Long> dirty, Uri uri, String table) {
+        long id = ID_ALL;
+        if (uri != null) {
+            List<String> segments = uri.getPathSegments();
+            int index = segments.indexOf(table);
+            if (index >= 0 && index + 1 < segments.size()) {
+                try {
+                    id = Long.parseLong(segments.get(index + 1));
+                } catch (NumberFormatException ignore) {
+                }
+            }
+        }
+
+        synchronized (dirty) {
+            dirty.add(id);
+        }
+    }
+
+    /**
+     * Returns the dirty ids and clears the set
+     */
+    private static Set<Long> takeDirty(Set<Long> dirty) {
+        synchronized (dirty) {
+            Set<Long> output = new HashSet<>(dirty);
+            dirty.clear();
+            return output;
+        }
+    }
+
+    /**
+     * Syncs the albums. The albums table has no modification date, so we compare a signature of
+     * the columns we use to what we had, and only update the albums that changed.
+     */
+    public void fetchAlbums() {
+        synchronized (mSyncLock) {
+            final Cursor cur = mContentResolver.query(MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI,
+                    ALBUM_PROJECTION, null, null, null);
+            if (cur == null) {
+                return;
+            }
+
+            final Set<Long> seenIds = new HashSet<>();
+            final List<Album> updated = new ArrayList<>();
+            final Set<String> newAlbums = new HashSet<>();
+
+            try {
                 final int albumName = cur.getColumnIndex(MediaStore.Audio.AlbumColumns.ALBUM);
                 final int artistName = cur.getColumnIndex(MediaStore.Audio.AlbumColumns.ARTIST);
                 final int albumKey = cur.getColumnIndex(MediaStore.Audio.AlbumColumns.ALBUM_KEY);
                 final int yearKey = cur.getColumnIndex(MediaStore.Audio.AlbumColumns.LAST_YEAR);
                 final int idKey = cur.getColumnIndex(MediaStore.Audio.Albums._ID);
 
-                do {
-                    Album album = new Album(PREFIX_ALBUM + getAlbumUniqueName(cur.getString(albumKey), cur.getString(artistName)));
+                while (cur.moveToNext()) {
+                    final long id = cur.getLong(idKey);
+                    final String ref = PREFIX_ALBUM + getAlbumUniqueName(cur.getString(albumKey), cur.getString(artistName));
+                    final long signature = getSignature(cur, albumName, artistName, albumKey, yearKey);
+                    seenIds.add(id);
+
+                    RowState previous = mAlbumRows.get(id);
+                    if (previous != null && previous.ref.equals(ref) && previous.signature == signature) {
+                        continue;
+                    } else if (previous != null && !previous.ref.equals(ref)) {
+                        mAlbums.remove(previous.ref);
+                        mAlbumsId.remove(previous.ref);
+                        mSearchIndex.remove(previous.ref);
+                    }
+
+                    Album album = mAlbums.get(ref);
+                    if (album == null) {
+                        album = new Album(ref);
+                        album.setIsLoaded(true);
+                        album.setSourceLogo(PluginService.LOGO_REF);
+                        newAlbums.add(ref);
+                    }
                     album.setName(cur.getString(albumName));
-                    album.setIsLoaded(true);
-                    album.setSourceLogo(PluginService.LOGO_REF);
                     album.setYear(cur.getInt(yearKey));
 
-                    // we get the contents of the album
-                    mAlbums.put(album.getRef(), album);
-                    mAlbumsId.put(album.getRef(), cur.getLong(idKey));
-                } while (cur.moveToNext());
+                    mAlbums.put(ref, album);
+                    mAlbumsId.put(ref, id);
+                    mSearchIndex.put(LocalSearchIndex.TYPE_ALBUM, ref, album.getName());
+                    mAlbumRows.put(id, new RowState(ref, 0, signature));
+                    updated.add(album);
+                }
+            } finally {
+                cur.close();
             }
-            cur.close();
-        }
 
-        // first we poll all the musics
-        mContentResolver.registerContentObserver(mUri, true, mSongContentObserver);
-        mContentResolver.registerContentObserver(MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI, true, mSongContentObserver);
+            // Albums that are gone from the store
+            int removed = 0;
+            Iterator<Map.Entry<Long, RowState>> it = mAlbumRows.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, RowState> entry = it.next();
+                if (!seenIds.contains(entry.getKey())) {
+                    it.remove();
+                    mAlbums.remove(entry.getValue().ref);
+                    mAlbumsId.remove(entry.getValue().ref);
+                    mSearchIndex.remove(entry.getValue().ref);
+                    ++removed;
+                }
+            }
+
+            // Songs may have been synced before their album showed up
+            if (!newAlbums.isEmpty()) {
+                for (LocalSong localSong : mSongs.values()) {
+                    Song song = localSong.getSong();
+                    if (newAlbums.contains(song.getAlbum())) {
+                        addSongToAlbum(mAlbums.get(song.getAlbum()), song.getRef());
+                    }
+                }
+            }
+
+            if (!updated.isEmpty() || removed > 0) {
+                // The albums of the artists may have changed as well
+                mArtistsStale = true;
+                scheduleSync(mSyncArtistsRunnable);
+                Log.d(TAG, "Albums delta: " + updated.size() + " updated, " + removed + " removed");
+            }
+
+            for (int i = 0; i < updated.size(); i += DELTA_BATCH_SIZE) {
+                mCallback.albumsUpdated(new ArrayList<>(updated.subList(i,
+                        Math.min(i + DELTA_BATCH_SIZE, updated.size()))));
+            }
+        }
     }
 
+    /**
+     * Syncs the songs. Removed songs are found by comparing the ids in the store with the ids we
+     * know, then only the rows modified (or inserted) since the last sync are read.
+     */
     public void fetchSongs() {
-        // First we poll all the songs
-        final Cursor cur = mContentResolver.query(mUri, null,
-                MediaStore.Audio.Media.IS_MUSIC + " = 1", null, null);
+        synchronized (mSyncLock) {
+            final List<Song> updated = new ArrayList<>();
+            final List<Song> removed = new ArrayList<>();
+            final Map<String, Album> touchedAlbums = new HashMap<>();
+
+            // Removed rows: we only need the ids for that
+            if (!mSongRows.isEmpty()) {
+                final Set<Long> ids = queryIds(mUri, MediaStore.Audio.Media._ID,
+                        MediaStore.Audio.Media.IS_MUSIC + " = 1");
+                if (ids != null) {
+                    Iterator<Map.Entry<Long, RowState>> it = mSongRows.entrySet().iterator();
+                    while (it.hasNext()) {
+                        Map.Entry<Long, RowState> entry = it.next();
+                        if (!ids.contains(entry.getKey())) {
+                            it.remove();
+                            Song song = removeSong(entry.getValue().ref, entry.getKey());
+                            if (song != null) {
+                                removed.add(song);
+                            }
+                        }
+                    }
+                }
+            }
 
-        if (cur != null) {
-            if (cur.moveToFirst()) {
-                // Fetch all the columns we are interested in
-                int artistKey = cur.getColumnIndex(MediaStore.Audio.Media.ARTIST_KEY);
-                int albumKey = cur.getColumnIndex(MediaStore.Audio.Media.ALBUM_KEY);
-                int titleKey = cur.getColumnIndex(MediaStore.Audio.Media.TITLE_KEY);
-                int artistColumn = cur.getColumnIndex(MediaStore.Audio.Media.ARTIST);
-                int titleColumn = cur.getColumnIndex(MediaStore.Audio.Media.TITLE);
-                int albumIdColumn = cur.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
-                int durationColumn = cur.getColumnIndex(MediaStore.Audio.Media.DURATION);
-                int idColumn = cur.getColumnIndex(MediaStore.Audio.Media._ID);
-                int yearColumn = cur.getColumnIndex(MediaStore.Audio.Media.YEAR);
+            // Added and changed rows
+            final Cursor cur = mContentResolver.query(mUri, SONG_PROJECTION,
+                    MediaStore.Audio.Media.IS_MUSIC + " = 1 AND ("
+                            + MediaStore.Audio.Media.DATE_MODIFIED + " >= ? OR "
+                            + MediaStore.Audio.Media._ID + " > ?)",
+                    new String[]{Long.toString(mSongsMaxModified), Long.toString(mSongsMaxId)},
+                    null);
 
-                do {
-                    // We create the unique ID the song have
-                    final String uniquename = getSongUniqueName(cur.getString(artistKey), cur.getString(albumKey), cur.getString(titleKey));
+            if (cur != null) {
+                try {
+                    // Fetch all the columns we are interested in
+                    int artistKey = cur.getColumnIndex(MediaStore.Audio.Media.ARTIST_KEY);
+                    int albumKey = cur.getColumnIndex(MediaStore.Audio.Media.ALBUM_KEY);
+                    int titleKey = cur.getColumnIndex(MediaStore.Audio.Media.TITLE_KEY);
+                    int artistColumn = cur.getColumnIndex(MediaStore.Audio.Media.ARTIST);
+                    int titleColumn = cur.getColumnIndex(MediaStore.Audio.Media.TITLE);
+                    int albumIdColumn = cur.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
+                    int durationColumn = cur.getColumnIndex(MediaStore.Audio.Media.DURATION);
+                    int idColumn = cur.getColumnIndex(MediaStore.Audio.Media._ID);
+                    int yearColumn = cur.getColumnIndex(MediaStore.Audio.Media.YEAR);
+                    int modifiedColumn = cur.getColumnIndex(MediaStore.Audio.Media.DATE_MODIFIED);
+
+                    while (cur.moveToNext()) {
+                        final long id = cur.getLong(idColumn);
+                        final long modified = cur.getLong(modifiedColumn);
+                        mSongsMaxId = Math.max(mSongsMaxId, id);
+                        mSongsMaxModified = Math.max(mSongsMaxModified, modified);
+
+                        RowState previous = mSongRows.get(id);
+                        if (previous != null && previous.generation == modified) {
+                            // We already have this version of the row
+                            continue;
+                        }
 
-                    Song s = new Song(PREFIX_SONG + uniquename);
-                    s.setAvailable(true);
-                    s.setTitle(cur.getString(titleColumn));
+                        // We create the unique ID the song have
+                        final String uniquename = getSongUniqueName(cur.getString(artistKey), cur.getString(albumKey), cur.getString(titleKey));
 
-                    String artistSrc = cur.getString(artistKey);
-                    if (artistSrc != null) {
-                        s.setArtist(PREFIX_ARTIST + getArtistUniqueName(artistSrc));
-                    }
-                    s.setDuration((int) cur.getLong(durationColumn));
-                    s.setAlbum(PREFIX_ALBUM + getAlbumUniqueName(cur.getString(albumKey), cur.getString(artistColumn)));
+                        Song s = new Song(PREFIX_SONG + uniquename);
+                        s.setAvailable(true);
+                        s.setTitle(cur.getString(titleColumn));
 
-                    Album album = mAlbums.get(s.getAlbum());
-                    if (album != null) {
-                        album.addSong(s.getRef());
-                    }
+                        String artistSrc = cur.getString(artistKey);
+                        if (artistSrc != null) {
+                            s.setArtist(PREFIX_ARTIST + getArtistUniqueName(artistSrc));
+                        }
+                        s.setDuration((int) cur.getLong(durationColumn));
+                        s.setAlbum(PREFIX_ALBUM + getAlbumUniqueName(cur.getString(albumKey), cur.getString(artistColumn)));
+                        s.setYear(cur.getInt(yearColumn));
+                        s.setIsLoaded(true); // Local songs are always fully loaded
+                        s.setOfflineStatus(BoundEntity.OFFLINE_STATUS_READY); // Local songs are always offline
+                        s.setSourceLogo(PluginService.LOGO_REF);
+
+                        if (previous != null && !previous.ref.equals(s.getRef())) {
+                            // The tags changed, so did the reference
+                            Song old = removeSong(previous.ref, id);
+                            if (old != null) {
+                                removed.add(old);
+                            }
+                        }
 
-                    s.setYear(cur.getInt(yearColumn));
-                    s.setIsLoaded(true); // Local songs are always fully loaded
-                    s.setOfflineStatus(BoundEntity.OFFLINE_STATUS_READY); // Local songs are always offline
-                    s.setSourceLogo(PluginService.LOGO_REF);
+                        Album album = mAlbums.get(s.getAlbum());
+                        if (album != null && addSongToAlbum(album, s.getRef())) {
+                            touchedAlbums.put(album.getRef(), album);
+                        }
+
+                        //we keep LocalSongs so we still have the id informations
+                        mSongs.put(s.getRef(), new LocalSong(s, id, cur.getLong(albumIdColumn)));
+                        mSearchIndex.put(LocalSearchIndex.TYPE_SONG, s.getRef(), s.getTitle());
+                        mSongRows.put(id, new RowState(s.getRef(), modified, 0));
+                        updated.add(s);
+                    }
+                } finally {
+                    cur.close();
+                }
+            }
 
-                    //we keep LocalSongs so we still have the id informations
-                    final Long id = cur.getLong(idColumn);
-                    final Long albumId = cur.getLong(albumIdColumn);
+            if (!updated.isEmpty() || !removed.isEmpty()) {
+                updateSongTable();
+                Log.d(TAG, "Songs delta: " + updated.size() + " updated, " + removed.size() + " removed");
+            }
 
-                    mSongs.put(s.getRef(), new LocalSong(s, id, albumId));
-                    mCallback.songUpdated(s);
-                } while (cur.moveToNext());
+            for (int i = 0; i < removed.size(); i += DELTA_BATCH_SIZE) {
+                mCallback.songsRemoved(new ArrayList<>(removed.subList(i,
+                        Math.min(i + DELTA_BATCH_SIZE, removed.size()))));
+            }
+            for (int i = 0; i < updated.size(); i += DELTA_BATCH_SIZE) {
+                mCallback.songsUpdated(new ArrayList<>(updated.subList(i,
+                        Math.min(i + DELTA_BATCH_SIZE, updated.size()))));
             }
-            cur.close();
-        }
 
-        for (Album album : mAlbums.values()) {
-            mCallback.albumUpdated(album);
+            final List<Album> albums = new ArrayList<>(touchedAlbums.values());
+            for (int i = 0; i < albums.size(); i += DELTA_BATCH_SIZE) {
+                mCallback.albumsUpdated(new ArrayList<>(albums.subList(i,
+                        Math.min(i + DELTA_BATCH_SIZE, albums.size()))));
+            }
         }
     }
 
+    /**
+     * Syncs the artists. Like the albums, artists have no modification date so we compare a
+     * signature of their row. The albums of an artist are only read again if its row changed, or
+     * if the albums changed since the last sync.
+     */
     public void fetchArtists() {
-        final String[] proj = {"*"};
+        synchronized (mSyncLock) {
+            final boolean albumsChanged = mArtistsStale;
+            mArtistsStale = false;
+
+            // we poll the artists
+            final Cursor cur = mContentResolver.query(MediaStore.Audio.Artists.EXTERNAL_CONTENT_URI,
+                    ARTIST_PROJECTION, null, null, null);
+            if (cur == null) {
+                return;
+            }
 
-        // we poll the artists
-        final Cursor cur = mContentResolver.query(MediaStore.Audio.Artists.EXTERNAL_CONTENT_URI, proj, null, null, null);
-        if (cur != null) {
-            if (cur.moveToFirst()) {
+            final Set<Long> seenIds = new HashSet<>();
+            final List<Artist> updated = new ArrayList<>();
+
+            try {
                 final int artistName = cur.getColumnIndex(MediaStore.Audio.ArtistColumns.ARTIST);
                 final int artistKey = cur.getColumnIndex(MediaStore.Audio.ArtistColumns.ARTIST_KEY);
                 final int artistId = cur.getColumnIndex(MediaStore.Audio.Artists._ID);
-                do {
+                final int albumsCount = cur.getColumnIndex(MediaStore.Audio.ArtistColumns.NUMBER_OF_ALBUMS);
+                final int tracksCount = cur.getColumnIndex(MediaStore.Audio.ArtistColumns.NUMBER_OF_TRACKS);
+
+                while (cur.moveToNext()) {
+                    final long id = cur.getLong(artistId);
+                    final long rowSignature = getSignature(cur, artistName, artistKey, albumsCount, tracksCount);
+                    seenIds.add(id);
+
+                    RowState previous = mArtistRows.get(id);
+                    if (previous != null && previous.generation == rowSignature && !albumsChanged) {
+                        continue;
+                    }
+
                     String artistKeyStr = cur.getString(artistKey);
                     if (artistKeyStr == null || artistKeyStr.isEmpty()) {
                         artistKeyStr = cur.getString(artistName);
                     }
                     if (artistKeyStr == null || artistKeyStr.isEmpty()) {
-                        artistKeyStr = String.valueOf(cur.getLong(artistId));
+                        artistKeyStr = String.valueOf(id);
                     }
 
                     Artist artist = new Artist(PREFIX_ARTIST + getArtistUniqueName(artistKeyStr));
@@ -306,91 +679,326 @@ public class LocalProvider {
                     artist.setIsLoaded(true);
 
                     // we get the albums from this artist
-                    artist = getAlbumsArtists(artist, MediaStore.Audio.Artists.Albums.getContentUri("external", cur.getLong(artistId)));
-                    if (artist != null) {
-                        artist.setSourceLogo(PluginService.LOGO_REF);
-                        mArtists.put(artist.getRef(), artist);
-                        mCallback.artistUpdated(artist);
+                    artist = getAlbumsArtists(artist, MediaStore.Audio.Artists.Albums.getContentUri("external", id));
+                    if (artist == null) {
+                        continue;
                     }
-                } while (cur.moveToNext());
+                    artist.setSourceLogo(PluginService.LOGO_REF);
+
+                    // The row changing doesn't mean the artist did (e.g. a track was added)
+                    final long signature = getSignature(artist);
+                    if (previous != null && previous.ref.equals(artist.getRef())
+                            && previous.signature == signature) {
+                        mArtistRows.put(id, new RowState(previous.ref, rowSignature, signature));
+                        continue;
+                    } else if (previous != null && !previous.ref.equals(artist.getRef())) {
+                        mArtists.remove(previous.ref);
+                        mSearchIndex.remove(previous.ref);
+                    }
+
+                    mArtists.put(artist.getRef(), artist);
+                    mSearchIndex.put(LocalSearchIndex.TYPE_ARTIST, artist.getRef(), artist.getName());
+                    mArtistRows.put(id, new RowState(artist.getRef(), rowSignature, signature));
+                    updated.add(artist);
+                }
+            } finally {
+                cur.close();
             }
 
-            cur.close();
+            // Artists that are gone from the store
+            int removed = 0;
+            Iterator<Map.Entry<Long, RowState>> it = mArtistRows.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, RowState> entry = it.next();
+                if (!seenIds.contains(entry.getKey())) {
+                    it.remove();
+                    mArtists.remove(entry.getValue().ref);
+                    mSearchIndex.remove(entry.getValue().ref);
+                    ++removed;
+                }
+            }
+
+            if (!updated.isEmpty() || removed > 0) {
+                Log.d(TAG, "Artists delta: " + updated.size() + " updated, " + removed + " removed");
+            }
+
+            for (int i = 0; i < updated.size(); i += DELTA_BATCH_SIZE) {
+                mCallback.artistsUpdated(new ArrayList<>(updated.subList(i,
+                        Math.min(i + DELTA_BATCH_SIZE, updated.size()))));
+            }
         }
     }
 
+    /**
+     * Syncs the playlists. The members of a playlist are only read again if the playlist is new,
+     * if its modification date changed, or if a change notification targeted it.
+     *
+     * @param idPlaylist The id of the only playlist to sync, or null to sync all of them
+     */
     public void fetchPlaylists(String idPlaylist) {
-        Uri uri;
-
-        uri = MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI;
-        String request = null;
-        if (idPlaylist != null) {
-            request = MediaStore.Audio.Playlists._ID + " = " + idPlaylist;
-        }
-        Cursor cur;
-        String[] proj = {"*"};
-
-        // We now poll the playlists
-        cur = mContentResolver.query(uri, proj,
-                request, null, null);
-
-        if (cur != null && cur.moveToFirst()) {
-            final int idKey = cur.getColumnIndex(MediaStore.Audio.Playlists._ID);
-            final int nameKey = cur.getColumnIndex(MediaStore.Audio.Playlists.NAME);
-
-            do {
-                Long id = cur.getLong(idKey);
-                String name = cur.getString(nameKey);
-                Playlist play = new Playlist(PREFIX_PLAYLIST + getPlaylistUniqueName(Long.toString(id)));
-                play.setName(name);
-                play.setIsLoaded(true);
-
-                // we get the content of the playlist
-                play = getPlaylist(MediaStore.Audio.Playlists.Members.getContentUri("external", id), play);
-                if (play != null) {
+        synchronized (mSyncLock) {
+            final Set<Long> dirty = takeDirty(mDirtyPlaylists);
+            final boolean allDirty = dirty.contains(ID_ALL);
+
+            String request = null;
+            if (idPlaylist != null) {
+                request = MediaStore.Audio.Playlists._ID + " = " + idPlaylist;
+            }
+
+            // We now poll the playlists
+            final Cursor cur = mContentResolver.query(MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI,
+                    PLAYLIST_PROJECTION, request, null, null);
+            if (cur == null) {
+                return;
+            }
+
+            final Set<Long> seenIds = new HashSet<>();
+            final List<Playlist> updated = new ArrayList<>();
+
+            try {
+                final int idKey = cur.getColumnIndex(MediaStore.Audio.Playlists._ID);
+                final int nameKey = cur.getColumnIndex(MediaStore.Audio.Playlists.NAME);
+                final int modifiedKey = cur.getColumnIndex(MediaStore.Audio.Playlists.DATE_MODIFIED);
+
+                while (cur.moveToNext()) {
+                    final long id = cur.getLong(idKey);
+                    final long modified = cur.getLong(modifiedKey);
+                    seenIds.add(id);
+
+                    RowState previous = mPlaylistRows.get(id);
+                    if (previous != null && previous.generation == modified
+                            && !allDirty && !dirty.contains(id) && idPlaylist == null) {
+                        continue;
+                    }
+
+                    String name = cur.getString(nameKey);
+                    Playlist play = new Playlist(PREFIX_PLAYLIST + getPlaylistUniqueName(Long.toString(id)));
+                    play.setName(name);
+                    play.setIsLoaded(true);
+
+                    // we get the content of the playlist
+                    play = getPlaylist(MediaStore.Audio.Playlists.Members.getContentUri("external", id), play);
+                    if (play == null) {
+                        continue;
+                    }
+
+                    final long signature = getSignature(name, play.songsList());
+                    mPlaylistRows.put(id, new RowState(play.getRef(), modified, signature));
+                    if (previous != null && previous.signature == signature
+                            && mPlaylists.containsKey(play.getRef())) {
+                        continue;
+                    }
+
                     mPlaylists.put(play.getRef(), play);
+                    mSearchIndex.put(LocalSearchIndex.TYPE_PLAYLIST, play.getRef(), name);
+                    updated.add(play);
+                }
+            } finally {
+                cur.close();
+            }
 
-                    // we give to the app the new playlists when we finish polling it
-                    mCallback.playlistUpdated(play);
+            // Playlists that are gone from the store. We can only tell when we read all of them.
+            final List<String> removed = new ArrayList<>();
+            if (idPlaylist == null) {
+                Iterator<Map.Entry<Long, RowState>> it = mPlaylistRows.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Long, RowState> entry = it.next();
+                    if (!seenIds.contains(entry.getKey())) {
+                        it.remove();
+                        mSearchIndex.remove(entry.getValue().ref);
+                        if (mPlaylists.remove(entry.getValue().ref) != null) {
+                            removed.add(entry.getValue().ref);
+                        }
+                    }
                 }
-            } while (cur.moveToNext());
-        }
+            }
 
-        if (cur != null) {
-            cur.close();
+            if (!updated.isEmpty() || !removed.isEmpty()) {
+                Log.d(TAG, "Playlists delta: " + updated.size() + " updated, " + removed.size() + " removed");
+            }
+
+            // we give to the app the new playlists when we finish polling them
+            for (String ref : removed) {
+                mCallback.playlistRemoved(ref);
+            }
+            for (Playlist playlist : updated) {
+                mCallback.playlistUpdated(playlist);
+            }
         }
     }
 
+    /**
+     * Syncs the genres. Like the playlists, the members of a genre are only read again if the
+     * genre is new or if a change notification targeted it.
+     *
+     * @param uri The URI of the genres table, or null to use the default one
+     */
     public void fetchGenres(Uri uri) {
-        if (uri == null)
-            uri = MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI;
-        Cursor cur;
-        String[] proj = {"*"};
+        synchronized (mSyncLock) {
+            if (uri == null) {
+                uri = MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI;
+            }
 
-        // now we poll the genre
-        cur = mContentResolver.query(uri, proj, null, null, null);
+            final Set<Long> dirty = takeDirty(mDirtyGenres);
+            final boolean allDirty = dirty.contains(ID_ALL);
 
-        if (cur != null) {
-            if (cur.moveToFirst()) {
+            // now we poll the genre
+            final Cursor cur = mContentResolver.query(uri, GENRE_PROJECTION, null, null, null);
+            if (cur == null) {
+                return;
+            }
+
+            final Set<Long> seenIds = new HashSet<>();
+            final List<Genre> updated = new ArrayList<>();
+
+            try {
                 final int idKey = cur.getColumnIndex(MediaStore.Audio.Genres._ID);
                 final int nameKey = cur.getColumnIndex(MediaStore.Audio.Genres.NAME);
-                do {
-                    Long id = cur.getLong(idKey);
-                    String name = cur.getString(nameKey);
-                    Genre genre = new Genre("local:genre:" + MD5(name));
+
+                while (cur.moveToNext()) {
+                    final long id = cur.getLong(idKey);
+                    final String name = cur.getString(nameKey);
+                    final String ref = "local:genre:" + MD5(name);
+                    seenIds.add(id);
+
+                    RowState previous = mGenreRows.get(id);
+                    if (previous != null && previous.ref.equals(ref) && !allDirty
+                            && !dirty.contains(id)) {
+                        continue;
+                    }
+
+                    Genre genre = new Genre(ref);
                     genre.setName(name);
                     genre.setIsLoaded(true);
-                    getGenreSongs(MediaStore.Audio.Genres.Members.getContentUri("external", id), genre);
+                    final List<String> songs = getGenreSongs(MediaStore.Audio.Genres.Members.getContentUri("external", id), genre);
                     genre.setSourceLogo(PluginService.LOGO_REF);
-                    mGenres.put(genre.getRef(), genre);
-                    mCallback.genreUpdated(genre);
-                } while (cur.moveToNext());
+
+                    final long signature = getSignature(name, songs);
+                    mGenreRows.put(id, new RowState(ref, 0, signature));
+                    if (previous != null && previous.ref.equals(ref) && previous.signature == signature) {
+                        continue;
+                    } else if (previous != null && !previous.ref.equals(ref)) {
+                        mGenres.remove(previous.ref);
+                    }
+
+                    mGenres.put(ref, genre);
+                    updated.add(genre);
+                }
+            } finally {
+                cur.close();
             }
 
+            // Genres that are gone from the store
+            Iterator<Map.Entry<Long, RowState>> it = mGenreRows.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, RowState> entry = it.next();
+                if (!seenIds.contains(entry.getKey())) {
+                    it.remove();
+                    mGenres.remove(entry.getValue().ref);
+                }
+            }
+
+            for (Genre genre : updated) {
+                mCallback.genreUpdated(genre);
+            }
+        }
+    }
+
+    /**
+     * Removes a song from the library, unless the reference is now held by another row
+     *
+     * @param ref The reference of the song
+     * @param id The id of the row that was removed or changed
+     * @return The removed song, marked as unavailable, or null if nothing was removed
+     */
+    private Song removeSong(String ref, long id) {
+        LocalSong localSong = mSongs.get(ref);
+        if (localSong == null || localSong.getId() != id) {
+            return null;
+        }
+
+        mSongs.remove(ref);
+        mSearchIndex.remove(ref);
+        Song song = localSong.getSong();
+        song.setAvailable(false);
+        return song;
+    }
+
+    /**
+     * Adds a song to an album if it's not already in it
+     *
+     * @return true if the song was added
+     */
+    private static boolean addSongToAlbum(Album album, String songRef) {
+        Iterator<String> songs = album.songs();
+        while (songs.hasNext()) {
+            if (songRef.equals(songs.next())) {
+                return false;
+            }
+        }
+
+        album.addSong(songRef);
+        return true;
+    }
+
+    /**
+     * Reads the ids of all the rows matching the selection
+     *
+     * @return The set of ids, or null if the query failed
+     */
+    private Set<Long> queryIds(Uri uri, String idColumn, String selection) {
+        final Cursor cur = mContentResolver.query(uri, new String[]{idColumn}, selection, null, null);
+        if (cur == null) {
+            return null;
+        }
+
+        try {
+            final Set<Long> ids = new HashSet<>(cur.getCount());
+            while (cur.moveToNext()) {
+                ids.add(cur.getLong(0));
+            }
+            return ids;
+        } finally {
             cur.close();
         }
     }
 
+    /**
+     * @return A signature of the provided columns of the current row of the cursor
+     */
+    private static long getSignature(Cursor cur, int... columns) {
+        long signature = 17;
+        for (int column : columns) {
+            String value = cur.getString(column);
+            signature = 31 * signature + (value != null ? value.hashCode() : 0);
+        }
+        return signature;
+    }
+
+    /**
+     * @return A signature of a name and a list of song references
+     */
+    private static long getSignature(String name, List<String> songs) {
+        long signature = name != null ? name.hashCode() : 0;
+        for (String song : songs) {
+            signature = 31 * signature + (song != null ? song.hashCode() : 0);
+        }
+        return signature;
+    }
+
+    /**
+     * @return A signature of the name and albums of an artist
+     */
+    private static long getSignature(Artist artist) {
+        long signature = artist.getName() != null ? artist.getName().hashCode() : 0;
+        Iterator<String> albums = artist.albums();
+        while (albums.hasNext()) {
+            String album = albums.next();
+            signature = 31 * signature + (album != null ? album.hashCode() : 0);
+        }
+        return signature;
+    }
+
     public boolean getSongArt(String songRef, IArtCallback callback) {
         LocalSong ls = getLocalSong(songRef);
         if (ls == null) {
@@ -445,38 +1053,6 @@ public class LocalProvider {
         }
     }
 
-    ContentObserver mSongContentObserver = new ContentObserver(mHandler) {
-        @Override
-        public void onChange(boolean self) {
-            try {
-                fetchSongs();
-            } catch (SecurityException e) {
-                Log.e(TAG, "Cannot read songs because of a security exception", e);
-            }
-        }
-
-        @Override
-        public void onChange(boolean self, Uri uri) {
-            onChange(self);
-        }
-    };
-
-    ContentObserver mPlaylistContentObserver = new ContentObserver(mHandler) {
-        @Override
-        public void onChange(boolean self) {
-            onChange(self, null);
-        }
-
-        @Override
-        public void onChange(boolean self, Uri uri) {
-            try {
-                fetchPlaylists(null);
-            } catch (SecurityException e) {
-                Log.e(TAG, "Cannot read playlists because of a security exception", e);
-            }
-        }
-    };
-
     /**
      * @return if the provider finished polling the content
      */
@@ -515,7 +1091,8 @@ public class LocalProvider {
      * @return the artist with all its albums
      */
     public Artist getAlbumsArtists(Artist artist, Uri uri) {
-        Cursor albums = mContentResolver.query(uri, null, null, null, null);
+        Cursor albums = mContentResolver.query(uri,
+                new String[]{MediaStore.Audio.AlbumColumns.ALBUM_KEY}, null, null, null);
 
         if (albums != null) {
             // we only need the name of the album to generate the album local id
@@ -571,8 +1148,10 @@ public class LocalProvider {
      *
      * @param uri   the uri of the genre
      * @param genre the genre to add the songs to
+     * @return the references of the songs added to the genre
      */
-    public void getGenreSongs(Uri uri, Genre genre) {
+    public List<String> getGenreSongs(Uri uri, Genre genre) {
+        final List<String> songs = new ArrayList<>();
         String[] projection = {
                 MediaStore.Audio.Genres.Members.TITLE_KEY,
                 MediaStore.Audio.Genres.Members.ARTIST_KEY,
@@ -585,41 +1164,64 @@ public class LocalProvider {
             int albumKeyColumn = tracks.getColumnIndex(MediaStore.Audio.Genres.Members.ALBUM_KEY);
             if (tracks.moveToNext()) {
                 do {
-                    genre.addSong(PREFIX_SONG + getSongUniqueName(tracks.getString(artistKeyColumn),
+                    String ref = PREFIX_SONG + getSongUniqueName(tracks.getString(artistKeyColumn),
                             tracks.getString(albumKeyColumn),
-                            tracks.getString(titleKeyColumn)));
+                            tracks.getString(titleKeyColumn));
+                    genre.addSong(ref);
+                    songs.add(ref);
                 } while (tracks.moveToNext());
             }
             tracks.close();
         }
+        return songs;
     }
 
     /**
+     * Returns a page of the songs, ordered by MediaStore id. Pages are slices of an immutable
+     * snapshot of the songs, which is pinned when the first page (offset 0) is requested, so that
+     * paging through the library isn't affected by syncs happening in the meantime. Changes made
+     * after the snapshot was pinned are notified through the callbacks.
+     *
+     * @param offset The index of the first song
+     * @param range The maximum number of songs
      * @return returns a list of the songs
      */
     public List<Song> getSongs(int offset, int range) {
-        final ArrayList<Song> songs = new ArrayList<Song>();
-        final Collection<LocalSong> localSongs = new ArrayList<>(mSongs.values());
-
-        int index = 0;
-        for (LocalSong song : localSongs) {
-            if (index < offset) {
-                ++index;
-                continue;
-            }
-            Song s = song.getSong();
-            if (s != null) {
-                s.setSourceLogo(PluginService.LOGO_REF);
-                songs.add(s);
+        final Song[] songs;
+        synchronized (mSongTableLock) {
+            if (offset == 0 || mPagingSongTable == null) {
+                mPagingSongTable = mSongTable;
             }
+            songs = mPagingSongTable;
+        }
 
-            if (index >= offset + range) {
-                break;
+        if (offset < 0 || range <= 0 || offset >= songs.length) {
+            return new ArrayList<>();
+        }
+
+        return Arrays.asList(songs).subList(offset, Math.min(songs.length, offset + range));
+    }
+
+    /**
+     * Rebuilds the snapshot of the songs used for paging
+     */
+    private void updateSongTable() {
+        final List<LocalSong> localSongs = new ArrayList<>(mSongs.values());
+        Collections.sort(localSongs, new Comparator<LocalSong>() {
+            @Override
+            public int compare(LocalSong lhs, LocalSong rhs) {
+                return lhs.getId().compareTo(rhs.getId());
             }
+        });
 
-            ++index;
+        final Song[] songs = new Song[localSongs.size()];
+        for (int i = 0; i < songs.length; ++i) {
+            songs[i] = localSongs.get(i).getSong();
+        }
+
+        synchronized (mSongTableLock) {
+            mSongTable = songs;
         }
-        return songs;
     }
 
     /**
@@ -817,6 +1419,7 @@ public class LocalProvider {
         mContentResolver.delete(MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI, where, whereVal);
 
         mPlaylists.remove(playlistRef);
+        mSearchIndex.remove(playlistRef);
         mCallback.playlistRemoved(playlistRef);
 
         // Errors aren't supported for now
@@ -840,6 +1443,7 @@ public class LocalProvider {
 
         Playlist playlist = mPlaylists.get(playlistRef);
         playlist.setName(title);
+        mSearchIndex.put(LocalSearchIndex.TYPE_PLAYLIST, playlistRef, title);
 
         mCallback.playlistUpdated(playlist);
 
@@ -938,6 +1542,7 @@ public class LocalProvider {
             pl.setName(playlistName);
             pl.setIsLoaded(true);
             mPlaylists.put(ref, pl);
+            mSearchIndex.put(LocalSearchIndex.TYPE_PLAYLIST, ref, playlistName);
             mCallback.playlistUpdated(pl);
 
             return ref;
@@ -953,32 +1558,81 @@ public class LocalProvider {
         // Pause the current song (if any), without notifying the app
         pause(false);
 
-        mCurrentSong = null;
-        mChangeMusic = true;//we say that we change music
-        mCurrentSong = getLocalSong(ref);//we set the new song
-
         synchronized (this) {
-            // We reset the decoder for this song
-            if (mDecoder != null) {
-                mDecoder.stop();
-                mDecoder.release();
+            if (mAwaitingNext && mDecoder != null && mDecoder.isDecoding(ref)) {
+                // Gapless transition: we already moved on to this song when the previous one
+                // ended, and the end of the previous song is still queued, so we just carry on
+                mAwaitingNext = false;
+            } else {
+                // We only cut the previous song if it was still playing
+                final boolean previousEnded = mIsEOS || mAwaitingNext;
+
+                // We reset the decoder for this song, using the prefetched one if it matches
+                if (mDecoder != null) {
+                    mDecoder.release();
+                    mDecoder = null;
+                }
+                if (mNextDecoder != null && mNextDecoder.isDecoding(ref)) {
+                    mDecoder = mNextDecoder;
+                    mNextDecoder = null;
+                    mCurrentSong = mDecoder.getSong();
+                } else {
+                    mCurrentSong = getLocalSong(ref);
+                    if (mCurrentSong != null) {
+                        mDecoder = LocalDecoder.create(mContext, mCurrentSong);
+                    }
+                }
+                mAwaitingNext = false;
+
+                if (!previousEnded) {
+                    // The audio of the previous song still queued is no longer wanted
+                    mCallback.flushAudio();
+                }
             }
-            getCurrentDecoder();
-            mPendingOutIndex = -1;
-        }
 
-        mPaused = false;
-        mIsEOS = false;
+            mPaused = false;
+            mIsEOS = false;
+        }
 
         // we resume the decoder thread
         synchronized (mAudioPushRunnable) {
             mAudioPushRunnable.notify();
-            mPendingOutIndex = -1;
         }
 
-
         mCallback.songPlaying();
+    }
 
+    /**
+     * Prepares the decoding of the song likely to be played next, so that playback can move on to
+     * it without a gap when the current song ends
+     *
+     * @param ref the unique reference of the song
+     */
+    public void prefetchSong(String ref) {
+        final LocalSong song = getLocalSong(ref);
+        if (song == null) {
+            return;
+        }
+
+        synchronized (this) {
+            if (mNextDecoder != null && mNextDecoder.isDecoding(ref)) {
+                return;
+            }
+        }
+
+        // Setting up the extractor and the decoder may take a while, so we don't hold the lock
+        final LocalDecoder next = LocalDecoder.create(mContext, song);
+        if (next == null) {
+            return;
+        }
+        next.preroll();
+
+        synchronized (this) {
+            if (mNextDecoder != null) {
+                mNextDecoder.release();
+            }
+            mNextDecoder = next;
+        }
     }
 
     public void pause(boolean notify) {
@@ -996,8 +1650,6 @@ public class LocalProvider {
             if (mIsEOS && mCurrentSong != null) {
                 playSong(mCurrentSong.getSong().getRef());
             } else if (mCurrentSong != null) {
-                mDecoder.flush();
-
                 synchronized (mAudioPushRunnable) {
                     mAudioPushRunnable.notifyAll();
                 }
@@ -1006,284 +1658,133 @@ public class LocalProvider {
         }
     }
 
-    /**
-     * Sets a new decoder if the music changed
-     */
-    private void getCurrentDecoder() {
+    public void seekTo(long timeMs) {
         synchronized (this) {
-            if (mChangeMusic) {
-                mChangeMusic = false;
-                mExtractor = new MediaExtractor();
-                try {
-                    mExtractor.setDataSource(mContext, mCurrentSong.getURI(), null);
-                } catch (Exception e) {
-                    Log.d("LocalProvider", "Data source error", e);
-                    return;
-                }
-
-                // if there is a track to play, use it as format info
-                if (mExtractor.getTrackCount() > 0) {
-                    mFormat = mExtractor.getTrackFormat(0);
-                } else {
-                    Log.e(TAG, "No track in the source file");
-                    return;
-                }
-
-                // we setup the codec with the type we got
-                try {
-                    mDecoder = MediaCodec.createDecoderByType(mFormat.getString(MediaFormat.KEY_MIME));
-                } catch (Exception e) {
-                    // SDK > 19, an IOException might be thrown
-                    Log.e(TAG, "Unable to create decoder", e);
-                    return;
-                }
-                mDecoder.configure(mFormat, null, null, 0);
-
-                // get the sample rate to configure AudioTrack
-                Log.d(TAG, "Sample rate: " + mFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE));
-                mExtractor.selectTrack(0);
+            if (mDecoder != null) {
+                mDecoder.seekTo(timeMs);
+            }
 
-                // we get the buffer information to get notified of changes
-                mInfo = new MediaCodec.BufferInfo();
+            // Drop the audio decoded before the seek
+            mCallback.flushAudio();
+        }
+    }
 
-                // we start decoding
-                mDecoder.start();
-                mInputBuffers = mDecoder.getInputBuffers();
-                mOutputBuffers = mDecoder.getOutputBuffers();
-            }
+    /**
+     * Called when the current decoder delivered the whole song. If the next song has been
+     * prefetched, we move on to it right away but only resume decoding once the app asks for it,
+     * so that we don't play a song the app didn't want. Must be called with the lock held.
+     */
+    private void onDecoderEnded() {
+        mDecoder.release();
+        mDecoder = null;
+
+        if (mNextDecoder != null) {
+            mDecoder = mNextDecoder;
+            mNextDecoder = null;
+            mCurrentSong = mDecoder.getSong();
+            mAwaitingNext = true;
+        } else {
+            mIsEOS = true;
         }
+
+        mCallback.songFinished();
     }
 
-    public void seekTo(long timeMs) {
-        mExtractor.seekTo(timeMs * 1000, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+    private boolean isDecoderIdle() {
+        return mIsEOS || mAwaitingNext || mDecoder == null || mPaused;
     }
 
     private final Thread mAudioPushRunnable = new Thread() {
         public void run() {
             mIsEOS = false;
-            byte[] outArray = new byte[8192];
 
             while (!isInterrupted()) {
                 synchronized (mAudioPushRunnable) {
-                    if (mIsEOS || mCurrentSong == null || mPaused) {
+                    if (isDecoderIdle()) {
                         try {
                             mAudioPushRunnable.wait();
                         } catch (InterruptedException e) {
                             Log.e(TAG, e.getMessage());
+                            return;
                         }
+                        continue;
                     }
+                }
 
-                    synchronized (LocalProvider.this) {
-                        // if we did not finish the file
-                        if (!mIsEOS && !mPaused && mDecoder != null) {
-
-                            // Input decoding
-                            int inIndex = -2;
-                            try {
-                                // Try to dequeue an output buffer (timeout 30ms)
-                                inIndex = mDecoder.dequeueInputBuffer(TimeUnit.MILLISECONDS.toMicros(30));
-                            } catch (IllegalStateException ignored) {
-                            }
-
-                            // if we have a buffer available
-                            if (inIndex >= 0) {
-                                // we get the buffer
-                                ByteBuffer buffer = mInputBuffers[inIndex];
-
-                                // we retrieve the current encoded sample size
-                                int sampleSize;
-                                try {
-                                    sampleSize = mExtractor.readSampleData(buffer, 0);
-                                } catch (IllegalArgumentException e) {
-                                    Log.w(TAG, "Got illegal argument while reading sample data from buffer", e);
-                                    sampleSize = 0;
-                                }
-
-                                if (sampleSize < 0) {
-                                    // we are at the end of the file
-                                    mDecoder.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                                    mIsEOS = true;
-                                    mCallback.songFinished();
-                                } else if (sampleSize > 0) {
-                                    //we queue the encoded sample in the decoder
-                                    try {
-                                        mDecoder.queueInputBuffer(inIndex, 0, sampleSize, 0, 0);
-                                        mExtractor.advance();
-                                    } catch (Exception e) {
-                                        Log.d(TAG, e.toString());
-                                        continue;
-                                    }
-                                } else {
-                                    // We already error'd out when reading, so if we can't advance,
-                                    // assume song is EOS
-                                    try {
-                                        mExtractor.advance();
-                                    } catch(Exception e) {
-                                        mIsEOS = true;
-                                        mCallback.songFinished();
-                                    }
-                                }
-                            }
+                int state;
+                synchronized (LocalProvider.this) {
+                    if (isDecoderIdle()) {
+                        continue;
+                    }
 
-                            // Output processing
-                            int outIndex = -1;
-                            if (mPendingOutIndex >= 0) {
-                                // We have a pending buffer, we'll dequeue later, but for now try
-                                // to write the sample again
-                                outIndex = MediaCodec.INFO_TRY_AGAIN_LATER;
-                            } else {
-                                try {
-                                    // Try to dequeue an output buffer (timeout 30ms)
-                                    outIndex = mDecoder.dequeueOutputBuffer(mInfo, TimeUnit.MILLISECONDS.toMicros(30));
-                                } catch (IllegalStateException ignored) {
-                                }
-                            }
+                    state = mDecoder.step(mCallback);
+                    if (state == LocalDecoder.STEP_END) {
+                        onDecoderEnded();
+                    }
+                }
 
-                            switch (outIndex) {//we act according to the decoder output
-                                case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
-                                    mOutputBuffers = mDecoder.getOutputBuffers();
-                                    break;
-
-                                case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
-                                    mFormat = mDecoder.getOutputFormat();
-                                    break;
-
-                                case MediaCodec.INFO_TRY_AGAIN_LATER:
-                                    // No buffer is available. This might be due to the upstream
-                                    // app buffers being full and returning 0 on write operations.
-                                    // We ping it and retry to write what we had.
-                                    if (mPendingOutIndex >= 0) {
-                                        int written = mCallback.musicDelivery(outArray, mPendingSize,
-                                                mFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
-                                                mFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE));
-
-                                        if (written > 0 || written == -1) {
-                                            try {
-                                                // We don't need this buffer anymore
-                                                mDecoder.releaseOutputBuffer(mPendingOutIndex, true);
-                                            } catch (IllegalStateException ignored) {
-                                            }
-                                            mPendingOutIndex = -1;
-                                        }
-                                    }
-                                    break;
-
-                                default:
-                                    ByteBuffer out = mOutputBuffers[outIndex];
-                                    int size = mInfo.size;
-                                    if (size > 0) {
-                                        if (outArray.length < mInfo.offset + mInfo.size) {
-                                            outArray = new byte[mInfo.offset + mInfo.size];
-                                        }
-
-                                        out.position(mInfo.offset);
-                                        out.limit(mInfo.offset + mInfo.size);
-                                        out.get(outArray, 0, mInfo.size);
-
-                                        // We deliver the array
-                                        int written = mCallback.musicDelivery(outArray, size,
-                                                mFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
-                                                mFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE));
-
-                                        if (written > 0) {
-                                            try {
-                                                // We don't need this buffer anymore
-                                                mDecoder.releaseOutputBuffer(outIndex, true);
-                                            } catch (IllegalStateException ignored) {
-                                            }
-                                        } else {
-                                            mPendingOutIndex = outIndex;
-                                            mPendingSize = mInfo.size;
-                                        }
-                                    }
-                                    break;
-                            }
-                        }
+                if (state == LocalDecoder.STEP_BLOCKED) {
+                    // The upstream buffers are full, give them some time to drain
+                    try {
+                        Thread.sleep(BLOCKED_DELAY_MS);
+                    } catch (InterruptedException e) {
+                        return;
                     }
                 }
             }
         }
     };
 
+    /**
+     * Starts a search in the local library. Searches run one at a time on the search thread, and
+     * a new search supersedes the previous ones: pending searches are dropped, and the results of
+     * a running one are dumped if another search was started in the meantime.
+     *
+     * @param query The query
+     */
     public void startSearch(final String query) {
         Log.d(TAG, "Starting search for " + query);
 
-        final Thread searchThread = new Thread() {
+        final int generation = mSearchGeneration.incrementAndGet();
+        mSearchHandler.removeCallbacksAndMessages(null);
+        mSearchHandler.post(new Runnable() {
+            @Override
             public void run() {
-                mSearchResult = new SearchResult(query);
-
-                final List<String> songsList = new ArrayList<>();
-                final List<String> albumList = new ArrayList<>();
-                final List<String> playlistList = new ArrayList<>();
-                final List<String> artistList = new ArrayList<>();
-
-                final String queryUpper = query.toUpperCase();
-
-                for (LocalSong song : mSongs.values()) {
-                    String title = song.getSong().getTitle();
-
-                    if (title != null) {
-                        if (title.equalsIgnoreCase(query)) {
-                            songsList.add(0, song.getSong().getRef());
-                        } else if (title.toUpperCase().contains(queryUpper)) {
-                            songsList.add(song.getSong().getRef());
-                        }
-                    }
-                }
-
-                for (Album album : mAlbums.values()) {
-                    String name = album.getName();
-
-                    if (name != null) {
-                        if (name.equalsIgnoreCase(query)) {
-                            albumList.add(0, album.getRef());
-                        } else if (name.toUpperCase().contains(queryUpper)) {
-                            albumList.add(album.getRef());
-                        }
-                    }
-                }
-                for (Playlist playlist : mPlaylists.values()) {
-                    String name = playlist.getName();
-
-                    if (name != null) {
-                        if (name.equalsIgnoreCase(query)) {
-                            playlistList.add(0, playlist.getRef());
-                        } else if (name.toUpperCase().contains(queryUpper)) {
-                            playlistList.add(playlist.getRef());
-                        }
-                    }
-                }
-                for (Artist artist : mArtists.values()) {
-                    String name = artist.getName();
-
-                    if (name != null) {
-                        if (name.equalsIgnoreCase(query)) {
-                            artistList.add(0, artist.getRef());
-                        } else if (name.toUpperCase().contains(queryUpper)) {
-                            artistList.add(artist.getRef());
-                        }
-                    }
+                if (generation != mSearchGeneration.get()) {
+                    return;
                 }
 
-                if (mSearchResult.getQuery().equals(query)) {
-                    Log.d(TAG, "Sending result size: "
-                            + (songsList.size() + albumList.size() + artistList.size() + playlistList.size()));
+                final SearchResult result = mSearchIndex.search(query);
 
-                    mSearchResult.setSongsList(songsList);
-                    mSearchResult.setAlbumsList(albumList);
-                    mSearchResult.setArtistList(artistList);
-                    mSearchResult.setPlaylistList(playlistList);
+                if (generation == mSearchGeneration.get()) {
+                    Log.d(TAG, "Sending result size: " + (result.getSongsList().size()
+                            + result.getAlbumsList().size() + result.getArtistList().size()
+                            + result.getPlaylistList().size()));
 
-                    mCallback.searchFinished(mSearchResult);
+                    mCallback.searchFinished(result);
                 } else {
                     Log.d(TAG, "Query results dumped - outdated");
                 }
             }
-        };
-        searchThread.start();
+        });
     }
 
 
+    /**
+     * The state of a MediaStore row when it was last synced
+     */
+    private static class RowState {
+        final String ref;
+        final long generation;
+        final long signature;
+
+        RowState(String ref, long generation, long signature) {
+            this.ref = ref;
+            this.generation = generation;
+            this.signature = signature;
+        }
+    }
+
     /**
      * A little class to store ids and retrieve uri of a song
      */
@@ -1332,10 +1833,22 @@ public class LocalProvider {
      * Callback interface to communicate with the service
      */
     public interface LocalCallback {
-        int musicDelivery(byte[] data, int frames, int channels, int sampleRate);
+        /**
+         * Delivers decoded audio. As much data as possible is consumed from the buffer, advancing
+         * its position; what remains must be delivered again later.
+         * @return The number of bytes consumed
+         */
+        int musicDelivery(ByteBuffer data, int channels, int sampleRate);
+
+        /**
+         * Drops the audio delivered that hasn't been played yet
+         */
+        void flushAudio();
         void artistUpdated(final Artist artist);
-        void albumUpdated(final Album album);
-        void songUpdated(final Song song);
+        void artistsUpdated(final List<Artist> artists);
+        void albumsUpdated(final List<Album> albums);
+        void songsUpdated(final List<Song> songs);
+        void songsRemoved(final List<Song> songs);
         void playlistUpdated(final Playlist playlist);
         void playlistRemoved(final String playlistRef);
         void genreUpdated(final Genre genre);
@@ -0,0 +1,310 @@
+package com.fastbootmobile.encore.providers.localprovider;
+
+import com.fastbootmobile.encore.model.SearchResult;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory search index over the names of the local songs, albums, artists and playlists.
+ * Names are normalized (lower case, accents folded, punctuation stripped) and split in tokens.
+ * Tokens are kept in a sorted dictionary, so that all the tokens starting with a given prefix
+ * are a contiguous range of it. An entity matches a query if each token of the query is a
+ * prefix of one of the tokens of its name. The entities of each token are kept in a set, so that
+ * removing an entity doesn't walk through every other entity sharing its tokens.
+ */
+class LocalSearchIndex {
+    static final int TYPE_SONG = 0;
+    static final int TYPE_ALBUM = 1;
+    static final int TYPE_ARTIST = 2;
+    static final int TYPE_PLAYLIST = 3;
+    private static final int TYPE_COUNT = 4;
+
+    private static final int SCORE_EXACT = 3;
+    private static final int SCORE_PREFIX = 2;
+    private static final int SCORE_TOKENS = 1;
+
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+
+    private static final Comparator<Match> MATCH_COMPARATOR = new Comparator<Match>() {
+        @Override
+        public int compare(Match lhs, Match rhs) {
+            if (lhs.score != rhs.score) {
+                return rhs.score - lhs.score;
+            }
+
+            final int lhsLength = lhs.entry.name.length();
+            final int rhsLength = rhs.entry.name.length();
+            if (lhsLength != rhsLength) {
+                return lhsLength - rhsLength;
+            }
+
+            return lhs.entry.name.compareTo(rhs.entry.name);
+        }
+    };
+
+    private static class Entry {
+        final int type;
+        final String ref;
+        final String name;
+        final String[] tokens;
+
+        Entry(int type, String ref, String name, String[] tokens) {
+            this.type = type;
+            this.ref = ref;
+            this.name = name;
+            this.tokens = tokens;
+        }
+    }
+
+    private static class Match {
+        final Entry entry;
+        final int score;
+
+        Match(Entry entry, int score) {
+            this.entry = entry;
+            this.score = score;
+        }
+    }
+
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private final TreeMap<String, Set<Entry>> mTokens = new TreeMap<>();
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    /**
+     * Adds an entity to the index, or updates it if its name changed
+     *
+     * @param type The type of the entity (one of the TYPE_ constants)
+     * @param ref The reference of the entity
+     * @param name The name of the entity
+     */
+    void put(int type, String ref, String name) {
+        if (ref == null) {
+            return;
+        }
+
+        final String normalized = normalize(name);
+
+        mLock.writeLock().lock();
+        try {
+            Entry previous = mEntries.get(ref);
+            if (previous != null) {
+                if (previous.type == type && previous.name.equals(normalized)) {
+                    return;
+                }
+                unindex(previous);
+            }
+
+            if (normalized.isEmpty()) {
+                mEntries.remove(ref);
+                return;
+            }
+
+            Entry entry = new Entry(type, ref, normalized, tokenize(normalized));
+            mEntries.put(ref, entry);
+
+            for (String token : entry.tokens) {
+                Set<Entry> postings = mTokens.get(token);
+                if (postings == null) {
+                    postings = new HashSet<>(4);
+                    mTokens.put(token, postings);
+                }
+                postings.add(entry);
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes an entity from the index
+     *
+     * @param ref The reference of the entity
+     */
+    void remove(String ref) {
+        if (ref == null) {
+            return;
+        }
+
+        mLock.writeLock().lock();
+        try {
+            Entry entry = mEntries.remove(ref);
+            if (entry != null) {
+                unindex(entry);
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Looks up the entities matching the query. Within each type, exact matches of the whole name
+     * come first, then names starting with the query, then names only matching token-wise.
+     *
+     * @param query The query
+     * @return The search result
+     */
+    SearchResult search(String query) {
+        final String normalized = normalize(query);
+        final String[] queryTokens = tokenize(normalized);
+
+        final List<List<Match>> matches = new ArrayList<>(TYPE_COUNT);
+        for (int i = 0; i < TYPE_COUNT; ++i) {
+            matches.add(new ArrayList<Match>());
+        }
+
+        if (queryTokens.length > 0) {
+            mLock.readLock().lock();
+            try {
+                for (Entry entry : getCandidates(queryTokens)) {
+                    if (matchesAll(entry, queryTokens)) {
+                        final int score;
+                        if (entry.name.equals(normalized)) {
+                            score = SCORE_EXACT;
+                        } else if (entry.name.startsWith(normalized)) {
+                            score = SCORE_PREFIX;
+                        } else {
+                            score = SCORE_TOKENS;
+                        }
+                        matches.get(entry.type).add(new Match(entry, score));
+                    }
+                }
+            } finally {
+                mLock.readLock().unlock();
+            }
+        }
+
+        SearchResult result = new SearchResult(query);
+        result.setSongsList(toRefs(matches.get(TYPE_SONG)));
+        result.setAlbumsList(toRefs(matches.get(TYPE_ALBUM)));
+        result.setArtistList(toRefs(matches.get(TYPE_ARTIST)));
+        result.setPlaylistList(toRefs(matches.get(TYPE_PLAYLIST)));
+        return result;
+    }
+
+    /**
+     * Returns the entities having a token starting with the most selective token of the query.
+     * The longest token is assumed to be the most selective one.
+     */
+    private Set<Entry> getCandidates(String[] queryTokens) {
+        String longest = queryTokens[0];
+        for (String token : queryTokens) {
+            if (token.length() > longest.length()) {
+                longest = token;
+            }
+        }
+
+        final Set<Entry> candidates = new HashSet<>();
+        final SortedMap<String, Set<Entry>> range =
+                mTokens.subMap(longest, longest + Character.MAX_VALUE);
+        for (Set<Entry> postings : range.values()) {
+            candidates.addAll(postings);
+        }
+        return candidates;
+    }
+
+    private void unindex(Entry entry) {
+        for (String token : entry.tokens) {
+            Set<Entry> postings = mTokens.get(token);
+            if (postings != null) {
+                postings.remove(entry);
+                if (postings.isEmpty()) {
+                    mTokens.remove(token);
+                }
+            }
+        }
+    }
+
+    private static boolean matchesAll(Entry entry, String[] queryTokens) {
+        for (String queryToken : queryTokens) {
+            boolean found = false;
+            for (String token : entry.tokens) {
+                if (token.startsWith(queryToken)) {
+                    found = true;
+                    break;
+                }
+            }
+
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<String> toRefs(List<Match> matches) {
+        Collections.sort(matches, MATCH_COMPARATOR);
+
+        List<String> refs = new ArrayList<>(matches.size());
+        for (Match match : matches) {
+            refs.add(match.entry.ref);
+        }
+        return refs;
+    }
+
+    private static String[] tokenize(String normalized) {
+        if (normalized.isEmpty()) {
+            return new String[0];
+        }
+
+        // Duplicate tokens don't add anything to the postings
+        Set<String> tokens = new HashSet<>();
+        Collections.addAll(tokens, normalized.split(" "));
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    /**
+     * Normalizes a name for indexing: accents are folded, the name is lower cased, and everything
+     * that is not a letter or a digit becomes a single space.
+     *
+     * @param name The name to normalize
+     * @return The normalized name, without leading or trailing spaces
+     */
+    static String normalize(String name) {
+        if (name == null) {
+            return "";
+        }
+
+        boolean ascii = true;
+        for (int i = 0; i < name.length(); ++i) {
+            if (name.charAt(i) > 0x7f) {
+                ascii = false;
+                break;
+            }
+        }
+
+        if (!ascii) {
+            name = COMBINING_MARKS.matcher(Normalizer.normalize(name, Normalizer.Form.NFD))
+                    .replaceAll("");
+        }
+        name = name.toLowerCase(Locale.ROOT);
+
+        final StringBuilder sb = new StringBuilder(name.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < name.length(); ++i) {
+            final char c = name.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (pendingSpace && sb.length() > 0) {
+                    sb.append(' ');
+                }
+                pendingSpace = false;
+                sb.append(c);
+            } else {
+                pendingSpace = true;
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -27,8 +27,12 @@ import com.fastbootmobile.encore.providers.IProviderCallback;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import omnimusic.Plugin;
 
@@ -44,33 +48,158 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
     private AudioClientSocket mAudioSocket;
     private LocalProvider mLocalProvider;
     private int mRate;
-    private int mAudioWritten;
-    private final Object mAudioWrittenLock = new Object();
-    private byte[] mAudioBuffer;
-    private int mAudioBufferIndex = 0;
+    private int mChannels;
+    private volatile boolean mFormatPending;
+
+    // Written byte counts the app replied with, in the order of the writes. Guarded by itself.
+    private final ArrayDeque<Integer> mAudioAcks = new ArrayDeque<>();
+    // Bumped when the audio socket is connected again, as the writes in flight won't be replied
+    private volatile int mAudioSocketGeneration;
+
+    /**
+     * Size of the buffer between the decoder and the audio socket, about 370ms of 44.1kHz stereo
+     */
+    private static final int AUDIO_RING_SIZE = 64 * 1024;
+
+    /**
+     * Maximum number of bytes sent to the audio socket in a single write
+     */
+    private static final int MAX_AUDIO_WRITE_SIZE = 16 * 1024;
+
+    /**
+     * Maximum number of bytes sent to the audio socket and not acknowledged yet
+     */
+    private static final int MAX_AUDIO_UNACKNOWLEDGED = 32 * 1024;
+
+    /**
+     * Time to wait before retrying a write the app didn't accept (its buffers are full)
+     */
+    private static final long AUDIO_RETRY_DELAY_MS = 10;
+
+    /**
+     * Time after which we warn that the app doesn't acknowledge the audio writes
+     */
+    private static final long AUDIO_ACK_TIMEOUT_MS = 500;
+
+    /**
+     * A write sent to the audio socket. The app replies to the writes in order without telling
+     * which one it replies to, so the absolute position of the write in the audio stream is used
+     * as its sequence number.
+     */
+    private static final class AudioWrite {
+        final long position;
+        final int size;
+
+        AudioWrite(long position, int size) {
+            this.position = position;
+            this.size = size;
+        }
+    }
+
+    private final AudioRingBuffer mAudioRing = new AudioRingBuffer(AUDIO_RING_SIZE);
 
     private final Thread mWriteAudioThread = new Thread() {
+        // Writes sent and not replied yet, oldest first
+        private final ArrayDeque<AudioWrite> mInFlight = new ArrayDeque<>();
+        private int mGeneration;
+        private boolean mRefused;
+
         @Override
         public void run() {
             android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
             while (!isInterrupted()) {
-                synchronized (mWriteAudioThread) {
-                    try {
-                        mWriteAudioThread.wait();
-                    } catch (InterruptedException e) {
-                        continue;
+                final AudioClientSocket socket = mAudioSocket;
+                if (socket == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                try {
+                    // The format must go out before the data decoded with it. The producer sets
+                    // the flag before publishing that data, so checking it before reading the
+                    // sendable size is enough.
+                    if (mFormatPending) {
+                        mFormatPending = false;
+                        socket.writeFormatData(mChannels, mRate);
                     }
-                    try {
-                        try {
-                            mAudioSocket.writeAudioData(mAudioBuffer, 0, mAudioBufferIndex);
-                        } catch (IOException e) {
-                            e.printStackTrace();
+
+                    processAcks();
+
+                    if (!mInFlight.isEmpty() && (mRefused
+                            || mAudioRing.getUnacknowledged() >= MAX_AUDIO_UNACKNOWLEDGED)) {
+                        // Wait for the app to catch up. We never send again what is still in
+                        // flight, as a late reply would make the app play it twice.
+                        final long waitStart = SystemClock.elapsedRealtime();
+                        LockSupport.parkNanos(this,
+                                TimeUnit.MILLISECONDS.toNanos(AUDIO_ACK_TIMEOUT_MS));
+                        if (SystemClock.elapsedRealtime() - waitStart >= AUDIO_ACK_TIMEOUT_MS) {
+                            Log.w(TAG, "No reply from the app for " + mInFlight.size()
+                                    + " audio writes");
                         }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error while writing audio data", e);
-                        mAudioSocket = null;
-                        mLocalProvider.pause(false);
+                        continue;
+                    }
+
+                    if (mInFlight.isEmpty() && mAudioRing.getUnacknowledged() > 0) {
+                        // Everything was replied, what wasn't acknowledged must be sent again
+                        mAudioRing.rewindSend();
+                    }
+
+                    if (mRefused) {
+                        // The app is full, back off a bit
+                        mRefused = false;
+                        LockSupport.parkNanos(this,
+                                TimeUnit.MILLISECONDS.toNanos(AUDIO_RETRY_DELAY_MS));
+                        continue;
                     }
+
+                    final int sendable = mAudioRing.getContiguousSendable();
+                    if (sendable == 0) {
+                        LockSupport.park(this);
+                        continue;
+                    }
+
+                    final int size = Math.min(sendable, MAX_AUDIO_WRITE_SIZE);
+                    mInFlight.add(new AudioWrite(mAudioRing.getSendPosition(), size));
+                    socket.writeAudioData(mAudioRing.array(), mAudioRing.getSendOffset(), size);
+                    mAudioRing.markSent(size);
+                } catch (Exception e) {
+                    Log.e(TAG, "Error while writing audio data", e);
+                    mAudioSocket = null;
+                    mLocalProvider.pause(false);
+                }
+            }
+        }
+
+        /**
+         * Matches the replies of the app with the writes in flight, and acknowledges the bytes
+         * the app says it wrote
+         */
+        private void processAcks() {
+            synchronized (mAudioAcks) {
+                if (mGeneration != mAudioSocketGeneration) {
+                    // The socket was connected again, nothing in flight will be replied
+                    mGeneration = mAudioSocketGeneration;
+                    mInFlight.clear();
+                    mRefused = false;
+                }
+
+                while (!mAudioAcks.isEmpty() && !mInFlight.isEmpty()) {
+                    final AudioWrite write = mInFlight.poll();
+                    final int written = Math.min(mAudioAcks.poll(), write.size);
+
+                    if (written > 0) {
+                        // If an earlier write was refused, the app played this one without it,
+                        // so the refused data is dropped rather than played out of order
+                        mAudioRing.commitReadTo(write.position + written);
+                    }
+                    if (written < write.size) {
+                        mRefused = true;
+                    }
+                }
+
+                if (!mAudioAcks.isEmpty()) {
+                    Log.w(TAG, "Dropping " + mAudioAcks.size() + " unexpected audio replies");
+                    mAudioAcks.clear();
                 }
             }
         }
@@ -103,6 +232,7 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
     public void onDestroy() {
         super.onDestroy();
         mWriteAudioThread.interrupt();
+        LockSupport.unpark(mWriteAudioThread);
     }
 
     private void removeCallback(final IProviderCallback cb) {
@@ -131,64 +261,35 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
 
     private LocalProvider.LocalCallback providerCallback = new LocalProvider.LocalCallback() {
         @Override
-        public int musicDelivery(byte[] data, int frames, int channels, int sampleRate) {
+        public int musicDelivery(ByteBuffer data, int channels, int sampleRate) {
             if (mAudioSocket == null) {
                 Log.w(TAG, "Got music delivery without an audio socket set!");
                 return 0;
             }
 
-            // If the sample rate changed, update it
-            if (mRate != sampleRate) {
-                mRate = sampleRate;
-
-                try {
-                    mAudioSocket.writeFormatData(channels, sampleRate);
-                } catch (IOException e) {
-                    Log.e(TAG, "IO error while pushing audio data", e);
-                    // Error while pushing audio to the socket, we stop the playback and
-                    // turn off the socket
-                    mAudioSocket = null;
+            // If the format changed, the data already queued must be sent with the previous
+            // format, so we hold back until it is
+            if (mRate != sampleRate || mChannels != channels) {
+                if (!mAudioRing.isEmpty()) {
+                    LockSupport.unpark(mWriteAudioThread);
                     return 0;
                 }
-            }
-
-
-            // First, we try to copy the frames to our local buffer. If the local buffer is full,
-            // try to send it and empty it - and retry to write the current frames into the buffer
-            // on next loop.
-            //if (mAudioBufferIndex + frames < mAudioBuffer.length) {
-            mAudioBuffer = data;
-            mAudioBufferIndex = frames;
-
-            // There's enough data in the buffer, try to send it over to the app
-            mAudioWritten = -1;
 
-            synchronized (mWriteAudioThread) {
-                mWriteAudioThread.notifyAll();
-            }
-
-            synchronized (mAudioWrittenLock) {
-                if (mAudioWritten == -1) {
-                    // Wait 500ms for a reply
-                    try {
-                        mAudioWrittenLock.wait(500);
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "Interrupted while waiting for audio written response");
-                    }
-                }
-            }
-
-            // No response in time, assume the audio wasn't written
-            if (mAudioWritten == -1) {
-                mAudioWritten = 0;
+                mRate = sampleRate;
+                mChannels = channels;
+                mFormatPending = true;
             }
 
-            if (mAudioWritten > 0) {
-                // We could write it, so reset our local buffer
-                mAudioBufferIndex = 0;
+            final int written = mAudioRing.write(data);
+            if (written > 0 || mFormatPending) {
+                LockSupport.unpark(mWriteAudioThread);
             }
+            return written;
+        }
 
-            return mAudioWritten;
+        @Override
+        public void flushAudio() {
+            mAudioRing.discard();
         }
 
         @Override
@@ -264,12 +365,14 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
         }
 
         @Override
-        public void albumUpdated(final Album album) {
+        public void artistsUpdated(final List<Artist> artists) {
             if (mIdentifier == null) {
                 return;
             }
 
-            album.setProvider(mIdentifier);
+            for (Artist artist : artists) {
+                artist.setProvider(mIdentifier);
+            }
 
             mHandler.post(new Runnable() {
                 @Override
@@ -277,7 +380,9 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
                     synchronized (mCallbacks) {
                         for (IProviderCallback cb : mCallbacks) {
                             try {
-                                cb.onAlbumUpdate(mIdentifier, album);
+                                for (Artist artist : artists) {
+                                    cb.onArtistUpdate(mIdentifier, artist);
+                                }
                             } catch (DeadObjectException e) {
                                 removeCallback(cb);
                             } catch (RemoteException e) {
@@ -290,15 +395,44 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
         }
 
         @Override
-        public void songUpdated(final Song song) {
-            if (song == null) {
-                throw new IllegalArgumentException("Song cannot be null");
+        public void albumsUpdated(final List<Album> albums) {
+            if (mIdentifier == null) {
+                return;
+            }
+
+            for (Album album : albums) {
+                album.setProvider(mIdentifier);
             }
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mCallbacks) {
+                        for (IProviderCallback cb : mCallbacks) {
+                            try {
+                                for (Album album : albums) {
+                                    cb.onAlbumUpdate(mIdentifier, album);
+                                }
+                            } catch (DeadObjectException e) {
+                                removeCallback(cb);
+                            } catch (RemoteException e) {
+                                Log.e(TAG, "RemoteException when notifying a callback", e);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void songsUpdated(final List<Song> songs) {
             if (mIdentifier == null) {
                 return;
             }
 
-            song.setProvider(mIdentifier);
+            for (Song song : songs) {
+                song.setProvider(mIdentifier);
+            }
 
             mHandler.post(new Runnable() {
                 @Override
@@ -306,7 +440,9 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
                     synchronized (mCallbacks) {
                         for (IProviderCallback cb : mCallbacks) {
                             try {
-                                cb.onSongUpdate(mIdentifier, song);
+                                for (Song song : songs) {
+                                    cb.onSongUpdate(mIdentifier, song);
+                                }
                             } catch (DeadObjectException e) {
                                 removeCallback(cb);
                             } catch (RemoteException e) {
@@ -318,6 +454,13 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
             });
         }
 
+        @Override
+        public void songsRemoved(final List<Song> songs) {
+            // The provider callback has no removal notification for songs. Removed songs are
+            // flagged as unavailable, which the app handles as a removal.
+            songsUpdated(songs);
+        }
+
         @Override
         public void genreUpdated(final Genre genre) {
             mHandler.post(new Runnable() {
@@ -731,9 +874,16 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
                 if (mAudioSocket == null) {
                     mAudioSocket = new AudioClientSocket();
                 }
+                synchronized (mAudioAcks) {
+                    mAudioAcks.clear();
+                    mAudioSocketGeneration++;
+                }
                 mAudioSocket.connect(socketName);
                 mAudioSocket.writeFormatData(2, 44100);
                 mAudioSocket.setCallback(PluginService.this);
+                mRate = 44100;
+                mChannels = 2;
+                LockSupport.unpark(mWriteAudioThread);
             } catch (IOException e) {
                 Log.e(TAG, "Unable to open the audio socket!", e);
             }
@@ -761,7 +911,7 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
          */
         @Override
         public void prefetchSong(String ref) throws RemoteException {
-            // TODO
+            mLocalProvider.prefetchSong(ref);
         }
 
         /**
@@ -845,10 +995,10 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
 
     @Override
     public void onAudioResponse(AudioSocket socket, Plugin.AudioResponse.Builder message) {
-        synchronized (mAudioWrittenLock) {
-            mAudioWritten = message.getWritten();
-            mAudioWrittenLock.notifyAll();
+        synchronized (mAudioAcks) {
+            mAudioAcks.add(message.getWritten());
         }
+        LockSupport.unpark(mWriteAudioThread);
     }
 
     @Override
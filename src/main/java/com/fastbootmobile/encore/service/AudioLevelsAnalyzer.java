@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.service;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Level meter and spectrum analyzer of the audio being played. The audio thread copies the
+ * mirrored audio into a ring buffer, and a low priority thread periodically computes the peak and
+ * RMS levels and the energy of logarithmic frequency bands from a windowed FFT of the most recent
+ * samples. Nothing is allocated once the analyzer is created.
+ */
+public class AudioLevelsAnalyzer {
+    /**
+     * Number of samples analyzed by the FFT, must be a power of two
+     */
+    public static final int FFT_SIZE = 1024;
+
+    /**
+     * Number of frequency bands published
+     */
+    public static final int BAND_COUNT = 16;
+
+    /**
+     * Number of times per second the levels are published
+     */
+    public static final int PUBLISH_RATE = 30;
+
+    private static final int RING_SIZE = FFT_SIZE * 2;
+    private static final float LOWEST_BAND_HZ = 40.0f;
+    private static final float HIGHEST_BAND_HZ = 16000.0f;
+    private static final float SAMPLE_SCALE = 1.0f / 32768.0f;
+
+    public interface Listener {
+        /**
+         * Called on the analyzer thread at the publish rate
+         *
+         * @param peak The peak level of the last samples, from 0 to 1
+         * @param rms The RMS level of the last samples, from 0 to 1
+         * @param bands The power of each band, relative to a full scale sine. The array is reused
+         *                for the next calls.
+         */
+        void onAudioLevels(float peak, float rms, float[] bands);
+    }
+
+    // Mono samples, guarded by itself
+    private final float[] mRing = new float[RING_SIZE];
+    private int mRingPosition;
+    private long mRingWritten;
+    private int mSampleRate = 44100;
+
+    // Used by the analyzer thread only
+    private final float[] mReal = new float[FFT_SIZE];
+    private final float[] mImaginary = new float[FFT_SIZE];
+    private final float[] mWindow = new float[FFT_SIZE];
+    private final float[] mCos = new float[FFT_SIZE / 2];
+    private final float[] mSin = new float[FFT_SIZE / 2];
+    private final int[] mBitReversed = new int[FFT_SIZE];
+    private final int[] mBandBins = new int[BAND_COUNT + 1];
+    private final float[] mBands = new float[BAND_COUNT];
+    private int mBandsSampleRate;
+
+    private final Object mThreadLock = new Object();
+    private Thread mThread;
+    // Interrupted thread that may still be running, guarded by mThreadLock
+    private Thread mStoppedThread;
+    private volatile Listener mListener;
+
+    public AudioLevelsAnalyzer() {
+        final int bits = Integer.numberOfTrailingZeros(FFT_SIZE);
+        for (int i = 0; i < FFT_SIZE; ++i) {
+            // Hann window
+            mWindow[i] = (float) (0.5 - 0.5 * Math.cos(2.0 * Math.PI * i / (FFT_SIZE - 1)));
+            mBitReversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+        for (int i = 0; i < FFT_SIZE / 2; ++i) {
+            mCos[i] = (float) Math.cos(2.0 * Math.PI * i / FFT_SIZE);
+            mSin[i] = (float) -Math.sin(2.0 * Math.PI * i / FFT_SIZE);
+        }
+    }
+
+    /**
+     * Copies played audio into the analyzer. Called from the audio thread.
+     *
+     * @param pcm The audio, as interleaved 16-bit little endian PCM
+     * @param len The number of bytes of audio
+     * @param sampleRate The sample rate of the audio
+     * @param channels The number of channels of the audio
+     */
+    public void write(byte[] pcm, int len, int sampleRate, int channels) {
+        final int frameSize = channels * 2;
+        final int frames = len / frameSize;
+        // Older samples would be overwritten anyway
+        final int first = Math.max(0, frames - RING_SIZE);
+        final float scale = SAMPLE_SCALE / channels;
+
+        synchronized (mRing) {
+            mSampleRate = sampleRate;
+            int position = mRingPosition;
+            for (int frame = first; frame < frames; ++frame) {
+                int offset = frame * frameSize;
+                int sum = 0;
+                for (int channel = 0; channel < channels; ++channel) {
+                    sum += (short) ((pcm[offset] & 0xFF) | (pcm[offset + 1] << 8));
+                    offset += 2;
+                }
+                mRing[position] = sum * scale;
+                position = (position + 1) & (RING_SIZE - 1);
+            }
+            mRingPosition = position;
+            mRingWritten += frames - first;
+        }
+    }
+
+    /**
+     * Returns the RMS level of the last 1/60 second of audio
+     *
+     * @return The RMS level, on the scale of 16-bit samples
+     */
+    public int getRms() {
+        double sum = 0;
+        synchronized (mRing) {
+            final int count = (int) Math.min(Math.min(mSampleRate / 60, RING_SIZE), mRingWritten);
+            if (count == 0) {
+                return 0;
+            }
+            int position = mRingPosition;
+            for (int i = 0; i < count; ++i) {
+                position = (position - 1) & (RING_SIZE - 1);
+                final float sample = mRing[position];
+                sum += sample * sample;
+            }
+            sum /= count;
+        }
+        return (int) (Math.sqrt(sum) * 32768.0 + 0.5);
+    }
+
+    /**
+     * Sets the listener to publish the levels to, starting the analyzer thread if needed
+     *
+     * @param listener The listener, or null to stop the analyzer thread
+     */
+    public void setListener(Listener listener) {
+        synchronized (mThreadLock) {
+            if (listener != null && mThread == null) {
+                // The previous thread uses the same FFT buffers, and must not publish to the new
+                // listener, so it has to be done before we start again
+                joinStoppedThread();
+                mListener = listener;
+                mThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        analyzeLoop();
+                    }
+                }, "AudioLevelsAnalyzer");
+                mThread.start();
+            } else {
+                mListener = listener;
+                if (listener == null && mThread != null) {
+                    mThread.interrupt();
+                    mStoppedThread = mThread;
+                    mThread = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the last stopped analyzer thread to exit. Must be called with mThreadLock held.
+     */
+    private void joinStoppedThread() {
+        final Thread thread = mStoppedThread;
+        if (thread == null) {
+            return;
+        }
+
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        mStoppedThread = null;
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void analyzeLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        final long periodMs = 1000 / PUBLISH_RATE;
+        long nextTick = SystemClock.uptimeMillis();
+        long lastWritten = -1;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            final Listener listener = mListener;
+            if (listener == null) {
+                break;
+            }
+
+            final long written;
+            final int sampleRate;
+            synchronized (mRing) {
+                written = mRingWritten;
+                sampleRate = mSampleRate;
+                // Copy the most recent samples, oldest first
+                int position = (mRingPosition - FFT_SIZE) & (RING_SIZE - 1);
+                for (int i = 0; i < FFT_SIZE; ++i) {
+                    mReal[i] = mRing[position];
+                    position = (position + 1) & (RING_SIZE - 1);
+                }
+            }
+
+            // Publish only when new audio has been played, so that pausing doesn't wake up the
+            // visualizers needlessly
+            if (written != lastWritten) {
+                lastWritten = written;
+                analyze(listener, sampleRate);
+            }
+
+            nextTick += periodMs;
+            final long delay = nextTick - SystemClock.uptimeMillis();
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            } else {
+                // We're late, don't try to catch up
+                nextTick = SystemClock.uptimeMillis();
+            }
+        }
+    }
+
+    private void analyze(Listener listener, int sampleRate) {
+        float peak = 0;
+        float sum = 0;
+        for (int i = 0; i < FFT_SIZE; ++i) {
+            final float sample = mReal[i];
+            sum += sample * sample;
+            final float abs = Math.abs(sample);
+            if (abs > peak) {
+                peak = abs;
+            }
+        }
+        final float rms = (float) Math.sqrt(sum / FFT_SIZE);
+
+        fft();
+
+        if (sampleRate != mBandsSampleRate) {
+            computeBandBins(sampleRate);
+        }
+
+        // A full scale sine has a total power of 3 * FFT_SIZE^2 / 32 through a Hann window
+        final float normalization = 32.0f / (3.0f * FFT_SIZE * FFT_SIZE);
+        for (int band = 0; band < BAND_COUNT; ++band) {
+            final int start = mBandBins[band];
+            final int end = mBandBins[band + 1];
+            float energy = 0;
+            for (int bin = start; bin < end; ++bin) {
+                energy += mReal[bin] * mReal[bin] + mImaginary[bin] * mImaginary[bin];
+            }
+            mBands[band] = energy * normalization;
+        }
+
+        listener.onAudioLevels(peak, rms, mBands);
+    }
+
+    /**
+     * Computes the first FFT bin of each band, logarithmically spread between LOWEST_BAND_HZ and
+     * HIGHEST_BAND_HZ (or the Nyquist frequency if lower)
+     */
+    private void computeBandBins(int sampleRate) {
+        final float binHz = (float) sampleRate / FFT_SIZE;
+        final float highest = Math.min(HIGHEST_BAND_HZ, sampleRate / 2.0f);
+        final double ratio = Math.pow(highest / LOWEST_BAND_HZ, 1.0 / BAND_COUNT);
+
+        int previous = 0;
+        for (int band = 0; band <= BAND_COUNT; ++band) {
+            final double hz = LOWEST_BAND_HZ * Math.pow(ratio, band);
+            // Each band spans at least one bin, and the DC bin is left out
+            final int bin = (int) Math.round(hz / binHz);
+            mBandBins[band] = Math.min(Math.max(bin, previous + 1), FFT_SIZE / 2);
+            previous = mBandBins[band];
+        }
+        mBandsSampleRate = sampleRate;
+    }
+
+    /**
+     * Windows mReal and transforms it in place, with an iterative radix-2 FFT. The result is in
+     * mReal and mImaginary.
+     */
+    private void fft() {
+        for (int i = 0; i < FFT_SIZE; ++i) {
+            mReal[i] *= mWindow[i];
+            mImaginary[i] = 0;
+        }
+
+        for (int i = 0; i < FFT_SIZE; ++i) {
+            final int j = mBitReversed[i];
+            if (j > i) {
+                final float tmp = mReal[i];
+                mReal[i] = mReal[j];
+                mReal[j] = tmp;
+            }
+        }
+
+        for (int size = 2; size <= FFT_SIZE; size <<= 1) {
+            final int half = size >> 1;
+            final int step = FFT_SIZE / size;
+            for (int start = 0; start < FFT_SIZE; start += size) {
+                for (int k = 0; k < half; ++k) {
+                    final float wr = mCos[k * step];
+                    final float wi = mSin[k * step];
+                    final int even = start + k;
+                    final int odd = even + half;
+                    final float tr = mReal[odd] * wr - mImaginary[odd] * wi;
+                    final float ti = mReal[odd] * wi + mImaginary[odd] * wr;
+                    mReal[odd] = mReal[even] - tr;
+                    mImaginary[odd] = mImaginary[even] - ti;
+                    mReal[even] += tr;
+                    mImaginary[even] += ti;
+                }
+            }
+        }
+    }
+}
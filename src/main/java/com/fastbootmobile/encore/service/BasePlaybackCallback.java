@@ -19,6 +19,8 @@ import android.os.RemoteException;
 
 import com.fastbootmobile.encore.model.Song;
 
+import java.util.List;
+
 /**
  * Base empty implementation of {@link com.fastbootmobile.encore.service.IPlaybackCallback} interface
  */
@@ -52,4 +54,15 @@ public class BasePlaybackCallback extends IPlaybackCallback.Stub {
     public void onPlaybackQueueChanged() throws RemoteException {
 
     }
+
+    @Override
+    public void onPlaybackQueueDelta(int fromVersion, int toVersion, List<QueueChange> changes)
+            throws RemoteException {
+
+    }
+
+    @Override
+    public void onPlaybackClockChanged(PlaybackClock clock) throws RemoteException {
+
+    }
 }
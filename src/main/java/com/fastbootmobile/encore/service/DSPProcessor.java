@@ -55,8 +55,11 @@ public class DSPProcessor {
      * @return The RMS level
      */
     public int getRms() {
-        // TODO: reimplement
-        return 0;
+        NativeHub hub = mPlaybackService.getNativeHub();
+        if (hub == null) {
+            return 0;
+        }
+        return hub.getLevelsAnalyzer().getRms();
     }
 
     /**
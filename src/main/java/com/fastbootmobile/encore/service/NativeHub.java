@@ -18,6 +18,7 @@ package com.fastbootmobile.encore.service;
 import android.content.Context;
 import android.util.Log;
 
+import com.fastbootmobile.encore.cast.AudioBroadcaster;
 import com.fastbootmobile.encore.cast.WSStreamer;
 
 import org.java_websocket.WebSocketImpl;
@@ -50,6 +51,8 @@ public class NativeHub {
 
     private WSStreamer mStreamer;
     private WSStreamer mInsecureStreamer;
+    private AudioBroadcaster mBroadcaster;
+    private final AudioLevelsAnalyzer mLevelsAnalyzer = new AudioLevelsAnalyzer();
     private OnSampleWrittenListener mWrittenListener;
 
     // Used in native code
@@ -100,6 +103,7 @@ public class NativeHub {
         }
 
         mInsecureStreamer = new WSStreamer(8886);
+        mBroadcaster = new AudioBroadcaster(mStreamer, mInsecureStreamer);
 
         nativeInitialize();
     }
@@ -135,6 +139,11 @@ public class NativeHub {
 
         mStreamer = null;
         mInsecureStreamer = null;
+        if (mBroadcaster != null) {
+            mBroadcaster.release();
+            mBroadcaster = null;
+        }
+        mLevelsAnalyzer.setListener(null);
 
         nativeShutdown();
     }
@@ -179,6 +188,13 @@ public class NativeHub {
      */
     public void setDucking(boolean duck) { nativeSetDucking(duck); }
 
+    /**
+     * @return The analyzer of the audio being played
+     */
+    public AudioLevelsAnalyzer getLevelsAnalyzer() {
+        return mLevelsAnalyzer;
+    }
+
     /**
      * Sets the listener that will be called when samples are written to the sink
      * @param listener The listener to use
@@ -190,8 +206,10 @@ public class NativeHub {
     // Called from native code
     public void onAudioMirrorWritten(int len, int sampleRate, int channels) {
         if (mAudioMirrorBuffer != null) {
-            mStreamer.write(mAudioMirrorBuffer, len);
-            mInsecureStreamer.write(mAudioMirrorBuffer, len);
+            if (mBroadcaster != null) {
+                mBroadcaster.write(mAudioMirrorBuffer, len, sampleRate, channels);
+            }
+            mLevelsAnalyzer.write(mAudioMirrorBuffer, len, sampleRate, channels);
 
             // We use audio mirroring writing for tracking track elapsed time
             if (mWrittenListener != null) {
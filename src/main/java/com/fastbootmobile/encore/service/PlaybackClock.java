@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.service;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SystemClock;
+
+/**
+ * Snapshot of the playback position at a point in time, from which the current position is
+ * extrapolated locally instead of being requested from the playback service. Immutable.
+ */
+public class PlaybackClock implements Parcelable {
+    private final int mState;
+    private final long mPositionMs;
+    private final long mUptimeMs;
+    private final float mRate;
+    private final int mDurationMs;
+
+    public static final Creator<PlaybackClock> CREATOR = new Creator<PlaybackClock>() {
+        @Override
+        public PlaybackClock createFromParcel(Parcel source) {
+            return new PlaybackClock(source);
+        }
+
+        @Override
+        public PlaybackClock[] newArray(int size) {
+            return new PlaybackClock[size];
+        }
+    };
+
+    /**
+     * @param state The playback state, one of the PlaybackService.STATE_ constants
+     * @param positionMs The position at the time of the snapshot, in milliseconds
+     * @param uptimeMs The time of the snapshot, from {@link SystemClock#uptimeMillis()}
+     * @param rate The playback rate, 0 if the position doesn't move
+     * @param durationMs The duration of the track, or a negative value if unknown
+     */
+    public PlaybackClock(int state, long positionMs, long uptimeMs, float rate, int durationMs) {
+        mState = state;
+        mPositionMs = positionMs;
+        mUptimeMs = uptimeMs;
+        mRate = rate;
+        mDurationMs = durationMs;
+    }
+
+    private PlaybackClock(Parcel in) {
+        mState = in.readInt();
+        mPositionMs = in.readLong();
+        mUptimeMs = in.readLong();
+        mRate = in.readFloat();
+        mDurationMs = in.readInt();
+    }
+
+    /**
+     * @return The playback state, one of the PlaybackService.STATE_ constants
+     */
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * @return The current position, in milliseconds, extrapolated from the snapshot
+     */
+    public int getPosition() {
+        return getPositionAt(SystemClock.uptimeMillis());
+    }
+
+    /**
+     * @param uptimeMs A time from {@link SystemClock#uptimeMillis()}
+     * @return The position at the provided time, in milliseconds
+     */
+    public int getPositionAt(long uptimeMs) {
+        long position = mPositionMs + (long) ((uptimeMs - mUptimeMs) * mRate);
+        if (mDurationMs > 0 && position > mDurationMs) {
+            position = mDurationMs;
+        }
+        return (int) Math.max(0, position);
+    }
+
+    /**
+     * @return The time of the snapshot, from {@link SystemClock#uptimeMillis()}
+     */
+    public long getUptime() {
+        return mUptimeMs;
+    }
+
+    /**
+     * @return The playback rate, 0 if the position doesn't move
+     */
+    public float getRate() {
+        return mRate;
+    }
+
+    /**
+     * @return The duration of the track, in milliseconds, or a negative value if unknown
+     */
+    public int getDuration() {
+        return mDurationMs;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mState);
+        dest.writeLong(mPositionMs);
+        dest.writeLong(mUptimeMs);
+        dest.writeFloat(mRate);
+        dest.writeInt(mDurationMs);
+    }
+}
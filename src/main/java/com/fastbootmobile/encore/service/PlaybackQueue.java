@@ -27,14 +27,243 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
- * Handles the playback of a list of songs
+ * Handles the playback of a list of songs. Each change made through add, remove or clear is
+ * recorded, and increments the version of the queue, so that clients can mirror the queue by
+ * applying the changes instead of fetching it again. The queue also keeps the order in which its
+ * songs are played in shuffle mode up to date, and appends the changes to a journal once one is
+ * attached.
  */
 public class PlaybackQueue extends ArrayList<Song> {
     private static final String TAG = "PlaybackQueue";
+    // Keys of the queue formerly saved in the SharedPreferences
     private static final String KEY_SONGS = "songlist";
+    private static final String KEY_SHUFFLE_ORDER = "shuffle_order";
+    private static final String KEY_SHUFFLE_CURSOR = "shuffle_cursor";
+    private static final String KEY_CURRENT = "current";
+
+    /**
+     * Maximum number of changes pending, above which clients are told to fetch the whole queue
+     */
+    private static final int MAX_PENDING_CHANGES = 256;
+
+    /**
+     * Maximum number of songs carried by an insertion, above which clients fetch them by range
+     */
+    private static final int MAX_CHANGE_SONGS = 200;
+
+    private int mVersion;
+    private List<QueueChange> mPendingChanges = new ArrayList<>();
+    private boolean mChangesOverflowed;
+    private final ShuffleOrder mShuffleOrder = new ShuffleOrder();
+    private PlaybackQueueJournal mJournal;
+
+    @Override
+    public synchronized boolean add(Song s) {
+        add(size(), s);
+        return true;
+    }
+
+    @Override
+    public synchronized void add(int index, Song s) {
+        super.add(index, s);
+        final int shufflePosition = mShuffleOrder.onInsert(index);
+        if (mJournal != null) {
+            mJournal.recordInsert(index, shufflePosition, s);
+        }
+        recordInsert(index, s);
+    }
+
+    @Override
+    public synchronized Song remove(int index) {
+        final Song removed = super.remove(index);
+        mShuffleOrder.onRemove(index);
+        if (mJournal != null) {
+            mJournal.recordRemove(index);
+        }
+        recordChange(new QueueChange(QueueChange.TYPE_REMOVE, index, 1, null));
+        return removed;
+    }
+
+    @Override
+    public synchronized void clear() {
+        final int size = size();
+        super.clear();
+        mShuffleOrder.onClear();
+        if (mJournal != null) {
+            mJournal.recordClear();
+        }
+        if (size > 0) {
+            recordChange(new QueueChange(QueueChange.TYPE_REMOVE, 0, size, null));
+        }
+    }
+
+    /**
+     * Shuffles the queue again, starting a new shuffle cycle from the provided song
+     * @param current The index of the song playing, or -1 if none
+     */
+    public synchronized void shuffle(int current) {
+        final int reorders = mShuffleOrder.getReorderCount();
+        final int cursor = mShuffleOrder.getCursor();
+        mShuffleOrder.shuffle(current);
+        recordShuffleChange(reorders, cursor);
+    }
+
+    /**
+     * Returns the song played after the provided one in shuffle mode
+     * @param current The index of the song playing, or -1 if none
+     * @return The index of the next song, or -1 if the queue is empty
+     */
+    public synchronized int getShuffledNext(int current) {
+        final int reorders = mShuffleOrder.getReorderCount();
+        final int cursor = mShuffleOrder.getCursor();
+        final int next = mShuffleOrder.peekNext(current);
+        recordShuffleChange(reorders, cursor);
+        return next;
+    }
+
+    /**
+     * Moves to the song played after the provided one in shuffle mode
+     * @param current The index of the song playing, or -1 if none
+     * @return The index of the next song, or -1 if the queue is empty
+     */
+    public synchronized int moveToShuffledNext(int current) {
+        final int reorders = mShuffleOrder.getReorderCount();
+        final int cursor = mShuffleOrder.getCursor();
+        final int next = mShuffleOrder.moveToNext(current);
+        recordShuffleChange(reorders, cursor);
+        return next;
+    }
+
+    /**
+     * Returns the songs played after the provided one in shuffle mode, until the end of the
+     * current shuffle cycle
+     * @param current The index of the song playing, or -1 if none
+     * @param count The maximum number of songs
+     * @return The indexes of the upcoming songs, in order
+     */
+    public synchronized int[] getShuffledUpcoming(int current, int count) {
+        final int reorders = mShuffleOrder.getReorderCount();
+        final int cursor = mShuffleOrder.getCursor();
+        final int[] upcoming = mShuffleOrder.getUpcoming(current, count);
+        recordShuffleChange(reorders, cursor);
+        return upcoming;
+    }
+
+    /**
+     * Restores a saved shuffle order, if it matches the queue
+     * @param order The shuffle order
+     * @param cursor The position of the current song in the shuffle order
+     * @return false if the order doesn't match the queue
+     */
+    synchronized boolean restoreShuffleOrder(int[] order, int cursor) {
+        if (order.length != size() || !mShuffleOrder.restore(order, cursor)) {
+            return false;
+        }
+        if (mJournal != null) {
+            mJournal.recordShuffle(order, mShuffleOrder.getCursor());
+        }
+        return true;
+    }
+
+    /**
+     * Journals the shuffle order if it was changed by a shuffle operation
+     */
+    private void recordShuffleChange(int reorders, int cursor) {
+        if (mJournal == null) {
+            return;
+        }
+
+        if (mShuffleOrder.getReorderCount() != reorders) {
+            mJournal.recordShuffle(mShuffleOrder.getOrder(), mShuffleOrder.getCursor());
+        } else if (mShuffleOrder.getCursor() != cursor) {
+            mJournal.recordShuffleCursor(mShuffleOrder.getCursor());
+        }
+    }
+
+    /**
+     * @return The version of the queue, incremented on each change
+     */
+    public synchronized int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Returns a range of the queue, if it's still at the provided version
+     * @param version The version of the queue the range is requested for
+     * @param offset The index of the first song
+     * @param count The maximum number of songs
+     * @return The songs, or null if the queue changed since that version
+     */
+    public synchronized List<Song> getRange(int version, int offset, int count) {
+        if (version != mVersion) {
+            return null;
+        }
+        final int start = Math.max(0, Math.min(offset, size()));
+        final int end = Math.max(start, Math.min(offset + count, size()));
+        return new ArrayList<>(subList(start, end));
+    }
+
+    /**
+     * Returns and forgets the changes made since the last call
+     * @return The changes, in order, or null if there were too many of them to be worth applying
+     */
+    public synchronized List<QueueChange> drainChanges() {
+        List<QueueChange> changes = null;
+        if (!mChangesOverflowed) {
+            changes = mPendingChanges;
+            for (int i = 0; i < changes.size(); ++i) {
+                if (changes.get(i).getCount() > MAX_CHANGE_SONGS) {
+                    changes.set(i, changes.get(i).withoutSongs());
+                }
+            }
+        }
+
+        mPendingChanges = new ArrayList<>();
+        mChangesOverflowed = false;
+        return changes;
+    }
+
+    private void recordInsert(int index, Song s) {
+        final int pending = mPendingChanges.size();
+        final QueueChange last = pending > 0 ? mPendingChanges.get(pending - 1) : null;
+
+        if (last != null && last.getType() == QueueChange.TYPE_INSERT
+                && index == last.getPosition() + last.getCount()) {
+            // Appended to the previous insertion
+            last.addSong(last.getCount(), s);
+            mVersion++;
+        } else if (last != null && last.getType() == QueueChange.TYPE_INSERT
+                && index == last.getPosition()) {
+            // Inserted before the previous insertion, when queuing at the top
+            last.addSong(0, s);
+            mVersion++;
+        } else {
+            List<Song> songs = new ArrayList<>();
+            songs.add(s);
+            recordChange(new QueueChange(QueueChange.TYPE_INSERT, index, 1, songs));
+        }
+    }
+
+    private void recordChange(QueueChange change) {
+        mVersion++;
+        if (mChangesOverflowed) {
+            return;
+        }
+
+        if (mPendingChanges.size() >= MAX_PENDING_CHANGES) {
+            mPendingChanges.clear();
+            mChangesOverflowed = true;
+        } else {
+            mPendingChanges.add(change);
+        }
+    }
 
     /**
      * Adds a song to the queue
@@ -50,62 +279,136 @@ public class PlaybackQueue extends ArrayList<Song> {
     }
 
     /**
-     * Saves the playback queue into the specified SharedPreferences editor
+     * Starts journaling the changes of the queue, writing its current content first
+     *
+     * @param journal The journal
+     * @param current The index of the current song
+     */
+    synchronized void attachJournal(PlaybackQueueJournal journal, int current) {
+        mJournal = journal;
+        mJournal.rewrite(this, mShuffleOrder.getOrder(), mShuffleOrder.getCursor(), current);
+    }
+
+    /**
+     * Stops journaling the changes of the queue, and closes the journal
+     */
+    synchronized void detachJournal() {
+        if (mJournal != null) {
+            mJournal.close();
+            mJournal = null;
+        }
+    }
+
+    /**
+     * Writes the changes journaled since the last save, compacting the journal if it got too long
+     *
+     * @param current The index of the current song
+     */
+    public synchronized void save(int current) {
+        if (mJournal == null) {
+            // Still restoring the saved queue
+            return;
+        }
+
+        if (!mJournal.isOpen() || mJournal.needsCompaction(size())) {
+            mJournal.rewrite(this, mShuffleOrder.getOrder(), mShuffleOrder.getCursor(), current);
+        } else {
+            mJournal.recordCurrent(current);
+            mJournal.flush();
+        }
+    }
+
+    /**
+     * Resolves songs from their references, fetching the songs of each provider in one go.
+     * This blocks until all the songs are retrieved.
      *
-     * @param editor The editor in which write the data
-     */
-    public void save(SharedPreferences.Editor editor) {
-        // Avoid concurrent modification errors
-        List<Song> copy = new ArrayList<>(this);
-
-        // Save it!
-        JSONArray array = new JSONArray();
-        for (Song song : copy) {
-            if (song == null) continue;
-
-            JSONObject object = new JSONObject();
-            try {
-                object.put("r", song.getRef());
-                object.put("p", song.getProvider().serialize());
-            } catch (NullPointerException | JSONException e) {
-                Log.e(TAG, "Cannot save playback queue entry", e);
+     * @param refs The references of the songs
+     * @param providers The serialized identifiers of the providers of the songs
+     * @return The songs, with null for the songs that couldn't be retrieved
+     */
+    static List<Song> resolveSongs(List<String> refs, List<String> providers) {
+        final int len = refs.size();
+        final Map<String, List<String>> refsPerProvider = new LinkedHashMap<>();
+        // Queue index of each of these references
+        final Map<String, List<Integer>> indicesPerProvider = new HashMap<>();
+        for (int i = 0; i < len; ++i) {
+            if (refs.get(i).isEmpty()) {
+                // Song that was unavailable when queued
+                continue;
             }
 
-            array.put(object);
+            List<String> providerRefs = refsPerProvider.get(providers.get(i));
+            List<Integer> providerIndices = indicesPerProvider.get(providers.get(i));
+            if (providerRefs == null) {
+                providerRefs = new ArrayList<>();
+                providerIndices = new ArrayList<>();
+                refsPerProvider.put(providers.get(i), providerRefs);
+                indicesPerProvider.put(providers.get(i), providerIndices);
+            }
+            providerRefs.add(refs.get(i));
+            providerIndices.add(i);
         }
 
-        editor.putString(KEY_SONGS, array.toString());
-        editor.apply();
+        final List<Song> songs = new ArrayList<>(Collections.<Song>nCopies(len, null));
+
+        // Resolve the songs of each provider in one go, and put them back in order
+        final ProviderAggregator aggregator = ProviderAggregator.getDefault();
+        for (Map.Entry<String, List<String>> entry : refsPerProvider.entrySet()) {
+            final List<Song> resolved = aggregator.retrieveSongs(entry.getValue(),
+                    ProviderIdentifier.fromSerialized(entry.getKey()));
+            final List<Integer> indices = indicesPerProvider.get(entry.getKey());
+            for (int i = 0; i < indices.size(); ++i) {
+                songs.set(indices.get(i), resolved != null ? resolved.get(i) : null);
+            }
+        }
+
+        for (int i = 0; i < len; ++i) {
+            if (songs.get(i) == null) {
+                Log.e(TAG, "Cannot retrieve song " + refs.get(i) + " from " + providers.get(i));
+            }
+        }
+        return songs;
     }
 
     /**
-     * Reads and restores the playback queue from the specified SharedPreferences.
+     * Reads the playback queue formerly saved in the specified SharedPreferences
      *
      * @param prefs The preferences to read from
+     * @return The queue, or null if none was saved
      */
-    public void restore(SharedPreferences prefs) {
+    static PlaybackQueueJournal.Snapshot readLegacy(SharedPreferences prefs) {
         String entries = prefs.getString(KEY_SONGS, null);
+        if (entries == null) {
+            return null;
+        }
+
+        final PlaybackQueueJournal.Snapshot snapshot = new PlaybackQueueJournal.Snapshot();
+        try {
+            JSONArray array = new JSONArray(entries);
+            final int len = array.length();
+            for (int i = 0; i < len; ++i) {
+                JSONObject obj = array.getJSONObject(i);
+                snapshot.refs.add(obj.getString("r"));
+                snapshot.providers.add(obj.getString("p"));
+                snapshot.shuffleOrder.onInsert(i);
+            }
 
-        if (entries != null) {
-            try {
-                JSONArray array = new JSONArray(entries);
-                final int len = array.length();
-                for (int i = 0; i < len; ++i) {
-                    JSONObject obj = array.getJSONObject(i);
-                    String ref = obj.getString("r");
-                    String provider = obj.getString("p");
-
-                    Song song = ProviderAggregator.getDefault().retrieveSong(ref,
-                            ProviderIdentifier.fromSerialized(provider));
-                    if (song != null) {
-                        addSong(song, false);
-                    } else {
-                        Log.e(TAG, "Cannot retrieve song " + ref + " from " + provider);
-                    }
+            String order = prefs.getString(KEY_SHUFFLE_ORDER, null);
+            if (order != null) {
+                JSONArray orderArray = new JSONArray(order);
+                int[] indexes = new int[orderArray.length()];
+                for (int i = 0; i < indexes.length; ++i) {
+                    indexes[i] = orderArray.getInt(i);
+                }
+                if (indexes.length == len) {
+                    snapshot.shuffleOrder.restore(indexes, prefs.getInt(KEY_SHUFFLE_CURSOR, -1));
                 }
-            } catch (JSONException e) {
-                Log.e(TAG, "Cannot restore playback queue entry", e);
             }
+        } catch (JSONException e) {
+            Log.e(TAG, "Cannot read saved playback queue", e);
         }
+
+        snapshot.current = prefs.getInt(KEY_CURRENT, -1);
+        return snapshot;
     }
 }
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.service;
+
+import android.util.Log;
+
+import com.fastbootmobile.encore.model.Song;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary journal of the playback queue. Each change of the queue is appended as a small record,
+ * instead of saving the whole queue on each change, and the journal is replayed to restore the
+ * queue. Once the journal gets much longer than the queue, it is rewritten with only the current
+ * content of the queue. Not thread-safe, the queue calls it with its lock held.
+ */
+class PlaybackQueueJournal {
+    private static final String TAG = "PlaybackQueueJournal";
+
+    private static final int MAGIC = 0x45515545; // EQUE
+    private static final int VERSION = 1;
+
+    private static final byte OP_INSERT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_CLEAR = 3;
+    private static final byte OP_CURRENT = 5;
+    private static final byte OP_SHUFFLE = 6;
+    private static final byte OP_SHUFFLE_CURSOR = 7;
+
+    /**
+     * Minimum number of records before the journal is compacted
+     */
+    private static final int COMPACT_THRESHOLD = 512;
+
+    /**
+     * Content of the queue, as replayed from the journal
+     */
+    static class Snapshot {
+        final List<String> refs = new ArrayList<>();
+        final List<String> providers = new ArrayList<>();
+        final ShuffleOrder shuffleOrder = new ShuffleOrder();
+        int current = -1;
+
+        int size() {
+            return refs.size();
+        }
+    }
+
+    private final File mFile;
+    private DataOutputStream mOut;
+    private int mRecords;
+    private int mCurrent = -1;
+
+    /**
+     * @param file The file storing the journal
+     */
+    PlaybackQueueJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * @return true if the journal file exists
+     */
+    boolean exists() {
+        return mFile.exists();
+    }
+
+    /**
+     * Replays the journal. Records partially written, for instance because the process got killed
+     * while appending them, are dropped.
+     * @return The content of the queue, or null if there is no usable journal
+     */
+    Snapshot load() {
+        if (!mFile.exists()) {
+            return null;
+        }
+
+        final Snapshot snapshot = new Snapshot();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.e(TAG, "Unknown playback queue journal format");
+                return null;
+            }
+
+            while (true) {
+                final int op = in.read();
+                if (op < 0) {
+                    // Clean end of the journal
+                    break;
+                }
+                replay(in, (byte) op, snapshot);
+            }
+        } catch (EOFException e) {
+            Log.w(TAG, "Truncated playback queue journal record, dropping it");
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read playback queue journal", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        mCurrent = snapshot.current;
+        return snapshot;
+    }
+
+    private static void replay(DataInputStream in, byte op, Snapshot snapshot)
+            throws IOException {
+        switch (op) {
+            case OP_INSERT: {
+                final int index = in.readInt();
+                final int shufflePosition = in.readInt();
+                final String ref = in.readUTF();
+                final String provider = in.readUTF();
+                if (index >= 0 && index <= snapshot.size()) {
+                    snapshot.refs.add(index, ref);
+                    snapshot.providers.add(index, provider);
+                    snapshot.shuffleOrder.onInsert(index, shufflePosition);
+                }
+                break;
+            }
+
+            case OP_REMOVE: {
+                final int index = in.readInt();
+                if (index >= 0 && index < snapshot.size()) {
+                    snapshot.refs.remove(index);
+                    snapshot.providers.remove(index);
+                    snapshot.shuffleOrder.onRemove(index);
+                }
+                break;
+            }
+
+            case OP_CLEAR:
+                snapshot.refs.clear();
+                snapshot.providers.clear();
+                snapshot.shuffleOrder.onClear();
+                break;
+
+            case OP_CURRENT:
+                snapshot.current = in.readInt();
+                break;
+
+            case OP_SHUFFLE: {
+                final int cursor = in.readInt();
+                final int[] order = new int[in.readInt()];
+                for (int i = 0; i < order.length; ++i) {
+                    order[i] = in.readInt();
+                }
+                if (order.length == snapshot.size()) {
+                    snapshot.shuffleOrder.restore(order, cursor);
+                }
+                break;
+            }
+
+            case OP_SHUFFLE_CURSOR:
+                snapshot.shuffleOrder.setCursor(in.readInt());
+                break;
+
+            default:
+                throw new IOException("Unknown playback queue journal record " + op);
+        }
+    }
+
+    void recordInsert(int index, int shufflePosition, Song song) {
+        if (mOut == null) {
+            return;
+        }
+
+        try {
+            writeInsert(mOut, index, shufflePosition, song);
+            mRecords++;
+        } catch (IOException e) {
+            onWriteError(e);
+        }
+    }
+
+    void recordRemove(int index) {
+        writeRecord(OP_REMOVE, index);
+    }
+
+    void recordClear() {
+        if (mOut != null) {
+            try {
+                mOut.writeByte(OP_CLEAR);
+                mRecords++;
+            } catch (IOException e) {
+                onWriteError(e);
+            }
+        }
+    }
+
+    void recordCurrent(int current) {
+        if (current != mCurrent) {
+            mCurrent = current;
+            writeRecord(OP_CURRENT, current);
+        }
+    }
+
+    void recordShuffle(int[] order, int cursor) {
+        if (mOut != null) {
+            try {
+                writeShuffle(mOut, order, cursor);
+                mRecords++;
+            } catch (IOException e) {
+                onWriteError(e);
+            }
+        }
+    }
+
+    void recordShuffleCursor(int cursor) {
+        writeRecord(OP_SHUFFLE_CURSOR, cursor);
+    }
+
+    /**
+     * @return true if the journal is open for writing
+     */
+    boolean isOpen() {
+        return mOut != null;
+    }
+
+    /**
+     * @return true if the journal is long enough to be worth rewriting for a queue of that size
+     */
+    boolean needsCompaction(int queueSize) {
+        return mRecords >= COMPACT_THRESHOLD && mRecords >= queueSize * 2;
+    }
+
+    /**
+     * Writes the pending records to the file
+     */
+    void flush() {
+        if (mOut != null) {
+            try {
+                mOut.flush();
+            } catch (IOException e) {
+                onWriteError(e);
+            }
+        }
+    }
+
+    /**
+     * Writes a new journal containing only the provided content, which then replaces the current
+     * one, and opens it for appending the next changes
+     * @param songs The songs of the queue
+     * @param shuffleOrder The shuffle order of the queue
+     * @param shuffleCursor The position of the current song in the shuffle order
+     * @param current The index of the current song
+     */
+    void rewrite(List<Song> songs, int[] shuffleOrder, int shuffleCursor, int current) {
+        close();
+
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            int index = 0;
+            for (Song song : songs) {
+                writeInsert(out, index, index, song);
+                index++;
+            }
+            writeShuffle(out, shuffleOrder, shuffleCursor);
+            out.writeByte(OP_CURRENT);
+            out.writeInt(current);
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(mFile)) {
+                Log.e(TAG, "Cannot replace playback queue journal");
+                return;
+            }
+
+            mRecords = songs.size() + 2;
+            mCurrent = current;
+            mOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mFile, true)));
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot rewrite playback queue journal", e);
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Flushes and closes the journal, changes are not recorded anymore until it's rewritten
+     */
+    void close() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot close playback queue journal", e);
+            }
+            mOut = null;
+        }
+    }
+
+    private void writeRecord(byte op, int value) {
+        if (mOut != null) {
+            try {
+                mOut.writeByte(op);
+                mOut.writeInt(value);
+                mRecords++;
+            } catch (IOException e) {
+                onWriteError(e);
+            }
+        }
+    }
+
+    private static void writeInsert(DataOutputStream out, int index, int shufflePosition,
+                                    Song song) throws IOException {
+        out.writeByte(OP_INSERT);
+        out.writeInt(index);
+        out.writeInt(shufflePosition);
+        if (song != null) {
+            out.writeUTF(song.getRef());
+            out.writeUTF(song.getProvider().serialize());
+        } else {
+            // Keep the indexes of the next records, the song is dropped when restoring
+            out.writeUTF("");
+            out.writeUTF("");
+        }
+    }
+
+    private static void writeShuffle(DataOutputStream out, int[] order, int cursor)
+            throws IOException {
+        out.writeByte(OP_SHUFFLE);
+        out.writeInt(cursor);
+        out.writeInt(order.length);
+        for (int index : order) {
+            out.writeInt(index);
+        }
+    }
+
+    private void onWriteError(IOException e) {
+        // Stop journaling, the queue will be written entirely on its next save
+        Log.e(TAG, "Cannot write to playback queue journal", e);
+        close();
+        mRecords = Integer.MAX_VALUE;
+    }
+}
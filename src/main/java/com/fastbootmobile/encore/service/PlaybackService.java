@@ -28,6 +28,7 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.PowerManager;
+import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.support.v4.app.NotificationManagerCompat;
@@ -53,9 +54,9 @@ import com.fastbootmobile.encore.providers.ProviderIdentifier;
 import com.fastbootmobile.encore.receivers.PacManReceiver;
 import com.fastbootmobile.encore.receivers.RemoteControlReceiver;
 import com.fastbootmobile.encore.utils.SettingsKeys;
-import com.fastbootmobile.encore.utils.Utils;
 import com.squareup.leakcanary.RefWatcher;
 
+import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -78,9 +79,30 @@ public class PlaybackService extends Service
 
     private static final String SERVICE_SHARED_PREFS = "PlaybackServicePrefs";
     private static final String QUEUE_SHARED_PREFS = "PlaybackQueueMemory";
+    private static final String QUEUE_JOURNAL_FILE = "playback_queue";
     private static final String PREF_KEY_REPEAT = "repeatMode";
     private static final String PREF_KEY_SHUFFLE = "shuffleMode";
 
+    /**
+     * Number of songs around the current track restored before the rest of the queue
+     */
+    private static final int RESTORE_WINDOW = 40;
+
+    /**
+     * Number of songs resolved at once when restoring the rest of the queue
+     */
+    private static final int RESTORE_BATCH = 100;
+
+    /**
+     * Minimum interval between two checks of the published clock against the sink position
+     */
+    private static final long CLOCK_CHECK_INTERVAL_MS = 1000;
+
+    /**
+     * Drift from the published clock above which a new clock is published
+     */
+    private static final long CLOCK_MAX_DRIFT_MS = 250;
+
     public static final String ACTION_COMMAND = "command";
     public static final String EXTRA_COMMAND_NAME = "command_name";
     public static final int COMMAND_NEXT = 1;
@@ -93,8 +115,16 @@ public class PlaybackService extends Service
         public void run() {
             mNotification.setHasNext(mPlaybackQueue.size() > 1 || (mPlaybackQueue.size() > 0 && mRepeatMode));
 
+            final List<QueueChange> changes;
+            final int fromVersion = mNotifiedQueueVersion;
+            synchronized (mPlaybackQueue) {
+                changes = mPlaybackQueue.drainChanges();
+                mNotifiedQueueVersion = mPlaybackQueue.getVersion();
+            }
+
             for (IPlaybackCallback cb : mCallbacks) {
                 try {
+                    cb.onPlaybackQueueDelta(fromVersion, mNotifiedQueueVersion, changes);
                     cb.onPlaybackQueueChanged();
                 } catch (RemoteException e) {
                     Log.e(TAG, "Cannot notify playback queue changed", e);
@@ -103,6 +133,21 @@ public class PlaybackService extends Service
 
             // Save the queue as well
             savePlaybackQueue();
+            mPrefetchScheduler.reschedule();
+        }
+    };
+
+    private Runnable mNotifyClockChangedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final PlaybackClock clock = mPlaybackClock;
+            for (IPlaybackCallback cb : mCallbacks) {
+                try {
+                    cb.onPlaybackClockChanged(clock);
+                } catch (RemoteException e) {
+                    Log.e(TAG, "Cannot notify playback clock changed", e);
+                }
+            }
         }
     };
 
@@ -124,10 +169,21 @@ public class PlaybackService extends Service
     private NativeHub mNativeHub;
     private DSPProcessor mDSPProcessor;
     private final PlaybackQueue mPlaybackQueue;
+    private PlaybackQueueJournal mQueueJournal;
+    private volatile boolean mQueueRestoreCancelled;
+    private int mRestoredQueueVersion;
+    private int mNotifiedQueueVersion;
     private List<IPlaybackCallback> mCallbacks;
     private ServiceNotification mNotification;
     private int mCurrentTrack = -1;
-    private long mCurrentTrackElapsedMs;
+    // Position of the current track when the sink had written mPositionAnchorBytes
+    private final Object mPositionLock = new Object();
+    private long mPositionAnchorMs;
+    private long mPositionAnchorBytes;
+    private volatile int mSinkSampleRate;
+    private volatile int mSinkChannels;
+    private volatile PlaybackClock mPlaybackClock = new PlaybackClock(STATE_STOPPED, 0, 0, 0, -1);
+    private long mLastClockCheckUptime;
     private int mState = STATE_STOPPED;
     private boolean mIsResuming;
     private boolean mIsStopping;
@@ -136,7 +192,7 @@ public class PlaybackService extends Service
     private boolean mHasAudioFocus;
     private boolean mRepeatMode;
     private boolean mShuffleMode;
-    private Prefetcher mPrefetcher;
+    private PrefetchScheduler mPrefetchScheduler;
     private IRemoteMetadataManager mRemoteMetadata;
     private PowerManager.WakeLock mWakeLock;
     private boolean mIsForeground;
@@ -151,6 +207,30 @@ public class PlaybackService extends Service
     private PlaybackProviderCallback mProviderCallback = new PlaybackProviderCallback(new WeakReference<>(this));
     private boolean mShouldFlushBuffers = false;
 
+    // Guarded by itself, as broadcasts can't be nested
+    private final RemoteCallbackList<IAudioLevelsCallback> mLevelsCallbacks = new RemoteCallbackList<>();
+    private final AudioLevelsAnalyzer.Listener mLevelsListener = new AudioLevelsAnalyzer.Listener() {
+        @Override
+        public void onAudioLevels(float peak, float rms, float[] bands) {
+            synchronized (mLevelsCallbacks) {
+                final int count = mLevelsCallbacks.beginBroadcast();
+                for (int i = 0; i < count; ++i) {
+                    try {
+                        mLevelsCallbacks.getBroadcastItem(i).onAudioLevels(peak, rms, bands);
+                    } catch (RemoteException e) {
+                        // Dead callbacks are removed from the list automatically
+                    }
+                }
+                mLevelsCallbacks.finishBroadcast();
+
+                // Stop analyzing once all the visualizers are gone
+                if (count == 0 && mNativeHub != null) {
+                    mNativeHub.getLevelsAnalyzer().setListener(null);
+                }
+            }
+        }
+    };
+
     private static class CommandHandler extends Handler {
         private WeakReference<PlaybackService> mService;
         private static final int MSG_START_PLAYBACK = 1;
@@ -222,7 +302,8 @@ public class PlaybackService extends Service
     public void onCreate() {
         super.onCreate();
         mListenLogger = new ListenLogger(this);
-        mPrefetcher = new Prefetcher(this);
+        mPrefetchScheduler = new PrefetchScheduler(this, mHandler,
+                PrefetchScheduler.DEFAULT_LOOKAHEAD);
 
         mCommandsHandlerThread = new HandlerThread("PlaybackServiceCommandsHandler");
         mCommandsHandlerThread.start();
@@ -328,14 +409,17 @@ public class PlaybackService extends Service
         //  - The callbacks of the main app's UI
         //  - The providers connecting
         //  - The providers ready to send us data
+        mQueueJournal = new PlaybackQueueJournal(new File(getFilesDir(), QUEUE_JOURNAL_FILE));
         mHandler.postDelayed(new Runnable() {
             @Override
             public void run() {
-                SharedPreferences queuePrefs = getSharedPreferences(QUEUE_SHARED_PREFS, MODE_PRIVATE);
-                mPlaybackQueue.restore(queuePrefs);
-                mCurrentTrack = queuePrefs.getInt("current", -1);
-                mCurrentTrackLoaded = false;
-                mNotification.setHasNext(mPlaybackQueue.size() > 1 || (mPlaybackQueue.size() > 0 && mRepeatMode));
+                // Resolving the songs blocks on the providers
+                new Thread("PlaybackQueueRestore") {
+                    @Override
+                    public void run() {
+                        restorePlaybackQueue();
+                    }
+                }.start();
             }
         }, 1000);
     }
@@ -351,9 +435,7 @@ public class PlaybackService extends Service
         mRemoteMetadata.release();
 
         // Cancel prefetching
-        mHandler.removeCallbacks(mPrefetcher);
-        mPrefetcher.cancel();
-        mPrefetcher = null;
+        mPrefetchScheduler.release();
 
         if (mHasAudioFocus) {
             abandonAudioFocus();
@@ -379,7 +461,11 @@ public class PlaybackService extends Service
         PluginsLookup.getDefault().tearDown(mNativeHub);
 
         // Store the playback queue
-        savePlaybackQueue();
+        mQueueRestoreCancelled = true;
+        synchronized (mPlaybackQueue) {
+            savePlaybackQueue();
+            mPlaybackQueue.detachJournal();
+        }
 
         // Shutdown DSP chain
         mNativeHub.onStop();
@@ -539,9 +625,115 @@ public class PlaybackService extends Service
      * Saves the playback queue in the local storage
      */
     private void savePlaybackQueue() {
-        SharedPreferences queuePrefs = getSharedPreferences(QUEUE_SHARED_PREFS, MODE_PRIVATE);
-        mPlaybackQueue.save(queuePrefs.edit());
-        queuePrefs.edit().putInt("current", mCurrentTrack).apply();
+        mPlaybackQueue.save(mCurrentTrack);
+    }
+
+    /**
+     * Restores the playback queue saved in the journal. The songs around the current track are
+     * resolved first, so that playback can resume right away, then the rest of the queue is
+     * resolved by batches. If the queue is changed meanwhile, the rest of the saved queue is
+     * dropped. Changes are journaled again once the restore is over.
+     */
+    private void restorePlaybackQueue() {
+        PlaybackQueueJournal.Snapshot snapshot = mQueueJournal.load();
+        final boolean fromLegacy = (snapshot == null && !mQueueJournal.exists());
+        if (fromLegacy) {
+            snapshot = PlaybackQueue.readLegacy(getSharedPreferences(QUEUE_SHARED_PREFS, MODE_PRIVATE));
+        }
+
+        if (snapshot != null && snapshot.size() > 0) {
+            final int size = snapshot.size();
+            final int current = snapshot.current < 0 ? -1 : Math.min(snapshot.current, size - 1);
+            final int start = Math.max(0,
+                    Math.min(current - RESTORE_WINDOW / 2, size - RESTORE_WINDOW));
+            final int end = Math.min(size, start + RESTORE_WINDOW);
+
+            // Songs around the current track
+            boolean complete = restoreQueueRange(snapshot, start, end, current, -1);
+
+            // Songs before them, the closest first
+            for (int batchEnd = start; complete && batchEnd > 0; batchEnd -= RESTORE_BATCH) {
+                complete = restoreQueueRange(snapshot, Math.max(0, batchEnd - RESTORE_BATCH),
+                        batchEnd, -1, 0);
+            }
+
+            // Songs after them
+            for (int batchStart = end; complete && batchStart < size; batchStart += RESTORE_BATCH) {
+                complete = restoreQueueRange(snapshot, batchStart,
+                        Math.min(size, batchStart + RESTORE_BATCH), -1, Integer.MAX_VALUE);
+            }
+
+            if (complete) {
+                mPlaybackQueue.restoreShuffleOrder(snapshot.shuffleOrder.getOrder(),
+                        snapshot.shuffleOrder.getCursor());
+            }
+        }
+
+        synchronized (mPlaybackQueue) {
+            if (!mQueueRestoreCancelled) {
+                mPlaybackQueue.attachJournal(mQueueJournal, mCurrentTrack);
+            }
+        }
+
+        if (fromLegacy) {
+            getSharedPreferences(QUEUE_SHARED_PREFS, MODE_PRIVATE).edit().clear().apply();
+        }
+    }
+
+    /**
+     * Resolves a range of the saved queue and inserts it in the playback queue
+     * @param snapshot The saved queue
+     * @param start The index of the first song of the range
+     * @param end The index after the last song of the range
+     * @param current The index of the current track if it's in the range, -1 otherwise
+     * @param position The position where the songs are inserted in the queue, -1 if the queue is
+     *                 still empty, 0 to insert them at the top, Integer.MAX_VALUE to append them
+     * @return false if the queue was changed since the songs were last inserted, in which case
+     *         the restore stops
+     */
+    private boolean restoreQueueRange(PlaybackQueueJournal.Snapshot snapshot, int start, int end,
+                                      int current, int position) {
+        final List<Song> songs = PlaybackQueue.resolveSongs(snapshot.refs.subList(start, end),
+                snapshot.providers.subList(start, end));
+
+        synchronized (mPlaybackQueue) {
+            if (mQueueRestoreCancelled
+                    || (position < 0 && mPlaybackQueue.size() > 0)
+                    || (position >= 0 && mPlaybackQueue.getVersion() != mRestoredQueueVersion)) {
+                Log.w(TAG, "Playback queue changed while restoring it, dropping the saved queue");
+                return false;
+            }
+
+            int inserted = 0;
+            for (int i = 0; i < songs.size(); ++i) {
+                final Song song = songs.get(i);
+                if (start + i == current) {
+                    mCurrentTrack = mPlaybackQueue.size();
+                }
+                if (song == null) {
+                    continue;
+                }
+
+                if (position == 0) {
+                    mPlaybackQueue.add(inserted, song);
+                } else {
+                    mPlaybackQueue.add(song);
+                }
+                inserted++;
+            }
+
+            if (position < 0) {
+                mCurrentTrack = Math.min(mCurrentTrack, mPlaybackQueue.size() - 1);
+                mCurrentTrackLoaded = false;
+            } else if (position == 0 && mCurrentTrack >= 0) {
+                // Keep pointing to the same song
+                mCurrentTrack += inserted;
+            }
+            mRestoredQueueVersion = mPlaybackQueue.getVersion();
+        }
+
+        notifyQueueChanged();
+        return true;
     }
 
     /**
@@ -683,6 +875,7 @@ public class PlaybackService extends Service
                     IMusicProvider provider = connection.getBinder();
                     if (provider != null) {
                         mState = STATE_BUFFERING;
+                        setPositionAnchor(0);
 
                         for (IPlaybackCallback cb : mCallbacks) {
                             try {
@@ -691,6 +884,7 @@ public class PlaybackService extends Service
                                 Log.e(TAG, "Cannot call playback callback for song start event", e);
                             }
                         }
+                        publishPlaybackClock();
 
                         Log.d(TAG, "onSongStarted: Buffering...");
 
@@ -711,6 +905,7 @@ public class PlaybackService extends Service
                             mCurrentPlayingProvider = providerId;
 
                             requestAudioFocus();
+                            mPrefetchScheduler.onTrackStarting(next);
 
                             try {
                                 provider.playSong(next.getRef());
@@ -790,11 +985,8 @@ public class PlaybackService extends Service
     void nextImpl() {
         boolean hasNext = mCurrentTrack < mPlaybackQueue.size() - 1;
         if (mPlaybackQueue.size() > 1 && mShuffleMode) {
-            // Shuffle mode is enabled, play any track but not the one we just played
-            int previousTrack = mCurrentTrack;
-            while (previousTrack == mCurrentTrack) {
-                mCurrentTrack = Utils.getRandom(mPlaybackQueue.size());
-            }
+            // Shuffle mode is enabled, play the next track of the shuffle order
+            mCurrentTrack = mPlaybackQueue.moveToShuffledNext(mCurrentTrack);
 
             mNativeSink.setPaused(true);
             mShouldFlushBuffers = true;
@@ -910,6 +1102,8 @@ public class PlaybackService extends Service
                 mNotification.setPlayPauseAction(true);
                 mRemoteMetadata.notifyPaused(getCurrentTrackPositionImpl());
             }
+
+            publishPlaybackClock();
         }
     }
 
@@ -934,6 +1128,7 @@ public class PlaybackService extends Service
         }
 
         mState = STATE_STOPPED;
+        publishPlaybackClock();
         mIsStopping = true;
         stopForeground(true);
         mIsForeground = false;
@@ -976,6 +1171,7 @@ public class PlaybackService extends Service
                             Log.e(TAG, "Cannot call playback callback for song start event", e);
                         }
                     }
+                    publishPlaybackClock();
 
                     requestAudioFocus();
                     mNotification.setPlayPauseAction(false);
@@ -1004,19 +1200,117 @@ public class PlaybackService extends Service
     }
 
     /**
-     * @return The reference to the next track in the queue
+     * @return The reference to the next track in the queue, following the shuffle order in
+     *         shuffle mode
      */
     public Song getNextTrack() {
-        if (mCurrentTrack < mPlaybackQueue.size() - 1) {
-            return mPlaybackQueue.get(mCurrentTrack + 1);
-        } else {
-            // No more tracks
-            return null;
+        synchronized (mPlaybackQueue) {
+            if (mPlaybackQueue.size() > 1 && mShuffleMode) {
+                return mPlaybackQueue.get(mPlaybackQueue.getShuffledNext(mCurrentTrack));
+            } else if (mCurrentTrack < mPlaybackQueue.size() - 1) {
+                return mPlaybackQueue.get(mCurrentTrack + 1);
+            } else {
+                // No more tracks
+                return null;
+            }
         }
     }
 
+    /**
+     * @return The position of the current track, in milliseconds, from the number of bytes the
+     *         sink played since the last position anchor
+     */
     public int getCurrentTrackPositionImpl() {
-        return (int) mCurrentTrackElapsedMs;
+        synchronized (mPositionLock) {
+            final long written = mNativeSink.getWrittenSamples();
+            if (written < mPositionAnchorBytes) {
+                // The sink has been flushed since the anchor was set
+                mPositionAnchorBytes = 0;
+            }
+
+            // 16 bits samples
+            final long bytesPerSecond = (long) mSinkSampleRate * mSinkChannels * 2;
+            if (bytesPerSecond <= 0) {
+                return (int) mPositionAnchorMs;
+            }
+            return (int) (mPositionAnchorMs
+                    + (written - mPositionAnchorBytes) * 1000 / bytesPerSecond);
+        }
+    }
+
+    /**
+     * Sets the position of the current track at the number of bytes the sink wrote so far
+     * @param positionMs The position, in milliseconds
+     */
+    private void setPositionAnchor(long positionMs) {
+        synchronized (mPositionLock) {
+            mPositionAnchorMs = positionMs;
+            mPositionAnchorBytes = mNativeSink.getWrittenSamples();
+        }
+    }
+
+    /**
+     * Takes a snapshot of the playback position and pushes it to the callbacks, which extrapolate
+     * the position from it
+     */
+    private void publishPlaybackClock() {
+        final Song currentSong = getCurrentSong();
+        final int state = mState;
+        mPlaybackClock = new PlaybackClock(state, getCurrentTrackPositionImpl(),
+                SystemClock.uptimeMillis(), state == STATE_PLAYING ? 1.0f : 0.0f,
+                currentSong != null ? currentSong.getDuration() : -1);
+
+        mHandler.removeCallbacks(mNotifyClockChangedRunnable);
+        mHandler.post(mNotifyClockChangedRunnable);
+
+        // The upcoming tracks now start at another time
+        mPrefetchScheduler.reschedule();
+    }
+
+    /**
+     * @return The time left before the end of the current track, in milliseconds, or -1 if the
+     *         playback isn't running
+     */
+    long getCurrentTrackRemainingMs() {
+        final Song currentSong = getCurrentSong();
+        if (mState != STATE_PLAYING || currentSong == null) {
+            return -1;
+        }
+        return Math.max(0, currentSong.getDuration() - getCurrentTrackPositionImpl());
+    }
+
+    /**
+     * Returns the tracks played after the current one, following the shuffle order in shuffle
+     * mode, and going back to the start of the queue in repeat mode
+     * @param count The maximum number of tracks
+     * @return The upcoming tracks, in order
+     */
+    List<Song> getUpcomingTracks(int count) {
+        final List<Song> upcoming = new ArrayList<>();
+        synchronized (mPlaybackQueue) {
+            final int size = mPlaybackQueue.size();
+            if (size > 1 && mShuffleMode) {
+                for (int index : mPlaybackQueue.getShuffledUpcoming(mCurrentTrack, count)) {
+                    upcoming.add(mPlaybackQueue.get(index));
+                }
+            } else {
+                for (int i = 1; i <= count; ++i) {
+                    int index = mCurrentTrack + i;
+                    if (index >= size) {
+                        if (!mRepeatMode) {
+                            break;
+                        }
+                        index %= size;
+                    }
+                    if (index == mCurrentTrack) {
+                        // Wrapped around the whole queue
+                        break;
+                    }
+                    upcoming.add(mPlaybackQueue.get(index));
+                }
+            }
+        }
+        return upcoming;
     }
 
     void seekImpl(final long timeMs) {
@@ -1035,7 +1329,7 @@ public class PlaybackService extends Service
                     try {
                         provider.seek(timeMs);
                         success = true;
-                        mCurrentTrackElapsedMs = timeMs;
+                        setPositionAnchor(timeMs);
                     } catch (RemoteException e) {
                         Log.e(TAG, "Cannot seek to time", e);
                     } catch (Exception e) {
@@ -1046,6 +1340,7 @@ public class PlaybackService extends Service
         }
 
         if (success) {
+            publishPlaybackClock();
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
@@ -1204,6 +1499,7 @@ public class PlaybackService extends Service
                 } else {
                     service.mPlaybackQueue.add(0, s);
                 }
+                service.notifyQueueChanged();
             }
         }
 
@@ -1266,6 +1562,17 @@ public class PlaybackService extends Service
             }
         }
 
+        @Override
+        public PlaybackClock getPlaybackClock() throws RemoteException {
+            PlaybackService service = mParent.get();
+
+            if (service != null) {
+                return service.mPlaybackClock;
+            } else {
+                return null;
+            }
+        }
+
         @Override
         public Song getCurrentTrack() throws RemoteException {
             PlaybackService service = mParent.get();
@@ -1299,6 +1606,39 @@ public class PlaybackService extends Service
             }
         }
 
+        @Override
+        public int getQueueVersion() {
+            PlaybackService service = mParent.get();
+
+            if (service != null) {
+                return service.mPlaybackQueue.getVersion();
+            } else {
+                return -1;
+            }
+        }
+
+        @Override
+        public int getQueueSize() {
+            PlaybackService service = mParent.get();
+
+            if (service != null) {
+                return service.mPlaybackQueue.size();
+            } else {
+                return 0;
+            }
+        }
+
+        @Override
+        public List<Song> getQueueRange(int version, int offset, int count) {
+            PlaybackService service = mParent.get();
+
+            if (service != null) {
+                return service.mPlaybackQueue.getRange(version, offset, count);
+            } else {
+                return null;
+            }
+        }
+
         @Override
         public int getCurrentRms() throws RemoteException {
             PlaybackService service = mParent.get();
@@ -1310,6 +1650,34 @@ public class PlaybackService extends Service
             }
         }
 
+        @Override
+        public void addAudioLevelsCallback(IAudioLevelsCallback cb) throws RemoteException {
+            PlaybackService service = mParent.get();
+
+            if (service != null && service.mNativeHub != null) {
+                synchronized (service.mLevelsCallbacks) {
+                    service.mLevelsCallbacks.register(cb);
+                    service.mNativeHub.getLevelsAnalyzer().setListener(service.mLevelsListener);
+                }
+            }
+        }
+
+        @Override
+        public void removeAudioLevelsCallback(IAudioLevelsCallback cb) throws RemoteException {
+            PlaybackService service = mParent.get();
+
+            if (service != null) {
+                synchronized (service.mLevelsCallbacks) {
+                    service.mLevelsCallbacks.unregister(cb);
+                    final int count = service.mLevelsCallbacks.beginBroadcast();
+                    service.mLevelsCallbacks.finishBroadcast();
+                    if (count == 0 && service.mNativeHub != null) {
+                        service.mNativeHub.getLevelsAnalyzer().setListener(null);
+                    }
+                }
+            }
+        }
+
         @Override
         public List<ProviderIdentifier> getDSPChain() throws RemoteException {
             PlaybackService service = mParent.get();
@@ -1381,6 +1749,7 @@ public class PlaybackService extends Service
 
             if (service != null) {
                 service.mRepeatMode = repeat;
+                service.mPrefetchScheduler.reschedule();
                 SharedPreferences prefs = service.getSharedPreferences(SERVICE_SHARED_PREFS, MODE_PRIVATE);
                 SharedPreferences.Editor editor = prefs.edit();
                 editor.putBoolean(PREF_KEY_REPEAT, repeat);
@@ -1404,7 +1773,12 @@ public class PlaybackService extends Service
             PlaybackService service = mParent.get();
 
             if (service != null) {
+                if (shuffle && !service.mShuffleMode) {
+                    // Start a new shuffle cycle from the current track
+                    service.mPlaybackQueue.shuffle(service.mCurrentTrack);
+                }
                 service.mShuffleMode = shuffle;
+                service.mPrefetchScheduler.reschedule();
                 SharedPreferences prefs = service.getSharedPreferences(SERVICE_SHARED_PREFS, MODE_PRIVATE);
                 SharedPreferences.Editor editor = prefs.edit();
                 editor.putBoolean(PREF_KEY_SHUFFLE, shuffle);
@@ -1431,6 +1805,7 @@ public class PlaybackService extends Service
                 synchronized (service.mPlaybackQueue) {
                     service.mPlaybackQueue.clear();
                 }
+                service.notifyQueueChanged();
             }
         }
 
@@ -1529,13 +1904,12 @@ public class PlaybackService extends Service
                 if (wasPaused) {
                     service.mIsResuming = false;
                 } else {
-                    service.mCurrentTrackElapsedMs = 0;
-
                     // Flush and unpause the sink to clear previous track data (if from user action)
                     if (service.mShouldFlushBuffers) {
                         service.mNativeSink.flushSamples();
                     }
                     service.mNativeSink.setPaused(false);
+                    service.setPositionAnchor(0);
                 }
 
                 service.mState = STATE_PLAYING;
@@ -1557,29 +1931,13 @@ public class PlaybackService extends Service
                         Log.e(TAG, "Cannot call playback callback for song start event", e);
                     }
                 }
+                service.publishPlaybackClock();
 
                 Log.d(TAG, "onSongPlaying: Playing...");
 
                 service.mNotification.setPlayPauseAction(false);
                 service.mRemoteMetadata.notifyPlaying(0);
 
-                // Prepare pre-fetching the next song
-                // Note: We don't take care of the delay being too early when it's paused, as long
-                // as it matches the next track.
-                ProviderConnection conn = PluginsLookup.getDefault().getProvider(provider);
-                if (conn != null) {
-                    IMusicProvider binder = conn.getBinder();
-                    if (binder != null) {
-                        try {
-                            service.mHandler.removeCallbacks(service.mPrefetcher);
-                            service.mHandler.postDelayed(service.mPrefetcher,
-                                    currentSong.getDuration() - binder.getPrefetchDelay());
-                        } catch (RemoteException e) {
-                            Log.e(TAG, "Cannot get prefetch delay from provider", e);
-                        }
-                    }
-                }
-
                 // Save the queue as we started playing a new song (maybe)
                 service.savePlaybackQueue();
             }
@@ -1605,6 +1963,7 @@ public class PlaybackService extends Service
                         }
                     }
 
+                    service.publishPlaybackClock();
                     Log.d(TAG, "onSongPaused: Paused...");
 
                     // stopImpl() calls pauseImpl(), which may cause the notification to come back
@@ -1628,11 +1987,9 @@ public class PlaybackService extends Service
                 // callback.
 
                 if (service.mPlaybackQueue.size() > 1 && service.mShuffleMode) {
-                    // Shuffle mode is enabled, play any track but not the one we just played
-                    int previousTrack = service.mCurrentTrack;
-                    while (previousTrack == service.mCurrentTrack) {
-                        service.mCurrentTrack = Utils.getRandom(service.mPlaybackQueue.size());
-                    }
+                    // Shuffle mode is enabled, play the next track of the shuffle order
+                    service.mCurrentTrack =
+                            service.mPlaybackQueue.moveToShuffledNext(service.mCurrentTrack);
 
                     service.mShouldFlushBuffers = false;
                     service.requestStartPlayback();
@@ -1698,8 +2055,20 @@ public class PlaybackService extends Service
 
     @Override
     public void onSampleWritten(byte[] bytes, int len, int sampleRate, int channels) {
-        len = len / 2; // first, we want the number of samples, and we assume 16 bits audio
-        len = len / channels; // then, we count "mono"
-        mCurrentTrackElapsedMs += len * 1000 / sampleRate;
+        // The position itself is computed from the bytes written to the sink, without
+        // accumulating rounding errors here
+        mSinkSampleRate = sampleRate;
+        mSinkChannels = channels;
+
+        // Publish a new clock if the playback drifted from the current one, for instance because
+        // the sink ran out of samples
+        final long now = SystemClock.uptimeMillis();
+        if (mState == STATE_PLAYING && now - mLastClockCheckUptime >= CLOCK_CHECK_INTERVAL_MS) {
+            mLastClockCheckUptime = now;
+            final int drift = getCurrentTrackPositionImpl() - mPlaybackClock.getPositionAt(now);
+            if (Math.abs(drift) > CLOCK_MAX_DRIFT_MS) {
+                publishPlaybackClock();
+            }
+        }
     }
 }
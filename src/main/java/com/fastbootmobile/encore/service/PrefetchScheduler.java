@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.service;
+
+import android.os.Handler;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.fastbootmobile.encore.framework.PluginsLookup;
+import com.fastbootmobile.encore.model.Song;
+import com.fastbootmobile.encore.providers.IMusicProvider;
+import com.fastbootmobile.encore.providers.ProviderConnection;
+import com.fastbootmobile.encore.providers.ProviderIdentifier;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Schedules the pre-fetch of the upcoming tracks of the playback queue. Each of the next tracks
+ * is pre-fetched as long before it starts as its provider asks for through
+ * {@link IMusicProvider#getPrefetchDelay()}, and at most a few pre-fetches run at once for each
+ * provider. The schedule is computed again when the playback or the queue changes, dropping the
+ * pre-fetches that aren't needed anymore. The scheduling runs on the provided handler's thread.
+ * The hit rate, i.e. how often a track starts while its pre-fetch is still warm, is logged.
+ */
+public class PrefetchScheduler {
+    private static final String TAG = "PrefetchScheduler";
+
+    /**
+     * Default number of upcoming tracks pre-fetched
+     */
+    public static final int DEFAULT_LOOKAHEAD = 3;
+
+    /**
+     * Maximum number of pre-fetches running at once for each provider
+     */
+    private static final int MAX_CONCURRENT_PER_PROVIDER = 1;
+
+    /**
+     * Number of threads running the pre-fetch calls, which may block on the providers
+     */
+    private static final int PREFETCH_THREADS = 2;
+
+    private final PlaybackService mService;
+    private final Handler mHandler;
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(PREFETCH_THREADS);
+    private final int mLookahead;
+
+    // Accessed from the handler's thread only, providers are keyed by their serialized identifier
+    private int mGeneration;
+    private final List<Runnable> mScheduled = new ArrayList<>();
+    private final Map<String, Long> mPrefetchDelays = new HashMap<>();
+    private final Map<String, Integer> mRunning = new HashMap<>();
+    private final Map<String, LinkedList<Song>> mWaiting = new HashMap<>();
+    private final Set<String> mInFlight = new HashSet<>();
+
+    // Guarded by itself. Providers may only keep their last pre-fetched song, so we only remember
+    // the last song pre-fetched for each provider.
+    private final Map<String, String> mWarmSongs = new HashMap<>();
+    private int mHitCount;
+    private int mMissCount;
+
+    private final Runnable mRescheduleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            rescheduleImpl();
+        }
+    };
+
+    /**
+     * @param service The playback service
+     * @param handler The handler on which the pre-fetches are scheduled
+     * @param lookahead The number of upcoming tracks pre-fetched
+     */
+    public PrefetchScheduler(PlaybackService service, Handler handler, int lookahead) {
+        mService = service;
+        mHandler = handler;
+        mLookahead = Math.max(0, lookahead);
+    }
+
+    /**
+     * Computes the schedule again, for instance because the playback position, the playback state
+     * or the queue changed. Can be called from any thread.
+     */
+    public void reschedule() {
+        mHandler.removeCallbacks(mRescheduleRunnable);
+        mHandler.post(mRescheduleRunnable);
+    }
+
+    /**
+     * Notifies a track is about to be played, to compute the pre-fetch hit rate
+     * @param song The track
+     */
+    public void onTrackStarting(Song song) {
+        final String provider = song.getProvider().serialize();
+        synchronized (mWarmSongs) {
+            final boolean hit = song.getRef().equals(mWarmSongs.get(provider));
+            if (hit) {
+                // Playing the song consumes its pre-fetch
+                mWarmSongs.remove(provider);
+                mHitCount++;
+            } else {
+                mMissCount++;
+            }
+            Log.d(TAG, "Track starting " + (hit ? "pre-fetched" : "not pre-fetched")
+                    + ", hit rate " + getHitRateLocked());
+        }
+    }
+
+    /**
+     * Cancels the scheduled pre-fetches and stops the pre-fetch threads
+     */
+    public void release() {
+        synchronized (mWarmSongs) {
+            Log.i(TAG, "Pre-fetch hit rate " + getHitRateLocked());
+        }
+
+        mHandler.removeCallbacks(mRescheduleRunnable);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                cancelScheduled();
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    private void cancelScheduled() {
+        for (Runnable runnable : mScheduled) {
+            mHandler.removeCallbacks(runnable);
+        }
+        mScheduled.clear();
+        mWaiting.clear();
+        mGeneration++;
+    }
+
+    private void rescheduleImpl() {
+        cancelScheduled();
+        if (mExecutor.isShutdown()) {
+            return;
+        }
+
+        // Nothing is scheduled while paused, as we don't know when the tracks will start
+        long untilStart = mService.getCurrentTrackRemainingMs();
+        if (untilStart < 0) {
+            return;
+        }
+
+        // Providers may keep a single pre-fetched song (e.g. the local provider keeps one decoder
+        // ready), so only the first upcoming song of each provider is scheduled. The next ones get
+        // scheduled when that song starts.
+        final Set<String> providers = new HashSet<>();
+
+        for (final Song song : mService.getUpcomingTracks(mLookahead)) {
+            if (song == null) {
+                continue;
+            }
+
+            final long delay = untilStart - getPrefetchDelay(song.getProvider());
+            untilStart += Math.max(0, song.getDuration());
+
+            if (!providers.add(song.getProvider().serialize())) {
+                continue;
+            }
+            if (isWarm(song) || mInFlight.contains(song.getRef())) {
+                continue;
+            }
+
+            final int generation = mGeneration;
+            final Runnable runnable = new Runnable() {
+                @Override
+                public void run() {
+                    mScheduled.remove(this);
+                    if (generation == mGeneration) {
+                        request(song);
+                    }
+                }
+            };
+            mScheduled.add(runnable);
+            mHandler.postDelayed(runnable, Math.max(0, delay));
+        }
+    }
+
+    /**
+     * Pre-fetches a song now, or once a pre-fetch of the same provider is done
+     */
+    private void request(final Song song) {
+        if (mExecutor.isShutdown()) {
+            return;
+        }
+
+        final String provider = song.getProvider().serialize();
+        final Integer running = mRunning.get(provider);
+        if (running != null && running >= MAX_CONCURRENT_PER_PROVIDER) {
+            LinkedList<Song> waiting = mWaiting.get(provider);
+            if (waiting == null) {
+                waiting = new LinkedList<>();
+                mWaiting.put(provider, waiting);
+            }
+            waiting.add(song);
+            return;
+        }
+
+        final IMusicProvider binder = getBinder(song.getProvider());
+        if (binder == null) {
+            return;
+        }
+
+        mRunning.put(provider, running == null ? 1 : running + 1);
+        mInFlight.add(song.getRef());
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = false;
+                try {
+                    binder.prefetchSong(song.getRef());
+                    success = true;
+                } catch (RemoteException e) {
+                    Log.e(TAG, "Cannot pre-fetch song", e);
+                }
+
+                final boolean warm = success;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPrefetchDone(song, warm);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onPrefetchDone(Song song, boolean warm) {
+        final String provider = song.getProvider().serialize();
+        mInFlight.remove(song.getRef());
+        mRunning.put(provider, mRunning.get(provider) - 1);
+
+        if (warm) {
+            // The provider drops what it pre-fetched before
+            synchronized (mWarmSongs) {
+                mWarmSongs.put(provider, song.getRef());
+            }
+        }
+
+        // Start the next pre-fetch waiting for this provider
+        final LinkedList<Song> waiting = mWaiting.get(provider);
+        if (waiting != null && !waiting.isEmpty() && !mExecutor.isShutdown()) {
+            request(waiting.removeFirst());
+        }
+    }
+
+    private boolean isWarm(Song song) {
+        synchronized (mWarmSongs) {
+            return song.getRef().equals(mWarmSongs.get(song.getProvider().serialize()));
+        }
+    }
+
+    /**
+     * @return The hit count, miss count and hit rate, for logging. Must be called with the warm
+     *         songs lock held.
+     */
+    private String getHitRateLocked() {
+        final int total = mHitCount + mMissCount;
+        return mHitCount + "/" + total + " (" + (total > 0 ? 100 * mHitCount / total : 0) + "%)";
+    }
+
+    private long getPrefetchDelay(ProviderIdentifier provider) {
+        final String key = provider.serialize();
+        Long delay = mPrefetchDelays.get(key);
+        if (delay == null) {
+            final IMusicProvider binder = getBinder(provider);
+            if (binder == null) {
+                return 0;
+            }
+
+            try {
+                delay = binder.getPrefetchDelay();
+                mPrefetchDelays.put(key, delay);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Cannot get prefetch delay from provider", e);
+                return 0;
+            }
+        }
+        return delay;
+    }
+
+    private static IMusicProvider getBinder(ProviderIdentifier provider) {
+        final ProviderConnection conn = PluginsLookup.getDefault().getProvider(provider);
+        return conn != null ? conn.getBinder() : null;
+    }
+}
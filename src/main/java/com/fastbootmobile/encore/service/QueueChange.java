@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.service;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.fastbootmobile.encore.model.Song;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A change of the playback queue: songs inserted or removed at a position
+ */
+public class QueueChange implements Parcelable {
+    /**
+     * Songs inserted at the position
+     */
+    public static final int TYPE_INSERT = 0;
+
+    /**
+     * Songs removed from the position
+     */
+    public static final int TYPE_REMOVE = 1;
+
+    private int mType;
+    private int mPosition;
+    private int mCount;
+    private List<Song> mSongs;
+
+    public static final Creator<QueueChange> CREATOR = new Creator<QueueChange>() {
+        @Override
+        public QueueChange createFromParcel(Parcel source) {
+            return new QueueChange(source);
+        }
+
+        @Override
+        public QueueChange[] newArray(int size) {
+            return new QueueChange[size];
+        }
+    };
+
+    QueueChange(int type, int position, int count, List<Song> songs) {
+        mType = type;
+        mPosition = position;
+        mCount = count;
+        mSongs = songs;
+    }
+
+    private QueueChange(Parcel in) {
+        mType = in.readInt();
+        mPosition = in.readInt();
+        mCount = in.readInt();
+        mSongs = in.createTypedArrayList(Song.CREATOR);
+    }
+
+    /**
+     * @return One of the TYPE_ constants
+     */
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * @return The position of the first song inserted or removed
+     */
+    public int getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * @return The number of songs inserted or removed
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the songs inserted. Large insertions don't carry their songs, which must then be
+     * fetched with {@link IPlaybackService#getQueueRange(int, int, int)}.
+     * @return The songs inserted, or null if they must be fetched
+     */
+    public List<Song> getSongs() {
+        return mSongs;
+    }
+
+    /**
+     * Adds an inserted song to this insertion
+     * @param index The index of the song in this insertion
+     * @param song The song inserted
+     */
+    void addSong(int index, Song song) {
+        if (mSongs == null) {
+            mSongs = new ArrayList<>();
+        }
+        mSongs.add(index, song);
+        mCount++;
+    }
+
+    /**
+     * @return A copy of this change without its songs
+     */
+    QueueChange withoutSongs() {
+        return new QueueChange(mType, mPosition, mCount, null);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mType);
+        dest.writeInt(mPosition);
+        dest.writeInt(mCount);
+        dest.writeTypedList(mSongs);
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.service;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Order in which the songs of the playback queue are played in shuffle mode: a permutation of the
+ * queue indexes, and a cursor on the song currently playing. The songs after the cursor haven't
+ * been played in the current cycle, so no song repeats until all of them have been played, and the
+ * upcoming songs are known in advance. Songs inserted in the queue are inserted at a random
+ * position after the cursor. Not thread-safe.
+ */
+class ShuffleOrder {
+    private final Random mRandom = new Random();
+    private int[] mOrder = new int[16];
+    private int mSize;
+    private int mCursor = -1;
+    private int mReorderCount;
+
+    /**
+     * @return The number of songs in the order
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Shuffles the whole queue again, starting a new cycle from the provided song
+     * @param current The queue index of the song playing, or -1 if none
+     */
+    void shuffle(int current) {
+        for (int i = 0; i < mSize; ++i) {
+            mOrder[i] = i;
+        }
+
+        // Fisher-Yates
+        for (int i = mSize - 1; i > 0; --i) {
+            swap(i, mRandom.nextInt(i + 1));
+        }
+
+        mCursor = -1;
+        if (current >= 0 && current < mSize) {
+            swap(0, indexOf(current));
+            mCursor = 0;
+        }
+        mReorderCount++;
+    }
+
+    /**
+     * Returns the song to play after the provided one. If all the songs were played, a new cycle
+     * starts.
+     * @param current The queue index of the song playing, or -1 if none
+     * @return The queue index of the next song, or -1 if the queue is empty
+     */
+    int peekNext(int current) {
+        if (mSize == 0) {
+            return -1;
+        }
+
+        setCurrent(current);
+        if (mCursor == mSize - 1) {
+            shuffle(current);
+        }
+        return mOrder[mCursor + 1 < mSize ? mCursor + 1 : mCursor];
+    }
+
+    /**
+     * Moves to the song to play after the provided one
+     * @param current The queue index of the song playing, or -1 if none
+     * @return The queue index of the next song, or -1 if the queue is empty
+     */
+    int moveToNext(int current) {
+        final int next = peekNext(current);
+        if (next >= 0 && mCursor + 1 < mSize) {
+            mCursor++;
+        }
+        return next;
+    }
+
+    /**
+     * Returns the songs to play after the provided one in the current cycle
+     * @param current The queue index of the song playing, or -1 if none
+     * @param count The maximum number of songs
+     * @return The queue indexes of the upcoming songs, in order
+     */
+    int[] getUpcoming(int current, int count) {
+        if (count <= 0 || mSize == 0) {
+            return new int[0];
+        }
+
+        // Starts a new cycle if the current one is over
+        peekNext(current);
+        final int start = mCursor + 1;
+        return Arrays.copyOfRange(mOrder, start, Math.min(mSize, start + count));
+    }
+
+    /**
+     * Updates the order after a song was inserted in the queue. The song is played at a random
+     * point among the songs not played yet.
+     * @param index The queue index of the song
+     * @return The position of the song in the order
+     */
+    int onInsert(int index) {
+        final int first = mCursor + 1;
+        final int position = first + mRandom.nextInt(mSize - first + 1);
+        onInsert(index, position);
+        return position;
+    }
+
+    /**
+     * Updates the order after a song was inserted in the queue, at a known position in the order
+     * @param index The queue index of the song
+     * @param position The position of the song in the order
+     */
+    void onInsert(int index, int position) {
+        for (int i = 0; i < mSize; ++i) {
+            if (mOrder[i] >= index) {
+                mOrder[i]++;
+            }
+        }
+
+        position = Math.max(0, Math.min(position, mSize));
+        insertAt(position, index);
+        if (position <= mCursor) {
+            mCursor++;
+        }
+    }
+
+    /**
+     * Updates the order after a song was removed from the queue
+     * @param index The former queue index of the song
+     */
+    void onRemove(int index) {
+        final int position = indexOf(index);
+        if (position < 0) {
+            return;
+        }
+
+        System.arraycopy(mOrder, position + 1, mOrder, position, mSize - position - 1);
+        mSize--;
+        if (position <= mCursor) {
+            // The song after the cursor is still the next one
+            mCursor--;
+        }
+
+        for (int i = 0; i < mSize; ++i) {
+            if (mOrder[i] > index) {
+                mOrder[i]--;
+            }
+        }
+    }
+
+    /**
+     * Updates the order after the queue was cleared
+     */
+    void onClear() {
+        mSize = 0;
+        mCursor = -1;
+    }
+
+    /**
+     * @return A copy of the permutation, for saving it
+     */
+    int[] getOrder() {
+        return Arrays.copyOf(mOrder, mSize);
+    }
+
+    /**
+     * @return The position of the song playing in the order, or -1 if none
+     */
+    int getCursor() {
+        return mCursor;
+    }
+
+    /**
+     * Sets the position of the song playing in the order
+     */
+    void setCursor(int cursor) {
+        mCursor = Math.max(-1, Math.min(cursor, mSize - 1));
+    }
+
+    /**
+     * @return The number of times the order was changed other than by a change of the queue
+     */
+    int getReorderCount() {
+        return mReorderCount;
+    }
+
+    /**
+     * Restores a saved permutation
+     * @param order The permutation
+     * @param cursor The position of the song playing in the order
+     * @return false if the permutation isn't valid for a queue of that size
+     */
+    boolean restore(int[] order, int cursor) {
+        final boolean[] seen = new boolean[order.length];
+        for (int index : order) {
+            if (index < 0 || index >= order.length || seen[index]) {
+                return false;
+            }
+            seen[index] = true;
+        }
+
+        mOrder = Arrays.copyOf(order, Math.max(16, order.length));
+        mSize = order.length;
+        mCursor = Math.max(-1, Math.min(cursor, mSize - 1));
+        return true;
+    }
+
+    /**
+     * Moves the cursor to the provided song, if another song was picked outside of the order. If
+     * the song wasn't played yet in this cycle, it's moved right after the cursor, otherwise it's
+     * moved to the cursor, so that the songs not played yet stay the same.
+     */
+    private void setCurrent(int current) {
+        if (current < 0 || current >= mSize) {
+            return;
+        }
+        if (mCursor >= 0 && mOrder[mCursor] == current) {
+            return;
+        }
+
+        final int position = indexOf(current);
+        if (position > mCursor) {
+            moveEntry(position, mCursor + 1);
+            mCursor++;
+        } else {
+            moveEntry(position, mCursor);
+        }
+        mReorderCount++;
+    }
+
+    private void moveEntry(int from, int to) {
+        final int index = mOrder[from];
+        if (from < to) {
+            System.arraycopy(mOrder, from + 1, mOrder, from, to - from);
+        } else if (from > to) {
+            System.arraycopy(mOrder, to, mOrder, to + 1, from - to);
+        }
+        mOrder[to] = index;
+    }
+
+    private void insertAt(int position, int index) {
+        if (mSize == mOrder.length) {
+            mOrder = Arrays.copyOf(mOrder, mSize * 2);
+        }
+        System.arraycopy(mOrder, position, mOrder, position + 1, mSize - position);
+        mOrder[position] = index;
+        mSize++;
+    }
+
+    private int indexOf(int index) {
+        for (int i = 0; i < mSize; ++i) {
+            if (mOrder[i] == index) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void swap(int i, int j) {
+        final int tmp = mOrder[i];
+        mOrder[i] = mOrder[j];
+        mOrder[j] = tmp;
+    }
+}
@@ -109,27 +109,24 @@ public class Utils {
      * @return The RMS level
      */
     public static int calculateRMSLevel(short[] audioData, int numframes) {
-        long lSum = 0;
-        int numread = 0;
-        for (short s : audioData) {
-            lSum = lSum + s;
-            numread++;
-            if (numread == numframes) break;
+        final int count = Math.min(numframes, audioData.length);
+        if (count <= 0) {
+            return 0;
         }
 
-        double dAvg = lSum / numframes;
-        double sumMeanSquare = 0d;
-
-        numread = 0;
-        for (short anAudioData : audioData) {
-            sumMeanSquare = sumMeanSquare + Math.pow(anAudioData - dAvg, 2d);
-            numread++;
-            if (numread == numframes) break;
+        // Single pass: the variance is the mean of the squares minus the square of the mean
+        long sum = 0;
+        long sumSquares = 0;
+        for (int i = 0; i < count; ++i) {
+            final int sample = audioData[i];
+            sum += sample;
+            sumSquares += sample * sample;
         }
 
-        double averageMeanSquare = sumMeanSquare / numframes;
+        final double avg = (double) sum / count;
+        final double averageMeanSquare = Math.max(0, (double) sumSquares / count - avg * avg);
 
-        return (int) (Math.pow(averageMeanSquare, 0.5d) + 0.5);
+        return (int) (Math.sqrt(averageMeanSquare) + 0.5);
     }
 
     /**
@@ -10,6 +10,7 @@ import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
@@ -30,12 +31,15 @@ import javax.net.ssl.SSLSession;
 /**
  * Implements the relevant portions of the SocketChannel interface with the SSLEngine wrapper.
  */
-public class SSLSocketChannel2 implements ByteChannel, WrappedByteChannel {
+public class SSLSocketChannel2 implements ByteChannel, GatheringByteChannel, WrappedByteChannel {
 	/**
 	 * This object is used to feed the {@link SSLEngine}'s wrap and unwrap methods during the handshake phase.
 	 **/
 	protected static ByteBuffer emptybuffer = ByteBuffer.allocate( 0 );
 
+	/** The number of packets {@link #outCrypt} can hold, so that a gathering write sends several packets with a single system call */
+	protected static final int OUTCRYPT_PACKETS = 4;
+
 	protected ExecutorService exec;
 
 	protected List<Future<?>> tasks;
@@ -157,6 +161,33 @@ public class SSLSocketChannel2 implements ByteChannel, WrappedByteChannel {
 		return outCrypt;
 	}
 
+	/**
+	 * Wraps as many packets from the given buffers as {@link #outCrypt} can hold.
+	 * 
+	 * @return the number of plain bytes consumed from the buffers
+	 **/
+	private synchronized long wrap( ByteBuffer[] srcs, int offset, int length ) throws SSLException {
+		int packetsize = sslEngine.getSession().getPacketBufferSize();
+		long consumed = 0;
+		outCrypt.compact();
+		while ( outCrypt.remaining() >= packetsize && hasRemaining( srcs, offset, length ) ) {
+			writeEngineResult = sslEngine.wrap( srcs, offset, length, outCrypt );
+			consumed += writeEngineResult.bytesConsumed();
+			if( writeEngineResult.getStatus() != Status.OK || writeEngineResult.bytesConsumed() == 0 )
+				break;
+		}
+		outCrypt.flip();
+		return consumed;
+	}
+
+	private static boolean hasRemaining( ByteBuffer[] srcs, int offset, int length ) {
+		for( int i = offset ; i < offset + length ; i++ ) {
+			if( srcs[ i ].hasRemaining() )
+				return true;
+		}
+		return false;
+	}
+
 	/**
 	 * performs the unwrap operation by unwrapping from {@link #inCrypt} to {@link #inData}
 	 **/
@@ -182,17 +213,20 @@ public class SSLSocketChannel2 implements ByteChannel, WrappedByteChannel {
 		int netBufferMax = session.getPacketBufferSize();
 		int appBufferMax = Math.max(session.getApplicationBufferSize(), netBufferMax);
 
+		int outCryptMax = netBufferMax * OUTCRYPT_PACKETS;
+
+		// the encrypted buffers are direct, as they are the ones read from and written to the socket
 		if( inData == null ) {
 			inData = ByteBuffer.allocate( appBufferMax );
-			outCrypt = ByteBuffer.allocate( netBufferMax );
-			inCrypt = ByteBuffer.allocate( netBufferMax );
+			outCrypt = ByteBuffer.allocateDirect( outCryptMax );
+			inCrypt = ByteBuffer.allocateDirect( netBufferMax );
 		} else {
 			if( inData.capacity() != appBufferMax )
 				inData = ByteBuffer.allocate( appBufferMax );
-			if( outCrypt.capacity() != netBufferMax )
-				outCrypt = ByteBuffer.allocate( netBufferMax );
+			if( outCrypt.capacity() != outCryptMax )
+				outCrypt = ByteBuffer.allocateDirect( outCryptMax );
 			if( inCrypt.capacity() != netBufferMax )
-				inCrypt = ByteBuffer.allocate( netBufferMax );
+				inCrypt = ByteBuffer.allocateDirect( netBufferMax );
 		}
 		inData.rewind();
 		inData.flip();
@@ -203,6 +237,9 @@ public class SSLSocketChannel2 implements ByteChannel, WrappedByteChannel {
 		bufferallocations++;
 	}
 
+	/**
+	 * @return the number of bytes consumed from src, which may differ from the number of encrypted bytes written to the socket.
+	 **/
 	public int write( ByteBuffer src ) throws IOException {
 		if( !isHandShakeComplete() ) {
 			processHandshake();
@@ -212,11 +249,32 @@ public class SSLSocketChannel2 implements ByteChannel, WrappedByteChannel {
 		//if( bufferallocations <= 1 ) {
 		//	createBuffers( sslEngine.getSession() );
 		//}
-		int num = socketChannel.write( wrap( src ) );
-		return num;
+		socketChannel.write( wrap( src ) );
+		return writeEngineResult.bytesConsumed();
 
 	}
 
+	/**
+	 * Encrypts several packets from the given buffers and writes them with a single system call.
+	 * 
+	 * @return the number of bytes consumed from the buffers, which may differ from the number of encrypted bytes written to the socket.
+	 **/
+	@Override
+	public long write( ByteBuffer[] srcs, int offset, int length ) throws IOException {
+		if( !isHandShakeComplete() ) {
+			processHandshake();
+			return 0;
+		}
+		long consumed = wrap( srcs, offset, length );
+		socketChannel.write( outCrypt );
+		return consumed;
+	}
+
+	@Override
+	public long write( ByteBuffer[] srcs ) throws IOException {
+		return write( srcs, 0, srcs.length );
+	}
+
 	/**
 	 * Blocks when in blocking mode until at least one byte has been decoded.<br>
 	 * When not in blocking mode 0 may be returned.
@@ -342,7 +400,11 @@ public class SSLSocketChannel2 implements ByteChannel, WrappedByteChannel {
 
 	@Override
 	public void writeMore() throws IOException {
-		write( outCrypt );
+		if( !isHandShakeComplete() ) {
+			processHandshake();
+			return;
+		}
+		socketChannel.write( outCrypt );
 	}
 
 	@Override
@@ -359,12 +421,11 @@ public class SSLSocketChannel2 implements ByteChannel, WrappedByteChannel {
 		int fremain = from.remaining();
 		int toremain = to.remaining();
 		if( fremain > toremain ) {
-			// FIXME there should be a more efficient transfer method
-			int limit = Math.min( fremain, toremain );
-			for( int i = 0 ; i < limit ; i++ ) {
-				to.put( from.get() );
-			}
-			return limit;
+			int limit = from.limit();
+			from.limit( from.position() + toremain );
+			to.put( from );
+			from.limit( limit );
+			return toremain;
 		} else {
 			to.put( from );
 			return fremain;
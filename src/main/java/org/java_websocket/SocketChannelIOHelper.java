@@ -2,13 +2,25 @@ package org.java_websocket;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.spi.AbstractSelectableChannel;
 
 import org.java_websocket.WebSocket.Role;
 
 public class SocketChannelIOHelper {
 
+	/** The maximum number of queued buffers handed to the channel by a single gathering write */
+	public static final int GATHER_SIZE = 16;
+
+	private static final ThreadLocal<ByteBuffer[]> gatherbuffers = new ThreadLocal<ByteBuffer[]>() {
+		@Override
+		protected ByteBuffer[] initialValue() {
+			return new ByteBuffer[ GATHER_SIZE ];
+		}
+	};
+
 	public static boolean read( final ByteBuffer buf, WebSocketImpl ws, ByteChannel channel ) throws IOException {
 		buf.clear();
 		int read = channel.read( buf );
@@ -49,13 +61,34 @@ public class SocketChannelIOHelper {
 					c.writeMore();
 				}
 			}
+		} else if( sockchannel instanceof GatheringByteChannel ) {
+			// write as many queued buffers as possible with each call
+			GatheringByteChannel g = (GatheringByteChannel) sockchannel;
+			ByteBuffer[] bufs = gatherbuffers.get();
+			int count;
+			while ( ( count = ws.peekOutQueue( bufs ) ) > 0 ) {
+				long written = g.write( bufs, 0, count );
+				if( written > 0 )
+					ws.onBytesFlushed( (int) written );
+				int done = 0;
+				while ( done < count && !bufs[ done ].hasRemaining() ) {
+					ws.pollOutQueue(); // Buffer finished. Remove it.
+					done++;
+				}
+				Arrays.fill( bufs, 0, count, null );
+				if( done < count ) {
+					return false;
+				}
+			}
 		} else {
 			do {// FIXME writing as much as possible is unfair!!
-				/*int written = */sockchannel.write( buffer );
+				int written = sockchannel.write( buffer );
+				if( written > 0 )
+					ws.onBytesFlushed( written );
 				if( buffer.remaining() > 0 ) {
 					return false;
 				} else {
-					ws.outQueue.poll(); // Buffer finished. Remove it.
+					ws.pollOutQueue(); // Buffer finished. Remove it.
 					buffer = ws.outQueue.peek();
 				}
 			} while ( buffer != null );
@@ -66,6 +99,7 @@ public class SocketChannelIOHelper {
 				ws.closeConnection();
 			}
 		}
-		return c != null ? !( (WrappedByteChannel) sockchannel ).isNeedWrite() : true;
+		// a wrapping channel may still hold data it could not hand to the socket yet
+		return sockchannel instanceof WrappedByteChannel ? !( (WrappedByteChannel) sockchannel ).isNeedWrite() : true;
 	}
 }
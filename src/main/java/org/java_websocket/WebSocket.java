@@ -17,6 +17,21 @@ public interface WebSocket {
 		NOT_YET_CONNECTED, CONNECTING, OPEN, CLOSING, CLOSED;
 	}
 
+	/**
+	 * What a connection does with its outbound queue once it holds more bytes than allowed.<br>
+	 * Only complete binary messages are ever dropped, other frames are always queued.
+	 */
+	public enum OutQueuePolicy {
+		/** The queue is not bounded */
+		UNBOUNDED,
+		/** The oldest queued binary messages are dropped until the new one fits, or the new one is dropped */
+		DROP_OLDEST,
+		/** All the queued binary messages are dropped in favor of the new one */
+		COALESCE,
+		/** New binary messages are dropped, and the connection is closed once it stayed over the limit for too long */
+		DISCONNECT
+	}
+
 	/**
 	 * The default port of WebSockets, as defined in the spec. If the nullary
 	 * constructor is used, DEFAULT_PORT will be the port the WebSocketServer
@@ -80,6 +95,27 @@ public interface WebSocket {
 
 	public abstract boolean hasBufferedData();
 
+	/**
+	 * Bounds the outbound queue of this connection.
+	 * 
+	 * @param policy
+	 *            What to do when the queue is full
+	 * @param maxbytes
+	 *            The number of bytes the queue may hold
+	 * @param maxlag
+	 *            How long, in milliseconds, the queue may stay full before the connection is closed. Only used by {@link OutQueuePolicy#DISCONNECT}.
+	 */
+	public abstract void setOutQueuePolicy( OutQueuePolicy policy, long maxbytes, long maxlag );
+
+	/** Returns the number of frames waiting to be sent */
+	public abstract int getOutQueueDepth();
+
+	/** Returns the number of bytes queued but not yet handed to the network */
+	public abstract long getOutQueueBytes();
+
+	/** Returns the number of binary messages dropped by the outbound queue policy */
+	public abstract long getDroppedMessages();
+
 	/**
 	 * @returns never returns null
 	 */
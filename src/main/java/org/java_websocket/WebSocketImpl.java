@@ -9,9 +9,15 @@ import java.nio.channels.NotYetConnectedException;
 import java.nio.channels.SelectionKey;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.java_websocket.drafts.Draft;
 import org.java_websocket.drafts.Draft.CloseHandshakeType;
@@ -34,6 +40,7 @@ import org.java_websocket.handshake.Handshakedata;
 import org.java_websocket.handshake.ServerHandshake;
 import org.java_websocket.handshake.ServerHandshakeBuilder;
 import org.java_websocket.server.WebSocketServer.WebSocketWorker;
+import org.java_websocket.util.ByteBufferPool;
 import org.java_websocket.util.Charsetfunctions;
 
 /**
@@ -69,6 +76,26 @@ public class WebSocketImpl implements WebSocket {
 	 */
 	public final BlockingQueue<ByteBuffer> inQueue;
 
+	/** Total number of bytes ever added to {@link #outQueue} */
+	private final AtomicLong bytesQueued = new AtomicLong();
+	/** Total number of bytes ever handed to the channel from {@link #outQueue} */
+	private final AtomicLong bytesFlushed = new AtomicLong();
+	/** Total number of bytes removed from {@link #outQueue} by the queue policy */
+	private final AtomicLong bytesDropped = new AtomicLong();
+	private final AtomicLong droppedMessages = new AtomicLong();
+
+	/** The buffers of {@link #outQueue} holding complete binary messages, which the queue policy may drop. Guarded by the outQueue lock. */
+	private final Set<ByteBuffer> droppableBuffers = Collections.newSetFromMap( new IdentityHashMap<ByteBuffer,Boolean>() );
+	private volatile OutQueuePolicy outQueuePolicy = OutQueuePolicy.UNBOUNDED;
+	private volatile long outQueueMaxBytes = Long.MAX_VALUE;
+	private volatile long outQueueMaxLagNanos;
+	/** When the queue went over its limit, or -1 if it is not over it. Guarded by the outQueue lock. */
+	private long outQueueFullSince = -1;
+	/** The number of buffers at the head of {@link #outQueue} handed to the channel, which must not be dropped. Guarded by the outQueue lock. */
+	private int outQueueInFlight;
+	/** The buffers of {@link #outQueue} taken from {@link ByteBufferPool#getDefault()}, given back once written or dropped. Guarded by the outQueue lock. */
+	private final Set<ByteBuffer> pooledBuffers = Collections.newSetFromMap( new IdentityHashMap<ByteBuffer,Boolean>() );
+
 	/**
 	 * Helper variable meant to store the thread which ( exclusively ) triggers this objects decode method.
 	 **/
@@ -152,7 +179,7 @@ public class WebSocketImpl implements WebSocket {
 		assert ( socketBuffer.hasRemaining() );
 
 		if( DEBUG )
-			System.out.println( "process(" + socketBuffer.remaining() + "): {" + ( socketBuffer.remaining() > 1000 ? "too big to display" : new String( socketBuffer.array(), socketBuffer.position(), socketBuffer.remaining() ) ) + "}" );
+			System.out.println( "process(" + socketBuffer.remaining() + "): {" + ( socketBuffer.remaining() > 1000 || !socketBuffer.hasArray() ? "too big to display" : new String( socketBuffer.array(), socketBuffer.position(), socketBuffer.remaining() ) ) + "}" );
 
 		if( readystate != READYSTATE.NOT_YET_CONNECTED ) {
 			decodeFrames( socketBuffer );;
@@ -472,7 +499,7 @@ public class WebSocketImpl implements WebSocket {
 		handshakerequest = null;
 
 		readystate = READYSTATE.CLOSED;
-		this.outQueue.clear();
+		clearOutQueue();
 	}
 
 	protected void closeConnection( int code, boolean remote ) {
@@ -560,7 +587,9 @@ public class WebSocketImpl implements WebSocket {
 	public void send( ByteBuffer bytes ) throws IllegalArgumentException , WebsocketNotConnectedException {
 		if( bytes == null )
 			throw new IllegalArgumentException( "Cannot send 'null' data to a WebSocketImpl." );
-		send( draft.createFrames( bytes, role == Role.CLIENT ) );
+		List<Framedata> frames = draft.createFrames( bytes, role == Role.CLIENT );
+		// a message sent as a single frame can be dropped as a whole by the queue policy
+		send( frames, frames.size() == 1 );
 	}
 
 	@Override
@@ -569,13 +598,36 @@ public class WebSocketImpl implements WebSocket {
 	}
 
 	private void send( Collection<Framedata> frames ) {
+		send( frames, false );
+	}
+
+	private void send( Collection<Framedata> frames, boolean droppable ) {
 		if( !isOpen() )
 			throw new WebsocketNotConnectedException();
 		for( Framedata f : frames ) {
-			sendFrame( f );
+			if( DEBUG )
+				System.out.println( "send frame: " + f );
+			write( createBinaryFrame( f ), droppable );
 		}
 	}
 
+	/**
+	 * Frames are written from the selector thread only when acting as a server, so only then are they taken from the pool.
+	 * The client writes its queue from a stream, which needs heap buffers.
+	 */
+	private ByteBuffer createBinaryFrame( Framedata framedata ) {
+		if( role != Role.SERVER )
+			return draft.createBinaryFrame( framedata );
+		ByteBufferPool pool = ByteBufferPool.getDefault();
+		ByteBuffer buf = draft.createBinaryFrame( framedata, pool );
+		if( pool.owns( buf ) ) {
+			synchronized ( outQueue ) {
+				pooledBuffers.add( buf );
+			}
+		}
+		return buf;
+	}
+
 	@Override
 	public void sendFragmentedFrame( Opcode op, ByteBuffer buffer, boolean fin ) {
 		send( draft.continuousFrame( op, buffer, fin ) );
@@ -585,7 +637,24 @@ public class WebSocketImpl implements WebSocket {
 	public void sendFrame( Framedata framedata ) {
 		if( DEBUG )
 			System.out.println( "send frame: " + framedata );
-		write( draft.createBinaryFrame( framedata ) );
+		write( createBinaryFrame( framedata ) );
+	}
+
+	/**
+	 * Queues a buffer that already contains one complete binary message framed for this connection's draft.
+	 * This allows to frame a message once and send it to several connections, each one getting its own
+	 * (possibly read-only) duplicate of the framed buffer.<br>
+	 * The content of the buffer must not be modified until the buffer has no bytes remaining, which happens
+	 * once it has been sent or dropped by the queue policy, or the connection is closed.
+	 * 
+	 * @throws WebsocketNotConnectedException
+	 */
+	public void sendPreframed( ByteBuffer frames ) throws WebsocketNotConnectedException {
+		if( frames == null )
+			throw new IllegalArgumentException( "Cannot send 'null' data to a WebSocketImpl." );
+		if( !isOpen() )
+			throw new WebsocketNotConnectedException();
+		write( frames, true );
 	}
 
 	@Override
@@ -593,6 +662,89 @@ public class WebSocketImpl implements WebSocket {
 		return !this.outQueue.isEmpty();
 	}
 
+	/** Returns the total number of bytes queued for sending since the connection was created */
+	public long getBytesQueued() {
+		return bytesQueued.get();
+	}
+
+	/** Returns the total number of bytes handed to the channel since the connection was created */
+	public long getBytesFlushed() {
+		return bytesFlushed.get();
+	}
+
+	@Override
+	public long getOutQueueBytes() {
+		return bytesQueued.get() - bytesFlushed.get() - bytesDropped.get();
+	}
+
+	@Override
+	public int getOutQueueDepth() {
+		return outQueue.size();
+	}
+
+	@Override
+	public long getDroppedMessages() {
+		return droppedMessages.get();
+	}
+
+	@Override
+	public void setOutQueuePolicy( OutQueuePolicy policy, long maxbytes, long maxlag ) {
+		if( policy == null || maxbytes <= 0 || maxlag < 0 )
+			throw new IllegalArgumentException( "policy must not be null and limits must be positive" );
+		outQueueMaxBytes = policy == OutQueuePolicy.UNBOUNDED ? Long.MAX_VALUE : maxbytes;
+		outQueueMaxLagNanos = TimeUnit.MILLISECONDS.toNanos( maxlag );
+		outQueuePolicy = policy;
+	}
+
+	/** To be called by the writing thread once bytes of {@link #outQueue} have been handed to the network */
+	public void onBytesFlushed( int count ) {
+		bytesFlushed.addAndGet( count );
+	}
+
+	/**
+	 * Removes the head of {@link #outQueue} once it has been written.<br>
+	 * The head is never dropped by the queue policy, as it may be being written.<br>
+	 * The returned buffer must not be used anymore, as it may have been given back to the pool.
+	 **/
+	public ByteBuffer pollOutQueue() {
+		synchronized ( outQueue ) {
+			ByteBuffer buf = outQueue.poll();
+			droppableBuffers.remove( buf );
+			if( outQueueInFlight > 0 )
+				outQueueInFlight--;
+			if( buf != null )
+				releasePooled( buf );
+			return buf;
+		}
+	}
+
+	/**
+	 * Copies the first buffers of {@link #outQueue} to the given array, so that they can be written at once.
+	 * These buffers won't be dropped by the queue policy until they are removed with {@link #pollOutQueue()}.
+	 * 
+	 * @return the number of buffers copied
+	 */
+	public int peekOutQueue( ByteBuffer[] dst ) {
+		synchronized ( outQueue ) {
+			int count = 0;
+			Iterator<ByteBuffer> it = outQueue.iterator();
+			while ( count < dst.length && it.hasNext() ) {
+				dst[ count++ ] = it.next();
+			}
+			outQueueInFlight = count;
+			return count;
+		}
+	}
+
+	/** Waits for and removes the head of {@link #outQueue}, before writing it */
+	public ByteBuffer takeOutQueue() throws InterruptedException {
+		ByteBuffer buf = outQueue.take();
+		synchronized ( outQueue ) {
+			droppableBuffers.remove( buf );
+		}
+		return buf;
+	}
+
 	private HandshakeState isFlashEdgeCase( ByteBuffer request ) throws IncompleteHandshakeException {
 		request.mark();
 		if( request.limit() > Draft.FLASH_POLICY_REQUEST.length ) {
@@ -636,9 +788,40 @@ public class WebSocketImpl implements WebSocket {
 	}
 
 	private void write( ByteBuffer buf ) {
+		write( buf, false );
+	}
+
+	private void write( ByteBuffer buf, boolean droppable ) {
 		if( DEBUG )
-			System.out.println( "write(" + buf.remaining() + "): {" + ( buf.remaining() > 1000 ? "too big to display" : new String( buf.array() ) ) + "}" );
+			System.out.println( "write(" + buf.remaining() + "): {" + ( buf.remaining() > 1000 || !buf.hasArray() ? "too big to display" : new String( buf.array() ) ) + "}" );
+
+		if( droppable && outQueuePolicy != OutQueuePolicy.UNBOUNDED ) {
+			boolean disconnect = false;
+			synchronized ( outQueue ) {
+				if( makeRoom( buf.remaining() ) || outQueuePolicy == OutQueuePolicy.COALESCE ) {
+					bytesQueued.addAndGet( buf.remaining() );
+					droppableBuffers.add( buf );
+					outQueue.add( buf );
+				} else {
+					// the new message is dropped, and marked as consumed like the other dropped buffers
+					buf.position( buf.limit() );
+					droppedMessages.incrementAndGet();
+					releasePooled( buf );
+					disconnect = outQueuePolicy == OutQueuePolicy.DISCONNECT && System.nanoTime() - outQueueFullSince > outQueueMaxLagNanos;
+					if( disconnect )
+						dropBuffers( Long.MAX_VALUE ); // let the closing handshake through
+				}
+			}
+			if( disconnect ) {
+				// closing takes the connection lock, which must not be taken while holding the queue lock
+				close( CloseFrame.POLICY_VALIDATION, "outbound queue stayed full for too long" );
+				return;
+			}
+			wsl.onWriteDemand( this );
+			return;
+		}
 
+		bytesQueued.addAndGet( buf.remaining() );
 		outQueue.add( buf );
 		/*try {
 			outQueue.put( buf );
@@ -650,6 +833,91 @@ public class WebSocketImpl implements WebSocket {
 		wsl.onWriteDemand( this );
 	}
 
+	/**
+	 * Applies the queue policy so that a droppable message of the given size can be queued.
+	 * Must be called with the outQueue lock held.
+	 * 
+	 * @return false if the queue is still over its limit
+	 */
+	private boolean makeRoom( int size ) {
+		long excess = getOutQueueBytes() + size - outQueueMaxBytes;
+		if( excess <= 0 ) {
+			outQueueFullSince = -1;
+			return true;
+		}
+
+		if( outQueueFullSince < 0 )
+			outQueueFullSince = System.nanoTime();
+
+		switch ( outQueuePolicy ) {
+			case DROP_OLDEST:
+				excess -= dropBuffers( excess );
+				break;
+			case COALESCE:
+				excess -= dropBuffers( Long.MAX_VALUE );
+				break;
+			default:
+				break;
+		}
+		return excess <= 0;
+	}
+
+	/**
+	 * Drops the oldest droppable buffers of the queue, except its head and the buffers being written, until the given number of bytes has been dropped.
+	 * Dropped buffers are marked as consumed, so that their owner knows they are no longer used.
+	 * Must be called with the outQueue lock held.
+	 * 
+	 * @return the number of bytes dropped
+	 */
+	private long dropBuffers( long bytes ) {
+		long dropped = 0;
+		Iterator<ByteBuffer> it = outQueue.iterator();
+		for( int i = Math.max( 1, outQueueInFlight ) ; i > 0 && it.hasNext() ; i-- )
+			it.next();
+		while ( dropped < bytes && it.hasNext() ) {
+			ByteBuffer buf = it.next();
+			if( droppableBuffers.remove( buf ) ) {
+				it.remove();
+				int remaining = buf.remaining();
+				buf.position( buf.limit() );
+				bytesDropped.addAndGet( remaining );
+				droppedMessages.incrementAndGet();
+				dropped += remaining;
+				releasePooled( buf );
+			}
+		}
+		return dropped;
+	}
+
+	/**
+	 * Drops everything queued, once the connection can't be written to anymore. The dropped bytes are counted, and the buffers
+	 * are given back to the pool, except the ones being written which are left to the garbage collector as the writing thread
+	 * may still be using them.
+	 */
+	public void clearOutQueue() {
+		synchronized ( outQueue ) {
+			int i = 0;
+			for( ByteBuffer buf : outQueue ) {
+				bytesDropped.addAndGet( buf.remaining() );
+				if( i++ < outQueueInFlight ) {
+					pooledBuffers.remove( buf );
+				} else {
+					buf.position( buf.limit() );
+					releasePooled( buf );
+				}
+			}
+			outQueue.clear();
+			droppableBuffers.clear();
+			outQueueInFlight = 0;
+		}
+	}
+
+	/** Gives back the given buffer to the pool if it was taken from it. Must be called with the outQueue lock held. */
+	private void releasePooled( ByteBuffer buf ) {
+		if( pooledBuffers.remove( buf ) )
+			ByteBufferPool.getDefault().release( buf );
+	}
+
 	private void write( List<ByteBuffer> bufs ) {
 		for( ByteBuffer b : bufs ) {
 			write( b );
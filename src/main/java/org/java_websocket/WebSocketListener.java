@@ -81,7 +81,7 @@ public interface WebSocketListener {
 	 * @param conn
 	 *            The <tt>WebSocket</tt> instance this event is occurring on.
 	 * @param blob
-	 *            The binary message that was received.
+	 *            The binary message that was received. It may share the memory of the receive buffers, so it is only valid during the call and must be copied to be kept.
 	 */
 	public void onWebsocketMessage( WebSocket conn, ByteBuffer blob );
 
@@ -348,9 +348,10 @@ public abstract class WebSocketClient extends WebSocketAdapter implements Runnab
 			Thread.currentThread().setName( "WebsocketWriteThread" );
 			try {
 				while ( !Thread.interrupted() ) {
-					ByteBuffer buffer = engine.outQueue.take();
+					ByteBuffer buffer = engine.takeOutQueue();
 					ostream.write( buffer.array(), 0, buffer.limit() );
 					ostream.flush();
+					engine.onBytesFlushed( buffer.remaining() );
 				}
 			} catch ( IOException e ) {
 				engine.eot();
@@ -413,6 +414,26 @@ public abstract class WebSocketClient extends WebSocketAdapter implements Runnab
 		return engine.hasBufferedData();
 	}
 
+	@Override
+	public void setOutQueuePolicy( OutQueuePolicy policy, long maxbytes, long maxlag ) {
+		engine.setOutQueuePolicy( policy, maxbytes, maxlag );
+	}
+
+	@Override
+	public int getOutQueueDepth() {
+		return engine.getOutQueueDepth();
+	}
+
+	@Override
+	public long getOutQueueBytes() {
+		return engine.getOutQueueBytes();
+	}
+
+	@Override
+	public long getDroppedMessages() {
+		return engine.getDroppedMessages();
+	}
+
 	@Override
 	public void close( int code ) {
 		engine.close();
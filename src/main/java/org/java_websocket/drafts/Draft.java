@@ -24,6 +24,7 @@ import org.java_websocket.handshake.HandshakeImpl1Server;
 import org.java_websocket.handshake.Handshakedata;
 import org.java_websocket.handshake.ServerHandshake;
 import org.java_websocket.handshake.ServerHandshakeBuilder;
+import org.java_websocket.util.ByteBufferPool;
 import org.java_websocket.util.Charsetfunctions;
 
 /**
@@ -124,6 +125,16 @@ public abstract class Draft {
 
 	public abstract ByteBuffer createBinaryFrame( Framedata framedata ); // TODO Allow to send data on the base of an Iterator or InputStream
 
+	/**
+	 * Same as {@link #createBinaryFrame(Framedata)}, but drafts able to do so take the frame buffer from the given pool.
+	 * 
+	 * @param pool
+	 *            the pool to take the buffer from, or null to allocate it
+	 */
+	public ByteBuffer createBinaryFrame( Framedata framedata, ByteBufferPool pool ) {
+		return createBinaryFrame( framedata );
+	}
+
 	public abstract List<Framedata> createFrames( ByteBuffer binary, boolean mask );
 
 	public abstract List<Framedata> createFrames( String text, boolean mask );
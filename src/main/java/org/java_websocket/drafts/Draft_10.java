@@ -26,6 +26,7 @@ import org.java_websocket.handshake.Handshakedata;
 import org.java_websocket.handshake.ServerHandshake;
 import org.java_websocket.handshake.ServerHandshakeBuilder;
 import org.java_websocket.util.Base64;
+import org.java_websocket.util.ByteBufferPool;
 import org.java_websocket.util.Charsetfunctions;
 
 public class Draft_10 extends Draft {
@@ -60,7 +61,15 @@ public class Draft_10 extends Draft {
 		return -1;
 	}
 
+	/** The size of the buffers first allocated to hold incomplete frames */
+	private static final int INITIAL_FRAME_SIZE = 1024;
+	/** Incomplete frames buffers larger than that are not kept for the next incomplete frames */
+	private static final int MAX_REUSED_FRAME_SIZE = 1 << 20;
+
+	/** Holds the first bytes of a frame received in several parts, starting at 0, in write mode */
 	private ByteBuffer incompleteframe;
+	/** Holds the last frame completed in {@link #incompleteframe}, whose payload may still be in use, and which is reused for the next one after */
+	private ByteBuffer spareframe;
 	private Framedata fragmentedframe = null;
 
 	private final Random reuseableRandom = new Random();
@@ -90,10 +99,16 @@ public class Draft_10 extends Draft {
 
 	@Override
 	public ByteBuffer createBinaryFrame( Framedata framedata ) {
+		return createBinaryFrame( framedata, null );
+	}
+
+	@Override
+	public ByteBuffer createBinaryFrame( Framedata framedata, ByteBufferPool pool ) {
 		ByteBuffer mes = framedata.getPayloadData();
 		boolean mask = role == Role.CLIENT; // framedata.getTransfereMasked();
 		int sizebytes = mes.remaining() <= 125 ? 1 : mes.remaining() <= 65535 ? 2 : 8;
-		ByteBuffer buf = ByteBuffer.allocate( 1 + ( sizebytes > 1 ? sizebytes + 1 : sizebytes ) + ( mask ? 4 : 0 ) + mes.remaining() );
+		int framesize = 1 + ( sizebytes > 1 ? sizebytes + 1 : sizebytes ) + ( mask ? 4 : 0 ) + mes.remaining();
+		ByteBuffer buf = pool == null ? ByteBuffer.allocate( framesize ) : pool.acquire( framesize );
 		byte optcode = fromOpcode( framedata.getOpcode() );
 		byte one = (byte) ( framedata.isFin() ? -128 : 0 );
 		one |= optcode;
@@ -239,133 +254,168 @@ public class Draft_10 extends Draft {
 		}
 	}
 
+	/**
+	 * Decodes the frames of the buffer. The payloads of the returned frames are slices of the buffer, unmasked in place, or of a buffer of this draft
+	 * when a frame was received in several parts. They are only valid until this method is called again, and the content of the buffer must not be
+	 * modified before.
+	 */
 	@Override
 	public List<Framedata> translateFrame( ByteBuffer buffer ) throws LimitExedeedException , InvalidDataException {
 		List<Framedata> frames = new LinkedList<Framedata>();
-		Framedata cur;
 
-		if( incompleteframe != null ) {
-			// complete an incomplete frame
-			while ( true ) {
-				try {
-					buffer.mark();
-					int available_next_byte_count = buffer.remaining();// The number of bytes received
-					int expected_next_byte_count = incompleteframe.remaining();// The number of bytes to complete the incomplete frame
-
-					if( expected_next_byte_count > available_next_byte_count ) {
-						// did not receive enough bytes to complete the frame
-						incompleteframe.put( buffer.array(), buffer.position(), available_next_byte_count );
-						buffer.position( buffer.position() + available_next_byte_count );
-						return Collections.emptyList();
-					}
-					incompleteframe.put( buffer.array(), buffer.position(), expected_next_byte_count );
-					buffer.position( buffer.position() + expected_next_byte_count );
-
-					cur = translateSingleFrame( (ByteBuffer) incompleteframe.duplicate().position( 0 ) );
-					frames.add( cur );
-					incompleteframe = null;
-					break; // go on with the normal frame receival
-				} catch ( IncompleteException e ) {
-					// extending as much as suggested
-					int oldsize = incompleteframe.limit();
-					ByteBuffer extendedframe = ByteBuffer.allocate( checkAlloc( e.getPreferedSize() ) );
-					assert ( extendedframe.limit() > incompleteframe.limit() );
-					incompleteframe.rewind();
-					extendedframe.put( incompleteframe );
-					incompleteframe = extendedframe;
-					
-					return translateFrame( buffer );
+		if( incompleteframe != null && incompleteframe.position() > 0 ) {
+			// complete the incomplete frame, reading its header first if it is incomplete too
+			int framesize;
+			do {
+				framesize = frameSize( (ByteBuffer) incompleteframe.duplicate().flip() );
+				int expected = Math.abs( framesize );
+				reserveIncompleteFrame( expected );
+				int missing = expected - incompleteframe.position();
+				if( missing > buffer.remaining() ) {
+					// did not receive enough bytes to complete the frame
+					incompleteframe.put( buffer );
+					return Collections.emptyList();
 				}
-			}
+				transfer( buffer, incompleteframe, missing );
+			} while ( framesize < 0 );
+
+			incompleteframe.flip();
+			frames.add( translateCompleteFrame( incompleteframe ) );
+			incompleteframe.clear();
+			// the returned payload lives in that buffer, so a next incomplete frame goes in the spare one
+			ByteBuffer used = incompleteframe;
+			incompleteframe = spareframe;
+			spareframe = used.capacity() <= MAX_REUSED_FRAME_SIZE ? used : null;
 		}
 
 		while ( buffer.hasRemaining() ) {// Read as much as possible full frames
-			buffer.mark();
-			try {
-				cur = translateSingleFrame( buffer );
-				frames.add( cur );
-			} catch ( IncompleteException e ) {
+			int framesize = frameSize( buffer );
+			if( framesize < 0 || framesize > buffer.remaining() ) {
 				// remember the incomplete data
-				buffer.reset();
-				int pref = e.getPreferedSize();
-				incompleteframe = ByteBuffer.allocate( checkAlloc( pref ) );
+				reserveIncompleteFrame( Math.max( Math.abs( framesize ), buffer.remaining() ) );
 				incompleteframe.put( buffer );
 				break;
 			}
+			frames.add( translateCompleteFrame( buffer ) );
 		}
 		return frames;
 	}
 
-	public Framedata translateSingleFrame( ByteBuffer buffer ) throws IncompleteException , InvalidDataException {
-		int maxpacketsize = buffer.remaining();
-		int realpacketsize = 2;
-		if( maxpacketsize < realpacketsize )
-			throw new IncompleteException( realpacketsize );
-		byte b1 = buffer.get( /*0*/);
-		boolean FIN = b1 >> 8 != 0;
-		byte rsv = (byte) ( ( b1 & ~(byte) 128 ) >> 4 );
+	/**
+	 * Makes sure {@link #incompleteframe} can hold the given number of bytes, keeping its content.
+	 * The buffer is reused for the next incomplete frames, unless it grew past {@link #MAX_REUSED_FRAME_SIZE}.
+	 */
+	private void reserveIncompleteFrame( int size ) throws LimitExedeedException , InvalidDataException {
+		if( incompleteframe != null && incompleteframe.capacity() >= size ) {
+			incompleteframe.limit( incompleteframe.capacity() );
+			return;
+		}
+		int capacity = size;
+		if( incompleteframe != null && capacity < MAX_REUSED_FRAME_SIZE )
+			capacity = Math.min( Math.max( capacity, incompleteframe.capacity() * 2 ), MAX_REUSED_FRAME_SIZE );
+		ByteBuffer extendedframe = ByteBuffer.allocate( checkAlloc( Math.max( capacity, INITIAL_FRAME_SIZE ) ) );
+		if( incompleteframe != null ) {
+			incompleteframe.flip();
+			extendedframe.put( incompleteframe );
+		}
+		incompleteframe = extendedframe;
+	}
+
+	/**
+	 * Copies count bytes from one buffer to the other, advancing both.
+	 * Unlike copying through {@link ByteBuffer#array()}, this also works with direct buffers.
+	 */
+	private static void transfer( ByteBuffer from, ByteBuffer to, int count ) {
+		int limit = from.limit();
+		from.limit( from.position() + count );
+		to.put( from );
+		from.limit( limit );
+	}
+
+	/**
+	 * Validates the header of the frame starting at the position of the buffer, without consuming it.
+	 * 
+	 * @return the size of the whole frame, or the negated size of its header if the header itself is incomplete
+	 */
+	private int frameSize( ByteBuffer buffer ) throws InvalidDataException {
+		int start = buffer.position();
+		int available = buffer.remaining();
+		if( available < 2 )
+			return -2;
+		byte b1 = buffer.get( start );
+		byte b2 = buffer.get( start + 1 );
+		boolean FIN = ( b1 & -128 ) != 0;
+		byte rsv = (byte) ( ( b1 & 0x70 ) >> 4 );
 		if( rsv != 0 )
 			throw new InvalidFrameException( "bad rsv " + rsv );
-		byte b2 = buffer.get( /*1*/);
 		boolean MASK = ( b2 & -128 ) != 0;
-		int payloadlength = (byte) ( b2 & ~(byte) 128 );
+		int payloadlength = b2 & 127;
 		Opcode optcode = toOpcode( (byte) ( b1 & 15 ) );
 
-		if( !FIN ) {
-			if( optcode == Opcode.PING || optcode == Opcode.PONG || optcode == Opcode.CLOSING ) {
+		if( optcode == Opcode.PING || optcode == Opcode.PONG || optcode == Opcode.CLOSING ) {
+			if( !FIN )
 				throw new InvalidFrameException( "control frames may no be fragmented" );
-			}
+			if( payloadlength > 125 )
+				throw new InvalidFrameException( "more than 125 octets" );
 		}
 
-		if( payloadlength >= 0 && payloadlength <= 125 ) {
-		} else {
-			if( optcode == Opcode.PING || optcode == Opcode.PONG || optcode == Opcode.CLOSING ) {
-				throw new InvalidFrameException( "more than 125 octets" );
-			}
-			if( payloadlength == 126 ) {
-				realpacketsize += 2; // additional length bytes
-				if( maxpacketsize < realpacketsize )
-					throw new IncompleteException( realpacketsize );
-				byte[] sizebytes = new byte[ 3 ];
-				sizebytes[ 1 ] = buffer.get( /*1 + 1*/);
-				sizebytes[ 2 ] = buffer.get( /*1 + 2*/);
-				payloadlength = new BigInteger( sizebytes ).intValue();
-			} else {
-				realpacketsize += 8; // additional length bytes
-				if( maxpacketsize < realpacketsize )
-					throw new IncompleteException( realpacketsize );
-				byte[] bytes = new byte[ 8 ];
-				for( int i = 0 ; i < 8 ; i++ ) {
-					bytes[ i ] = buffer.get( /*1 + i*/);
-				}
-				long length = new BigInteger( bytes ).longValue();
-				if( length > Integer.MAX_VALUE ) {
-					throw new LimitExedeedException( "Payloadsize is to big..." );
-				} else {
-					payloadlength = (int) length;
-				}
+		int lengthbytes = payloadlength == 126 ? 2 : payloadlength == 127 ? 8 : 0;
+		int headersize = 2 + lengthbytes + ( MASK ? 4 : 0 );
+		if( available < headersize )
+			return -headersize;
+
+		long length = payloadlength;
+		if( lengthbytes > 0 ) {
+			length = 0;
+			for( int i = 0 ; i < lengthbytes ; i++ ) {
+				length = ( length << 8 ) | ( buffer.get( start + 2 + i ) & 0xFF );
 			}
 		}
+		if( length < 0 || length > Integer.MAX_VALUE - headersize )
+			throw new LimitExedeedException( "Payloadsize is to big..." );
+		return headersize + (int) length;
+	}
 
-		// int maskskeystart = foff + realpacketsize;
-		realpacketsize += ( MASK ? 4 : 0 );
-		// int payloadstart = foff + realpacketsize;
-		realpacketsize += payloadlength;
+	public Framedata translateSingleFrame( ByteBuffer buffer ) throws IncompleteException , InvalidDataException {
+		int framesize = frameSize( buffer );
+		if( framesize < 0 )
+			throw new IncompleteException( -framesize );
+		if( buffer.remaining() < framesize )
+			throw new IncompleteException( framesize );
+		return translateCompleteFrame( buffer );
+	}
 
-		if( maxpacketsize < realpacketsize )
-			throw new IncompleteException( realpacketsize );
+	/**
+	 * Decodes a frame whose header has been validated by {@link #frameSize(ByteBuffer)} and which is completely contained in the buffer.
+	 */
+	private Framedata translateCompleteFrame( ByteBuffer buffer ) throws InvalidDataException {
+		byte b1 = buffer.get();
+		byte b2 = buffer.get();
+		boolean FIN = ( b1 & -128 ) != 0;
+		boolean MASK = ( b2 & -128 ) != 0;
+		int payloadlength = b2 & 127;
+		Opcode optcode = toOpcode( (byte) ( b1 & 15 ) );
 
-		ByteBuffer payload = ByteBuffer.allocate( checkAlloc( payloadlength ) );
-		if( MASK ) {
-			byte[] maskskey = new byte[ 4 ];
-			buffer.get( maskskey );
-			for( int i = 0 ; i < payloadlength ; i++ ) {
-				payload.put( (byte) ( (byte) buffer.get( /*payloadstart + i*/) ^ (byte) maskskey[ i % 4 ] ) );
+		if( payloadlength == 126 ) {
+			payloadlength = ( buffer.get() & 0xFF ) << 8 | ( buffer.get() & 0xFF );
+		} else if( payloadlength == 127 ) {
+			long length = 0;
+			for( int i = 0 ; i < 8 ; i++ ) {
+				length = ( length << 8 ) | ( buffer.get() & 0xFF );
 			}
-		} else {
-			payload.put( buffer.array(), buffer.position(), payload.limit() );
-			buffer.position( buffer.position() + payload.limit() );
+			payloadlength = (int) length;
 		}
+		checkAlloc( payloadlength );
+
+		if( MASK ) {
+			int maskpos = buffer.position();
+			int maskkey = buffer.getInt();
+			unmask( buffer, buffer.position(), payloadlength, maskkey, maskpos );
+		}
+
+		ByteBuffer payload = buffer.slice();
+		payload.limit( payloadlength );
+		buffer.position( buffer.position() + payloadlength );
 
 		FrameBuilder frame;
 		if( optcode == Opcode.CLOSING ) {
@@ -375,14 +425,31 @@ public class Draft_10 extends Draft {
 			frame.setFin( FIN );
 			frame.setOptcode( optcode );
 		}
-		payload.flip();
 		frame.setPayload( payload );
 		return frame;
+
+	}
+
+	/**
+	 * Unmasks a payload in place, eight bytes at a time.
+	 * The key is read with the byte order of the buffer, so that it matches the words read from it.
+	 */
+	private static void unmask( ByteBuffer buffer, int offset, int length, int maskkey, int maskpos ) {
+		long widekey = ( (long) maskkey << 32 ) | ( maskkey & 0xFFFFFFFFL );
+		int end = offset + length;
+		int i = offset;
+		for( ; i + 8 <= end ; i += 8 ) {
+			buffer.putLong( i, buffer.getLong( i ) ^ widekey );
+		}
+		for( int j = 0 ; i < end ; i++, j++ ) {
+			buffer.put( i, (byte) ( buffer.get( i ) ^ buffer.get( maskpos + ( j & 3 ) ) ) );
+		}
 	}
 
 	@Override
 	public void reset() {
 		incompleteframe = null;
+		spareframe = null;
 	}
 
 	@Override
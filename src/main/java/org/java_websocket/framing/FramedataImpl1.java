@@ -102,9 +102,18 @@ public class FramedataImpl1 implements FrameBuilder {
 		fin = nextframe.isFin();
 	}
 
+	/** Copies the payload, as it may not be backed by an array */
+	private byte[] bytes() {
+		ByteBuffer payload = unmaskedpayload.duplicate();
+		payload.clear();
+		byte[] bytes = new byte[ payload.remaining() ];
+		payload.get( bytes );
+		return bytes;
+	}
+
 	@Override
 	public String toString() {
-		return "Framedata{ optcode:" + getOpcode() + ", fin:" + isFin() + ", payloadlength:[pos:" + unmaskedpayload.position() + ", len:" + unmaskedpayload.remaining() + "], payload:" + Arrays.toString( Charsetfunctions.utf8Bytes( new String( unmaskedpayload.array() ) ) ) + "}";
+		return "Framedata{ optcode:" + getOpcode() + ", fin:" + isFin() + ", payloadlength:[pos:" + unmaskedpayload.position() + ", len:" + unmaskedpayload.remaining() + "], payload:" + Arrays.toString( Charsetfunctions.utf8Bytes( new String( bytes() ) ) ) + "}";
 	}
 
 }
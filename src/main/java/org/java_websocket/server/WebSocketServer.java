@@ -21,8 +21,9 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
+import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -81,9 +82,18 @@ public abstract class WebSocketServer extends WebSocketAdapter implements Runnab
 
 	private List<WebSocketWorker> decoders;
 
-	private List<WebSocketImpl> iqueue;
+	/**
+	 * The number of I/O threads, each one running its own selector. With a single one, the selector thread performs all the I/O itself.
+	 */
+	private volatile int iothreads = 1;
+	/**
+	 * The reactors among which the accepted connections are sharded
+	 */
+	private List<Reactor> reactors;
+	private int nextreactor = 0;
+
 	private BlockingQueue<ByteBuffer> buffers;
-	private int queueinvokes = 0;
+	private AtomicInteger queueinvokes = new AtomicInteger( 0 );
 	private AtomicInteger queuesize = new AtomicInteger( 0 );
 
 	private WebSocketServerFactory wsf = new DefaultWebSocketServerFactory();
@@ -161,8 +171,6 @@ public abstract class WebSocketServer extends WebSocketAdapter implements Runnab
 		this.address = address;
 		this.connections = connectionscontainer;
 
-		iqueue = new LinkedList<WebSocketImpl>();
-
 		decoders = new ArrayList<WebSocketWorker>( decodercount );
 		buffers = new LinkedBlockingQueue<ByteBuffer>();
 		for( int i = 0 ; i < decodercount ; i++ ) {
@@ -187,6 +195,23 @@ public abstract class WebSocketServer extends WebSocketAdapter implements Runnab
 		new Thread( this ).start();
 	}
 
+	/**
+	 * Sets the number of I/O threads of the server. Each I/O thread runs its own selector, the accepted connections being assigned
+	 * to them round-robin. This allows to spread the network I/O of many connections over several cores.<br>
+	 * By default the selector thread performs all the I/O itself. Must be called before the server is started.
+	 * 
+	 * @throws IllegalStateException
+	 */
+	public void setIOThreads( int count ) {
+		if( count < 1 )
+			throw new IllegalArgumentException( "at least one I/O thread is needed" );
+		synchronized ( this ) {
+			if( selectorthread != null )
+				throw new IllegalStateException( "the I/O threads must be set before the server is started" );
+			iothreads = count;
+		}
+	}
+
 	/**
 	 * Closes all connected clients sockets, then closes the underlying
 	 * ServerSocketChannel, effectively killing the server socket selectorthread,
@@ -278,6 +303,7 @@ public abstract class WebSocketServer extends WebSocketAdapter implements Runnab
 			}
 		}
 		selectorthread.setName( "WebsocketSelector" + selectorthread.getId() );
+		Reactor acceptor;
 		try {
 			server = ServerSocketChannel.open();
 			server.configureBlocking( false );
@@ -286,116 +312,43 @@ public abstract class WebSocketServer extends WebSocketAdapter implements Runnab
 			socket.bind( address );
 			selector = Selector.open();
 			server.register( selector, server.validOps() );
+
+			acceptor = new Reactor( selector );
+			reactors = new ArrayList<Reactor>( iothreads );
+			if( iothreads == 1 ) {
+				reactors.add( acceptor );
+			} else {
+				for( int i = 0 ; i < iothreads ; i++ ) {
+					reactors.add( new Reactor( Selector.open() ) );
+				}
+			}
 		} catch ( IOException ex ) {
 			handleFatal( null, ex );
 			return;
 		}
 		try {
-			while ( !selectorthread.isInterrupted() ) {
-				SelectionKey key = null;
-				WebSocketImpl conn = null;
-				try {
-					selector.select();
-					Set<SelectionKey> keys = selector.selectedKeys();
-					Iterator<SelectionKey> i = keys.iterator();
-
-					while ( i.hasNext() ) {
-						key = i.next();
-
-						if( !key.isValid() ) {
-							// Object o = key.attachment();
-							continue;
-						}
-
-						if( key.isAcceptable() ) {
-							if( !onConnect( key ) ) {
-								key.cancel();
-								continue;
-							}
-
-							SocketChannel channel = server.accept();
-							channel.configureBlocking( false );
-							WebSocketImpl w = wsf.createWebSocket( this, drafts, channel.socket() );
-							w.key = channel.register( selector, SelectionKey.OP_READ, w );
-							w.channel = wsf.wrapChannel( channel, w.key );
-							i.remove();
-							allocateBuffers( w );
-							continue;
-						}
-
-						if( key.isReadable() ) {
-							conn = (WebSocketImpl) key.attachment();
-							ByteBuffer buf = takeBuffer();
-							try {
-								if( SocketChannelIOHelper.read( buf, conn, conn.channel ) ) {
-									if( buf.hasRemaining() ) {
-										conn.inQueue.put( buf );
-										queue( conn );
-										i.remove();
-										if( conn.channel instanceof WrappedByteChannel ) {
-											if( ( (WrappedByteChannel) conn.channel ).isNeedRead() ) {
-												iqueue.add( conn );
-											}
-										}
-									} else
-										pushBuffer( buf );
-								} else {
-									pushBuffer( buf );
-								}
-							} catch ( IOException e ) {
-								pushBuffer( buf );
-								throw e;
-							}
-						}
-						if( key.isWritable() ) {
-							conn = (WebSocketImpl) key.attachment();
-							if( SocketChannelIOHelper.batch( conn, conn.channel ) ) {
-								if( key.isValid() )
-									key.interestOps( SelectionKey.OP_READ );
-							}
-						}
-					}
-					while ( !iqueue.isEmpty() ) {
-						conn = iqueue.remove( 0 );
-						WrappedByteChannel c = ( (WrappedByteChannel) conn.channel );
-						ByteBuffer buf = takeBuffer();
-						try {
-							if( SocketChannelIOHelper.readMore( buf, conn, c ) )
-								iqueue.add( conn );
-							if( buf.hasRemaining() ) {
-								conn.inQueue.put( buf );
-								queue( conn );
-							} else {
-								pushBuffer( buf );
-							}
-						} catch ( IOException e ) {
-							pushBuffer( buf );
-							throw e;
-						}
-
-					}
-				} catch ( CancelledKeyException e ) {
-					// an other thread may cancel the key
-				} catch ( ClosedByInterruptException e ) {
-					return; // do the same stuff as when InterruptedException is thrown
-				} catch ( IOException ex ) {
-					if( key != null )
-						key.cancel();
-					handleIOException( key, conn, ex );
-				} catch ( InterruptedException e ) {
-					return;// FIXME controlled shutdown (e.g. take care of buffermanagement)
+			if( iothreads > 1 ) {
+				for( Reactor r : reactors ) {
+					Thread t = new Thread( r );
+					t.setName( "WebsocketReactor" + t.getId() );
+					r.thread = t;
+					t.start();
 				}
 			}
-
-		} catch ( RuntimeException e ) {
-			// should hopefully never occur
-			handleFatal( null, e );
+			acceptor.thread = selectorthread;
+			acceptor.run();
 		} finally {
 			if( decoders != null ) {
 				for( WebSocketWorker w : decoders ) {
 					w.interrupt();
 				}
 			}
+			if( iothreads > 1 ) {
+				for( Reactor r : reactors ) {
+					if( r.thread != null )
+						r.thread.interrupt();
+				}
+			}
 			if( server != null ) {
 				try {
 					server.close();
@@ -405,6 +358,20 @@ public abstract class WebSocketServer extends WebSocketAdapter implements Runnab
 			}
 		}
 	}
+
+	/**
+	 * Accepts a pending connection, and hands it to the next reactor
+	 */
+	private void accept( SelectionKey key ) throws IOException , InterruptedException {
+		SocketChannel channel = server.accept();
+		if( channel == null )
+			return;
+		channel.configureBlocking( false );
+		Reactor r = reactors.get( nextreactor );
+		nextreactor = ( nextreactor + 1 ) % reactors.size();
+		r.register( channel );
+	}
+
 	protected void allocateBuffers( WebSocket c ) throws InterruptedException {
 		if( queuesize.get() >= 2 * decoders.size() + 1 ) {
 			return;
@@ -418,14 +385,14 @@ public abstract class WebSocketServer extends WebSocketAdapter implements Runnab
 		// takeBuffer();
 	}
 
+	/** Read buffers are recycled through {@link #buffers}, and are direct so that the channel reads into them without an intermediate copy */
 	public ByteBuffer createBuffer() {
-		return ByteBuffer.allocate( WebSocketImpl.RCVBUF );
+		return ByteBuffer.allocateDirect( WebSocketImpl.RCVBUF );
 	}
 
 	private void queue( WebSocketImpl ws ) throws InterruptedException {
 		if( ws.workerThread == null ) {
-			ws.workerThread = decoders.get( queueinvokes % decoders.size() );
-			queueinvokes++;
+			ws.workerThread = decoders.get( ( queueinvokes.getAndIncrement() & Integer.MAX_VALUE ) % decoders.size() );
 		}
 		ws.workerThread.put( ws );
 	}
@@ -512,7 +479,7 @@ public abstract class WebSocketServer extends WebSocketAdapter implements Runnab
 
 	@Override
 	public final void onWebsocketClose( WebSocket conn, int code, String reason, boolean remote ) {
-		selector.wakeup();
+		wakeup( (WebSocketImpl) conn );
 		try {
 			if( removeConnection( conn ) ) {
 				onClose( conn, code, reason, remote );
@@ -579,9 +546,18 @@ public abstract class WebSocketServer extends WebSocketAdapter implements Runnab
 			conn.key.interestOps( SelectionKey.OP_READ | SelectionKey.OP_WRITE );
 		} catch ( CancelledKeyException e ) {
 			// the thread which cancels key is responsible for possible cleanup
-			conn.outQueue.clear();
+			conn.clearOutQueue();
+		}
+		wakeup( conn );
+	}
+
+	/** Wakes up the selector the given connection is registered with */
+	private void wakeup( WebSocketImpl conn ) {
+		if( conn.key != null ) {
+			conn.key.selector().wakeup();
+		} else if( selector != null ) {
+			selector.wakeup();
 		}
-		selector.wakeup();
 	}
 
 	@Override
@@ -664,7 +640,8 @@ public abstract class WebSocketServer extends WebSocketAdapter implements Runnab
 	 **/
 	public abstract void onError( WebSocket conn, Exception ex );
 	/**
-	 * Callback for binary messages received from the remote host
+	 * Callback for binary messages received from the remote host.<br>
+	 * The message is only valid during the call, and must be copied to be kept.
 	 * 
 	 * @see #onMessage(WebSocket, String)
 	 **/
@@ -677,6 +654,174 @@ public abstract class WebSocketServer extends WebSocketAdapter implements Runnab
 	public void onFragment( WebSocket conn, Framedata fragment ) {
 	}
 
+	/**
+	 * Runs a selector and performs the I/O of the connections registered with it.
+	 * The reactor of the selector thread also accepts the new connections.
+	 */
+	private class Reactor implements Runnable {
+
+		private final Selector selector;
+		/** Connections whose wrapped channel has more data to read */
+		private final List<WebSocketImpl> iqueue = new LinkedList<WebSocketImpl>();
+		/** Accepted channels waiting to be registered with this reactor */
+		private final Queue<SocketChannel> pendingchannels = new ConcurrentLinkedQueue<SocketChannel>();
+		private volatile Thread thread;
+
+		Reactor( Selector selector ) {
+			this.selector = selector;
+		}
+
+		/**
+		 * Registers an accepted channel with this reactor. Channels accepted by another thread are registered by the reactor thread itself.
+		 */
+		void register( SocketChannel channel ) throws IOException , InterruptedException {
+			if( Thread.currentThread() == thread ) {
+				registerChannel( channel );
+			} else {
+				pendingchannels.add( channel );
+				selector.wakeup();
+			}
+		}
+
+		private void registerChannel( SocketChannel channel ) throws IOException , InterruptedException {
+			WebSocketImpl w = wsf.createWebSocket( WebSocketServer.this, drafts, channel.socket() );
+			w.key = channel.register( selector, SelectionKey.OP_READ, w );
+			try {
+				w.channel = wsf.wrapChannel( channel, w.key );
+			} catch ( IOException e ) {
+				w.key.cancel();
+				throw e;
+			}
+			allocateBuffers( w );
+		}
+
+		@Override
+		public void run() {
+			try {
+				while ( !thread.isInterrupted() ) {
+					SelectionKey key = null;
+					WebSocketImpl conn = null;
+					try {
+						selector.select();
+
+						SocketChannel pending;
+						while ( ( pending = pendingchannels.poll() ) != null ) {
+							try {
+								registerChannel( pending );
+							} catch ( IOException e ) {
+								try {
+									pending.close();
+								} catch ( IOException e1 ) {
+									// there is nothing that must be done here
+								}
+								onError( null, e );
+							}
+						}
+
+						Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+
+						while ( i.hasNext() ) {
+							key = i.next();
+							conn = null;
+
+							if( !key.isValid() ) {
+								// Object o = key.attachment();
+								continue;
+							}
+
+							if( key.isAcceptable() ) {
+								if( !onConnect( key ) ) {
+									key.cancel();
+									continue;
+								}
+
+								i.remove();
+								accept( key );
+								continue;
+							}
+
+							if( key.isReadable() ) {
+								conn = (WebSocketImpl) key.attachment();
+								ByteBuffer buf = takeBuffer();
+								try {
+									if( SocketChannelIOHelper.read( buf, conn, conn.channel ) ) {
+										if( buf.hasRemaining() ) {
+											conn.inQueue.put( buf );
+											queue( conn );
+											i.remove();
+											if( conn.channel instanceof WrappedByteChannel ) {
+												if( ( (WrappedByteChannel) conn.channel ).isNeedRead() ) {
+													iqueue.add( conn );
+												}
+											}
+										} else
+											pushBuffer( buf );
+									} else {
+										pushBuffer( buf );
+									}
+								} catch ( IOException e ) {
+									pushBuffer( buf );
+									throw e;
+								}
+							}
+							if( key.isWritable() ) {
+								conn = (WebSocketImpl) key.attachment();
+								if( SocketChannelIOHelper.batch( conn, conn.channel ) ) {
+									if( key.isValid() ) {
+										key.interestOps( SelectionKey.OP_READ );
+										// a frame queued since the queue was found empty would have its write demand overwritten
+										if( conn.hasBufferedData() )
+											key.interestOps( SelectionKey.OP_READ | SelectionKey.OP_WRITE );
+									}
+								}
+							}
+						}
+						while ( !iqueue.isEmpty() ) {
+							conn = iqueue.remove( 0 );
+							WrappedByteChannel c = ( (WrappedByteChannel) conn.channel );
+							ByteBuffer buf = takeBuffer();
+							try {
+								if( SocketChannelIOHelper.readMore( buf, conn, c ) )
+									iqueue.add( conn );
+								if( buf.hasRemaining() ) {
+									conn.inQueue.put( buf );
+									queue( conn );
+								} else {
+									pushBuffer( buf );
+								}
+							} catch ( IOException e ) {
+								pushBuffer( buf );
+								throw e;
+							}
+
+						}
+					} catch ( CancelledKeyException e ) {
+						// an other thread may cancel the key
+					} catch ( ClosedByInterruptException e ) {
+						return; // do the same stuff as when InterruptedException is thrown
+					} catch ( IOException ex ) {
+						if( key != null )
+							key.cancel();
+						handleIOException( key, conn, ex );
+					} catch ( InterruptedException e ) {
+						return;// FIXME controlled shutdown (e.g. take care of buffermanagement)
+					}
+				}
+			} catch ( RuntimeException e ) {
+				// should hopefully never occur
+				handleFatal( null, e );
+			} finally {
+				if( selector != WebSocketServer.this.selector ) {
+					try {
+						selector.close();
+					} catch ( IOException e ) {
+						onError( null, e );
+					}
+				}
+			}
+		}
+	}
+
 	public class WebSocketWorker extends Thread {
 
 		private BlockingQueue<WebSocketImpl> iqueue;
@@ -0,0 +1,108 @@
+package org.java_websocket.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-safe pool of direct buffers, sorted in power of two size classes.<br>
+ * Buffers larger than the largest class are not pooled, and are allocated on the heap. So are the buffers asked for while all
+ * the direct buffers of their class are in use, as allocating direct buffers is much slower than allocating heap buffers.
+ */
+public class ByteBufferPool {
+
+	private static final ByteBufferPool DEFAULT = new ByteBufferPool( 256, 65536, 64 );
+
+	private final int minsize;
+	private final int maxsize;
+	private final int maxpooled;
+	private final Queue<ByteBuffer>[] classes;
+	private final AtomicInteger[] counts;
+	private final AtomicInteger[] allocated;
+
+	/**
+	 * @param minsize
+	 *            The size of the smallest class, must be a power of two
+	 * @param maxsize
+	 *            The size of the largest class, must be a power of two
+	 * @param maxpooled
+	 *            The maximum number of direct buffers allocated per class
+	 */
+	@SuppressWarnings("unchecked")
+	public ByteBufferPool( int minsize , int maxsize , int maxpooled ) {
+		if( Integer.bitCount( minsize ) != 1 || Integer.bitCount( maxsize ) != 1 || minsize > maxsize )
+			throw new IllegalArgumentException( "sizes must be powers of two" );
+		this.minsize = minsize;
+		this.maxsize = maxsize;
+		this.maxpooled = maxpooled;
+		int count = Integer.numberOfTrailingZeros( maxsize ) - Integer.numberOfTrailingZeros( minsize ) + 1;
+		classes = new Queue[ count ];
+		counts = new AtomicInteger[ count ];
+		allocated = new AtomicInteger[ count ];
+		for( int i = 0 ; i < count ; i++ ) {
+			classes[ i ] = new ConcurrentLinkedQueue<ByteBuffer>();
+			counts[ i ] = new AtomicInteger();
+			allocated[ i ] = new AtomicInteger();
+		}
+	}
+
+	/** Returns the pool shared by all the connections */
+	public static ByteBufferPool getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Returns a cleared buffer of at least the given capacity, with its limit set to the given capacity
+	 */
+	public ByteBuffer acquire( int capacity ) {
+		int index = indexOf( capacity );
+		if( index < 0 ) {
+			return ByteBuffer.allocate( capacity );
+		}
+
+		ByteBuffer buf = classes[ index ].poll();
+		if( buf == null ) {
+			if( allocated[ index ].incrementAndGet() > maxpooled ) {
+				allocated[ index ].decrementAndGet();
+				return ByteBuffer.allocate( capacity );
+			}
+			buf = ByteBuffer.allocateDirect( minsize << index );
+		} else {
+			counts[ index ].decrementAndGet();
+			buf.clear();
+		}
+		buf.limit( capacity );
+		return buf;
+	}
+
+	/**
+	 * Returns whether the given buffer may have been acquired from this pool
+	 */
+	public boolean owns( ByteBuffer buf ) {
+		int capacity = buf.capacity();
+		return buf.isDirect() && !buf.isReadOnly() && capacity >= minsize && capacity <= maxsize && Integer.bitCount( capacity ) == 1;
+	}
+
+	/**
+	 * Gives back a buffer acquired from this pool. The buffer must not be used anymore by the caller.
+	 */
+	public void release( ByteBuffer buf ) {
+		if( !owns( buf ) )
+			return;
+		int index = indexOf( buf.capacity() );
+		if( counts[ index ].incrementAndGet() > maxpooled ) {
+			counts[ index ].decrementAndGet();
+			return;
+		}
+		classes[ index ].add( buf );
+	}
+
+	private int indexOf( int capacity ) {
+		if( capacity > maxsize )
+			return -1;
+		if( capacity <= minsize )
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros( capacity - 1 ) - Integer.numberOfTrailingZeros( minsize );
+	}
+}